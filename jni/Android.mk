@@ -21,6 +21,7 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
+        feature_mos/src/mosaic/WorkerPool.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
         feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
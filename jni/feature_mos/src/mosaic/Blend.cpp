@@ -36,6 +36,7 @@ const float Blend::LIMIT_HEIGHT_MULTIPLIER = 2.5f;
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  m_pPool = NULL;
 }
 
 Blend::~Blend()
@@ -282,8 +283,11 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     }
 
     // Do merging and blending :
+    m_pPool = new WorkerPool();
     ret = DoMergeAndBlend(frames, numCenters, width, height, *imgMos, fullRect,
             cropping_rect, progress, cancelComputation);
+    delete m_pPool;
+    m_pPool = NULL;
 
     if (m_wb.blendingType == BLEND_TYPE_HORZ)
         CropFinalMosaic(*imgMos, cropping_rect);
@@ -360,9 +364,9 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
     PyramidShort::BorderSpread(m_pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
 
     // Generate Laplacian pyramids
-    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1))
+    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs, m_pPool) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1, m_pPool) ||
+            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC, m_pPool) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1, m_pPool) ||
+            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC, m_pPool) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1, m_pPool))
     {
         LOGE("Error: Could not generate Laplacian pyramids");
         return BLEND_RET_ERROR;
@@ -399,7 +403,6 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     int site_idx;
 
     // First go through each frame and for each mosaic pixel determine which frame it should come from
-    site_idx = 0;
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
         if(cancelComputation)
@@ -414,10 +417,17 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
 
         mb->vcrect = mb->brect;
         ClipBlendRect(csite, mb->vcrect);
+    }
 
-        ComputeMask(csite, mb->vcrect, mb->brect, rect, imgMos, site_idx);
+    MaskJob maskJob = { this, nsite, &rect, &imgMos, &cancelComputation };
+    m_pPool->run(0, imgMos.Y.height, PyramidShort::MIN_ROWS_PER_TASK, ComputeMaskTask, &maskJob);
 
-        site_idx++;
+    if(cancelComputation)
+    {
+        if (m_pMosaicVPyr) free(m_pMosaicVPyr);
+        if (m_pMosaicUPyr) free(m_pMosaicUPyr);
+        if (m_pMosaicYPyr) free(m_pMosaicYPyr);
+        return BLEND_RET_CANCELLED;
     }
 
     ////////// imgMos.Y, imgMos.V, imgMos.U are used as follows //////////////
@@ -641,8 +651,8 @@ void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
 int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 {
-    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) ||
-        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1))
+    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1, m_pPool) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1, m_pPool) ||
+        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1, m_pPool))
     {
       LOGE("Error: Could not BorderExpand!");
       return BLEND_RET_ERROR;
@@ -819,7 +829,25 @@ void Blend::RoundingCroppingSizeToMultipleOf8(MosaicRect &rect) {
     rect.right -= residue;
 }
 
-void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx)
+void Blend::ComputeMaskTask(void *arg, int rowBegin, int rowEnd)
+{
+    MaskJob *job = (MaskJob *) arg;
+    Blend *blend = job->blend;
+
+    CSite *esite = blend->m_AllSites + job->nsite;
+    int site_idx = 0;
+    for(CSite *csite = blend->m_AllSites; csite < esite; csite++, site_idx++)
+    {
+        if(*job->cancelComputation)
+            return;
+
+        MosaicFrame *mb = csite->getMb();
+        blend->ComputeMask(csite, mb->vcrect, mb->brect, *job->rect, *job->imgMos, site_idx,
+                rowBegin, rowEnd);
+    }
+}
+
+void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx, int rowBegin, int rowEnd)
 {
     PyramidShort *dptr = m_pMosaicYPyr;
 
@@ -848,6 +876,12 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
     else if (t >= dptr->height + BORDER)
         t = dptr->height + BORDER - 1;
 
+    // Only the rows of this band
+    if (b < rowBegin)
+        b = rowBegin;
+    if (t > rowEnd - 1)
+        t = rowEnd - 1;
+
     // Walk the Region of interest and populate the pyramid
     for (int j = b; j <= t; j++)
     {
@@ -933,137 +967,165 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
             t = dptr->height + BORDER - 1;
 
         // Walk the Region of interest and populate the pyramid
-        for (int j = b; j <= t; j++)
-        {
-            int jj = (j << dscale);
-            double sj = jj + rect.top;
+        LevelJob job = { this, sptr, suptr, svptr, dptr, duptr, dvptr,
+                dscale, nC, l, r, site_idx, &rect, &imgMos, inv_trs };
+        m_pPool->run(b, t + 1, PyramidShort::MIN_ROWS_PER_TASK, ProcessPyramidTask, &job);
+    }
+}
 
-            for (int i = l; i <= r; i++)
-            {
-                int ii = (i << dscale);
-                // project point and then triangulate to neighbors
-                double si = ii + rect.left;
+void Blend::ProcessPyramidTask(void *arg, int rowBegin, int rowEnd)
+{
+    LevelJob *job = (LevelJob *) arg;
+    job->blend->ProcessPyramidRows(*job, rowBegin, rowEnd);
+}
+
+void Blend::ProcessPyramidRows(LevelJob &job, int rowBegin, int rowEnd)
+{
+    PyramidShort *sptr = job.sptr;
+    PyramidShort *suptr = job.suptr;
+    PyramidShort *svptr = job.svptr;
+    PyramidShort *dptr = job.dptr;
+    PyramidShort *duptr = job.duptr;
+    PyramidShort *dvptr = job.dvptr;
+    int dscale = job.dscale;
+    int nC = job.nC;
+    int l = job.l;
+    int r = job.r;
+    int site_idx = job.site_idx;
+    MosaicRect &rect = *job.rect;
+    YUVinfo &imgMos = *job.imgMos;
+    double (*inv_trs)[3] = job.inv_trs;
+
+    for (int j = rowBegin; j < rowEnd; j++)
+    {
+        int jj = (j << dscale);
+        double sj = jj + rect.top;
 
-                int inMask = ((unsigned) ii < imgMos.Y.width &&
-                        (unsigned) jj < imgMos.Y.height) ? 1 : 0;
+        for (int i = l; i <= r; i++)
+        {
+            int ii = (i << dscale);
+            // project point and then triangulate to neighbors
+            double si = ii + rect.left;
+
+            int inMask = ((unsigned) ii < imgMos.Y.width &&
+                    (unsigned) jj < imgMos.Y.height) ? 1 : 0;
 
-                if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
-                        imgMos.V.ptr[jj][ii] != site_idx &&
-                        imgMos.Y.ptr[jj][ii] != 255)
-                    continue;
+            if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
+                    imgMos.V.ptr[jj][ii] != site_idx &&
+                    imgMos.Y.ptr[jj][ii] != 255)
+                continue;
 
-                // Setup weights for cross-fading
-                // Weight of the intensity already in the output pixel
-                double wt0 = 0.0;
-                // Weight of the intensity from the input pixel (current frame)
-                double wt1 = 1.0;
+            // Setup weights for cross-fading
+            // Weight of the intensity already in the output pixel
+            double wt0 = 0.0;
+            // Weight of the intensity from the input pixel (current frame)
+            double wt1 = 1.0;
 
-                if (m_wb.stripType == STRIP_TYPE_WIDE)
+            if (m_wb.stripType == STRIP_TYPE_WIDE)
+            {
+                if(inMask && imgMos.Y.ptr[jj][ii] != 255)
                 {
-                    if(inMask && imgMos.Y.ptr[jj][ii] != 255)
+                    // If not on a seam OR pyramid level exceeds
+                    // maximum level for cross-fading.
+                    if((imgMos.V.ptr[jj][ii] == 128) ||
+                        (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
                     {
-                        // If not on a seam OR pyramid level exceeds
-                        // maximum level for cross-fading.
-                        if((imgMos.V.ptr[jj][ii] == 128) ||
-                            (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
-                        {
-                            wt0 = 0.0;
-                            wt1 = 1.0;
-                        }
-                        else
-                        {
-                            wt0 = 1.0;
-                            wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
-                                    (double)imgMos.U.ptr[jj][ii] / 100.0 :
-                                    1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
-                        }
+                        wt0 = 0.0;
+                        wt1 = 1.0;
+                    }
+                    else
+                    {
+                        wt0 = 1.0;
+                        wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
+                                (double)imgMos.U.ptr[jj][ii] / 100.0 :
+                                1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
                     }
                 }
+            }
 
-                // Project this mosaic point into the original frame coordinate space
-                double xx, yy;
+            // Project this mosaic point into the original frame coordinate space
+            double xx, yy;
 
-                MosaicToFrame(inv_trs, si, sj, xx, yy);
+            MosaicToFrame(inv_trs, si, sj, xx, yy);
 
-                if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            {
+                if(inMask)
                 {
-                    if(inMask)
-                    {
-                        imgMos.Y.ptr[jj][ii] = 255;
-                        wt0 = 0.0f;
-                        wt1 = 1.0f;
-                    }
+                    imgMos.Y.ptr[jj][ii] = 255;
+                    wt0 = 0.0f;
+                    wt1 = 1.0f;
                 }
+            }
 
-                xx /= (1 << dscale);
-                yy /= (1 << dscale);
+            xx /= (1 << dscale);
+            yy /= (1 << dscale);
 
 
-                int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
-                int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
+            int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
+            int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
 
-                // Final destination in extended pyramid
+            // Final destination in extended pyramid
 #ifndef LINEAR_INTERP
-                if(inSegment(x1, sptr->width, BORDER-1) &&
-                        inSegment(y1, sptr->height, BORDER-1))
+            if(inSegment(x1, sptr->width, BORDER-1) &&
+                    inSegment(y1, sptr->height, BORDER-1))
+            {
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
+                        wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
-                            wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
-                    }
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
                 }
+            }
 #else
-                if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            {
+                int x2 = x1 + 1;
+                int y2 = y1 + 1;
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                double y1val = sptr->ptr[y1][x1] +
+                    (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
+                double y2val = sptr->ptr[y2][x1] +
+                    (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
+                dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    int x2 = x1 + 1;
-                    int y2 = y1 + 1;
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    double y1val = sptr->ptr[y1][x1] +
-                        (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
-                    double y2val = sptr->ptr[y2][x1] +
-                        (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
-                    dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        y1val = suptr->ptr[y1][x1] +
-                            (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
-                        y2val = suptr->ptr[y2][x1] +
-                            (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
+                    y1val = suptr->ptr[y1][x1] +
+                        (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
+                    y2val = suptr->ptr[y2][x1] +
+                        (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
 
-                        duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+                    duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
 
-                        y1val = svptr->ptr[y1][x1] +
-                            (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
-                        y2val = svptr->ptr[y2][x1] +
-                            (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
+                    y1val = svptr->ptr[y1][x1] +
+                        (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
+                    y2val = svptr->ptr[y2][x1] +
+                        (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
 
-                        dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-                    }
+                    dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
                 }
+            }
 #endif
-                else
-                {
-                    clipToSegment(x1, sptr->width, BORDER);
-                    clipToSegment(y1, sptr->height, BORDER);
+            else
+            {
+                clipToSegment(x1, sptr->width, BORDER);
+                clipToSegment(y1, sptr->height, BORDER);
 
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
-                            wt1 * sptr->ptr[y1][x1] );
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
-                                0.5 + wt1 * svptr->ptr[y1][x1] );
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
-                                0.5 + wt1 * suptr->ptr[y1][x1] );
-                    }
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
+                        wt1 * sptr->ptr[y1][x1] );
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
+                {
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
+                            0.5 + wt1 * svptr->ptr[y1][x1] );
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
+                            0.5 + wt1 * suptr->ptr[y1][x1] );
                 }
             }
         }
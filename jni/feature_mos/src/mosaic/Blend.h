@@ -24,6 +24,7 @@
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "WorkerPool.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -105,9 +106,40 @@ protected:
   void AlignToMiddleFrame(MosaicFrame **frames, int frames_size);
 
   int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
-  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
+  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx, int rowBegin, int rowEnd);
   void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
 
+  // Threads for the merge and blend steps, only alive during DoMergeAndBlend.
+  WorkerPool *m_pPool;
+
+  // Mask rows are split into bands, each band visits the sites in order so
+  // the site owning a pixel is the same as with a single thread.
+  struct MaskJob
+  {
+    Blend *blend;
+    int nsite;
+    MosaicRect *rect;
+    YUVinfo *imgMos;
+    bool *cancelComputation;
+  };
+  static void ComputeMaskTask(void *arg, int rowBegin, int rowEnd);
+
+  // One pyramid level of ProcessPyramidForThisFrame. Mosaic row j of the
+  // level only touches row j of the level and row (j << dscale) of imgMos,
+  // so the rows of a level run in parallel. Levels stay in order.
+  struct LevelJob
+  {
+    Blend *blend;
+    PyramidShort *sptr, *suptr, *svptr;
+    PyramidShort *dptr, *duptr, *dvptr;
+    int dscale, nC, l, r, site_idx;
+    MosaicRect *rect;
+    YUVinfo *imgMos;
+    double (*inv_trs)[3];
+  };
+  static void ProcessPyramidTask(void *arg, int rowBegin, int rowEnd);
+  void ProcessPyramidRows(LevelJob &job, int rowBegin, int rowEnd);
+
   int  FillFramePyramid(MosaicFrame *mb);
 
   // TODO: need to add documentation about the parameters
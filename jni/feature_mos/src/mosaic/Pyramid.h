@@ -20,6 +20,7 @@
 #define PYRAMID_H
 
 #include "ImageUtils.h"
+#include "WorkerPool.h"
 
 typedef unsigned short int real;
 
@@ -37,6 +38,9 @@ public:
   real border;                      // border size
   real pitch;                       // Pitch.  Used for moving through image efficiently.
 
+  // Rows per task when the filters are split across a WorkerPool.
+  static const int MIN_ROWS_PER_TASK = 16;
+
   static PyramidShort *allocatePyramidPacked(real width, real height, real levels, real border = 0);
   static PyramidShort *allocateImage(real width, real height, real border);
   static void createPyramid(ImageType image, PyramidShort *pyramid, int last = 3 );
@@ -45,10 +49,13 @@ public:
   static unsigned int calcStorage(real width, real height, real border2, int levels, int *lines);
 
   static void BorderSpread(PyramidShort *pyr, int left, int right, int top, int bot);
-  static void BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode);
-  static int BorderExpand(PyramidShort *pyr, int nlev, int mode);
-  static int BorderReduce(PyramidShort *pyr, int nlev);
-  static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr);
+  // The filters split their rows across the pool when one is given.
+  static void BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode,
+        WorkerPool *pool = NULL);
+  static int BorderExpand(PyramidShort *pyr, int nlev, int mode, WorkerPool *pool = NULL);
+  static int BorderReduce(PyramidShort *pyr, int nlev, WorkerPool *pool = NULL);
+  static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
+        WorkerPool *pool = NULL);
 };
 
 #endif
@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// WorkerPool.cpp
+
+#include <unistd.h>
+
+#include "WorkerPool.h"
+
+#include "Log.h"
+#define LOG_TAG "WorkerPool"
+
+// Chunks handed out per thread, so a slow chunk does not hold up the rest.
+static const int CHUNKS_PER_THREAD = 4;
+
+WorkerPool::WorkerPool(int numThreads)
+{
+    if (numThreads <= 0)
+    {
+        long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+        numThreads = (cpus > 0) ? (int) cpus : 1;
+    }
+    if (numThreads > MAX_THREADS)
+        numThreads = MAX_THREADS;
+
+    pthread_mutex_init(&m_Lock, NULL);
+    pthread_cond_init(&m_WorkReady, NULL);
+    pthread_cond_init(&m_WorkDone, NULL);
+    m_Generation = 0;
+    m_Exit = false;
+    m_Func = NULL;
+    m_Arg = NULL;
+    m_Next = m_End = m_Chunk = m_Pending = 0;
+
+    m_NumWorkers = 0;
+    for (int i = 0; i < numThreads - 1; i++)
+    {
+        if (pthread_create(&m_Threads[m_NumWorkers], NULL, threadMain, this) != 0)
+        {
+            LOGE("WorkerPool: could only start %d of %d threads", m_NumWorkers, numThreads - 1);
+            break;
+        }
+        m_NumWorkers++;
+    }
+}
+
+WorkerPool::~WorkerPool()
+{
+    pthread_mutex_lock(&m_Lock);
+    m_Exit = true;
+    pthread_cond_broadcast(&m_WorkReady);
+    pthread_mutex_unlock(&m_Lock);
+
+    for (int i = 0; i < m_NumWorkers; i++)
+        pthread_join(m_Threads[i], NULL);
+
+    pthread_cond_destroy(&m_WorkDone);
+    pthread_cond_destroy(&m_WorkReady);
+    pthread_mutex_destroy(&m_Lock);
+}
+
+void WorkerPool::run(int begin, int end, int minChunk, RangeFunc fn, void *arg)
+{
+    int count = end - begin;
+    if (count <= 0)
+        return;
+    if (minChunk < 1)
+        minChunk = 1;
+    if (m_NumWorkers == 0 || count <= minChunk)
+    {
+        fn(arg, begin, end);
+        return;
+    }
+
+    int parts = getNumThreads() * CHUNKS_PER_THREAD;
+    int chunk = (count + parts - 1) / parts;
+    if (chunk < minChunk)
+        chunk = minChunk;
+
+    pthread_mutex_lock(&m_Lock);
+    m_Func = fn;
+    m_Arg = arg;
+    m_Next = begin;
+    m_End = end;
+    m_Chunk = chunk;
+    m_Pending = (count + chunk - 1) / chunk;
+    m_Generation++;
+    pthread_cond_broadcast(&m_WorkReady);
+    pthread_mutex_unlock(&m_Lock);
+
+    runChunks();
+
+    pthread_mutex_lock(&m_Lock);
+    while (m_Pending > 0)
+        pthread_cond_wait(&m_WorkDone, &m_Lock);
+    m_Func = NULL;
+    m_Arg = NULL;
+    pthread_mutex_unlock(&m_Lock);
+}
+
+void WorkerPool::runChunks()
+{
+    pthread_mutex_lock(&m_Lock);
+    while (m_Next < m_End)
+    {
+        int begin = m_Next;
+        int end = (m_End - begin > m_Chunk) ? begin + m_Chunk : m_End;
+        m_Next = end;
+        RangeFunc fn = m_Func;
+        void *arg = m_Arg;
+
+        pthread_mutex_unlock(&m_Lock);
+        fn(arg, begin, end);
+        pthread_mutex_lock(&m_Lock);
+
+        if (--m_Pending == 0)
+            pthread_cond_broadcast(&m_WorkDone);
+    }
+    pthread_mutex_unlock(&m_Lock);
+}
+
+void WorkerPool::workerLoop()
+{
+    unsigned int seen = 0;
+    pthread_mutex_lock(&m_Lock);
+    for (;;)
+    {
+        while (!m_Exit && m_Generation == seen)
+            pthread_cond_wait(&m_WorkReady, &m_Lock);
+        if (m_Exit)
+            break;
+        seen = m_Generation;
+
+        pthread_mutex_unlock(&m_Lock);
+        runChunks();
+        pthread_mutex_lock(&m_Lock);
+    }
+    pthread_mutex_unlock(&m_Lock);
+}
+
+void *WorkerPool::threadMain(void *self)
+{
+    ((WorkerPool *) self)->workerLoop();
+    return NULL;
+}
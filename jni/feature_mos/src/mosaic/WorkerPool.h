@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// WorkerPool.h
+
+#ifndef WORKER_POOL_H
+#define WORKER_POOL_H
+
+#include <pthread.h>
+
+//  Small fixed set of threads that run a range of independent work items,
+//  usually image rows, in contiguous chunks. The calling thread takes part
+//  and run() only returns once the whole range is done, so the code around
+//  each parallel step stays serial.
+
+class WorkerPool
+{
+
+public:
+
+  typedef void (*RangeFunc)(void *arg, int begin, int end);
+
+  static const int MAX_THREADS = 4;
+
+  // numThreads includes the calling thread, 0 uses one per online CPU up
+  // to MAX_THREADS.
+  WorkerPool(int numThreads = 0);
+  ~WorkerPool();
+
+  int getNumThreads() const { return m_NumWorkers + 1; }
+
+  // Runs fn over [begin, end) in chunks of at least minChunk items. Chunks
+  // may run in any order and concurrently, fn must only write state owned
+  // by the items it is given.
+  void run(int begin, int end, int minChunk, RangeFunc fn, void *arg);
+
+private:
+
+  static void *threadMain(void *self);
+  void workerLoop();
+  void runChunks();
+
+  pthread_t m_Threads[MAX_THREADS];
+  int m_NumWorkers;
+
+  pthread_mutex_t m_Lock;
+  pthread_cond_t m_WorkReady;
+  pthread_cond_t m_WorkDone;
+  unsigned int m_Generation;
+  bool m_Exit;
+
+  // The range being run, guarded by m_Lock.
+  RangeFunc m_Func;
+  void *m_Arg;
+  int m_Next;
+  int m_End;
+  int m_Chunk;
+  int m_Pending;
+};
+
+#endif
@@ -662,15 +662,88 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     if (bytes == 0) {
         LOGE("Error in creating the image.");
         ImageUtils::freeImage(resultYVU);
+        resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
         return 0;
     }
     env->SetByteArrayRegion(bytes, 0, imageSize, (jbyte*) resultYVU);
     env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
     delete[] dims;
     ImageUtils::freeImage(resultYVU);
+    resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
     return bytes;
 }
 
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicSize(
+        JNIEnv* env, jobject thiz)
+{
+    (void)thiz;
+    if (resultYVU == ImageUtils::IMAGE_TYPE_NOIMAGE)
+        return 0;
+
+    jint dims[2] = { mosaicWidth, mosaicHeight };
+    jintArray size = env->NewIntArray(2);
+    if (size == 0)
+        return 0;
+    env->SetIntArrayRegion(size, 0, 2, dims);
+    return size;
+}
+
+// Converts rows [top, top + rows) of the final mosaic to NV21 into strip,
+// the same way getFinalMosaicNV21 converts the whole image. top has to be
+// even so the strip starts on a chroma row. The mosaic is left untouched,
+// so strips can be read in any order until releaseFinalMosaic.
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_getFinalMosaicStripNV21(
+        JNIEnv* env, jobject thiz, jbyteArray strip, jint top, jint rows)
+{
+    (void)thiz;
+    if (resultYVU == ImageUtils::IMAGE_TYPE_NOIMAGE || strip == 0)
+        return -1;
+    if (top < 0 || (top & 1) || top >= mosaicHeight || rows <= 0)
+        return -1;
+    if (rows > mosaicHeight - top)
+        rows = mosaicHeight - top;
+
+    int chromaRows = (rows + 1) / 2;
+    int needed = mosaicWidth * (rows + chromaRows);
+    if (env->GetArrayLength(strip) < needed)
+        return -1;
+
+    unsigned char *out = (unsigned char *) env->GetPrimitiveArrayCritical(strip, 0);
+    if (out == 0)
+        return -1;
+
+    memcpy(out, resultYVU + top * mosaicWidth, rows * mosaicWidth);
+
+    ImageType V = resultYVU + mosaicWidth * mosaicHeight;
+    ImageType U = V + mosaicWidth * mosaicHeight;
+    unsigned char *vu = out + rows * mosaicWidth;
+    for (int j = 0; j < chromaRows; j++)
+    {
+        int src = (top + 2 * j) * mosaicWidth;
+        for (int i = 0; i + 1 < mosaicWidth; i += 2)
+        {
+            vu[i] = V[src + i];
+            vu[i + 1] = U[src + i];
+        }
+        vu += mosaicWidth;
+    }
+
+    env->ReleasePrimitiveArrayCritical(strip, out, 0);
+    return rows;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_releaseFinalMosaic(
+        JNIEnv* env, jobject thiz)
+{
+    (void)env;
+    (void)thiz;
+    if (resultYVU != ImageUtils::IMAGE_TYPE_NOIMAGE)
+    {
+        ImageUtils::freeImage(resultYVU);
+        resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
+    }
+}
+
 #ifdef __cplusplus
 }
 #endif
@@ -16,6 +16,9 @@
 
 #include <jni.h>
 #include <math.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <unistd.h>
 #include <android/bitmap.h>
 
 #ifdef __cplusplus
@@ -25,6 +28,16 @@ extern "C" {
 
 #define PI_F 3.141592653589f
 
+// Output sizes up to this get a cached polar table, larger outputs such as
+// the saved image are computed directly so their memory stays bounded.
+#define MAX_POLAR_TABLE_SIZE 2048
+// Preview and low res preview tables are kept.
+#define POLAR_TABLE_CACHE_SIZE 2
+// Samples per output pixel of the radius to panorama row table.
+#define RADIAL_STEPS_PER_PIXEL 8
+#define MAX_THREADS 4
+#define MIN_ROWS_PER_THREAD 16
+
 class ImageRGBA {
  public:
   ImageRGBA(unsigned char* image, int width, int height)
@@ -55,32 +68,32 @@ class ImageRGBA {
   int width_step_;
 };
 
-// Interpolate a pixel in a 3 channel image.
+// Interpolate a pixel in a 3 channel image. The right neighbour wraps around
+// the globe, the bottom one is clamped to the last row.
 inline void InterpolatePixel(const ImageRGBA &image, float x, float y,
                              unsigned char* dest) {
+  int ix = static_cast<int>(x);
+  int iy = static_cast<int>(y);
+  if (ix >= image.Width()) ix = image.Width() - 1;
+  if (iy >= image.Height()) iy = image.Height() - 1;
+  int ix1 = ix + 1 < image.Width() ? ix + 1 : 0;
+  int iy1 = iy + 1 < image.Height() ? iy + 1 : iy;
+
   // Get pointers and scale factors for the source pixels.
-  float ax = x - floor(x);
-  float ay = y - floor(y);
+  float ax = x - ix;
+  float ay = y - iy;
   float axn = 1.0f - ax;
   float ayn = 1.0f - ay;
-  const unsigned char *p = image(x, y);
-  const unsigned char *p2 = image(x, y + 1);
+  const unsigned char *p = image(ix, iy);
+  const unsigned char *p1 = image(ix1, iy);
+  const unsigned char *p2 = image(ix, iy1);
+  const unsigned char *p3 = image(ix1, iy1);
 
   // Interpolate each image color plane.
-  dest[0] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
-
-  dest[1] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
-
-  dest[2] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
+  for (int c = 0; c < 3; c++) {
+    dest[c] = static_cast<unsigned char>(axn * ayn * p[c] + ax * ayn * p1[c] +
+               ax * ay * p3[c] + axn * ay * p2[c] + 0.5f);
+  }
   dest[3] = 0xFF;
 }
 
@@ -89,26 +102,134 @@ inline float wrap(float value, float dimension) {
   return value - (dimension * floor(value/dimension));
 }
 
-void StereographicProjection(float scale, float angle, unsigned char* input_image,
-                             int input_width, int input_height,
-                             unsigned char* output_image, int output_width,
-                             int output_height) {
-  ImageRGBA input(input_image, input_width, input_height);
-  ImageRGBA output(output_image, output_width, output_height);
+// The polar coordinates of every output pixel around the center. They only
+// depend on the output size: the angle shifts theta and the scale only
+// changes how the radius maps to a panorama row.
+struct PolarTable {
+  int size;
+  // One for the cache slot and one per render using it, guarded by
+  // gTableLock. The table is freed when the last one goes away.
+  int refs;
+  // Angle in turns, so it maps to a panorama column with one multiply.
+  float* theta;
+  // Distance to the center in radial table steps.
+  float* radius;
+};
+
+static pthread_mutex_t gTableLock = PTHREAD_MUTEX_INITIALIZER;
+static PolarTable* gTables[POLAR_TABLE_CACHE_SIZE];
+
+static void FreePolarTable(PolarTable* table) {
+  if (table != NULL) {
+    free(table->theta);
+    free(table->radius);
+    delete table;
+  }
+}
+
+static PolarTable* CreatePolarTable(int size) {
+  PolarTable* table = new PolarTable();
+  table->size = size;
+  table->refs = 1;
+  table->theta = (float*) malloc(sizeof(float) * size * size);
+  table->radius = (float*) malloc(sizeof(float) * size * size);
+  if (table->theta == NULL || table->radius == NULL) {
+    FreePolarTable(table);
+    return NULL;
+  }
+  const float center = size / 2.0f;
+  for (int y = 0; y < size; y++) {
+    float yf = y - center;
+    float* theta = table->theta + y * size;
+    float* radius = table->radius + y * size;
+    for (int x = 0; x < size; x++) {
+      float xf = x - center;
+      theta[x] = atan2(yf, xf) / (2 * PI_F);
+      radius[x] = hypotf(xf, yf) * RADIAL_STEPS_PER_PIXEL;
+    }
+  }
+  return table;
+}
+
+// Called with gTableLock held.
+static void UnrefPolarTable(PolarTable* table) {
+  if (table != NULL && --table->refs == 0) {
+    FreePolarTable(table);
+  }
+}
+
+// Returns the table for the size with a reference for the caller, and
+// keeps it in the cache, most recently used first. Called with gTableLock
+// held.
+static PolarTable* GetPolarTable(int size) {
+  int i = 0;
+  while (i < POLAR_TABLE_CACHE_SIZE && gTables[i] != NULL && gTables[i]->size != size) {
+    i++;
+  }
+  PolarTable* table;
+  if (i < POLAR_TABLE_CACHE_SIZE && gTables[i] != NULL) {
+    table = gTables[i];
+  } else {
+    table = CreatePolarTable(size);
+    if (table == NULL) {
+      return NULL;
+    }
+    if (i == POLAR_TABLE_CACHE_SIZE) {
+      i--;
+      UnrefPolarTable(gTables[i]);
+    }
+  }
+  for (; i > 0; i--) {
+    gTables[i] = gTables[i - 1];
+  }
+  gTables[0] = table;
+  table->refs++;
+  return table;
+}
 
-  const float image_scale = output_width * scale;
+// Drops the cached tables. Tables still in use by a render are freed when
+// that render is done.
+static void ReleasePolarTables() {
+  pthread_mutex_lock(&gTableLock);
+  for (int i = 0; i < POLAR_TABLE_CACHE_SIZE; i++) {
+    UnrefPolarTable(gTables[i]);
+    gTables[i] = NULL;
+  }
+  pthread_mutex_unlock(&gTableLock);
+}
+
+// What a band of rows of the tiny planet is rendered from.
+struct Projection {
+  const ImageRGBA* input;
+  ImageRGBA* output;
+  // Rows of output start at this row of the full size x size planet.
+  int top;
+  int size;
+  float scale;
+  float angle;
+  // Polar table path, table is NULL for the direct path.
+  const PolarTable* table;
+  const float* radial;
+  int radial_count;
+};
 
-  for (int x = 0; x < output_width; x++) {
-    // Center and scale x
-    float xf = (x - output_width / 2.0f) / image_scale;
+static void ProjectRowsDirect(const Projection& p, int begin, int end) {
+  const int input_width = p.input->Width();
+  const int input_height = p.input->Height();
+  const float image_scale = p.size * p.scale;
 
-    for (int y = 0; y < output_height; y++) {
-      // Center and scale y
-      float yf = (y - output_height / 2.0f) / image_scale;
+  for (int y = begin; y < end; y++) {
+    // Center and scale y
+    float yf = (p.top + y - p.size / 2.0f) / image_scale;
+    unsigned char* out = (*p.output)(0, y);
+
+    for (int x = 0; x < p.size; x++, out += 4) {
+      // Center and scale x
+      float xf = (x - p.size / 2.0f) / image_scale;
 
       // Convert to polar
       float r = hypotf(xf, yf);
-      float theta = angle+atan2(yf, xf);
+      float theta = p.angle+atan2(yf, xf);
       if (theta>PI_F) theta-=2*PI_F;
 
       // Project onto plane
@@ -124,11 +245,140 @@ void StereographicProjection(float scale, float angle, unsigned char* input_imag
       py = wrap(py, input_height);
 
       // Write the interpolated pixel
-      InterpolatePixel(input, px, py, output(x, y));
+      InterpolatePixel(*p.input, px, py, out);
     }
   }
 }
 
+static void ProjectRowsWithTable(const Projection& p, int begin, int end) {
+  const float input_width = p.input->Width();
+  const float input_height = p.input->Height();
+  const float turn = p.angle / (2 * PI_F);
+  const int last = p.radial_count - 2;
+
+  for (int y = begin; y < end; y++) {
+    const float* theta = p.table->theta + (p.top + y) * p.size;
+    const float* radius = p.table->radius + (p.top + y) * p.size;
+    unsigned char* out = (*p.output)(0, y);
+
+    for (int x = 0; x < p.size; x++, out += 4) {
+      float px = wrap((theta[x] + turn) * input_width, input_width);
+
+      // Linear interpolation in the radius to row table.
+      float r = radius[x];
+      int i = static_cast<int>(r);
+      if (i > last) i = last;
+      float py = p.radial[i] + (r - i) * (p.radial[i + 1] - p.radial[i]);
+      py = wrap(py, input_height);
+
+      InterpolatePixel(*p.input, px, py, out);
+    }
+  }
+}
+
+struct RowRange {
+  const Projection* projection;
+  int begin;
+  int end;
+};
+
+static void* ProjectRowRange(void* arg) {
+  RowRange* range = (RowRange*) arg;
+  const Projection& p = *range->projection;
+  if (p.table != NULL) {
+    ProjectRowsWithTable(p, range->begin, range->end);
+  } else {
+    ProjectRowsDirect(p, range->begin, range->end);
+  }
+  return NULL;
+}
+
+// Splits the rows of the output into one band per CPU. Rows only read the
+// input, so the bands are independent. The calling thread renders the
+// first band.
+static void ProjectRows(const Projection& p, int rows) {
+  int threads = sysconf(_SC_NPROCESSORS_ONLN);
+  if (threads > MAX_THREADS) threads = MAX_THREADS;
+  if (threads > rows / MIN_ROWS_PER_THREAD) threads = rows / MIN_ROWS_PER_THREAD;
+  if (threads < 1) threads = 1;
+
+  RowRange ranges[MAX_THREADS];
+  pthread_t workers[MAX_THREADS];
+  bool started[MAX_THREADS];
+  for (int t = 0; t < threads; t++) {
+    ranges[t].projection = &p;
+    ranges[t].begin = rows * t / threads;
+    ranges[t].end = rows * (t + 1) / threads;
+    started[t] = t > 0 && pthread_create(&workers[t], NULL, ProjectRowRange, &ranges[t]) == 0;
+  }
+  for (int t = 0; t < threads; t++) {
+    if (!started[t]) {
+      ProjectRowRange(&ranges[t]);
+    }
+  }
+  for (int t = 1; t < threads; t++) {
+    if (started[t]) {
+      pthread_join(workers[t], NULL);
+    }
+  }
+}
+
+// Renders rows [top, top + output_height) of the output_size square tiny
+// planet into output_image, which is output_size pixels wide.
+void StereographicProjection(float scale, float angle, unsigned char* input_image,
+                             int input_width, int input_height,
+                             unsigned char* output_image, int output_size,
+                             int top, int output_height) {
+  ImageRGBA input(input_image, input_width, input_height);
+  ImageRGBA output(output_image, output_size, output_height);
+
+  Projection p;
+  p.input = &input;
+  p.output = &output;
+  p.top = top;
+  p.size = output_size;
+  p.scale = scale;
+  p.angle = angle;
+  p.table = NULL;
+  p.radial = NULL;
+  p.radial_count = 0;
+
+  if (output_size > MAX_POLAR_TABLE_SIZE) {
+    ProjectRows(p, output_height);
+    return;
+  }
+
+  // The lock only covers the cache, the reference keeps the table alive
+  // while the rows are rendered.
+  pthread_mutex_lock(&gTableLock);
+  PolarTable* table = GetPolarTable(output_size);
+  pthread_mutex_unlock(&gTableLock);
+  // Panorama row for each radial step, phi = 2 * atan(1 / r) with r the
+  // scaled distance. A few atan per frame instead of one per pixel.
+  float* radial = NULL;
+  int radial_count = static_cast<int>(output_size * 0.7072f * RADIAL_STEPS_PER_PIXEL) + 3;
+  if (table != NULL) {
+    radial = (float*) malloc(sizeof(float) * radial_count);
+  }
+  if (radial != NULL) {
+    const float image_scale = output_size * scale * RADIAL_STEPS_PER_PIXEL;
+    radial[0] = input_height;
+    for (int i = 1; i < radial_count; i++) {
+      radial[i] = 2 * atan(image_scale / i) / PI_F * input_height;
+    }
+    p.table = table;
+    p.radial = radial;
+    p.radial_count = radial_count;
+  }
+  ProjectRows(p, output_height);
+  free(radial);
+  if (table != NULL) {
+    pthread_mutex_lock(&gTableLock);
+    UnrefPolarTable(table);
+    pthread_mutex_unlock(&gTableLock);
+  }
+}
+
 
 JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_process(JNIEnv* env, jobject obj, jobject bitmap_in, jint width, jint height, jobject bitmap_out, jint output_size, jfloat scale, jfloat angle)
 {
@@ -140,11 +390,47 @@ JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_proce
     unsigned char * rgb_in = (unsigned char * )source;
     unsigned char * rgb_out = (unsigned char * )destination;
 
-    StereographicProjection(scale, angle, rgb_in, width, height, rgb_out, output_size, output_size);
+    StereographicProjection(scale, angle, rgb_in, width, height, rgb_out, output_size, 0,
+                            output_size);
+    AndroidBitmap_unlockPixels(env, bitmap_in);
+    AndroidBitmap_unlockPixels(env, bitmap_out);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_processRows(JNIEnv* env, jobject obj, jobject bitmap_in, jint width, jint height, jobject bitmap_out, jint output_size, jint top, jint rows, jfloat scale, jfloat angle)
+{
+    (void)obj;
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap_out, &info) < 0
+            || (int) info.width != output_size || (int) info.height < rows
+            || info.stride != info.width * 4
+            || top < 0 || rows <= 0 || top + rows > output_size) {
+        return;
+    }
+    char* source = 0;
+    char* destination = 0;
+    if (AndroidBitmap_lockPixels(env, bitmap_in, (void**) &source) < 0) {
+        return;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap_out, (void**) &destination) < 0) {
+        AndroidBitmap_unlockPixels(env, bitmap_in);
+        return;
+    }
+    unsigned char * rgb_in = (unsigned char * )source;
+    unsigned char * rgb_out = (unsigned char * )destination;
+
+    StereographicProjection(scale, angle, rgb_in, width, height, rgb_out, output_size, top,
+                            rows);
     AndroidBitmap_unlockPixels(env, bitmap_in);
     AndroidBitmap_unlockPixels(env, bitmap_out);
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_releaseTables(JNIEnv* env, jclass clazz)
+{
+    (void)env;
+    (void)clazz;
+    ReleasePolarTables();
+}
+
 #ifdef __cplusplus
 }
 #endif
@@ -102,6 +102,7 @@ import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
+import com.android.camera.data.ThumbnailCache;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.ModuleSwitcher;
@@ -763,6 +764,24 @@ public class CameraActivity extends Activity
         mUpdateThumbnailTask.execute();
     }
 
+    /**
+     * Same as {@link #updateThumbnail(byte[])}, for callers that already
+     * parsed the EXIF of the capture. The thumbnail embedded in it is decoded
+     * instead of the full JPEG whenever it is large enough. The values are
+     * taken instead of the ExifInterface, which the save thread is usually
+     * still writing out.
+     *
+     * @param exifThumbnail the thumbnail embedded in the EXIF, or null.
+     * @param orientation the clockwise rotation of the capture in degrees.
+     */
+    public void updateThumbnail(final byte[] jpegData, final byte[] exifThumbnail,
+            int orientation) {
+        if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
+        mUpdateThumbnailTask = new UpdateThumbnailTask(jpegData, exifThumbnail, orientation,
+                true);
+        mUpdateThumbnailTask.execute();
+    }
+
     public void updateThumbnail(final Bitmap bitmap) {
         if (bitmap == null) return;
         if (mThumbnailBitmap != null)
@@ -823,6 +842,10 @@ public class CameraActivity extends Activity
 
     private class UpdateThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
         private byte[] mJpegData;
+        // The EXIF values of mJpegData when the caller already read them.
+        private boolean mHasExif;
+        private byte[] mExifThumbnail;
+        private int mOrientation;
         private boolean mCheckOrientation;
 
         public UpdateThumbnailTask(final byte[] jpegData, boolean checkOrientation) {
@@ -830,6 +853,14 @@ public class CameraActivity extends Activity
             mCheckOrientation = checkOrientation;
         }
 
+        public UpdateThumbnailTask(final byte[] jpegData, byte[] exifThumbnail,
+                int orientation, boolean checkOrientation) {
+            this(jpegData, checkOrientation);
+            mHasExif = true;
+            mExifThumbnail = exifThumbnail;
+            mOrientation = orientation;
+        }
+
         @Override
         protected Bitmap doInBackground(Void... params) {
             if (mJpegData != null)
@@ -868,6 +899,7 @@ public class CameraActivity extends Activity
             }
 
             mJpegData = null;
+            mExifThumbnail = null;
         }
 
         @Override
@@ -877,14 +909,21 @@ public class CameraActivity extends Activity
 
             bitmap = null;
             mJpegData = null;
+            mExifThumbnail = null;
         }
 
         private Bitmap decodeImageCenter(final String path) {
             // Check photo orientation for Panorama. This is necessary during app launch because
             // Panorama module generates thumbnail bitmap with orientation adjustment but only
             // saves jpeg with orientation tag set.
+            byte[] exifThumbnail = null;
             int orientation = 0;
-            if (mCheckOrientation) {
+            if (mHasExif && mJpegData != null) {
+                exifThumbnail = mExifThumbnail;
+                if (mCheckOrientation) {
+                    orientation = mOrientation;
+                }
+            } else {
                 ExifInterface exif = new ExifInterface();
                 try {
                     if (mJpegData != null) {
@@ -892,12 +931,21 @@ public class CameraActivity extends Activity
                     } else {
                         exif.readExif(path);
                     }
-                    orientation = Exif.getOrientation(exif);
+                    exifThumbnail = exif.getThumbnailBytes();
+                    if (mCheckOrientation) {
+                        orientation = Exif.getOrientation(exif);
+                    }
                 } catch (IOException e) {
-                    // ignore
+                    // Decode the image without the help of its EXIF.
                 }
             }
 
+            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
+            Bitmap thumbnail = decodeExifThumbnail(exifThumbnail, target, orientation);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+
             final BitmapFactory.Options opt = new BitmapFactory.Options();
             opt.inJustDecodeBounds = true;
             if (mJpegData != null) {
@@ -910,7 +958,6 @@ public class CameraActivity extends Activity
             int h = opt.outHeight;
             int d = w > h ? h : w;
 
-            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
             int sample = 1;
             if (d > target) {
                 while (d / sample / 2 > target) {
@@ -943,6 +990,45 @@ public class CameraActivity extends Activity
                 decoder.recycle();
             return bitmap;
         }
+
+        /**
+         * Decodes the center square of the thumbnail embedded in the EXIF,
+         * rotated upright. Returns null when there is none or it is smaller
+         * than the target, so the caller can fall back to the full image.
+         */
+        private Bitmap decodeExifThumbnail(byte[] thumb, int target, int orientation) {
+            if (thumb == null) {
+                return null;
+            }
+            final BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(thumb, 0, thumb.length, opt);
+            int d = Math.min(opt.outWidth, opt.outHeight);
+            if (d < target) {
+                return null;
+            }
+            int sample = 1;
+            while (d / sample / 2 >= target) {
+                sample *= 2;
+            }
+            opt.inJustDecodeBounds = false;
+            opt.inSampleSize = sample;
+            Bitmap bitmap = BitmapFactory.decodeByteArray(thumb, 0, thumb.length, opt);
+            if (bitmap == null) {
+                return null;
+            }
+            int w = bitmap.getWidth();
+            int h = bitmap.getHeight();
+            d = Math.min(w, h);
+            Matrix matrix = new Matrix();
+            matrix.setRotate(orientation);
+            Bitmap square = Bitmap.createBitmap(bitmap, (w - d) / 2, (h - d) / 2, d, d,
+                    matrix, false);
+            if (square != bitmap) {
+                bitmap.recycle();
+            }
+            return square;
+        }
     }
 
     private class CircularDrawable extends Drawable {
@@ -1783,6 +1869,12 @@ public class CameraActivity extends Activity
         if (focus) this.setSystemBarsVisibility(false);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailCache.get(this).trimMemory(level >= TRIM_MEMORY_MODERATE);
+    }
+
     /**
      * Checks if any of the needed Android runtime permissions are missing.
      * If they are, then launch the permissions activity under one of the following conditions:
@@ -102,7 +102,7 @@ import com.android.camera.PhotoModule.NamedImages.NamedEntity;
 import com.android.camera.imageprocessor.filter.SharpshooterFilter;
 import com.android.camera.imageprocessor.filter.StillmoreFilter;
 import com.android.camera.imageprocessor.filter.UbifocusFilter;
-import com.android.camera.mpo.MpoInterface;
+import com.android.camera.mpo.MpoReader;
 import com.android.camera.ui.CountDownView;
 import com.android.camera.ui.ModuleSwitcher;
 import com.android.camera.ui.ProMode;
@@ -110,6 +110,7 @@ import com.android.camera.ui.RotateTextToast;
 import com.android.camera.ui.TrackingFocusRenderer;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.Mp4Reader;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
 import com.android.camera.util.AccessibilityUtils;
@@ -427,7 +428,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     private HeifImage mLiveShotImage;
     private NamedImages mNamedImages;
     private ContentResolver mContentResolver;
-    private byte[] mLastJpegData;
+    // Written on the image thread, read on the UI thread.
+    private volatile LastJpeg mLastJpeg;
     private int mJpegFileSizeEstimation;
     private boolean mFirstPreviewLoaded;
     private int[] mPrecaptureRequestHashCode = new int[MAX_NUM_CAM];
@@ -514,7 +516,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 mActivity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                        updateLastJpegThumbnail();
                     }
                 });
             } else {
@@ -523,7 +525,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                         if (uri != null)
                             mActivity.notifyNewMedia(uri);
                         mActivity.updateStorageSpaceAndHint();
-                        if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                        updateLastJpegThumbnail();
                     }
                 });
             }
@@ -531,8 +533,35 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    /** The jpeg the thumbnail shows next, published as a whole. */
+    private static final class LastJpeg {
+        final byte[] data;
+        final byte[] thumbnail;
+        // -1 while the exif of data was not read.
+        final int orientation;
+
+        LastJpeg(byte[] data, byte[] thumbnail, int orientation) {
+            this.data = data;
+            this.thumbnail = thumbnail;
+            this.orientation = orientation;
+        }
+    }
+
     public void updateThumbnailJpegData(byte[] jpegData) {
-        mLastJpegData = jpegData;
+        mLastJpeg = jpegData == null ? null : new LastJpeg(jpegData, null, -1);
+    }
+
+    private void updateLastJpegThumbnail() {
+        LastJpeg last = mLastJpeg;
+        if (last == null) {
+            return;
+        }
+        if (last.orientation < 0) {
+            // The exif of the jpeg was not read yet.
+            mActivity.updateThumbnail(last.data);
+        } else {
+            mActivity.updateThumbnail(last.data, last.thumbnail, last.orientation);
+        }
     }
 
     private MediaSaveNotifyThread mediaSaveNotifyThread;
@@ -2398,6 +2427,8 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     } else {
                                         ExifInterface exif = Exif.getExif(bytes);
                                         int orientation = Exif.getOrientation(exif);
+                                        // Read before the save thread starts writing exif out.
+                                        byte[] thumbnail = exif.getThumbnailBytes();
 
                                         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL) {
                                             mJpegImageData = bytes;
@@ -2407,17 +2438,18 @@ public class CaptureModule implements CameraModule, PhotoController,
                                                 onCaptureDone();
                                             }
                                         } else {
-                                            ArrayList<byte[]> bokehBytes = MpoInterface.generateXmpFromMpo(bytes);
-                                            if (mBokehEnabled && bokehBytes != null && bokehBytes.size() > 2) {
-                                                GImage gImage = new GImage(bokehBytes.get(1), "image/jpeg");
-                                                GDepth gDepth = GDepth.createGDepth(bokehBytes.get(bokehBytes.size()-1));
+                                            MpoReader mpo = mBokehEnabled ? MpoReader.wrap(bytes) : null;
+                                            if (mpo != null && mpo.getImageCount() > 2) {
+                                                GImage gImage = new GImage(mpo.copyImage(1), "image/jpeg");
+                                                GDepth gDepth = GDepth.createGDepth(
+                                                        mpo.copyImage(mpo.getImageCount() - 1));
                                                 try {
                                                     gDepth.setRoi(new Rect(0, 0, width, height));
                                                 } catch (IllegalStateException e) {
                                                     e.printStackTrace();
                                                     return;
                                                 }
-                                                mActivity.getMediaSaveService().addXmpImage(bokehBytes.get(0), gImage,
+                                                mActivity.getMediaSaveService().addXmpImage(mpo.copyImage(0), gImage,
                                                         gDepth, title, date, null,  width, height,
                                                         orientation, exif, mOnMediaSavedListener, mContentResolver, "jpeg");
                                             } else {
@@ -2427,9 +2459,11 @@ public class CaptureModule implements CameraModule, PhotoController,
                                             }
 
                                             if (mLongshotActive) {
-                                                mLastJpegData = bytes;
+                                                mLastJpeg = new LastJpeg(bytes, thumbnail,
+                                                        orientation);
                                             } else {
-                                                mActivity.updateThumbnail(bytes);
+                                                mActivity.updateThumbnail(bytes, thumbnail,
+                                                        orientation);
                                             }
                                         }
                                     }
@@ -2506,12 +2540,14 @@ public class CaptureModule implements CameraModule, PhotoController,
 
                         ExifInterface exif = Exif.getExif(bytes);
                         int orientation = Exif.getOrientation(exif);
+                        // Read before the save thread starts writing exif out.
+                        byte[] thumbnail = exif.getThumbnailBytes();
 
                         mActivity.getMediaSaveService().addImage(bytes, title, date,
                                 null, image.getWidth(), image.getHeight(), orientation, exif,
                                 mOnMediaSavedListener, mContentResolver, "jpeg");
 
-                        mActivity.updateThumbnail(bytes);
+                        mActivity.updateThumbnail(bytes, thumbnail, orientation);
                         image.close();
                         mActivity.runOnUiThread(new Runnable() {
                             @Override
@@ -2970,7 +3006,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         mUI.showPreviewCover();
         mFirstPreviewLoaded = false;
         stopBackgroundThread();
-        mLastJpegData = null;
+        mLastJpeg = null;
         setProModeVisible();
         setBokehModeVisible();
         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL && mJpegImageData != null) {
@@ -4621,16 +4657,26 @@ public class CaptureModule implements CameraModule, PhotoController,
             }
 
             long duration = 0L;
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
+            Mp4Reader movie = null;
             try {
-                retriever.setDataSource(mVideoFilename);
-                duration = Long.valueOf(retriever.extractMetadata(
-                        MediaMetadataRetriever.METADATA_KEY_DURATION));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "cannot access the file");
+                // Only the movie header is read, whatever the length of the recording.
+                movie = Mp4Reader.read(origFile);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot read the movie header", e);
+            }
+            if (movie != null) {
+                duration = movie.getDurationMs();
+            } else {
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                try {
+                    retriever.setDataSource(mVideoFilename);
+                    duration = Long.valueOf(retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_DURATION));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "cannot access the file");
+                }
+                retriever.release();
             }
-            retriever.release();
 
             mActivity.getMediaSaveService().addVideo(mVideoFilename,
                     duration, mCurrentVideoValues,
@@ -6096,7 +6142,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     null, bayerBytes, monoBytes, width, height, title,
                     date, null, orientation, mOnMediaSavedListener, mContentResolver, "jpeg");
 
-            mActivity.updateThumbnail(bayerBytes);
+            mActivity.updateThumbnail(bayerBytes, exif.getThumbnailBytes(), orientation);
 
             bayerImage.close();
             bayerImage = null;
@@ -25,10 +25,11 @@ import java.io.IOException;
 public class Exif {
     private static final String TAG = "CameraExif";
 
+    // Only indexes the header, tags are decoded when first needed.
     public static ExifInterface getExif(byte[] jpegData) {
         ExifInterface exif = new ExifInterface();
         try {
-            exif.readExif(jpegData);
+            exif.readExifLazily(jpegData);
         } catch (IOException e) {
             Log.w(TAG, "Failed to read EXIF data", e);
         }
@@ -16,10 +16,15 @@
 
 package com.android.camera;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -33,7 +38,9 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 import android.widget.Toast;
@@ -68,9 +75,9 @@ public class MediaSaveService extends Service {
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
 
     private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveExecutor mSaveExecutor;
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -102,11 +109,32 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mSaveExecutor = new SaveExecutor(PersistUtil.getSaveTaskWorkers(),
+                SAVE_TASK_MEMORY_LIMIT);
+        mSaveExecutor.setListener(new SaveExecutor.Listener() {
+            @Override
+            public void onFullChanged(final boolean full) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (full) {
+                            onQueueFull();
+                        } else {
+                            onQueueAvailable();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mSaveExecutor.isFull();
+    }
+
+    /** Queue depth, bytes in flight and save latency, for tuning. */
+    public SaveExecutor getSaveExecutor() {
+        return mSaveExecutor;
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -115,11 +143,6 @@ public class MediaSaveService extends Service {
             String title, long date, Location loc, int orientation,
             OnMediaSavedListener l, ContentResolver resolver,
             String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-
         MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
@@ -127,75 +150,44 @@ public class MediaSaveService extends Service {
         long size = (csImage == null ? 0
                 : csImage.length)
                 + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        t.executeOnExecutor(mSaveExecutor.admit(SaveExecutor.LANE_SIDECAR, size));
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        t.executeOnExecutor(mSaveExecutor.admit(SaveExecutor.LANE_VISIBLE, data.length));
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        t.executeOnExecutor(mSaveExecutor.admit(SaveExecutor.LANE_SIDECAR, data.length));
     }
 
     public void addHEIFImage(String path,String title,long date , Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener,
                              int qualitiy, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         HEIFImageSaveTask t = new HEIFImageSaveTask(path,title,date, loc, width, height, orientation,
                 exif, resolver, listener, qualitiy, pictureFormat);
 
-        t.execute();
+        // The HEIF file is already written, only the database is left.
+        t.executeOnExecutor(mSaveExecutor.admit(SaveExecutor.LANE_VISIBLE, 0));
     }
     public void addXmpImage(byte[] mainImage, GImage bayer, GDepth gDepth,
                                    String title, long date, Location loc, int width, int height,
                                    int orientation, ExifInterface exif,
                                    OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         XmpImageSaveTask t = new XmpImageSaveTask(mainImage, bayer, gDepth,
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += mainImage.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        t.executeOnExecutor(mSaveExecutor.admit(SaveExecutor.LANE_SIDECAR, mainImage.length));
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -217,7 +209,8 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        new VideoSaveTask(path, duration, values, l, resolver).executeOnExecutor(
+                mSaveExecutor.admit(SaveExecutor.LANE_VISIBLE, 0));
     }
 
     public void setListener(Listener l) {
@@ -303,14 +296,6 @@ public class MediaSaveService extends Service {
         protected void onPostExecute(Uri uri) {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
         }
     }
 
@@ -335,13 +320,6 @@ public class MediaSaveService extends Service {
             long length = Storage.addRawImage(title, data, pictureFormat);
             return new Long(length);
         }
-
-        @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
-        }
     }
 
     private class HEIFImageSaveTask extends AsyncTask<Void, Void, Uri> {
@@ -443,9 +421,6 @@ public class MediaSaveService extends Service {
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
     }
 
@@ -453,7 +428,6 @@ public class MediaSaveService extends Service {
         private byte[] mainImage;
         private GImage bayer;
         private GDepth gDepth;
-        private byte[] data;
         private String title;
         private long date;
         private Location loc;
@@ -491,38 +465,40 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
-            data = embedGDepthAndBayerInClearSight(mainImage);
-            if ( data == null ) {
-                data = mainImage;
-                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
-            }
-
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                BitmapFactory.decodeByteArray(mainImage, 0, mainImage.length, options);
                 width = options.outWidth;
                 height = options.outHeight;
             }
+
+            String path = Storage.generateFilepath(title, pictureFormat);
+            if (embedGDepthAndBayerInClearSight(mainImage, path)) {
+                int size = (int) new File(path).length();
+                return Storage.addImage(resolver, title, date, loc, orientation, exif,
+                        size, path, width, height, pictureFormat);
+            }
+            Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
             return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+                    resolver, title, date, loc, orientation, exif, mainImage, width, height, pictureFormat);
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
 
 
-        private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
+        // Writes the image straight to path, with the depth map and bayer
+        // image base64 encoded into extended XMP while they are written.
+        private boolean embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes,
+                String path) {
             Log.d(TAG, "embedGDepthInClearSight");
             if ( clearSightImageBytes == null || (gDepth ==null && bayer==null) ) {
                 Log.d(TAG, "clearSightImageBytes is null");
-                return null;
+                return false;
             }
 
             XMPMeta xmpMeta = XmpUtil.createXMPMeta();
@@ -547,30 +523,51 @@ public class MediaSaveService extends Service {
 
             } catch(XMPException exception) {
                 Log.d(TAG, "create XMPMeta error", exception);
-                return null;
+                return false;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try{
-                if ( gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
+            List<XmpUtil.Base64Property> extendedProperties =
+                    new ArrayList<XmpUtil.Base64Property>();
+            if ( gDepth != null) {
+                extendedProperties.add(new XmpUtil.Base64Property(
+                        GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getDepthJpeg()));
+            }
+            if ( bayer != null ) {
+                extendedProperties.add(new XmpUtil.Base64Property(
+                        GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getBytes()));
+            }
 
-                if ( bayer != null ) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
+            OutputStream out;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(path));
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Failed to open " + path, e);
+                return false;
+            }
+            if (exif != null) {
+                // Replaces the exif of the main image on the way out, the
+                // same as Storage.writeFile does.
+                out = exif.getExifWriterStream(out);
+            }
+            boolean written = false;
+            try {
+                written = XmpUtil.writeXMPMeta(clearSightImageBytes, out, xmpMeta,
+                        extendedProperties);
+            } finally {
+                // writeXMPMeta returns early on bad input without closing,
+                // the file has to be closed before it can be deleted.
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close " + path, e);
                 }
-            }catch(XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
             }
-
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if ( XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta) ){
-                return baos.toByteArray();
+            if ( written ){
+                return true;
             }else{
                 Log.e(TAG, "embedGDepthInClearSight failure ");
-                return null;
+                new File(path).delete();
+                return false;
             }
 
         }
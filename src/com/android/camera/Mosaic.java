@@ -187,6 +187,31 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Get the size of the created mosaic without copying it out.
+     *
+     * @return Returns an array with MosaicWidth and MosaicHeight, or null if there is no
+     *         created mosaic.
+     */
+    public native int[] getFinalMosaicSize();
+
+    /**
+     * Get a horizontal strip of the created mosaic, so it can be compressed a few rows at a
+     * time. The mosaic stays on the native side until releaseFinalMosaic is called.
+     *
+     * @param strip Buffer receiving the rows in the NV21 format, it has to hold at least
+     *              MosaicWidth*(rows+(rows+1)/2) bytes.
+     * @param top The first row of the strip, it has to be even.
+     * @param rows The number of rows to get, fewer are returned at the bottom of the mosaic.
+     * @return Returns the number of rows written to strip, or -1 on failure.
+     */
+    public native int getFinalMosaicStripNV21(byte[] strip, int top, int rows);
+
+    /**
+     * Free the created mosaic once it was read by getFinalMosaicStripNV21.
+     */
+    public native void releaseFinalMosaic();
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
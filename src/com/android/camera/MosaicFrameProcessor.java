@@ -151,6 +151,18 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
+    public int[] getFinalMosaicSize() {
+        return mMosaicer.getFinalMosaicSize();
+    }
+
+    public int getFinalMosaicStripNV21(byte[] strip, int top, int rows) {
+        return mMosaicer.getFinalMosaicStripNV21(strip, top, rows);
+    }
+
+    public void releaseFinalMosaic() {
+        mMosaicer.releaseFinalMosaic();
+    }
+
     // Processes the last filled image frame through the mosaicer and
     // updates the UI to show progress.
     // When done, processes and displays the final mosaic.
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated executor for {@link MediaSaveService} tasks.
+ *
+ * Images the user is about to see in the thumbnail run on a fixed number
+ * of I/O workers. Every visible task writes its own file and inserts its
+ * own MediaStore row, so they may run side by side. Sidecar files (RAW,
+ * MPO, XMP) run one at a time in the order they were added, on a worker of
+ * their own, so they keep the order the old serial AsyncTask executor gave
+ * them and never hold up a visible image.
+ *
+ * Admission is budgeted in bytes but never blocks: callers are the main,
+ * camera or ImageReader threads. Over the budget a save is still admitted
+ * and counted as degraded, and at twice the budget {@link #isFull()}
+ * reports true so the shutter gets disabled until the workers catch up.
+ */
+public class SaveExecutor {
+    private static final String TAG = "CAM_SaveExecutor";
+
+    public static final int LANE_VISIBLE = 0;
+    public static final int LANE_SIDECAR = 1;
+    private static final int LANE_COUNT = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    private static final int HARD_LIMIT_FACTOR = 2;
+
+    public interface Listener {
+        /** Called from the thread that crossed the hard limit either way. */
+        void onFullChanged(boolean full);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mSidecarExecutor;
+    private final long mBudget;
+    private final Object mLock = new Object();
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final int[] mQueued = new int[LANE_COUNT];
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[LANE_COUNT];
+    private long mBytesInFlight;
+    private long mPeakBytesInFlight;
+    private int mDegradedAdmissions;
+    private boolean mFull;
+    private Listener mListener;
+
+    public SaveExecutor(int workers, long budgetBytes) {
+        mBudget = budgetBytes;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLatency[i] = new LatencyHistogram();
+        }
+        mExecutor = createExecutor(workers, "MediaSave #");
+        mSidecarExecutor = createExecutor(1, "MediaSave sidecar #");
+    }
+
+    private static ThreadPoolExecutor createExecutor(int workers, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + mCount.incrementAndGet());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void setListener(Listener l) {
+        synchronized (mLock) {
+            mListener = l;
+        }
+    }
+
+    public boolean isFull() {
+        synchronized (mLock) {
+            return mFull;
+        }
+    }
+
+    /**
+     * Returns an executor for one task in the given lane, to be handed to
+     * {@code AsyncTask.executeOnExecutor}. The bytes are admitted right
+     * away without blocking, and given back once the task has run.
+     */
+    public Executor admit(final int lane, final long bytes) {
+        reserve(bytes);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                synchronized (mLock) {
+                    mQueued[lane]++;
+                }
+                ThreadPoolExecutor executor =
+                        lane == LANE_SIDECAR ? mSidecarExecutor : mExecutor;
+                executor.execute(new SaveRunnable(command, lane, bytes,
+                        mSequence.getAndIncrement()));
+            }
+        };
+    }
+
+    private void reserve(long bytes) {
+        Listener notify = null;
+        synchronized (mLock) {
+            if (mBytesInFlight > 0 && mBytesInFlight + bytes > mBudget) {
+                mDegradedAdmissions++;
+                Log.w(TAG, "Over save budget, in flight: " + mBytesInFlight + " adding: " + bytes);
+            }
+            mBytesInFlight += bytes;
+            mPeakBytesInFlight = Math.max(mPeakBytesInFlight, mBytesInFlight);
+            if (!mFull && mBytesInFlight >= mBudget * HARD_LIMIT_FACTOR) {
+                mFull = true;
+                notify = mListener;
+            }
+        }
+        if (notify != null) notify.onFullChanged(true);
+    }
+
+    private void release(long bytes) {
+        Listener notify = null;
+        synchronized (mLock) {
+            mBytesInFlight -= bytes;
+            if (mFull && mBytesInFlight < mBudget * HARD_LIMIT_FACTOR) {
+                mFull = false;
+                notify = mListener;
+            }
+        }
+        if (notify != null) notify.onFullChanged(false);
+    }
+
+    public int getQueueDepth(int lane) {
+        synchronized (mLock) {
+            return mQueued[lane];
+        }
+    }
+
+    public long getBytesInFlight() {
+        synchronized (mLock) {
+            return mBytesInFlight;
+        }
+    }
+
+    public LatencyHistogram getLatency(int lane) {
+        return mLatency[lane];
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "queued visible: " + mQueued[LANE_VISIBLE] +
+                    " sidecar: " + mQueued[LANE_SIDECAR] +
+                    " bytes in flight: " + mBytesInFlight +
+                    " peak: " + mPeakBytesInFlight +
+                    " degraded: " + mDegradedAdmissions +
+                    "\nvisible latency " + mLatency[LANE_VISIBLE] +
+                    "\nsidecar latency " + mLatency[LANE_SIDECAR];
+        }
+    }
+
+    private class SaveRunnable implements Runnable, Comparable<SaveRunnable> {
+        private final Runnable mCommand;
+        private final int mLane;
+        private final long mBytes;
+        private final int mOrder;
+        private final long mQueuedAt = System.currentTimeMillis();
+
+        SaveRunnable(Runnable command, int lane, long bytes, int order) {
+            mCommand = command;
+            mLane = lane;
+            mBytes = bytes;
+            mOrder = order;
+        }
+
+        @Override
+        public int compareTo(SaveRunnable other) {
+            if (mLane != other.mLane) {
+                return mLane < other.mLane ? -1 : 1;
+            }
+            return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mQueued[mLane]--;
+            }
+            try {
+                mCommand.run();
+            } finally {
+                mLatency[mLane].add(System.currentTimeMillis() - mQueuedAt);
+                release(mBytes);
+            }
+        }
+    }
+
+    /**
+     * Task latency from admission to completion, in power of two buckets
+     * of milliseconds.
+     */
+    public static class LatencyHistogram {
+        private static final int BUCKETS = 16;
+        private final int[] mCounts = new int[BUCKETS];
+        private long mTotalMs;
+        private int mSamples;
+
+        synchronized void add(long ms) {
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && (1L << bucket) <= ms) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotalMs += ms;
+            mSamples++;
+        }
+
+        /** Count of tasks that took less than 2^i ms, the last bucket is open ended. */
+        public synchronized int getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        public synchronized long getAverageMs() {
+            return mSamples == 0 ? 0 : mTotalMs / mSamples;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder("avg " + getAverageMs() + "ms:");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (mCounts[i] > 0) {
+                    sb.append(" <").append(1L << i).append("ms=").append(mCounts[i]);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
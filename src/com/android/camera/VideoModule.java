@@ -69,6 +69,7 @@ import com.android.camera.ui.RotateTextToast;
 import com.android.camera.util.AccessibilityUtils;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.Mp4Reader;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.UsageStatistics;
 import com.android.camera.PhotoModule;
@@ -1756,16 +1757,26 @@ public class VideoModule implements CameraModule,
             }
 
             long duration = 0L;
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
+            Mp4Reader movie = null;
             try {
-                retriever.setDataSource(mCurrentVideoFilename);
-                duration = Long.valueOf(retriever.extractMetadata(
+                // Only the movie header is read, whatever the length of the recording.
+                movie = Mp4Reader.read(origFile);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot read the movie header", e);
+            }
+            if (movie != null) {
+                duration = movie.getDurationMs();
+            } else {
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                try {
+                    retriever.setDataSource(mCurrentVideoFilename);
+                    duration = Long.valueOf(retriever.extractMetadata(
                             MediaMetadataRetriever.METADATA_KEY_DURATION));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "cannot access the file");
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "cannot access the file");
+                }
+                retriever.release();
             }
-            retriever.release();
 
             mActivity.getMediaSaveService().addVideo(mCurrentVideoFilename,
                     duration, mCurrentVideoValues,
@@ -50,14 +50,22 @@ import com.android.camera.CameraManager.CameraProxy;
 import com.android.camera.app.OrientationManager;
 import com.android.camera.data.LocalData;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.JpegStripWriter;
+import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.RotateTextToast;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.UsageStatistics;
+import com.android.camera.util.XmpUtil;
+import com.adobe.xmp.XMPException;
+import com.adobe.xmp.XMPMeta;
 import org.codeaurora.snapcam.R;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.TimeZone;
 
@@ -80,6 +88,10 @@ public class WideAnglePanoramaModule
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
+    // Rows of the high-res mosaic compressed at a time when saving it.
+    private static final int PANORAMA_STRIP_HEIGHT = 64;
+    private static final int PANORAMA_WRITE_BUFFER_SIZE = 64 * 1024;
+
     @SuppressWarnings("unused")
     private static final String TAG = "CAM_WidePanoModule";
     private static final int PREVIEW_STOPPED = 0;
@@ -123,6 +135,8 @@ public class WideAnglePanoramaModule
     private boolean mCancelComputation;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
+    // The horizontal angle swept by the last capture, in degrees.
+    private float mSweepAngle;
 
     // Prefer FOCUS_MODE_INFINITY to FOCUS_MODE_CONTINUOUS_VIDEO because of
     // getting a better image quality by the former.
@@ -583,6 +597,7 @@ public class WideAnglePanoramaModule
                     float progressX, float progressY) {
                 float accumulatedHorizontalAngle = progressX * mHorizontalViewAngle;
                 float accumulatedVerticalAngle = progressY * mVerticalViewAngle;
+                mSweepAngle = Math.max(mSweepAngle, Math.abs(accumulatedHorizontalAngle));
                 boolean isRotated = !(mDeviceOrientationAtCapture == mDeviceOrientation);
                 if (isFinished
                         || (Math.abs(accumulatedHorizontalAngle) >= DEFAULT_SWEEP_ANGLE)
@@ -603,6 +618,7 @@ public class WideAnglePanoramaModule
             }
         });
 
+        mSweepAngle = 0;
         mUI.resetCaptureProgress();
         // TODO: calculate the indicator width according to different devices to reflect the actual
         // angle of view of the camera device.
@@ -744,20 +760,33 @@ public class WideAnglePanoramaModule
             @Override
             public void run() {
                 mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
+                int mosaicReturnCode;
+                int[] size = null;
+                Uri saved = null;
                 try {
-                    jpeg = generateFinalMosaic(true);
+                    mosaicReturnCode = mMosaicFrameProcessor.createMosaic(true);
+                    if (mosaicReturnCode != Mosaic.MOSAIC_RET_CANCELLED
+                            && mosaicReturnCode != Mosaic.MOSAIC_RET_ERROR) {
+                        size = mMosaicFrameProcessor.getFinalMosaicSize();
+                        if (size != null && size[0] > 1 && size[1] > 1) {
+                            saved = saveHighResPanorama(size[0], size[1],
+                                    getCaptureOrientation());
+                        } else {
+                            Log.e(TAG, "No final mosaic to save");
+                            size = null;
+                        }
+                    }
                 } finally {
+                    mMosaicFrameProcessor.releaseFinalMosaic();
                     mPartialWakeLock.release();
                 }
 
-                if (jpeg == null) {  // Cancelled by user.
+                if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
                     mMainHandler.sendEmptyMessage(MSG_END_DIALOG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
+                } else if (size == null) {  // Error when generating mosaic.
                     mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
                 } else {
-                    int orientation = getCaptureOrientation();
-                    final Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
+                    final Uri uri = saved;
                     if (uri != null) {
                         mActivity.runOnUiThread(new Runnable() {
                             @Override
@@ -825,6 +854,130 @@ public class WideAnglePanoramaModule
         mUI.saveFinalMosaic(bitmap, getCaptureOrientation());
     }
 
+    /**
+     * Saves the high-res mosaic held by the native side. It is compressed a
+     * strip at a time straight into the file, so no copy of the whole mosaic
+     * is made on the Java side. If the strips cannot be joined, the mosaic is
+     * compressed in one piece as before.
+     */
+    private Uri saveHighResPanorama(int width, int height, int orientation) {
+        try {
+            return savePanoramaStrips(width, height, orientation);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save the mosaic in strips, compressing it whole", e);
+        }
+        MosaicJpeg jpeg = compressFinalMosaic();
+        if (!jpeg.isValid) {
+            return null;
+        }
+        return savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
+    }
+
+    private Uri savePanoramaStrips(int mosaicWidth, int mosaicHeight, int orientation)
+            throws IOException {
+        // The NV21 encoder drops the odd last column and row, as it did for
+        // the whole mosaic.
+        int width = mosaicWidth & ~1;
+        int height = mosaicHeight & ~1;
+        int stripHeight = Math.min(PANORAMA_STRIP_HEIGHT,
+                JpegStripWriter.getMaxStripHeight(width));
+        if (stripHeight <= 0) {
+            throw new IOException("Mosaic is too wide to save in strips: " + width);
+        }
+
+        String filename = PanoUtil.createName(
+                mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
+        String filepath = Storage.generateFilepath(filename, PhotoModule.PIXEL_FORMAT_JPEG);
+        Location loc = mLocationManager.getCurrentLocation();
+        ExifInterface exif = new ExifInterface();
+        setPanoramaExif(exif, loc, orientation);
+        XMPMeta xmp = createPanoramaXmp(width, height, mSweepAngle + mHorizontalViewAngle);
+
+        byte[] strip = new byte[mosaicWidth * (stripHeight + stripHeight / 2)];
+        Rect rect = new Rect();
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        File file = new File(filepath);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+                PANORAMA_WRITE_BUFFER_SIZE);
+        boolean written = false;
+        try {
+            JpegStripWriter writer = new JpegStripWriter(out, width, height, stripHeight);
+            writer.addSegment(exif.createExifSegment());
+            byte[] xmpSegment = xmp != null ? XmpUtil.createXMPSegment(xmp) : null;
+            if (xmpSegment != null) {
+                writer.addSegment(xmpSegment);
+            }
+            for (int top = 0; top < height; top += stripHeight) {
+                int rows = Math.min(stripHeight, height - top);
+                if (mMosaicFrameProcessor.getFinalMosaicStripNV21(strip, top, rows) != rows) {
+                    throw new IOException("Cannot read mosaic rows " + top + "+" + rows);
+                }
+                jpeg.reset();
+                rect.set(0, 0, width, rows);
+                new YuvImage(strip, ImageFormat.NV21, mosaicWidth, rows, null)
+                        .compressToJpeg(rect, 100, jpeg);
+                writer.writeStrip(jpeg.toByteArray(), jpeg.size());
+            }
+            writer.finish();
+            written = true;
+        } finally {
+            CameraUtil.closeSilently(out);
+            if (!written) {
+                file.delete();
+            }
+        }
+
+        UsageStatistics.onEvent(UsageStatistics.COMPONENT_PANORAMA,
+                UsageStatistics.ACTION_CAPTURE_DONE, null, 0,
+                UsageStatistics.hashFileName(filename + ".jpg"));
+        return Storage.addImage(mContentResolver, filename, mTimeTaken, loc, orientation,
+                (int) file.length(), filepath, width, height, LocalData.MIME_TYPE_JPEG);
+    }
+
+    private void setPanoramaExif(ExifInterface exif, Location loc, int orientation) {
+        exif.addMakeAndModelTag();
+        exif.addGpsDateTimeStampTag(mTimeTaken);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, mTimeTaken,
+                TimeZone.getDefault());
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(orientation)));
+        writeLocation(loc, exif);
+    }
+
+    /**
+     * The GPano properties placing the mosaic in the full sphere, from the
+     * horizontal angle it covers. The mosaic is treated as equirectangular and
+     * centered, so viewers show a partial sweep as such instead of wrapping
+     * it around. Returns null if the angle is not known.
+     */
+    private static XMPMeta createPanoramaXmp(int width, int height, float coveredDegrees) {
+        if (coveredDegrees <= 0) {
+            return null;
+        }
+        int fullWidth = Math.max(width, Math.round(width * 360f / coveredDegrees));
+        int fullHeight = Math.max(height, fullWidth / 2);
+        XMPMeta xmp = XmpUtil.createXMPMeta();
+        String ns = TinyPlanetFragment.GOOGLE_PANO_NAMESPACE;
+        try {
+            xmp.setProperty(ns, "ProjectionType", "equirectangular");
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_IMAGE_WIDTH_PIXELS, width);
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_IMAGE_HEIGHT_PIXELS,
+                    height);
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_FULL_PANO_WIDTH_PIXELS,
+                    fullWidth);
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_FULL_PANO_HEIGHT_PIXELS,
+                    fullHeight);
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_LEFT,
+                    (fullWidth - width) / 2);
+            xmp.setPropertyInteger(ns, TinyPlanetFragment.CROPPED_AREA_TOP,
+                    (fullHeight - height) / 2);
+        } catch (XMPException e) {
+            Log.e(TAG, "Cannot set the panorama XMP", e);
+            return null;
+        }
+        return xmp;
+    }
+
     private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
         if (jpegData != null) {
             String filename = PanoUtil.createName(
@@ -840,13 +993,7 @@ public class WideAnglePanoramaModule
             ExifInterface exif = new ExifInterface();
             try {
                 exif.readExif(jpegData);
-                exif.addMakeAndModelTag();
-                exif.addGpsDateTimeStampTag(mTimeTaken);
-                exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, mTimeTaken,
-                        TimeZone.getDefault());
-                exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
-                        ExifInterface.getOrientationValueForRotation(orientation)));
-                writeLocation(loc, exif);
+                setPanoramaExif(exif, loc, orientation);
                 exif.writeExif(jpegData, filepath);
             } catch (IOException e) {
                 Log.e(TAG, "Cannot set exif for " + filepath, e);
@@ -1069,7 +1216,13 @@ public class WideAnglePanoramaModule
         } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
             return new MosaicJpeg();
         }
+        return compressFinalMosaic();
+    }
 
+    /**
+     * Compresses the mosaic created last in one piece.
+     */
+    private MosaicJpeg compressFinalMosaic() {
         byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
         if (imageData == null) {
             Log.e(TAG, "getFinalMosaicNV21() returned null.");
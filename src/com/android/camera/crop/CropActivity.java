@@ -42,6 +42,8 @@ import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import com.android.camera.exif.ExifInterface;
+
 import org.codeaurora.snapcam.R;
 
 import java.io.ByteArrayInputStream;
@@ -468,11 +470,14 @@ public class CropActivity extends Activity {
                     Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
                 }
 
+                // Only decode the crop, and no larger than the output needs.
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inMutable = true;
+                options.inSampleSize = getCropSampleSize(roundedTrueCrop);
+
                 Bitmap crop = null;
                 if (decoder != null) {
                     // Do region decoding to get crop bitmap
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inMutable = true;
                     crop = decoder.decodeRegion(roundedTrueCrop, options);
                     decoder.recycle();
                 }
@@ -482,12 +487,18 @@ public class CropActivity extends Activity {
                     regenerateInputStream();
                     Bitmap fullSize = null;
                     if (mInStream != null) {
-                        fullSize = BitmapFactory.decodeStream(mInStream);
+                        fullSize = BitmapFactory.decodeStream(mInStream, null, options);
                     }
                     if (fullSize != null) {
-                        crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
-                                roundedTrueCrop.top, roundedTrueCrop.width(),
-                                roundedTrueCrop.height());
+                        int sampleSize = options.inSampleSize;
+                        Rect sampled = new Rect(roundedTrueCrop.left / sampleSize,
+                                roundedTrueCrop.top / sampleSize,
+                                roundedTrueCrop.right / sampleSize,
+                                roundedTrueCrop.bottom / sampleSize);
+                        if (sampled.intersect(0, 0, fullSize.getWidth(), fullSize.getHeight())) {
+                            crop = Bitmap.createBitmap(fullSize, sampled.left, sampled.top,
+                                    sampled.width(), sampled.height());
+                        }
                     }
                 }
 
@@ -525,11 +536,14 @@ public class CropActivity extends Activity {
                 // Get output compression format
                 CompressFormat cf =
                         convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
+                ExifInterface exif = null;
+                if (cf == CompressFormat.JPEG) {
+                    exif = getOutputExif(crop);
+                }
 
                 // If we only need to output to a URI, compress straight to file
                 if (mFlags == DO_EXTRA_OUTPUT) {
-                    if (mOutStream == null
-                            || !crop.compress(cf, DEFAULT_COMPRESS_QUALITY, mOutStream)) {
+                    if (mOutStream == null || !compress(crop, cf, exif, mOutStream)) {
                         Log.w(LOGTAG, "failed to compress bitmap to file: " + mOutUri.toString());
                         failure = true;
                     } else {
@@ -538,7 +552,7 @@ public class CropActivity extends Activity {
                 } else {
                     // Compress to byte array
                     ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-                    if (crop.compress(cf, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
+                    if (compress(crop, cf, exif, tmpOut)) {
 
                         // If we need to output to a Uri, write compressed
                         // bitmap out
@@ -584,6 +598,58 @@ public class CropActivity extends Activity {
             return !failure; // True if any of the operations failed
         }
 
+        /**
+         * Returns the sample size that decodes the crop at no less than the
+         * requested output size, or the wallpaper size when only setting the
+         * wallpaper.
+         */
+        private int getCropSampleSize(Rect crop) {
+            int outputX = mOutputX;
+            int outputY = mOutputY;
+            if ((outputX <= 0 || outputY <= 0) && (mFlags & DO_EXTRA_OUTPUT) == 0
+                    && mWPManager != null) {
+                outputX = mWPManager.getDesiredMinimumWidth();
+                outputY = mWPManager.getDesiredMinimumHeight();
+            }
+            if (mRotation % 180 != 0) {
+                int tmp = outputX;
+                outputX = outputY;
+                outputY = tmp;
+            }
+            return CropMath.getRegionSampleSize(crop.width(), crop.height(), outputX, outputY);
+        }
+
+        /**
+         * Reads the EXIF data of the source to carry over to the crop. The
+         * orientation, size and thumbnail are updated for the output. Returns
+         * null if the source has none.
+         */
+        private ExifInterface getOutputExif(Bitmap output) {
+            ExifInterface exif = new ExifInterface();
+            InputStream is = null;
+            try {
+                is = getContentResolver().openInputStream(mInUri);
+                exif.readExif(is);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot read exif for: " + mInUri, e);
+                return null;
+            } finally {
+                Utils.closeSilently(is);
+            }
+            SaveImage.updateExifData(exif, System.currentTimeMillis());
+            exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, output.getWidth()));
+            exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, output.getHeight()));
+            return exif;
+        }
+
+        private boolean compress(Bitmap crop, CompressFormat cf, ExifInterface exif,
+                OutputStream out) {
+            if (exif != null) {
+                return SaveImage.putExifData(out, exif, crop, DEFAULT_COMPRESS_QUALITY);
+            }
+            return crop.compress(cf, DEFAULT_COMPRESS_QUALITY, out);
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             Utils.closeSilently(mOutStream);
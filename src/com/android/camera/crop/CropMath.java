@@ -223,6 +223,31 @@ public class CropMath {
         return trueCrop;
     }
 
+    /**
+     * Returns the largest power of two sample size that still decodes a
+     * region at no less than the output size.
+     *
+     * @param regionWidth  width of the region in the source image
+     * @param regionHeight  height of the region in the source image
+     * @param outputWidth  width of the output, in the orientation of the
+     *            source; 0 for full resolution
+     * @param outputHeight  height of the output, in the orientation of the
+     *            source; 0 for full resolution
+     * @return  sample size to decode the region with
+     */
+    public static int getRegionSampleSize(int regionWidth, int regionHeight,
+            int outputWidth, int outputHeight) {
+        if (outputWidth <= 0 || outputHeight <= 0) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (regionWidth / (sampleSize * 2) >= outputWidth
+                && regionHeight / (sampleSize * 2) >= outputHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Returns the size of a bitmap in bytes.
      * @param bmap  bitmap whose size to check
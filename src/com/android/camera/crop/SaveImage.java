@@ -226,6 +226,26 @@ public class SaveImage {
         return exif;
     }
 
+    /**
+     * Compresses the image as a JPEG into the stream, with the EXIF data
+     * written ahead of it. The stream is flushed but left open.
+     */
+    public static boolean putExifData(OutputStream out, ExifInterface exif, Bitmap image,
+            int jpegCompressQuality) {
+        try {
+            OutputStream s = exif.getExifWriterStream(out);
+            if (!image.compress(Bitmap.CompressFormat.JPEG,
+                    (jpegCompressQuality > 0) ? jpegCompressQuality : 1, s)) {
+                return false;
+            }
+            s.flush();
+            return true;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not write exif: ", e);
+        }
+        return false;
+    }
+
     public boolean putExifData(File file, ExifInterface exif, Bitmap image,
             int jpegCompressQuality) {
         boolean ret = false;
@@ -258,7 +278,7 @@ public class SaveImage {
         }
     }
 
-    private void updateExifData(ExifInterface exif, long time) {
+    static void updateExifData(ExifInterface exif, long time) {
         // Set tags
         exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, time,
                 TimeZone.getDefault());
@@ -54,6 +54,12 @@ public abstract class AbstractLocalDataAdapterWrapper implements LocalDataAdapte
         mAdapter.suggestViewSizeBound(w, h);
     }
 
+    @Override
+    public void onScrollHint(Context context, int dataID, int direction, int lookAhead) {
+        // Ranks through this wrapper, so the IDs need no translation.
+        DecodeScheduler.get().schedule(this, context, dataID, direction, lookAhead);
+    }
+
     @Override
     public void setListener(Listener listener) {
         mAdapter.setListener(listener);
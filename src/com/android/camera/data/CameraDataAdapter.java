@@ -18,6 +18,7 @@ package com.android.camera.data;
 
 import android.app.Activity;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
@@ -33,7 +34,11 @@ import com.android.camera.app.PlaceholderManager;
 import com.android.camera.ui.FilmStripView.ImageData;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * A {@link LocalDataAdapter} that provides data in the camera folder.
@@ -43,7 +48,23 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
 
+    /** The newest items, shown as soon as they are loaded. */
+    private static final int FIRST_PAGE_SIZE = 32;
+    /** The older items stream in by pages of this size. */
+    private static final int PAGE_SIZE = 256;
+    /** Rows fetched per query when loading the items that changed. */
+    private static final int DELTA_BATCH_SIZE = 500;
+
+    private static final String[] DELTA_PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DATE_MODIFIED
+    };
+
     private LocalDataList mImages;
+    /** The load in flight, if any. */
+    private AsyncTask<ContentResolver, ?, ?> mLoadTask;
+    /** Whether mImages holds a complete load the next one can diff against. */
+    private boolean mLoaded;
 
     private Listener mListener;
     private Drawable mPlaceHolder;
@@ -58,10 +79,26 @@ public class CameraDataAdapter implements LocalDataAdapter {
         mPlaceHolder = placeHolder;
     }
 
+    /**
+     * The first load streams the data in by pages, newest first. Later loads,
+     * such as after {@link LocalMediaObserver} saw changes during a pause,
+     * only fetch the rows that were added or modified since and drop the ones
+     * that are gone.
+     */
     @Override
     public void requestLoad(ContentResolver resolver) {
-        QueryTask qtask = new QueryTask();
-        qtask.execute(resolver);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        if (mLoaded) {
+            DeltaTask task = new DeltaTask(mImages);
+            mLoadTask = task;
+            task.execute(resolver);
+        } else {
+            QueryTask task = new QueryTask();
+            mLoadTask = task;
+            task.execute(resolver);
+        }
     }
 
     @Override
@@ -104,6 +141,11 @@ public class CameraDataAdapter implements LocalDataAdapter {
                 mPlaceHolder.getConstantState().newDrawable(), this);
     }
 
+    @Override
+    public void onScrollHint(Context context, int dataID, int direction, int lookAhead) {
+        DecodeScheduler.get().schedule(this, context, dataID, direction, lookAhead);
+    }
+
     @Override
     public void setListener(Listener listener) {
         mListener = listener;
@@ -184,8 +226,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
     @Override
     public int findDataByContentUri(Uri uri) {
         // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // Otherwise the item is found by a binary search on its date.
         return mImages.indexOf(uri);
     }
 
@@ -210,6 +251,11 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void flush() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mLoaded = false;
         replaceData(new LocalDataList());
     }
 
@@ -271,93 +317,297 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
+    /**
+     * Appends a page of older data. Items that were inserted meanwhile, or
+     * are waiting to be deleted, are skipped.
+     */
+    private void appendData(List<LocalData> page) {
+        int start = mImages.size();
+        for (LocalData data : page) {
+            Uri uri = data.getContentUri();
+            if (mImages.contains(uri) || (mLocalDataToDelete != null
+                    && uri.equals(mLocalDataToDelete.getContentUri()))) {
+                continue;
+            }
+            mImages.add(data);
+        }
+        if (mListener != null && mImages.size() > start) {
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return false;
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies the changes found by a {@link DeltaTask} to the current data.
+     */
+    private void applyDelta(HashSet<Uri> removed, List<LocalData> changed) {
+        if (removed.isEmpty() && changed.isEmpty()) {
+            return;
+        }
+        HashMap<Uri, LocalData> changedByUri = new HashMap<Uri, LocalData>();
+        for (LocalData data : changed) {
+            changedByUri.put(data.getContentUri(), data);
+        }
+        LocalDataList list = new LocalDataList();
+        for (int i = 0; i < mImages.size(); i++) {
+            LocalData data = mImages.get(i);
+            Uri uri = data.getContentUri();
+            if (removed.contains(uri)) {
+                continue;
+            }
+            LocalData newData = changedByUri.remove(uri);
+            list.add(newData != null ? newData : data);
+        }
+        for (LocalData data : changedByUri.values()) {
+            list.add(data);
+        }
+        list.sort(new LocalData.NewestFirstComparator());
+        replaceData(list);
+    }
+
     private static String[] getCameraPath() {
         String[] cameraPath =
                 {Storage.DIRECTORY + "/%", SDCard.instance().getDirectory() + "/%"};
         return cameraPath;
     }
 
-    private class QueryTask extends AsyncTask<ContentResolver, Void, LocalDataList> {
+    private static Cursor queryPhotos(ContentResolver resolver, String[] projection,
+            String selection, String[] selectionArgs) {
+        return resolver.query(LocalMediaData.PhotoData.CONTENT_URI, projection,
+                "(" + MediaStore.Images.Media.DATA + " like ? or "
+                        + MediaStore.Images.Media.DATA + " like ?)" + selection,
+                selectionArgs, LocalMediaData.PhotoData.QUERY_ORDER);
+    }
+
+    private static Cursor queryVideos(ContentResolver resolver, String[] projection,
+            String selection, String[] selectionArgs) {
+        return resolver.query(LocalMediaData.VideoData.CONTENT_URI, projection,
+                "(" + MediaStore.Video.Media.DATA + " like ? or "
+                        + MediaStore.Video.Media.DATA + " like ?)" + selection,
+                selectionArgs, LocalMediaData.VideoData.QUERY_ORDER);
+    }
+
+    /**
+     * Moves to the next photo row that builds, and returns its data. Returns
+     * null at the end of the cursor.
+     */
+    private static LocalData nextPhoto(Cursor c) {
+        while (c != null && c.moveToNext()) {
+            LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
+            if (data != null) {
+                if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
+                    return new InProgressDataWrapper(data, true);
+                }
+                return data;
+            }
+            Log.e(TAG, "Error loading data:"
+                    + c.getString(LocalMediaData.PhotoData.COL_DATA));
+        }
+        return null;
+    }
+
+    private static LocalData nextVideo(Cursor c) {
+        while (c != null && c.moveToNext()) {
+            LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
+            if (data != null) {
+                return data;
+            }
+            Log.e(TAG, "Error loading data:"
+                    + c.getString(LocalMediaData.VideoData.COL_DATA));
+        }
+        return null;
+    }
+
+    private class QueryTask extends AsyncTask<ContentResolver, List<LocalData>, Void> {
+        private boolean mFirstPagePublished;
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads all the photo and video data in the camera folder in background,
+         * merging the two newest first. Rows are only built as they are read,
+         * and published by pages so the newest data shows up before the older
+         * rows have been read.
          *
          * @param resolver {@link ContentResolver} to load all the data.
-         * @return An {@link ArrayList} of all loaded data.
          */
         @Override
-        protected LocalDataList doInBackground(ContentResolver... resolver) {
-            LocalDataList l = new LocalDataList();
-            // Photos
-            Cursor c = resolver[0].query(
-                    LocalMediaData.PhotoData.CONTENT_URI,
-                    LocalMediaData.PhotoData.QUERY_PROJECTION,
-                    MediaStore.Images.Media.DATA + " like ? or " +
-                    MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.PhotoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                while (true) {
-                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
-                    if (data != null) {
-                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
-                            l.add(new InProgressDataWrapper(data, true));
-                        } else {
-                            l.add(data);
-                        }
+        protected Void doInBackground(ContentResolver... resolver) {
+            Cursor photos = queryPhotos(resolver[0],
+                    LocalMediaData.PhotoData.QUERY_PROJECTION, "", getCameraPath());
+            Cursor videos = queryVideos(resolver[0],
+                    LocalMediaData.VideoData.QUERY_PROJECTION, "", getCameraPath());
+            try {
+                Comparator<LocalData> comp = new LocalData.NewestFirstComparator();
+                LocalData photo = nextPhoto(photos);
+                LocalData video = nextVideo(videos);
+                List<LocalData> page = new ArrayList<LocalData>(FIRST_PAGE_SIZE);
+                int pageSize = FIRST_PAGE_SIZE;
+                while ((photo != null || video != null) && !isCancelled()) {
+                    if (video == null || (photo != null && comp.compare(photo, video) <= 0)) {
+                        page.add(photo);
+                        photo = nextPhoto(photos);
                     } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.PhotoData.COL_DATA));
+                        page.add(video);
+                        video = nextVideo(videos);
                     }
-                    if (c.isLast()) {
-                        break;
+                    if (page.size() == pageSize) {
+                        // The cursors break ties by id, the list by the
+                        // modification date and title.
+                        Collections.sort(page, comp);
+                        publishProgress(page);
+                        page = new ArrayList<LocalData>(PAGE_SIZE);
+                        pageSize = PAGE_SIZE;
                     }
-                    c.moveToNext();
+                }
+                if (!page.isEmpty()) {
+                    Collections.sort(page, comp);
+                    publishProgress(page);
+                }
+            } finally {
+                if (photos != null) {
+                    photos.close();
+                }
+                if (videos != null) {
+                    videos.close();
                 }
             }
-            if (c != null) {
-                c.close();
-            }
+            return null;
+        }
 
-            c = resolver[0].query(
-                    LocalMediaData.VideoData.CONTENT_URI,
-                    LocalMediaData.VideoData.QUERY_PROJECTION,
-                    MediaStore.Video.Media.DATA + " like ? or " +
-                    MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.VideoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                c.moveToFirst();
-                while (true) {
-                    LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
-                    if (data != null) {
+        @Override
+        protected void onProgressUpdate(List<LocalData>... pages) {
+            if (isCancelled()) {
+                return;
+            }
+            for (List<LocalData> page : pages) {
+                if (!mFirstPagePublished) {
+                    mFirstPagePublished = true;
+                    LocalDataList l = new LocalDataList();
+                    for (LocalData data : page) {
                         l.add(data);
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.VideoData.COL_DATA));
-                    }
-                    if (!c.isLast()) {
-                        c.moveToNext();
-                    } else {
-                        break;
                     }
+                    replaceData(l);
+                } else {
+                    appendData(page);
                 }
             }
-            if (c != null) {
-                c.close();
+        }
+
+        @Override
+        protected void onPostExecute(Void v) {
+            if (!mFirstPagePublished) {
+                replaceData(new LocalDataList());
             }
+            mLoaded = true;
+            mLoadTask = null;
+        }
+    }
 
-            if (l.size() != 0) {
-                l.sort(new LocalData.NewestFirstComparator());
+    /**
+     * Finds the rows added, modified or removed since the data was loaded.
+     * Only ids and modification dates are read for all rows, full rows are
+     * read and built for the changed ones alone.
+     */
+    private class DeltaTask extends AsyncTask<ContentResolver, Void, Void> {
+        private final HashMap<Uri, Long> mKnown = new HashMap<Uri, Long>();
+        private final HashSet<Uri> mRemoved = new HashSet<Uri>();
+        private final List<LocalData> mChanged = new ArrayList<LocalData>();
+
+        DeltaTask(LocalDataList current) {
+            // Taken on the main thread, the list is only changed there.
+            for (int i = 0; i < current.size(); i++) {
+                LocalData data = current.get(i);
+                mKnown.put(data.getContentUri(), data.getDateModified());
             }
+        }
 
-            return l;
+        @Override
+        protected Void doInBackground(ContentResolver... resolver) {
+            ArrayList<Long> photoIds = findChanged(queryPhotos(resolver[0],
+                    DELTA_PROJECTION, "", getCameraPath()), LocalMediaData.PhotoData.CONTENT_URI);
+            ArrayList<Long> videoIds = findChanged(queryVideos(resolver[0],
+                    DELTA_PROJECTION, "", getCameraPath()), LocalMediaData.VideoData.CONTENT_URI);
+            // What was not seen again is gone.
+            mRemoved.addAll(mKnown.keySet());
+
+            for (int start = 0; start < photoIds.size() && !isCancelled();
+                    start += DELTA_BATCH_SIZE) {
+                List<Long> batch = photoIds.subList(start,
+                        Math.min(photoIds.size(), start + DELTA_BATCH_SIZE));
+                Cursor c = queryPhotos(resolver[0], LocalMediaData.PhotoData.QUERY_PROJECTION,
+                        idSelection(batch), getCameraPath());
+                LocalData data;
+                while ((data = nextPhoto(c)) != null) {
+                    mChanged.add(data);
+                }
+                if (c != null) {
+                    c.close();
+                }
+            }
+            for (int start = 0; start < videoIds.size() && !isCancelled();
+                    start += DELTA_BATCH_SIZE) {
+                List<Long> batch = videoIds.subList(start,
+                        Math.min(videoIds.size(), start + DELTA_BATCH_SIZE));
+                Cursor c = queryVideos(resolver[0], LocalMediaData.VideoData.QUERY_PROJECTION,
+                        idSelection(batch), getCameraPath());
+                LocalData data;
+                while ((data = nextVideo(c)) != null) {
+                    mChanged.add(data);
+                }
+                if (c != null) {
+                    c.close();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the ids of the rows that are new or whose modification date
+         * changed, and strikes the rows seen off the known ones.
+         */
+        private ArrayList<Long> findChanged(Cursor c, Uri baseUri) {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            if (c == null) {
+                return ids;
+            }
+            try {
+                while (c.moveToNext() && !isCancelled()) {
+                    long id = c.getLong(0);
+                    Long known = mKnown.remove(ContentUris.withAppendedId(baseUri, id));
+                    if (known == null || known.longValue() != c.getLong(1)) {
+                        ids.add(id);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            return ids;
+        }
+
+        private String idSelection(List<Long> ids) {
+            StringBuilder builder = new StringBuilder(" and "
+                    + MediaStore.MediaColumns._ID + " in (");
+            for (int i = 0; i < ids.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(ids.get(i));
+            }
+            return builder.append(')').toString();
         }
 
         @Override
-        protected void onPostExecute(LocalDataList l) {
-            replaceData(l);
+        protected void onPostExecute(Void v) {
+            applyDelta(mRemoved, mChanged);
+            mLoadTask = null;
         }
     }
 
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the filmstrip decodes on a small pool of its own, ordered by how
+ * soon each item is going to be on screen.
+ *
+ * The film strip reports the centered data and the scroll direction through
+ * {@link #schedule}. Items are ranked by their distance from the center,
+ * the ones ahead before the ones behind. Items far ahead are prefetched into
+ * the {@link ThumbnailCache} at thumbnail size, the centered one is reloaded
+ * at screen size once the film strip settles, and queued decodes for items
+ * that fell out of the window, e.g. after the user reversed, are cancelled.
+ */
+public class DecodeScheduler {
+    private static final int THREAD_COUNT = 2;
+    /** Items on each side of the center that have views in the film strip. */
+    public static final int VISIBLE_RANGE = 2;
+    /** Rank of a decode for an item the film strip has not hinted yet. */
+    private static final int RANK_UNRANKED = Integer.MAX_VALUE;
+
+    private static DecodeScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    // Guarded by this.
+    private HashMap<Uri, Integer> mRanks = new HashMap<Uri, Integer>();
+    private long mSequence;
+
+    private class Job implements Runnable, Comparable<Job> {
+        final Runnable mTask;
+        final Uri mUri;
+        final long mSequence;
+        int mRank;
+
+        Job(Runnable task, Uri uri, int rank, long sequence) {
+            mTask = task;
+            mUri = uri;
+            mRank = rank;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mRank != other.mRank) {
+                return mRank < other.mRank ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        void cancel() {
+            if (mTask instanceof Future) {
+                ((Future<?>) mTask).cancel(false);
+            }
+        }
+    }
+
+    public static synchronized DecodeScheduler get() {
+        if (sInstance == null) {
+            sInstance = new DecodeScheduler();
+        }
+        return sInstance;
+    }
+
+    private DecodeScheduler() {
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("FilmstripDecode-" + (mCount++)) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        // Core threads are started up front, so every job goes through the
+        // priority queue instead of being handed straight to a new thread.
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Returns an executor that runs the decodes for {@code uri} at that
+     * item's current rank, for use with
+     * {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public Executor executorFor(final Uri uri) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                Job job;
+                synchronized (DecodeScheduler.this) {
+                    Integer rank = mRanks.get(uri);
+                    job = new Job(task, uri, rank != null ? rank : RANK_UNRANKED,
+                            mSequence++);
+                }
+                mExecutor.execute(job);
+            }
+        };
+    }
+
+    /**
+     * Ranks the items around the centered one and starts the decodes they
+     * need.
+     *
+     * @param adapter The adapter holding the data.
+     * @param context The context used to load the data.
+     * @param centerID The ID of the data at the center.
+     * @param direction 1 when heading towards higher IDs, -1 towards lower
+     *            IDs, 0 once the film strip has settled on {@code centerID}.
+     * @param lookAhead How many items ahead are worth prefetching.
+     */
+    public void schedule(LocalDataAdapter adapter, Context context, int centerID,
+            int direction, int lookAhead) {
+        int ahead = direction == 0 ? VISIBLE_RANGE : Math.max(VISIBLE_RANGE, lookAhead);
+        int step = direction < 0 ? -1 : 1;
+        HashMap<Uri, Integer> ranks = new HashMap<Uri, Integer>();
+        List<LocalData> prefetch = new ArrayList<LocalData>();
+
+        LocalData center = adapter.getLocalData(centerID);
+        rank(ranks, center, 0);
+        for (int i = 1; i <= ahead; i++) {
+            LocalData data = adapter.getLocalData(centerID + step * i);
+            // Ahead of the behind item at the same distance.
+            rank(ranks, data, i * 2);
+            if (data != null && i > VISIBLE_RANGE) {
+                prefetch.add(data);
+            }
+        }
+        for (int i = 1; i <= VISIBLE_RANGE; i++) {
+            rank(ranks, adapter.getLocalData(centerID - step * i), i * 2 + 1);
+        }
+        rerank(ranks);
+
+        for (LocalData data : prefetch) {
+            data.prefetch(context, ThumbnailCache.MINI_SIZE, ThumbnailCache.MINI_SIZE);
+        }
+        if (direction == 0 && center != null) {
+            center.upgradeView();
+        }
+    }
+
+    private static void rank(HashMap<Uri, Integer> ranks, LocalData data, int rank) {
+        if (data == null) {
+            return;
+        }
+        Uri uri = data.getContentUri();
+        if (uri != null && !Uri.EMPTY.equals(uri) && !ranks.containsKey(uri)) {
+            ranks.put(uri, rank);
+        }
+    }
+
+    /**
+     * Applies the new ranks to the queued decodes and cancels the ones for
+     * items that are no longer in the window.
+     */
+    private void rerank(HashMap<Uri, Integer> ranks) {
+        List<Runnable> queued = new ArrayList<Runnable>();
+        synchronized (this) {
+            mRanks = ranks;
+            mExecutor.getQueue().drainTo(queued);
+            for (Runnable r : queued) {
+                Job job = (Job) r;
+                Integer rank = ranks.get(job.mUri);
+                if (rank == null) {
+                    job.cancel();
+                    continue;
+                }
+                job.mRank = rank;
+                mExecutor.getQueue().add(job);
+            }
+        }
+    }
+}
@@ -110,6 +110,16 @@ public class InProgressDataWrapper implements LocalData {
         return mLocalData.canSwipeInFullScreen();
     }
 
+    @Override
+    public void prefetch(Context context, int width, int height) {
+        mLocalData.prefetch(context, width, height);
+    }
+
+    @Override
+    public void upgradeView() {
+        mLocalData.upgradeView();
+    }
+
     @Override
     public String getPath() {
         return mLocalData.getPath();
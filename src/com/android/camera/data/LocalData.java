@@ -77,6 +77,22 @@ public interface LocalData extends FilmStripView.ImageData {
     View getView(Activity a, int width, int height, Drawable placeHolder,
             LocalDataAdapter adapter);
 
+    /**
+     * Decodes the data into the {@link ThumbnailCache} ahead of
+     * {@link #getView}, so the view can be filled from the cache.
+     *
+     * @param context The context used to load the data.
+     * @param width The width to decode for.
+     * @param height The height to decode for.
+     */
+    void prefetch(Context context, int width, int height);
+
+    /**
+     * Reloads the view last returned by {@link #getView} at the size it is
+     * laid out at, which is usually larger than the size it was created for.
+     */
+    void upgradeView();
+
     /**
      * Gets the date when this data is created. The returned date is also used
      * for sorting data.
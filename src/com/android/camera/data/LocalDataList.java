@@ -18,36 +18,23 @@ package com.android.camera.data;
 
 import android.net.Uri;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ *
+ * The items are kept in an array, so positional access is O(1). Lookups by
+ * Uri go through a map to the item, whose position is then found by a
+ * binary search on the newest first order the list is kept in.
  */
 public class LocalDataList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof LocalData)) {
-                return false;
-            }
-            return mUri.equals(((LocalData) o).getContentUri());
-        }
-    }
+    private static final Comparator<LocalData> NEWEST_FIRST =
+            new LocalData.NewestFirstComparator();
 
-    private LinkedList<LocalData> mList = new LinkedList<LocalData>();
+    private ArrayList<LocalData> mList = new ArrayList<LocalData>();
     private HashMap<Uri, LocalData> mUriMap = new HashMap<Uri, LocalData>();
 
     public LocalData get(int index) {
@@ -56,7 +43,7 @@ public class LocalDataList {
 
     public LocalData remove(int index) {
         LocalData removedItem = mList.remove(index);
-        mUriMap.remove(removedItem);
+        mUriMap.remove(removedItem.getContentUri());
         return removedItem;
     }
 
@@ -64,8 +51,13 @@ public class LocalDataList {
         return mUriMap.get(uri);
     }
 
+    public boolean contains(Uri uri) {
+        return mUriMap.containsKey(uri);
+    }
+
     public void set(int pos, LocalData data) {
-        mList.set(pos, data);
+        LocalData old = mList.set(pos, data);
+        mUriMap.remove(old.getContentUri());
         mUriMap.put(data.getContentUri(), data);
     }
 
@@ -88,14 +80,36 @@ public class LocalDataList {
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns in O(1) when the uri is not contained in the list. Otherwise
+     * the item is found by a binary search in O(log n), with a linear scan as
+     * the fallback for an item that is out of the newest first order, for
+     * example after {@link #set} replaced it with newer dates.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        LocalData data = mUriMap.get(uri);
+        if (data == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        int pos = Collections.binarySearch(mList, data, NEWEST_FIRST);
+        if (pos >= 0) {
+            // Items comparing equal sit next to each other.
+            for (int i = pos; i >= 0 && NEWEST_FIRST.compare(mList.get(i), data) == 0; i--) {
+                if (mList.get(i) == data) {
+                    return i;
+                }
+            }
+            for (int i = pos + 1; i < mList.size()
+                    && NEWEST_FIRST.compare(mList.get(i), data) == 0; i++) {
+                if (mList.get(i) == data) {
+                    return i;
+                }
+            }
+        }
+        for (int i = 0; i < mList.size(); i++) {
+            if (mList.get(i) == data) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -38,12 +38,15 @@ import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import com.android.camera.exif.ExifInterface;
 import com.android.camera.ui.FilmStripView;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.Mp4Reader;
 import com.android.camera.util.PhotoSphereHelper;
 import org.codeaurora.snapcam.R;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -80,6 +83,10 @@ public abstract class LocalMediaData implements LocalData {
      */
     protected Boolean mUsing = false;
 
+    /** The view last filled by {@link #fillImageView}, and the key it shows. */
+    private ImageView mImageView;
+    private ThumbnailCache.Key mImageViewKey;
+
     public LocalMediaData (long contentId, String title, String mimeType,
             long dateTakenInSeconds, long dateModifiedInSeconds, String path,
             int width, int height, long sizeInBytes, double latitude,
@@ -205,16 +212,52 @@ public abstract class LocalMediaData implements LocalData {
             int decodeWidth, int decodeHeight, Drawable placeHolder,
             LocalDataAdapter adapter) {
         v.setScaleType(ImageView.ScaleType.FIT_XY);
+        mImageView = v;
+        mImageViewKey = getThumbnailKey(decodeWidth, decodeHeight);
+        Bitmap cached = ThumbnailCache.get(ctx).getFromMemory(mImageViewKey);
+        if (cached != null) {
+            v.setImageDrawable(new BitmapDrawable(cached));
+            return v;
+        }
         v.setImageDrawable(placeHolder);
-/*
- * Remove loading bitmaps for this adapter as we no longer use it.
- */
-//        BitmapLoadTask task = getBitmapLoadTask(v, decodeWidth, decodeHeight,
-//                ctx.getContentResolver(), adapter);
-//        task.execute();
+        BitmapLoadTask task = getBitmapLoadTask(ctx, v, decodeWidth, decodeHeight, adapter);
+        task.executeOnExecutor(DecodeScheduler.get().executorFor(getContentUri()));
         return v;
     }
 
+    @Override
+    public void prefetch(Context context, int width, int height) {
+        ThumbnailCache.Key key = getThumbnailKey(width, height);
+        if (ThumbnailCache.get(context).getFromMemory(key) != null) {
+            return;
+        }
+        BitmapLoadTask task = getBitmapLoadTask(context, null, width, height, null);
+        task.executeOnExecutor(DecodeScheduler.get().executorFor(getContentUri()));
+    }
+
+    @Override
+    public void upgradeView() {
+        ImageView v = mImageView;
+        if (v == null || !isUsing() || v.getWidth() <= 0 || v.getHeight() <= 0) {
+            return;
+        }
+        ThumbnailCache.Key key = getThumbnailKey(v.getWidth(), v.getHeight());
+        if (key.bucket <= mImageViewKey.bucket) {
+            return;
+        }
+        mImageViewKey = key;
+        Bitmap cached = ThumbnailCache.get(v.getContext()).getFromMemory(key);
+        if (cached != null) {
+            v.setImageDrawable(new BitmapDrawable(cached));
+            return;
+        }
+        BitmapLoadTask task = getBitmapLoadTask(v.getContext(), v, v.getWidth(), v.getHeight(),
+                null);
+        // Keeps the current bitmap up instead of the mini preview.
+        task.setShowsPreview(false);
+        task.executeOnExecutor(DecodeScheduler.get().executorFor(getContentUri()));
+    }
+
     @Override
     public View getView(Activity activity,
             int decodeWidth, int decodeHeight, Drawable placeHolder,
@@ -235,6 +278,7 @@ public abstract class LocalMediaData implements LocalData {
         synchronized (mUsing) {
             mUsing = false;
         }
+        mImageView = null;
     }
 
     @Override
@@ -247,6 +291,11 @@ public abstract class LocalMediaData implements LocalData {
         };
     }
 
+    protected ThumbnailCache.Key getThumbnailKey(int decodeWidth, int decodeHeight) {
+        return new ThumbnailCache.Key(getContentUri(), mDateModifiedInSeconds,
+                ThumbnailCache.bucketFor(decodeWidth, decodeHeight));
+    }
+
     protected boolean isUsing() {
         synchronized (mUsing) {
             return mUsing;
@@ -282,9 +331,13 @@ public abstract class LocalMediaData implements LocalData {
     @Override
     public abstract int getViewType();
 
+    /**
+     * Returns the task that loads the bitmap for the view, or only into the
+     * {@link ThumbnailCache} when {@code v} is null.
+     */
     protected abstract BitmapLoadTask getBitmapLoadTask(
-            ImageView v, int decodeWidth, int decodeHeight,
-            ContentResolver resolver, LocalDataAdapter adapter);
+            Context context, ImageView v, int decodeWidth, int decodeHeight,
+            LocalDataAdapter adapter);
 
     public static final class PhotoData extends LocalMediaData {
         private static final String TAG = "CAM_PhotoData";
@@ -470,10 +523,10 @@ public abstract class LocalMediaData implements LocalData {
 
         @Override
         protected BitmapLoadTask getBitmapLoadTask(
-                ImageView v, int decodeWidth, int decodeHeight,
-                ContentResolver resolver, LocalDataAdapter adapter) {
-            return new PhotoBitmapLoadTask(v, decodeWidth, decodeHeight,
-                    resolver, adapter);
+                Context context, ImageView v, int decodeWidth, int decodeHeight,
+                LocalDataAdapter adapter) {
+            return new PhotoBitmapLoadTask(context, v, decodeWidth, decodeHeight,
+                    adapter);
         }
 
         private final class PhotoBitmapLoadTask extends BitmapLoadTask {
@@ -484,18 +537,39 @@ public abstract class LocalMediaData implements LocalData {
 
             private boolean mNeedsRefresh;
 
-            public PhotoBitmapLoadTask(ImageView v, int decodeWidth,
-                    int decodeHeight, ContentResolver resolver,
-                    LocalDataAdapter adapter) {
-                super(v);
+            public PhotoBitmapLoadTask(Context context, ImageView v, int decodeWidth,
+                    int decodeHeight, LocalDataAdapter adapter) {
+                super(context, v, decodeWidth, decodeHeight);
                 mDecodeWidth = decodeWidth;
                 mDecodeHeight = decodeHeight;
-                mResolver = resolver;
+                mResolver = context.getContentResolver();
                 mAdapter = adapter;
             }
 
             @Override
-            protected Bitmap doInBackground(Void... v) {
+            protected Bitmap decodeMini() {
+                byte[] thumbnail;
+                try {
+                    ExifInterface exif = new ExifInterface();
+                    exif.readExif(mPath);
+                    thumbnail = exif.getThumbnailBytes();
+                } catch (IOException e) {
+                    return null;
+                }
+                if (thumbnail == null) {
+                    return null;
+                }
+                Bitmap b = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                if (b != null && mOrientation != 0) {
+                    Matrix m = new Matrix();
+                    m.setRotate(mOrientation);
+                    b = Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), m, false);
+                }
+                return b;
+            }
+
+            @Override
+            protected Bitmap decode() {
                 int sampleSize = 1;
                 if (mWidth > mDecodeWidth || mHeight > mDecodeHeight) {
                     int heightRatio = Math.round((float) mHeight / (float) mDecodeHeight);
@@ -506,8 +580,6 @@ public abstract class LocalMediaData implements LocalData {
                 // For correctness, we need to double check the size here. The
                 // good news is that decoding bounds take much less time than
                 // decoding samples like < 1%.
-                // TODO: better organize the decoding and sampling by using a
-                // image cache.
                 int decodedWidth = 0;
                 int decodedHeight = 0;
                 BitmapFactory.Options justBoundsOpts = new BitmapFactory.Options();
@@ -536,13 +608,13 @@ public abstract class LocalMediaData implements LocalData {
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inSampleSize = sampleSize;
                 opts.inTempStorage = DECODE_TEMP_STORAGE;
-                if (isCancelled() || !isUsing()) {
+                if (isCancelled() || !isWanted()) {
                     return null;
                 }
                 Bitmap b = BitmapFactory.decodeFile(mPath, opts);
 
                 if (mOrientation != 0 && b != null) {
-                    if (isCancelled() || !isUsing()) {
+                    if (isCancelled() || !isWanted()) {
                         return null;
                     }
                     Matrix m = new Matrix();
@@ -637,39 +709,52 @@ public abstract class LocalMediaData implements LocalData {
             String path = c.getString(COL_DATA);
             int width = c.getInt(COL_WIDTH);
             int height = c.getInt(COL_HEIGHT);
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
             String rotation = null;
 
             File origFile = new File(path);
             if (!origFile.exists() || origFile.length() <= 0) {
                 Log.e(TAG, "Invalid video file");
-                retriever.release();
                 return null;
             }
 
+            Mp4Reader movie = null;
             try {
-                retriever.setDataSource(path);
-            } catch (RuntimeException ex) {
-                // setDataSource() can cause RuntimeException beyond
-                // IllegalArgumentException. e.g: data contain *.avi file.
-                retriever.release();
-                Log.e(TAG, "MediaMetadataRetriever.setDataSource() fail:"
-                        + ex.getMessage());
-                return null;
+                movie = Mp4Reader.read(origFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read movie header:" + path);
             }
-            rotation = retriever.extractMetadata(
-                    MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
-
-            // Extracts video height/width if available. If unavailable, set to 0.
-            if (width == 0 || height == 0) {
-                String val = retriever.extractMetadata(
-                        MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-                width = (val == null) ? 0 : Integer.parseInt(val);
-                val = retriever.extractMetadata(
-                        MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-                height = (val == null) ? 0 : Integer.parseInt(val);
+            if (movie != null && movie.hasVideo()) {
+                rotation = String.valueOf(movie.getRotation());
+                if (width == 0 || height == 0) {
+                    width = movie.getWidth();
+                    height = movie.getHeight();
+                }
+            } else {
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                try {
+                    retriever.setDataSource(path);
+                } catch (RuntimeException ex) {
+                    // setDataSource() can cause RuntimeException beyond
+                    // IllegalArgumentException. e.g: data contain *.avi file.
+                    retriever.release();
+                    Log.e(TAG, "MediaMetadataRetriever.setDataSource() fail:"
+                            + ex.getMessage());
+                    return null;
+                }
+                rotation = retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+
+                // Extracts video height/width if available. If unavailable, set to 0.
+                if (width == 0 || height == 0) {
+                    String val = retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+                    width = (val == null) ? 0 : Integer.parseInt(val);
+                    val = retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
+                    height = (val == null) ? 0 : Integer.parseInt(val);
+                }
+                retriever.release();
             }
-            retriever.release();
             if (width == 0 || height == 0) {
                 // Width or height is still not available.
                 Log.e(TAG, "Unable to retrieve dimension of video:" + path);
@@ -791,20 +876,21 @@ public abstract class LocalMediaData implements LocalData {
 
         @Override
         protected BitmapLoadTask getBitmapLoadTask(
-                ImageView v, int decodeWidth, int decodeHeight,
-                ContentResolver resolver, LocalDataAdapter adapter) {
-            return new VideoBitmapLoadTask(v);
+                Context context, ImageView v, int decodeWidth, int decodeHeight,
+                LocalDataAdapter adapter) {
+            return new VideoBitmapLoadTask(context, v, decodeWidth, decodeHeight);
         }
 
         private final class VideoBitmapLoadTask extends BitmapLoadTask {
 
-            public VideoBitmapLoadTask(ImageView v) {
-                super(v);
+            public VideoBitmapLoadTask(Context context, ImageView v, int decodeWidth,
+                    int decodeHeight) {
+                super(context, v, decodeWidth, decodeHeight);
             }
 
             @Override
-            protected Bitmap doInBackground(Void... v) {
-                if (isCancelled() || !isUsing()) {
+            protected Bitmap decode() {
+                if (isCancelled() || !isWanted()) {
                     return null;
                 }
                 MediaMetadataRetriever retriever = new MediaMetadataRetriever();
@@ -812,7 +898,7 @@ public abstract class LocalMediaData implements LocalData {
                 try {
                     retriever.setDataSource(mPath);
                     byte[] data = retriever.getEmbeddedPicture();
-                    if (!isCancelled() && isUsing()) {
+                    if (!isCancelled() && isWanted()) {
                         if (data != null) {
                             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
                         }
@@ -840,19 +926,96 @@ public abstract class LocalMediaData implements LocalData {
 
     /**
      * An {@link AsyncTask} class that loads the bitmap in the background
-     * thread. Sub-classes should implement their own
-     * {@code BitmapLoadTask#doInBackground(Void...)}."
+     * thread through the {@link ThumbnailCache}. Sub-classes should implement
+     * their own {@code BitmapLoadTask#decode()}, and may implement
+     * {@code BitmapLoadTask#decodeMini()} for a cheap preview that is shown
+     * while the full decode runs. The preview is never cached, the mini
+     * bucket is filled from the full decode. Without a view, the task only
+     * fills the cache.
      */
-    protected abstract class BitmapLoadTask extends AsyncTask<Void, Void, Bitmap> {
+    protected abstract class BitmapLoadTask extends AsyncTask<Void, Bitmap, Bitmap> {
         protected ImageView mView;
+        private final ThumbnailCache mCache;
+        private final ThumbnailCache.Key mKey;
+        private final ThumbnailCache.Key mMiniKey;
+        private boolean mShowsPreview = true;
 
-        protected BitmapLoadTask(ImageView v) {
+        protected BitmapLoadTask(Context context, ImageView v, int decodeWidth,
+                int decodeHeight) {
             mView = v;
+            mCache = ThumbnailCache.get(context);
+            mKey = getThumbnailKey(decodeWidth, decodeHeight);
+            mMiniKey = getThumbnailKey(ThumbnailCache.MINI_SIZE, ThumbnailCache.MINI_SIZE);
+        }
+
+        public void setShowsPreview(boolean showsPreview) {
+            mShowsPreview = showsPreview;
+        }
+
+        /**
+         * Returns whether the result is still needed: always for a prefetch,
+         * otherwise as long as the data has a visible view.
+         */
+        protected boolean isWanted() {
+            return mView == null || isUsing();
+        }
+
+        /** Decodes the bitmap from the original file. */
+        protected abstract Bitmap decode();
+
+        /** Decodes a small preview without reading the whole file. */
+        protected Bitmap decodeMini() {
+            return null;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... v) {
+            Bitmap b = mCache.get(mKey);
+            if (b != null) {
+                return b;
+            }
+            boolean needsMini = false;
+            if (mKey.bucket > mMiniKey.bucket) {
+                Bitmap mini = mCache.get(mMiniKey);
+                if (mini == null) {
+                    // decodeMini() is usually smaller than the mini bucket,
+                    // so it is only shown and the full decode fills the bucket.
+                    needsMini = true;
+                    if (mShowsPreview && !isCancelled() && isWanted()) {
+                        mini = decodeMini();
+                    }
+                }
+                if (mini != null && mShowsPreview) {
+                    publishProgress(mini);
+                }
+            }
+            if (isCancelled() || !isWanted()) {
+                return null;
+            }
+            b = decode();
+            if (b != null) {
+                mCache.put(mKey, b);
+                if (needsMini) {
+                    mCache.put(mMiniKey, scaleToMini(b));
+                }
+            }
+            return b;
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... mini) {
+            if (mView != null && isUsing()) {
+                mView.setImageDrawable(new BitmapDrawable(mini[0]));
+            }
         }
 
         @Override
         protected void onPostExecute(Bitmap bitmap) {
-            if (!isUsing()) {
+            if (mView == null || !isUsing()) {
+                return;
+            }
+            if (mView == mImageView && mKey.bucket < mImageViewKey.bucket) {
+                // The view has been upgraded while this decode was running.
                 return;
             }
             if (bitmap == null) {
@@ -863,5 +1026,15 @@ public abstract class LocalMediaData implements LocalData {
             mView.setScaleType(ImageView.ScaleType.FIT_XY);
             mView.setImageDrawable(d);
         }
+
+        private Bitmap scaleToMini(Bitmap b) {
+            int longSide = Math.max(b.getWidth(), b.getHeight());
+            if (longSide <= ThumbnailCache.MINI_SIZE) {
+                return b;
+            }
+            float scale = (float) ThumbnailCache.MINI_SIZE / longSide;
+            return Bitmap.createScaledBitmap(b, Math.max(1, Math.round(b.getWidth() * scale)),
+                    Math.max(1, Math.round(b.getHeight() * scale)), true);
+        }
     }
 }
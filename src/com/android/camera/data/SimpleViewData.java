@@ -156,6 +156,16 @@ public class SimpleViewData implements LocalData {
         return true;
     }
 
+    @Override
+    public void prefetch(Context context, int width, int height) {
+        // Nothing to decode.
+    }
+
+    @Override
+    public void upgradeView() {
+        // Nothing to decode.
+    }
+
     @Override
     public MediaDetails getMediaDetails(Context context) {
         return null;
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.camera.util.CameraUtil;
+import com.android.camera.util.PersistUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two level cache of the bitmaps shown in the filmstrip.
+ *
+ * Decoded bitmaps are kept in a memory LRU with a byte budget. Small
+ * thumbnails, up to {@link #MINI_SIZE} on the long side, are also written
+ * as JPEGs to the app cache dir, so they survive the process and load far
+ * faster than the original file. Entries are keyed by content Uri,
+ * modification date and a power of two size bucket, so an edited or
+ * rotated item never hits a stale entry.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "CAM_ThumbnailCache";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+
+    /** Long side of the thumbnails that also go to disk. */
+    public static final int MINI_SIZE = 512;
+    private static final int MIN_BUCKET = 64;
+    private static final String DISK_DIR = "thumbnails";
+    private static final String DISK_SUFFIX = ".jpg";
+    private static final int DISK_QUALITY = 85;
+    private static final long DISK_BUDGET_BYTES = 32L * 1024 * 1024;
+    private static final int MAX_MEMORY_BUDGET_BYTES = 32 * 1024 * 1024;
+    /** With debug logging on, stats are logged once per this many lookups. */
+    private static final int STATS_LOG_INTERVAL = 64;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<Key, Bitmap> mMemory;
+    private final File mDiskDir;
+    // File name to size, in access order. Guarded by itself.
+    private final LinkedHashMap<String, Long> mDiskEntries =
+            new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mDiskBytes;
+    private boolean mDiskLoaded;
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private int mMemoryEvictions;
+    private int mDiskEvictions;
+
+    /**
+     * Identifies a cached bitmap: the item, its version and the size it was
+     * decoded for.
+     */
+    public static final class Key {
+        public final Uri uri;
+        public final long dateModified;
+        public final int bucket;
+
+        public Key(Uri uri, long dateModified, int bucket) {
+            this.uri = uri;
+            this.dateModified = dateModified;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return dateModified == k.dateModified && bucket == k.bucket && uri.equals(k.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = uri.hashCode();
+            h = h * 31 + (int) (dateModified ^ (dateModified >>> 32));
+            return h * 31 + bucket;
+        }
+
+        String toFileName() {
+            return Integer.toHexString(uri.toString().hashCode()) + "_"
+                    + uri.getLastPathSegment() + "_" + dateModified + "_" + bucket + DISK_SUFFIX;
+        }
+
+        @Override
+        public String toString() {
+            return uri + "@" + dateModified + "/" + bucket;
+        }
+    }
+
+    public static synchronized ThumbnailCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(
+                    new File(context.getApplicationContext().getCacheDir(), DISK_DIR),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                            MAX_MEMORY_BUDGET_BYTES));
+        }
+        return sInstance;
+    }
+
+    ThumbnailCache(File diskDir, int memoryBudgetBytes) {
+        mDiskDir = diskDir;
+        mMemory = new LruCache<Key, Bitmap>(memoryBudgetBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (evicted) {
+                    synchronized (ThumbnailCache.this) {
+                        mMemoryEvictions++;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the power of two size bucket for a decode bound, so that
+     * nearby view sizes share entries.
+     */
+    public static int bucketFor(int width, int height) {
+        int size = Math.max(MIN_BUCKET, Math.max(width, height));
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Returns the bitmap from memory only, cheap enough for the main thread.
+     */
+    public Bitmap getFromMemory(Key key) {
+        Bitmap b = mMemory.get(key);
+        if (b != null) {
+            count(true, false);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the bitmap from memory or, for small buckets, from disk. Must
+     * not be called on the main thread.
+     */
+    public Bitmap get(Key key) {
+        Bitmap b = mMemory.get(key);
+        if (b != null) {
+            count(true, false);
+            return b;
+        }
+        if (key.bucket <= MINI_SIZE) {
+            b = readDisk(key);
+            if (b != null) {
+                mMemory.put(key, b);
+                count(false, true);
+                return b;
+            }
+        }
+        count(false, false);
+        return null;
+    }
+
+    /**
+     * Adds a bitmap. Small buckets are written to disk as well, so this must
+     * not be called on the main thread.
+     */
+    public void put(Key key, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        mMemory.put(key, bitmap);
+        if (key.bucket <= MINI_SIZE) {
+            writeDisk(key, bitmap);
+        }
+    }
+
+    /**
+     * Drops memory entries, for example when the app is trimmed. The disk
+     * entries are kept.
+     */
+    public void trimMemory(boolean all) {
+        if (all) {
+            mMemory.evictAll();
+        } else {
+            mMemory.trimToSize(mMemory.maxSize() / 2);
+        }
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHits;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mMemoryEvictions + mDiskEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ThumbnailCache[memory " + mMemory.size() + "/" + mMemory.maxSize()
+                + "B hits=" + mMemoryHits + " evictions=" + mMemoryEvictions
+                + ", disk " + mDiskBytes + "/" + DISK_BUDGET_BYTES
+                + "B hits=" + mDiskHits + " evictions=" + mDiskEvictions
+                + ", misses=" + mMisses + "]";
+    }
+
+    private void count(boolean memoryHit, boolean diskHit) {
+        int lookups;
+        synchronized (this) {
+            if (memoryHit) {
+                mMemoryHits++;
+            } else if (diskHit) {
+                mDiskHits++;
+            } else {
+                mMisses++;
+            }
+            lookups = mMemoryHits + mDiskHits + mMisses;
+        }
+        if (DEBUG && lookups % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, toString());
+        }
+    }
+
+    private Bitmap readDisk(Key key) {
+        String name = key.toFileName();
+        synchronized (mDiskEntries) {
+            loadDiskEntries();
+            if (mDiskEntries.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(mDiskDir, name);
+        Bitmap b = BitmapFactory.decodeFile(file.getPath());
+        if (b == null) {
+            synchronized (mDiskEntries) {
+                removeDiskEntry(name);
+            }
+            return null;
+        }
+        // Keeps the LRU order on disk across restarts.
+        file.setLastModified(System.currentTimeMillis());
+        return b;
+    }
+
+    private void writeDisk(Key key, Bitmap bitmap) {
+        String name = key.toFileName();
+        File file = new File(mDiskDir, name);
+        File temp = new File(mDiskDir, name + ".tmp");
+        synchronized (mDiskEntries) {
+            loadDiskEntries();
+            if (mDiskEntries.containsKey(name)) {
+                return;
+            }
+        }
+        OutputStream out = null;
+        boolean written = false;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            written = bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + temp, e);
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
+        if (!written || !temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        synchronized (mDiskEntries) {
+            Long old = mDiskEntries.put(name, file.length());
+            mDiskBytes += file.length() - (old != null ? old : 0);
+            trimDisk();
+        }
+    }
+
+    private void loadDiskEntries() {
+        if (mDiskLoaded) {
+            return;
+        }
+        mDiskLoaded = true;
+        if (!mDiskDir.isDirectory() && !mDiskDir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDiskDir);
+            return;
+        }
+        File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so the access order starts out right.
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (Integer i : order) {
+            File f = files[i];
+            if (!f.getName().endsWith(DISK_SUFFIX)) {
+                // Left over by an interrupted write.
+                f.delete();
+                continue;
+            }
+            mDiskEntries.put(f.getName(), f.length());
+            mDiskBytes += f.length();
+        }
+        trimDisk();
+    }
+
+    private void removeDiskEntry(String name) {
+        Long size = mDiskEntries.remove(name);
+        if (size != null) {
+            mDiskBytes -= size;
+        }
+        new File(mDiskDir, name).delete();
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> it = mDiskEntries.entrySet().iterator();
+        while (mDiskBytes > DISK_BUDGET_BYTES && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mDiskBytes -= eldest.getValue();
+            new File(mDiskDir, eldest.getKey()).delete();
+            synchronized (this) {
+                mDiskEvictions++;
+            }
+        }
+    }
+}
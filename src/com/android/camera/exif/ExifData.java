@@ -256,11 +256,8 @@ class ExifData {
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
         for (IfdData d : mIfdDatas) {
             if (d != null) {
-                ExifTag[] tags = d.getAllTags();
-                if (tags != null) {
-                    for (ExifTag t : tags) {
-                        ret.add(t);
-                    }
+                for (int i = 0; i < d.getTagCount(); i++) {
+                    ret.add(d.getTagAt(i));
                 }
             }
         }
@@ -279,13 +276,9 @@ class ExifData {
         if (d == null) {
             return null;
         }
-        ExifTag[] tags = d.getAllTags();
-        if (tags == null) {
-            return null;
-        }
-        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(tags.length);
-        for (ExifTag t : tags) {
-            ret.add(t);
+        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(d.getTagCount());
+        for (int i = 0; i < d.getTagCount(); i++) {
+            ret.add(d.getTagAt(i));
         }
         if (ret.size() == 0) {
             return null;
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Locates the IFDs of a jpeg's exif header without decoding any tag.
+ *
+ * Only the offsets of the IFDs are recorded up front. A tag is found by
+ * walking the entries of its IFD and its value is decoded from the jpeg
+ * bytes when asked for, so reading a single tag such as the orientation
+ * costs a few dozen reads and no per tag objects. Thumbnails and strips
+ * are never touched.
+ */
+class ExifIndex {
+    private static final int ENTRY_SIZE = 12;
+    private static final short TAG_EXIF_IFD = (short) 0x8769;
+    private static final short TAG_GPS_IFD = (short) 0x8825;
+    private static final short TAG_INTEROPERABILITY_IFD = (short) 0xA005;
+
+    // SOI and EOI around the exif segment, for a jpeg without one.
+    private static final byte[] EMPTY_JPEG = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9};
+
+    private final byte[] mHeader;
+    private final ByteBuffer mTiff;
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+
+    private ExifIndex(byte[] header, ByteBuffer tiff) {
+        mHeader = header;
+        mTiff = tiff;
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = -1;
+        }
+    }
+
+    /**
+     * Indexes the exif header of a jpeg. Returns an empty index if the jpeg
+     * has no exif header. The exif segment is copied, the index holds no
+     * reference to the jpeg.
+     *
+     * @throws ExifInvalidFormatException if the data is not a jpeg or the
+     *             exif header is malformed.
+     */
+    static ExifIndex create(byte[] jpeg) throws ExifInvalidFormatException {
+        JpegSegmentIndex segments = JpegSegmentIndex.wrap(jpeg);
+        if (jpeg.length < 4 || !segments.isValid()) {
+            throw new ExifInvalidFormatException("Invalid JPEG format");
+        }
+        int exif = segments.find(JpegHeader.APP1, ExifParser.EXIF_SIGNATURE);
+        if (exif < 0) {
+            return new ExifIndex(EMPTY_JPEG, null);
+        }
+        int start = segments.getOffset(exif);
+        int length = segments.getEnd(exif) - start;
+        byte[] header = new byte[length + 4];
+        header[0] = (byte) 0xff;
+        header[1] = (byte) 0xd8;
+        System.arraycopy(jpeg, start, header, 2, length);
+        header[length + 2] = (byte) 0xff;
+        header[length + 3] = (byte) 0xd9;
+        int tiffStart = 2 + segments.getPayloadOffset(exif) - start
+                + ExifParser.EXIF_SIGNATURE.length;
+        ByteBuffer tiff = ByteBuffer.wrap(header, tiffStart, length + 2 - tiffStart).slice();
+        ExifIndex index = new ExifIndex(header, tiff);
+        index.readIfdOffsets();
+        return index;
+    }
+
+    /**
+     * Returns a minimal jpeg holding only the indexed exif segment, enough
+     * to decode the whole header.
+     */
+    byte[] getHeader() {
+        return mHeader;
+    }
+
+    private void readIfdOffsets() throws ExifInvalidFormatException {
+        if (mTiff.limit() < 8) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        short byteOrder = mTiff.getShort(0);
+        if (byteOrder == ExifParser.LITTLE_ENDIAN_TAG) {
+            mTiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != ExifParser.BIG_ENDIAN_TAG) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        if (mTiff.getShort(2) != ExifParser.TIFF_HEADER_TAIL) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        int ifd0 = checkIfd(mTiff.getInt(4));
+        mIfdOffsets[IfdId.TYPE_IFD_0] = ifd0;
+        if (ifd0 < 0) {
+            return;
+        }
+        int count = mTiff.getShort(ifd0) & 0xffff;
+        mIfdOffsets[IfdId.TYPE_IFD_1] = checkIfd(mTiff.getInt(ifd0 + 2 + count * ENTRY_SIZE));
+        mIfdOffsets[IfdId.TYPE_IFD_EXIF] = checkIfd(readPointer(IfdId.TYPE_IFD_0, TAG_EXIF_IFD));
+        mIfdOffsets[IfdId.TYPE_IFD_GPS] = checkIfd(readPointer(IfdId.TYPE_IFD_0, TAG_GPS_IFD));
+        mIfdOffsets[IfdId.TYPE_IFD_INTEROPERABILITY] =
+                checkIfd(readPointer(IfdId.TYPE_IFD_EXIF, TAG_INTEROPERABILITY_IFD));
+    }
+
+    /**
+     * Returns the offset if a whole IFD fits there, or -1.
+     */
+    private int checkIfd(int offset) {
+        if (offset <= 0 || offset + 2 > mTiff.limit()) {
+            return -1;
+        }
+        int count = mTiff.getShort(offset) & 0xffff;
+        return offset + 2 + count * ENTRY_SIZE + 4 <= mTiff.limit() ? offset : -1;
+    }
+
+    private int readPointer(int ifdId, short tagId) {
+        int entry = findEntry(ifdId, tagId);
+        return entry < 0 ? -1 : mTiff.getInt(entry + 8);
+    }
+
+    /**
+     * Returns the offset of the IFD entry of the tag, or -1.
+     */
+    private int findEntry(int ifdId, short tagId) {
+        if (mTiff == null || ifdId < 0 || ifdId >= mIfdOffsets.length) {
+            return -1;
+        }
+        int ifd = mIfdOffsets[ifdId];
+        if (ifd < 0) {
+            return -1;
+        }
+        int count = mTiff.getShort(ifd) & 0xffff;
+        for (int i = 0, entry = ifd + 2; i < count; i++, entry += ENTRY_SIZE) {
+            if (mTiff.getShort(entry) == tagId) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    boolean hasExif() {
+        return mTiff != null && mIfdOffsets[IfdId.TYPE_IFD_0] >= 0;
+    }
+
+    /**
+     * Decodes an integer tag the way {@link ExifTag#getValueAsLongs} sees it.
+     * Returns null if the tag is missing or is not of an integer type.
+     */
+    long[] getLongValues(int ifdId, short tagId) {
+        int entry = findEntry(ifdId, tagId);
+        if (entry < 0) {
+            return null;
+        }
+        short type = mTiff.getShort(entry + 2);
+        int count = mTiff.getInt(entry + 4);
+        if (count < 0 || (type != ExifTag.TYPE_UNSIGNED_SHORT && type != ExifTag.TYPE_UNSIGNED_LONG
+                && type != ExifTag.TYPE_LONG)) {
+            return null;
+        }
+        int size = ExifTag.getElementSize(type);
+        long dataSize = (long) size * count;
+        int data = dataSize > 4 ? mTiff.getInt(entry + 8) : entry + 8;
+        if (data < 0 || data + dataSize > mTiff.limit()) {
+            return null;
+        }
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++, data += size) {
+            if (type == ExifTag.TYPE_UNSIGNED_SHORT) {
+                values[i] = mTiff.getShort(data) & 0xffff;
+            } else if (type == ExifTag.TYPE_UNSIGNED_LONG) {
+                values[i] = mTiff.getInt(data) & 0xffffffffL;
+            } else {
+                values[i] = mTiff.getInt(data);
+            }
+        }
+        return values;
+    }
+}
@@ -18,7 +18,10 @@ package com.android.camera.exif;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CaptureResult;
+import android.util.Log;
 import android.util.SparseIntArray;
 import android.os.Build;
 
@@ -133,6 +136,12 @@ public class ExifInterface {
         defineTag(IfdId.TYPE_IFD_0, (short) 0x8769);
     public static final int TAG_GPS_IFD =
         defineTag(IfdId.TYPE_IFD_0, (short) 0x8825);
+    /**
+     * Zero filled slack reserved when writing, see
+     * {@link #rewriteExifInPadding}.
+     */
+    public static final int TAG_PADDING =
+        defineTag(IfdId.TYPE_IFD_0, (short) 0xEA1C);
     // IFD 1
     public static final int TAG_JPEG_INTERCHANGE_FORMAT =
         defineTag(IfdId.TYPE_IFD_1, (short) 0x0201);
@@ -708,12 +717,17 @@ public class ExifInterface {
         public static final short DIFFERENTIAL_CORRECTION_APPLIED = 1;
     }
 
+    private static final String TAG = "ExifInterface";
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    // Set while only an index of the header has been read, see
+    // readExifLazily. Readers may run on any thread, the switch to mData
+    // happens under the object lock and mData is written before this is
+    // cleared.
+    private volatile ExifIndex mLazyIndex;
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
     public ExifInterface() {
-        mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
     /**
@@ -744,7 +758,60 @@ public class ExifInterface {
         } catch (ExifInvalidFormatException e) {
             throw new IOException("Invalid exif format : " + e);
         }
-        mData = d;
+        synchronized (this) {
+            mData = d;
+            mLazyIndex = null;
+        }
+    }
+
+    /**
+     * Indexes the exif header of a jpeg without decoding it, clearing this
+     * ExifInterface object's existing exif tags. Integer tag values such as
+     * the orientation are then read straight from the jpeg on request, any
+     * other access decodes the whole header first. Only a copy of the exif
+     * segment is kept, not the jpeg.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @throws IOException
+     */
+    public void readExifLazily(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ExifIndex index;
+        try {
+            index = ExifIndex.create(jpeg);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+        synchronized (this) {
+            mData = null;
+            mLazyIndex = index;
+        }
+    }
+
+    private ExifData data() {
+        if (mLazyIndex == null) {
+            return mData;
+        }
+        synchronized (this) {
+            ExifIndex index = mLazyIndex;
+            if (index != null) {
+                ExifData data;
+                try {
+                    data = new ExifReader(this).read(new ByteArrayInputStream(index.getHeader()));
+                } catch (ExifInvalidFormatException e) {
+                    Log.w(TAG, "Invalid exif format : " + e);
+                    data = new ExifData(DEFAULT_BYTE_ORDER);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read exif", e);
+                    data = new ExifData(DEFAULT_BYTE_ORDER);
+                }
+                mData = data;
+                mLazyIndex = null;
+            }
+            return mData;
+        }
     }
 
     /**
@@ -785,7 +852,10 @@ public class ExifInterface {
      * Clears this ExifInterface object's existing exif tags.
      */
     public void clearExif() {
-        mData = new ExifData(DEFAULT_BYTE_ORDER);
+        synchronized (this) {
+            mData = new ExifData(DEFAULT_BYTE_ORDER);
+            mLazyIndex = null;
+        }
     }
 
     /**
@@ -824,6 +894,29 @@ public class ExifInterface {
         s.flush();
     }
 
+    /**
+     * Compresses a region of a YUV image and writes it out with the tags
+     * from this ExifInterface object. The APP1 segment goes out right after
+     * SOI and the encoder output streams through to exifOutStream as it is
+     * produced, the compressed image is never held in memory on its own.
+     *
+     * @param yuv the image to compress.
+     * @param roi the region of the image to compress.
+     * @param quality jpeg quality, 0 to 100.
+     * @param exifOutStream the OutputStream to which the jpeg image with added
+     *            exif tags will be written.
+     * @throws IOException
+     */
+    public void writeExif(YuvImage yuv, Rect roi, int quality, OutputStream exifOutStream)
+            throws IOException {
+        if (yuv == null || roi == null || exifOutStream == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        OutputStream s = getExifWriterStream(exifOutStream);
+        yuv.compressToJpeg(roi, quality, s);
+        s.flush();
+    }
+
     /**
      * Writes the tags from this ExifInterface object into a jpeg stream,
      * removing prior exif tags.
@@ -966,10 +1059,25 @@ public class ExifInterface {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
         ExifOutputStream eos = new ExifOutputStream(outStream, this);
-        eos.setExifData(mData);
+        eos.setExifData(data());
         return eos;
     }
 
+    /**
+     * Returns the tags from this ExifInterface object as a complete APP1
+     * segment, for writers that lay out the jpeg themselves and cannot pass
+     * the image through {@link #getExifWriterStream}.
+     *
+     * @throws IOException if the tags do not fit in a segment.
+     */
+    public byte[] createExifSegment() throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        ExifOutputStream eos = new ExifOutputStream(segment, this);
+        eos.setExifData(data());
+        eos.writeExifSegment(-1);
+        return segment.toByteArray();
+    }
+
     /**
      * Returns an OutputStream object that writes to a file. Exif tags in this
      * ExifInterface object will be added to a jpeg image written to this
@@ -1013,24 +1121,20 @@ public class ExifInterface {
     public boolean rewriteExif(String filename, Collection<ExifTag> tags)
             throws FileNotFoundException, IOException {
         RandomAccessFile file = null;
-        InputStream is = null;
         boolean ret;
         try {
             File temp = new File(filename);
-            is = new BufferedInputStream(new FileInputStream(temp));
 
-            // Parse beginning of APP1 in exif to find size of exif header.
-            ExifParser parser = null;
-            try {
-                parser = ExifParser.parse(is, this);
-            } catch (ExifInvalidFormatException e) {
-                throw new IOException("Invalid exif format : ", e);
+            // Find the end of the exif header.
+            JpegSegmentIndex segments = JpegSegmentIndex.map(temp);
+            if (!segments.isValid()) {
+                throw new IOException("Invalid exif format : not a jpeg");
             }
-            long exifSize = parser.getOffsetToExifEndFromSOF();
-
-            // Free up resources
-            is.close();
-            is = null;
+            int exif = segments.find(JpegHeader.APP1, ExifParser.EXIF_SIGNATURE);
+            if (exif < 0) {
+                return false;
+            }
+            long exifSize = segments.getEnd(exif);
 
             // Open file for memory mapping.
             file = new RandomAccessFile(temp, "rw");
@@ -1048,13 +1152,73 @@ public class ExifInterface {
         } catch (IOException e) {
             closeSilently(file);
             throw e;
-        } finally {
-            closeSilently(is);
         }
         file.close();
         return ret;
     }
 
+    /**
+     * Attempts to rewrite the whole exif segment of a jpeg file in place, for
+     * tags that are new or changed size. The tags are merged with the ones in
+     * the file and the segment is written again within its current length,
+     * the padding reserved by {@link #TAG_PADDING} absorbing the difference.
+     * Only the exif header is read and written, never the image data.
+     *
+     * @param filename a String containing a filepath for a jpeg file.
+     * @param tags tags that will be written into the jpeg file.
+     * @return true if success, false if the tags do not fit in the segment. If
+     *         false, the file is not changed.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public boolean rewriteExifInPadding(String filename, Collection<ExifTag> tags)
+            throws FileNotFoundException, IOException {
+        RandomAccessFile file = null;
+        try {
+            File temp = new File(filename);
+            JpegSegmentIndex segments = JpegSegmentIndex.map(temp);
+            int exif = segments.find(JpegHeader.APP1, ExifParser.EXIF_SIGNATURE);
+            if (exif < 0) {
+                return false;
+            }
+            int exifEnd = segments.getEnd(exif);
+            int tiffStart = segments.getPayloadOffset(exif) + ExifParser.EXIF_SIGNATURE.length;
+            int tiffSize = exifEnd - tiffStart;
+            if (tiffSize <= 0) {
+                return false;
+            }
+
+            file = new RandomAccessFile(temp, "rw");
+            if (file.length() < exifEnd) {
+                throw new IOException("Filesize changed during operation");
+            }
+            ByteBuffer buf = file.getChannel().map(MapMode.READ_WRITE, 0, exifEnd);
+
+            ExifData data;
+            try {
+                data = new ExifReader(this).read(new ByteBufferInputStream(buf));
+            } catch (ExifInvalidFormatException e) {
+                throw new IOException("Invalid exif format : " + e);
+            }
+            for (ExifTag t : tags) {
+                data.addTag(t);
+            }
+
+            // The segment keeps its length, so nothing after it moves.
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(tiffSize + 10);
+            ExifOutputStream eos = new ExifOutputStream(segment, this);
+            eos.setExifData(data);
+            if (!eos.writeExifSegment(tiffSize)) {
+                return false;
+            }
+            buf.position(segments.getOffset(exif));
+            buf.put(segment.toByteArray());
+        } finally {
+            closeSilently(file);
+        }
+        return true;
+    }
+
     /**
      * Attempts to do an in-place rewrite the exif metadata in a ByteBuffer for
      * the given tags. If tags do not exist or do not have the same size as the
@@ -1096,10 +1260,11 @@ public class ExifInterface {
     public void forceRewriteExif(String filename, Collection<ExifTag> tags)
             throws FileNotFoundException,
             IOException {
-        // Attempt in-place write
-        if (!rewriteExif(filename, tags)) {
+        // Attempt in-place write, first over the existing values and then
+        // into the padding of the exif segment.
+        if (!rewriteExif(filename, tags) && !rewriteExifInPadding(filename, tags)) {
             // Fall back to doing a copy
-            ExifData tempData = mData;
+            ExifData tempData = data();
             mData = new ExifData(DEFAULT_BYTE_ORDER);
             FileInputStream is = null;
             ByteArrayOutputStream bytes = null;
@@ -1142,7 +1307,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getAllTags() {
-        return mData.getAllTags();
+        return data().getAllTags();
     }
 
     /**
@@ -1155,7 +1320,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getTagsForTagId(short tagId) {
-        return mData.getAllTagsForTagId(tagId);
+        return data().getAllTagsForTagId(tagId);
     }
 
     /**
@@ -1168,7 +1333,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getTagsForIfdId(int ifdId) {
-        return mData.getAllTagsForIfd(ifdId);
+        return data().getAllTagsForIfd(ifdId);
     }
 
     /**
@@ -1180,7 +1345,7 @@ public class ExifInterface {
         if (!ExifTag.isValidIfd(ifdId)) {
             return null;
         }
-        return mData.getTag(getTrueTagKey(tagId), ifdId);
+        return data().getTag(getTrueTagKey(tagId), ifdId);
     }
 
     /**
@@ -1322,6 +1487,10 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public long[] getTagLongValues(int tagId, int ifdId) {
+        ExifIndex index = mLazyIndex;
+        if (index != null) {
+            return index.getLongValues(ifdId, getTrueTagKey(tagId));
+        }
         ExifTag t = getTag(tagId, ifdId);
         if (t == null) {
             return null;
@@ -1341,6 +1510,18 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public int[] getTagIntValues(int tagId, int ifdId) {
+        ExifIndex index = mLazyIndex;
+        if (index != null) {
+            long[] l = index.getLongValues(ifdId, getTrueTagKey(tagId));
+            if (l == null) {
+                return null;
+            }
+            int[] arr = new int[l.length];
+            for (int i = 0; i < l.length; i++) {
+                arr[i] = (int) l[i]; // Truncates
+            }
+            return arr;
+        }
         ExifTag t = getTag(tagId, ifdId);
         if (t == null) {
             return null;
@@ -1583,7 +1764,7 @@ public class ExifInterface {
      *         exists.
      */
     public ExifTag setTag(ExifTag tag) {
-        return mData.addTag(tag);
+        return data().addTag(tag);
     }
 
     /**
@@ -1606,7 +1787,7 @@ public class ExifInterface {
      * @param ifdId the IFD of the ExifTag to remove.
      */
     public void deleteTag(int tagId, int ifdId) {
-        mData.removeTag(getTrueTagKey(tagId), ifdId);
+        data().removeTag(getTrueTagKey(tagId), ifdId);
     }
 
     /**
@@ -1670,7 +1851,8 @@ public class ExifInterface {
                     }
                 }
             }
-            getTagInfo().put(tagDef, ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
+            getWritableTagInfo().put(tagDef,
+                    ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
             return tagDef;
         }
         return TAG_NULL;
@@ -1739,7 +1921,7 @@ public class ExifInterface {
      * @param tagId a defined tag constant, e.g. {@link #TAG_IMAGE_WIDTH}.
      */
     public void removeTagDefinition(int tagId) {
-        getTagInfo().delete(tagId);
+        getWritableTagInfo().delete(tagId);
     }
 
     /**
@@ -1755,10 +1937,10 @@ public class ExifInterface {
      * @return the thumbnail as a bitmap.
      */
     public Bitmap getThumbnailBitmap() {
-        if (mData.hasCompressedThumbnail()) {
-            byte[] thumb = mData.getCompressedThumbnail();
+        if (data().hasCompressedThumbnail()) {
+            byte[] thumb = data().getCompressedThumbnail();
             return BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
-        } else if (mData.hasUncompressedStrip()) {
+        } else if (data().hasUncompressedStrip()) {
             // TODO: implement uncompressed
         }
         return null;
@@ -1772,9 +1954,9 @@ public class ExifInterface {
      * @return the thumbnail as a byte array.
      */
     public byte[] getThumbnailBytes() {
-        if (mData.hasCompressedThumbnail()) {
-            return mData.getCompressedThumbnail();
-        } else if (mData.hasUncompressedStrip()) {
+        if (data().hasCompressedThumbnail()) {
+            return data().getCompressedThumbnail();
+        } else if (data().hasUncompressedStrip()) {
             // TODO: implement this
         }
         return null;
@@ -1786,7 +1968,7 @@ public class ExifInterface {
      * @return the thumbnail as a byte array.
      */
     public byte[] getThumbnail() {
-        return mData.getCompressedThumbnail();
+        return data().getCompressedThumbnail();
     }
 
     /**
@@ -1795,7 +1977,7 @@ public class ExifInterface {
      * @return true if the thumbnail is compressed.
      */
     public boolean isThumbnailCompressed() {
-        return mData.hasCompressedThumbnail();
+        return data().hasCompressedThumbnail();
     }
 
     /**
@@ -1805,7 +1987,7 @@ public class ExifInterface {
      */
     public boolean hasThumbnail() {
         // TODO: add back in uncompressed strip
-        return mData.hasCompressedThumbnail();
+        return data().hasCompressedThumbnail();
     }
 
     // TODO: uncompressed thumbnail setters
@@ -1818,8 +2000,8 @@ public class ExifInterface {
      * @return true if the thumbnail was set.
      */
     public boolean setCompressedThumbnail(byte[] thumb) {
-        mData.clearThumbnailAndStrips();
-        mData.setCompressedThumbnail(thumb);
+        data().clearThumbnailAndStrips();
+        data().setCompressedThumbnail(thumb);
         return true;
     }
 
@@ -1842,7 +2024,7 @@ public class ExifInterface {
      * Clears the compressed thumbnail if it exists.
      */
     public void removeCompressedThumbnail() {
-        mData.setCompressedThumbnail(null);
+        data().setCompressedThumbnail(null);
     }
 
     // Convenience methods:
@@ -1852,7 +2034,7 @@ public class ExifInterface {
      * standard. Returns null if decoding failed.
      */
     public String getUserComment() {
-        return mData.getUserComment();
+        return data().getUserComment();
     }
 
     /**
@@ -1949,10 +2131,10 @@ public class ExifInterface {
 
     private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
     private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
-    private final DateFormat mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
-    private final DateFormat mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
-    private final Calendar mGPSTimeStampCalendar = Calendar
-            .getInstance(TimeZone.getTimeZone("UTC"));
+    // Created on first use, most instances only ever read a few tags.
+    private DateFormat mDateTimeStampFormat;
+    private DateFormat mGPSDateStampFormat;
+    private Calendar mGPSTimeStampCalendar;
 
     /**
      * Creates, formats, and sets the DateTimeStamp tag for one of:
@@ -1967,6 +2149,9 @@ public class ExifInterface {
     public boolean addDateTimeStampTag(int tagId, long timestamp, TimeZone timezone) {
         if (tagId == TAG_DATE_TIME || tagId == TAG_DATE_TIME_DIGITIZED
                 || tagId == TAG_DATE_TIME_ORIGINAL) {
+            if (mDateTimeStampFormat == null) {
+                mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
+            }
             mDateTimeStampFormat.setTimeZone(timezone);
             ExifTag t = buildTag(tagId, mDateTimeStampFormat.format(timestamp));
             if (t == null) {
@@ -2085,6 +2270,11 @@ public class ExifInterface {
      * @return true if success, false if could not be created or set.
      */
     public boolean addGpsDateTimeStampTag(long timestamp) {
+        if (mGPSDateStampFormat == null) {
+            mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
+            mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            mGPSTimeStampCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        }
         ExifTag t = buildTag(TAG_GPS_DATE_STAMP, mGPSDateStampFormat.format(timestamp));
         if (t == null) {
             return false;
@@ -2154,17 +2344,30 @@ public class ExifInterface {
         }
     }
 
+    // Null until this instance changes a definition, the defaults are shared.
     private SparseIntArray mTagInfo = null;
+    private static SparseIntArray sDefaultTagInfo = null;
+
+    private static synchronized SparseIntArray getDefaultTagInfo() {
+        if (sDefaultTagInfo == null) {
+            sDefaultTagInfo = new SparseIntArray();
+            initTagInfo(sDefaultTagInfo);
+        }
+        return sDefaultTagInfo;
+    }
 
     protected SparseIntArray getTagInfo() {
+        return mTagInfo != null ? mTagInfo : getDefaultTagInfo();
+    }
+
+    private SparseIntArray getWritableTagInfo() {
         if (mTagInfo == null) {
-            mTagInfo = new SparseIntArray();
-            initTagInfo();
+            mTagInfo = getDefaultTagInfo().clone();
         }
         return mTagInfo;
     }
 
-    private void initTagInfo() {
+    private static void initTagInfo(SparseIntArray tagInfo) {
         /**
          * We put tag information in a 4-bytes integer. The first byte a bitmask
          * representing the allowed IFDs of the tag, the second byte is the data
@@ -2176,265 +2379,267 @@ public class ExifInterface {
                 IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1
         };
         int ifdFlags = getFlagsFromAllowedIfds(ifdAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        tagInfo.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_WIDTH,
+        tagInfo.put(ExifInterface.TAG_IMAGE_WIDTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_LENGTH,
+        tagInfo.put(ExifInterface.TAG_IMAGE_LENGTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BITS_PER_SAMPLE,
+        tagInfo.put(ExifInterface.TAG_BITS_PER_SAMPLE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSION,
+        tagInfo.put(ExifInterface.TAG_COMPRESSION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
+        tagInfo.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
+        tagInfo.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
                 | 1);
-        mTagInfo.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
+        tagInfo.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
+        tagInfo.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_X_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_X_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_Y_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_RESOLUTION_UNIT,
+        tagInfo.put(ExifInterface.TAG_RESOLUTION_UNIT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_OFFSETS,
+        tagInfo.put(ExifInterface.TAG_STRIP_OFFSETS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ROWS_PER_STRIP,
+        tagInfo.put(ExifInterface.TAG_ROWS_PER_STRIP,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
+        tagInfo.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_TRANSFER_FUNCTION,
+        tagInfo.put(ExifInterface.TAG_TRANSFER_FUNCTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3 * 256);
-        mTagInfo.put(ExifInterface.TAG_WHITE_POINT,
+        tagInfo.put(ExifInterface.TAG_WHITE_POINT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
+        tagInfo.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
+        tagInfo.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
+        tagInfo.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        tagInfo.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_MODEL,
+        tagInfo.put(ExifInterface.TAG_MODEL,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SOFTWARE,
+        tagInfo.put(ExifInterface.TAG_SOFTWARE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ARTIST,
+        tagInfo.put(ExifInterface.TAG_ARTIST,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_COPYRIGHT,
+        tagInfo.put(ExifInterface.TAG_COPYRIGHT,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_EXIF_IFD,
+        tagInfo.put(ExifInterface.TAG_EXIF_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IFD,
+        tagInfo.put(ExifInterface.TAG_GPS_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
+        tagInfo.put(ExifInterface.TAG_PADDING,
+                ifdFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
         // IFD1 tags
         int[] ifd1AllowedIfds = {
             IfdId.TYPE_IFD_1
         };
         int ifdFlags1 = getFlagsFromAllowedIfds(ifd1AllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+        tagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+        tagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // Exif tags
         int[] exifAllowedIfds = {
             IfdId.TYPE_IFD_EXIF
         };
         int exifFlags = getFlagsFromAllowedIfds(exifAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_EXIF_VERSION,
+        tagInfo.put(ExifInterface.TAG_EXIF_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_FLASHPIX_VERSION,
+        tagInfo.put(ExifInterface.TAG_FLASHPIX_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COLOR_SPACE,
+        tagInfo.put(ExifInterface.TAG_COLOR_SPACE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
+        tagInfo.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
+        tagInfo.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
+        tagInfo.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
+        tagInfo.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAKER_NOTE,
+        tagInfo.put(ExifInterface.TAG_MAKER_NOTE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_USER_COMMENT,
+        tagInfo.put(ExifInterface.TAG_USER_COMMENT,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_RELATED_SOUND_FILE,
+        tagInfo.put(ExifInterface.TAG_RELATED_SOUND_FILE,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 13);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
+        tagInfo.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 33);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_TIME,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_TIME,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_F_NUMBER,
+        tagInfo.put(ExifInterface.TAG_F_NUMBER,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
+        tagInfo.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
+        tagInfo.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_OECF,
+        tagInfo.put(ExifInterface.TAG_OECF,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
+        tagInfo.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_APERTURE_VALUE,
+        tagInfo.put(ExifInterface.TAG_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
+        tagInfo.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
+        tagInfo.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_METERING_MODE,
+        tagInfo.put(ExifInterface.TAG_METERING_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_LIGHT_SOURCE,
+        tagInfo.put(ExifInterface.TAG_LIGHT_SOURCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FLASH,
+        tagInfo.put(ExifInterface.TAG_FLASH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH,
+        tagInfo.put(ExifInterface.TAG_FOCAL_LENGTH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_AREA,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_AREA,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_FLASH_ENERGY,
+        tagInfo.put(ExifInterface.TAG_FLASH_ENERGY,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
+        tagInfo.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_LOCATION,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_LOCATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_INDEX,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_INDEX,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SENSING_METHOD,
+        tagInfo.put(ExifInterface.TAG_SENSING_METHOD,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FILE_SOURCE,
+        tagInfo.put(ExifInterface.TAG_FILE_SOURCE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_TYPE,
+        tagInfo.put(ExifInterface.TAG_SCENE_TYPE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CFA_PATTERN,
+        tagInfo.put(ExifInterface.TAG_CFA_PATTERN,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_CUSTOM_RENDERED,
+        tagInfo.put(ExifInterface.TAG_CUSTOM_RENDERED,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_MODE,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_WHITE_BALANCE,
+        tagInfo.put(ExifInterface.TAG_WHITE_BALANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
+        tagInfo.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
+        tagInfo.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
+        tagInfo.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GAIN_CONTROL,
+        tagInfo.put(ExifInterface.TAG_GAIN_CONTROL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CONTRAST,
+        tagInfo.put(ExifInterface.TAG_CONTRAST,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SATURATION,
+        tagInfo.put(ExifInterface.TAG_SATURATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SHARPNESS,
+        tagInfo.put(ExifInterface.TAG_SHARPNESS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
+        tagInfo.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
+        tagInfo.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
                 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // GPS tag
         int[] gpsAllowedIfds = {
             IfdId.TYPE_IFD_GPS
         };
         int gpsFlags = getFlagsFromAllowedIfds(gpsAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_GPS_VERSION_ID,
+        tagInfo.put(ExifInterface.TAG_GPS_VERSION_ID,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_LATITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_LONGITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_ALTITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TIME_STAMP,
+        tagInfo.put(ExifInterface.TAG_GPS_TIME_STAMP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_SATTELLITES,
+        tagInfo.put(ExifInterface.TAG_GPS_SATTELLITES,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_STATUS,
+        tagInfo.put(ExifInterface.TAG_GPS_STATUS,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_MEASURE_MODE,
+        tagInfo.put(ExifInterface.TAG_GPS_MEASURE_MODE,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DOP,
+        tagInfo.put(ExifInterface.TAG_GPS_DOP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_SPEED_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED,
+        tagInfo.put(ExifInterface.TAG_GPS_SPEED,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_TRACK_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK,
+        tagInfo.put(ExifInterface.TAG_GPS_TRACK,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
+        tagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_MAP_DATUM,
+        tagInfo.put(ExifInterface.TAG_GPS_MAP_DATUM,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
+        tagInfo.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
+        tagInfo.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_DATE_STAMP,
+        tagInfo.put(ExifInterface.TAG_GPS_DATE_STAMP,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 11);
-        mTagInfo.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
+        tagInfo.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 11);
         // Interoperability tag
         int[] interopAllowedIfds = {
             IfdId.TYPE_IFD_INTEROPERABILITY
         };
         int interopFlags = getFlagsFromAllowedIfds(interopAllowedIfds) << 24;
-        mTagInfo.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16
+        tagInfo.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16
                 | ExifTag.SIZE_UNDEFINED);
     }
 
@@ -18,6 +18,8 @@ package com.android.camera.exif;
 
 import android.util.Log;
 
+import com.android.camera.util.PersistUtil;
+
 import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -81,6 +83,10 @@ class ExifOutputStream extends FilterOutputStream {
     private byte[] mSingleByteArray = new byte[1];
     private ByteBuffer mBuffer = ByteBuffer.allocate(4);
     private final ExifInterface mInterface;
+    // Bytes of padding to reserve, or the exact size the exif data has to
+    // take when mFitToSize is set.
+    private int mPaddingSize = PersistUtil.getExifPaddingSize();
+    private int mFitToSize = -1;
 
     private int mSize = 0;
 
@@ -89,6 +95,32 @@ class ExifOutputStream extends FilterOutputStream {
         mInterface = iRef;
     }
 
+    /**
+     * Writes only the APP1 segment, with the exif data taking exactly
+     * exifSize bytes from the TIFF header on. The padding tag absorbs the
+     * difference.
+     *
+     * @return false if the exif data does not fit, nothing is written then.
+     */
+    protected boolean writeExifSegment(int exifSize) throws IOException {
+        mFitToSize = exifSize;
+        try {
+            writeExifData();
+        } catch (ExifSizeException e) {
+            return false;
+        } finally {
+            mFitToSize = -1;
+        }
+        flush();
+        return true;
+    }
+
+    private static class ExifSizeException extends IOException {
+        ExifSizeException(String message) {
+            super(message);
+        }
+    }
+
     /**
      * Sets the ExifData to be written into the JPEG file. Should be called
      * before writing image data.
@@ -223,7 +255,15 @@ class ExifOutputStream extends FilterOutputStream {
         }
         ArrayList<ExifTag> nullTags = stripNullValueTags(mExifData);
         createRequiredIfdAndTag();
-        int exifSize = calculateAllOffset();
+        int exifSize;
+        try {
+            exifSize = addPadding();
+        } catch (ExifSizeException e) {
+            for (ExifTag t : nullTags) {
+                mExifData.addTag(t);
+            }
+            throw e;
+        }
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
@@ -243,6 +283,8 @@ class ExifOutputStream extends FilterOutputStream {
         dataOutputStream.writeInt(8);
         writeAllTags(dataOutputStream);
         writeThumbnail(dataOutputStream);
+        mExifData.getIfdData(IfdId.TYPE_IFD_0).removeTag(
+                ExifInterface.getTrueTagKey(ExifInterface.TAG_PADDING));
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
@@ -289,9 +331,11 @@ class ExifOutputStream extends FilterOutputStream {
 
     private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
+        int count = ifd.getTagCount();
+        dataOutputStream.writeShort((short) count);
+        // IfdData keeps the tags in ascending ID order, as the standard asks.
+        for (int t = 0; t < count; t++) {
+            ExifTag tag = ifd.getTagAt(t);
             dataOutputStream.writeShort(tag.getTagId());
             dataOutputStream.writeShort(tag.getDataType());
             dataOutputStream.writeInt(tag.getComponentCount());
@@ -308,7 +352,8 @@ class ExifOutputStream extends FilterOutputStream {
             }
         }
         dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
+        for (int t = 0; t < count; t++) {
+            ExifTag tag = ifd.getTagAt(t);
             if (tag.getDataSize() > 4) {
                 ExifOutputStream.writeTagValue(tag, dataOutputStream);
             }
@@ -316,9 +361,10 @@ class ExifOutputStream extends FilterOutputStream {
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
-        offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
+        int count = ifd.getTagCount();
+        offset += 2 + count * TAG_SIZE + 4;
+        for (int i = 0; i < count; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
                 tag.setOffset(offset);
                 offset += tag.getDataSize();
@@ -440,6 +486,41 @@ class ExifOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Puts the padding tag into IFD0 so that later edits can grow in place,
+     * and returns the size of the exif data with it.
+     */
+    private int addPadding() throws IOException {
+        IfdData ifd0 = mExifData.getIfdData(IfdId.TYPE_IFD_0);
+        short paddingId = ExifInterface.getTrueTagKey(ExifInterface.TAG_PADDING);
+        ifd0.removeTag(paddingId);
+        int exifSize = calculateAllOffset();
+        int padding;
+        if (mFitToSize >= 0) {
+            // A value of 4 bytes or less sits in the entry itself.
+            int slack = mFitToSize - exifSize;
+            if (slack == 0) {
+                return exifSize;
+            } else if (slack == TAG_SIZE) {
+                padding = 4;
+            } else if (slack > TAG_SIZE + 4) {
+                padding = slack - TAG_SIZE;
+            } else {
+                throw new ExifSizeException("Exif data does not fit in " + mFitToSize);
+            }
+        } else {
+            padding = Math.min(mPaddingSize, MAX_EXIF_SIZE - 8 - exifSize - TAG_SIZE);
+            if (padding <= 4) {
+                return exifSize;
+            }
+        }
+        ExifTag tag = new ExifTag(paddingId, ExifTag.TYPE_UNDEFINED, padding,
+                IfdId.TYPE_IFD_0, true);
+        tag.setValue(new byte[padding]);
+        ifd0.setTag(tag);
+        return calculateAllOffset();
+    }
+
     private int calculateAllOffset() {
         int offset = TIFF_HEADER_SIZE;
         IfdData ifd0 = mExifData.getIfdData(IfdId.TYPE_IFD_0);
@@ -130,6 +130,8 @@ class ExifParser {
 
     protected static final int EXIF_HEADER = 0x45786966; // EXIF header "Exif"
     protected static final short EXIF_HEADER_TAIL = (short) 0x0000; // EXIF header in APP1
+    // "Exif\0\0", the start of the APP1 payload holding the exif header.
+    static final byte[] EXIF_SIGNATURE = { 0x45, 0x78, 0x69, 0x66, 0x00, 0x00 };
 
     // TIFF header
     protected static final short LITTLE_ENDIAN_TAG = (short) 0x4949; // "II"
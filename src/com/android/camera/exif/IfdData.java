@@ -16,19 +16,26 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class stores all the tags in an IFD.
  *
+ * Tags are kept ordered by their unsigned tag ID, the order the exif
+ * standard requires them to be written in, in a short array searched
+ * with binary search, so lookups do not box the ID and writers can walk
+ * the tags in place with {@link #getTagAt}.
+ *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private static final int INITIAL_CAPACITY = 8;
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mExifTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -55,7 +62,37 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mExifTags, mTagCount);
+    }
+
+    /**
+     * Gets the tag at a position in ascending tag ID order, from 0 to
+     * {@link #getTagCount} - 1.
+     */
+    protected ExifTag getTagAt(int index) {
+        return mExifTags[index];
+    }
+
+    /**
+     * Returns the position of the tag ID, or -(insertion point) - 1 if it is
+     * not in this IFD.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     /**
@@ -76,7 +113,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index < 0 ? null : mExifTags[index];
     }
 
     /**
@@ -84,25 +122,48 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag previous = mExifTags[index];
+            mExifTags[index] = tag;
+            return previous;
+        }
+        index = -index - 1;
+        if (mTagCount == mTagIds.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mExifTags = Arrays.copyOf(mExifTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mExifTags, index, mExifTags, index + 1, mTagCount - index);
+        mTagIds[index] = tag.getTagId();
+        mExifTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mExifTags, index + 1, mExifTags, index, mTagCount - index);
+        mExifTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
     }
 
     /**
@@ -134,12 +195,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0; i < data.getTagCount(); i++) {
+                    ExifTag tag = data.getTagAt(i);
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
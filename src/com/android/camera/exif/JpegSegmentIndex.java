@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.android.camera.util.CameraUtil;
+
+/**
+ * Index of the marker segments of a jpeg, from SOI up to the start of the
+ * scan data.
+ *
+ * The markers are walked once and only the marker, offset and length of
+ * each segment are kept. Segment payloads are handed out as views of the
+ * source, so the Exif, XMP and MPO layers can all look up their segment in
+ * the same index without copying the image. Writers splice new segments
+ * in by copying ranges of the source around them.
+ */
+public class JpegSegmentIndex {
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBuffer mSource;
+    private short[] mMarkers = new short[16];
+    private int[] mOffsets = new int[16];
+    private int[] mLengths = new int[16];
+    private int mCount;
+    private boolean mValid;
+    private int mScanOffset = -1;
+
+    private JpegSegmentIndex(ByteBuffer source) {
+        mSource = source.slice().order(ByteOrder.BIG_ENDIAN);
+        scan();
+    }
+
+    public static JpegSegmentIndex wrap(byte[] jpeg) {
+        return new JpegSegmentIndex(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Indexes the remaining bytes of the buffer, its position is left as is.
+     * Offsets are relative to the position.
+     */
+    public static JpegSegmentIndex wrap(ByteBuffer jpeg) {
+        return new JpegSegmentIndex(jpeg);
+    }
+
+    /**
+     * Memory maps a jpeg file, only the pages holding the markers and the
+     * payloads that are read get loaded.
+     */
+    public static JpegSegmentIndex map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new JpegSegmentIndex(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            CameraUtil.closeSilently(in);
+        }
+    }
+
+    /**
+     * Whether the source starts with an SOI marker.
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * The size of the source in bytes.
+     */
+    public int size() {
+        return mSource.limit();
+    }
+
+    public int getSegmentCount() {
+        return mCount;
+    }
+
+    public short getMarker(int index) {
+        checkIndex(index);
+        return mMarkers[index];
+    }
+
+    /**
+     * The offset of the segment's marker.
+     */
+    public int getOffset(int index) {
+        checkIndex(index);
+        return mOffsets[index];
+    }
+
+    /**
+     * The offset just past the segment, where the next marker starts.
+     */
+    public int getEnd(int index) {
+        checkIndex(index);
+        return Math.min(mOffsets[index] + 2 + mLengths[index], mSource.limit());
+    }
+
+    /**
+     * The offset of the segment's payload, past the marker and the two
+     * length bytes.
+     */
+    public int getPayloadOffset(int index) {
+        checkIndex(index);
+        return mLengths[index] == 0 ? mOffsets[index] + 2 : mOffsets[index] + 4;
+    }
+
+    public int getPayloadLength(int index) {
+        return getEnd(index) - getPayloadOffset(index);
+    }
+
+    /**
+     * Returns a read only view of the segment's payload. The view shares the
+     * source memory, nothing is copied.
+     */
+    public ByteBuffer getPayload(int index) {
+        return view(getPayloadOffset(index), getEnd(index));
+    }
+
+    /**
+     * The offset of the SOS marker, or -1 if the markers ended before it.
+     */
+    public int getScanOffset() {
+        return mScanOffset;
+    }
+
+    /**
+     * Returns the first segment at or after from with the given marker whose
+     * payload starts with the signature, or -1.
+     */
+    public int find(short marker, byte[] signature, int from) {
+        for (int i = Math.max(from, 0); i < mCount; i++) {
+            if (mMarkers[i] == marker && startsWith(i, signature)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int find(short marker, byte[] signature) {
+        return find(marker, signature, 0);
+    }
+
+    /**
+     * Whether the payload of the segment starts with the signature.
+     */
+    public boolean startsWith(int index, byte[] signature) {
+        int payload = getPayloadOffset(index);
+        if (getEnd(index) - payload < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (mSource.get(payload + i) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a read only view of the source from start to end.
+     */
+    public ByteBuffer view(int start, int end) {
+        ByteBuffer view = mSource.duplicate();
+        view.limit(end);
+        view.position(start);
+        return view.slice().order(ByteOrder.BIG_ENDIAN).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the source from start to end to the stream.
+     */
+    public void writeTo(OutputStream out, int start, int end) throws IOException {
+        if (start < 0 || end > mSource.limit() || start > end) {
+            throw new IndexOutOfBoundsException(start + ".." + end + " of " + mSource.limit());
+        }
+        if (mSource.hasArray()) {
+            out.write(mSource.array(), mSource.arrayOffset() + start, end - start);
+            return;
+        }
+        ByteBuffer view = mSource.duplicate();
+        view.limit(end);
+        view.position(start);
+        byte[] chunk = new byte[Math.min(COPY_CHUNK_SIZE, end - start)];
+        while (view.hasRemaining()) {
+            int n = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("segment " + index + " of " + mCount);
+        }
+    }
+
+    private void add(short marker, int offset, int length) {
+        if (mCount == mMarkers.length) {
+            mMarkers = Arrays.copyOf(mMarkers, mCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+        }
+        mMarkers[mCount] = marker;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mCount++;
+    }
+
+    private static boolean isStandalone(short marker) {
+        // TEM and RST0 to RST7 carry no length.
+        return marker == (short) 0xFF01
+                || (marker >= (short) 0xFFD0 && marker <= (short) 0xFFD7);
+    }
+
+    private void scan() {
+        int limit = mSource.limit();
+        if (limit < 2 || mSource.getShort(0) != JpegHeader.SOI) {
+            return;
+        }
+        mValid = true;
+        int pos = 2;
+        while (pos + 2 <= limit) {
+            if (mSource.get(pos) != (byte) 0xFF) {
+                return;
+            }
+            // Skip fill bytes.
+            while (pos + 2 < limit && mSource.get(pos + 1) == (byte) 0xFF) {
+                pos++;
+            }
+            short marker = mSource.getShort(pos);
+            if (marker == JpegHeader.SOS) {
+                mScanOffset = pos;
+                return;
+            }
+            if (marker == JpegHeader.EOI) {
+                return;
+            }
+            if (isStandalone(marker)) {
+                add(marker, pos, 0);
+                pos += 2;
+                continue;
+            }
+            if (pos + 4 > limit) {
+                return;
+            }
+            int length = mSource.getShort(pos + 2) & 0xffff;
+            if (length < 2) {
+                return;
+            }
+            add(marker, pos, length);
+            pos += 2 + length;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins horizontal strips, each encoded as its own baseline jpeg, into one
+ * jpeg written straight to a stream.
+ *
+ * A restart interval of one strip is declared, so the scan data of each
+ * strip becomes one restart interval of the joined image: the strips are
+ * copied as they are, separated by RST markers. This needs all strips to
+ * come from the same encoder settings, which is checked by comparing their
+ * tables, and every strip but the last to be a whole number of MCU rows.
+ * Only one strip is held at a time.
+ */
+public class JpegStripWriter {
+    /** Strip heights have to be a multiple of this, the tallest MCU. */
+    public static final int MCU_SIZE = 16;
+
+    private static final short DRI = (short) 0xFFDD;
+    private static final short RST0 = (short) 0xFFD0;
+    private static final int MAX_RESTART_INTERVAL = 0xFFFF;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStripHeight;
+    private final List<byte[]> mSegments = new ArrayList<byte[]>();
+
+    // Everything from SOI to the end of SOS of the first strip other than
+    // APPn and SOF, strips that differ in it cannot be joined.
+    private byte[] mTables;
+    private int mRows;
+    private int mStrips;
+
+    /**
+     * @param out the stream the joined jpeg is written to, it is not closed.
+     * @param stripHeight the height of every strip but the last.
+     */
+    public JpegStripWriter(OutputStream out, int width, int height, int stripHeight) {
+        if (width <= 0 || height <= 0 || stripHeight <= 0 || stripHeight % MCU_SIZE != 0) {
+            throw new IllegalArgumentException(
+                    "Bad strip layout " + width + "x" + height + " / " + stripHeight);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mStripHeight = stripHeight;
+    }
+
+    /**
+     * The tallest strip whose MCUs still fit in one restart interval, or 0
+     * if the image is too wide for a single MCU row.
+     */
+    public static int getMaxStripHeight(int width) {
+        int mcusPerRow = (width + MCU_SIZE - 1) / MCU_SIZE;
+        return MAX_RESTART_INTERVAL / mcusPerRow * MCU_SIZE;
+    }
+
+    /**
+     * Adds a marker segment, such as an APP1 with Exif or XMP, to write right
+     * after SOI. Has to be called before the first strip.
+     *
+     * @param segment the whole segment, starting with its marker.
+     */
+    public void addSegment(byte[] segment) {
+        if (mStrips > 0) {
+            throw new IllegalStateException("Segments have to come before the strips");
+        }
+        mSegments.add(segment);
+    }
+
+    /**
+     * Appends the next strip.
+     *
+     * @param jpeg a complete jpeg of the strip, of the full width and of the
+     *            strip height, or what is left of the image for the last.
+     * @throws IOException if the strip cannot be joined with the others, the
+     *             output is unusable then.
+     */
+    public void writeStrip(byte[] jpeg, int length) throws IOException {
+        int rows = Math.min(mStripHeight, mHeight - mRows);
+        if (rows <= 0) {
+            throw new IOException("All " + mHeight + " rows were already written");
+        }
+        JpegSegmentIndex segments = JpegSegmentIndex.wrap(ByteBuffer.wrap(jpeg, 0, length));
+        int sos = segments.getScanOffset();
+        if (!segments.isValid() || sos < 0 || length < sos + 4) {
+            throw new IOException("Strip " + mStrips + " is not a jpeg");
+        }
+        ByteBuffer source = ByteBuffer.wrap(jpeg, 0, length);
+        int scan = sos + 2 + (source.getShort(sos + 2) & 0xffff);
+        if (scan > length - 2 || source.getShort(length - 2) != JpegHeader.EOI) {
+            throw new IOException("Strip " + mStrips + " is truncated");
+        }
+
+        int sof = -1;
+        ByteArrayOutputStream tables = new ByteArrayOutputStream(1024);
+        for (int i = 0; i < segments.getSegmentCount(); i++) {
+            short marker = segments.getMarker(i);
+            if (JpegHeader.isSofMarker(marker)) {
+                sof = i;
+                // Everything but the dimensions, which differ for the last.
+                segments.writeTo(tables, segments.getPayloadOffset(i) + 5, segments.getEnd(i));
+            } else if (marker == DRI) {
+                throw new IOException("Strips must not use restart markers");
+            } else if ((marker & 0xfff0) != (JpegHeader.APP0 & 0xfff0)) {
+                segments.writeTo(tables, segments.getOffset(i), segments.getEnd(i));
+            }
+        }
+        segments.writeTo(tables, sos, scan);
+        if (sof < 0 || segments.getMarker(sof) != JpegHeader.SOF0) {
+            throw new IOException("Strip " + mStrips + " is not a baseline jpeg");
+        }
+        int sofPayload = segments.getPayloadOffset(sof);
+        int stripHeight = source.getShort(sofPayload + 1) & 0xffff;
+        int stripWidth = source.getShort(sofPayload + 3) & 0xffff;
+        if (stripWidth != mWidth || stripHeight != rows) {
+            throw new IOException("Strip " + mStrips + " is " + stripWidth + "x" + stripHeight
+                    + ", expected " + mWidth + "x" + rows);
+        }
+
+        if (mStrips == 0) {
+            int interval = getRestartInterval(source, segments.getPayloadOffset(sof));
+            mTables = tables.toByteArray();
+            writeHeader(segments, sof, interval, scan);
+        } else {
+            byte[] current = tables.toByteArray();
+            if (!Arrays.equals(mTables, current)) {
+                throw new IOException("Strip " + mStrips + " was encoded differently");
+            }
+            writeMarker((short) (RST0 + (mStrips - 1) % 8));
+        }
+        mOut.write(jpeg, scan, length - 2 - scan);
+        mRows += rows;
+        mStrips++;
+    }
+
+    /**
+     * Ends the image once all rows were written.
+     */
+    public void finish() throws IOException {
+        if (mRows != mHeight) {
+            throw new IOException("Only " + mRows + " of " + mHeight + " rows were written");
+        }
+        writeMarker(JpegHeader.EOI);
+        mOut.flush();
+    }
+
+    /**
+     * The number of MCUs in a strip, from the sampling factors of the frame
+     * header whose payload starts at sof.
+     */
+    private int getRestartInterval(ByteBuffer source, int sof) throws IOException {
+        int components = source.get(sof + 5) & 0xff;
+        int maxH = 1;
+        int maxV = 1;
+        for (int c = 0; c < components; c++) {
+            int sampling = source.get(sof + 7 + c * 3) & 0xff;
+            maxH = Math.max(maxH, sampling >> 4);
+            maxV = Math.max(maxV, sampling & 0xf);
+        }
+        int mcuWidth = 8 * maxH;
+        int mcuHeight = 8 * maxV;
+        if (mStripHeight % mcuHeight != 0) {
+            throw new IOException("Strip height " + mStripHeight + " is not a multiple of the "
+                    + mcuHeight + " rows of an MCU");
+        }
+        int interval = (mWidth + mcuWidth - 1) / mcuWidth * (mStripHeight / mcuHeight);
+        if (interval > MAX_RESTART_INTERVAL) {
+            throw new IOException("A strip has too many MCUs for a restart interval: " + interval);
+        }
+        return interval;
+    }
+
+    private void writeHeader(JpegSegmentIndex segments, int sof, int interval, int scan)
+            throws IOException {
+        writeMarker(JpegHeader.SOI);
+        for (byte[] segment : mSegments) {
+            mOut.write(segment);
+        }
+
+        for (int i = 0; i < segments.getSegmentCount(); i++) {
+            short marker = segments.getMarker(i);
+            if ((marker & 0xfff0) == (JpegHeader.APP0 & 0xfff0)) {
+                continue;
+            }
+            if (i == sof) {
+                // The frame header with the height of the whole image.
+                int start = segments.getOffset(i);
+                int height = segments.getPayloadOffset(i) + 1;
+                segments.writeTo(mOut, start, height);
+                mOut.write(mHeight >> 8);
+                mOut.write(mHeight);
+                segments.writeTo(mOut, height + 2, segments.getEnd(i));
+            } else {
+                segments.writeTo(mOut, segments.getOffset(i), segments.getEnd(i));
+            }
+        }
+        writeMarker(DRI);
+        mOut.write(0);
+        mOut.write(4);
+        mOut.write(interval >> 8);
+        mOut.write(interval);
+        segments.writeTo(mOut, segments.getScanOffset(), scan);
+    }
+
+    private void writeMarker(short marker) throws IOException {
+        mOut.write(marker >> 8);
+        mOut.write(marker);
+    }
+}
@@ -55,10 +55,10 @@ import com.android.camera.ui.RotateTextToast;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
+    private static final String TAG = "FrameProcessor";
 
     private ImageReader mInputImageReader;
     private Allocation mInputAllocation;
@@ -74,7 +74,9 @@ public class FrameProcessor {
     private Handler mListeningHandler;
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
+    // Replaced by init() while the image thread may be publishing, readers
+    // take one reference and use only that.
+    private volatile PreviewFrameRing mFrameRing;
     private RenderScript mRs;
     private Activity mActivity;
     private Size mSize;
@@ -131,8 +133,23 @@ public class FrameProcessor {
                 mListeningHandler = new Handler(mListeningThread.getLooper());
             }
 
-            mListeningTask = new ListeningTask();
             mTask = new ProcessingTask();
+            if (mFrameRing != null) {
+                mFrameRing.close();
+            }
+            // Frame listeners may lag behind and only ever need the newest
+            // frame, the filtered preview always shows the newest one.
+            mFrameRing = new PreviewFrameRing();
+            for (ImageFilter filter : mPreviewFilters) {
+                if (filter.isFrameListener()) {
+                    mFrameRing.subscribe(filter.getStringName(), PreviewFrameRing.POLICY_LATEST,
+                            1, new ListeningConsumer(filter), mListeningHandler);
+                }
+            }
+            if (isFrameFilterEnabled()) {
+                mFrameRing.subscribe("Output", PreviewFrameRing.POLICY_LATEST, 1,
+                        mTask, mOutingHandler);
+            }
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
             mIsAllocationEverUsed = false;
         }
@@ -254,6 +271,16 @@ public class FrameProcessor {
             } catch (InterruptedException e) {
             }
         }
+        PreviewFrameRing ring = mFrameRing;
+        if (ring != null) {
+            if (ImageFilter.DEBUG) {
+                for (PreviewFrameRing.Subscription s : ring.getSubscriptions()) {
+                    Log.d(TAG, s.toString());
+                }
+                Log.d(TAG, "Producer dropped " + ring.getProducerDroppedCount());
+            }
+            ring.close();
+        }
         for (ImageFilter filter : mPreviewFilters) {
             filter.deinit();
         }
@@ -297,6 +324,15 @@ public class FrameProcessor {
         return surfaces;
     }
 
+    /** Consumers of the preview frames, with their lag and drop counters. */
+    public List<PreviewFrameRing.Subscription> getFrameSubscriptions() {
+        PreviewFrameRing ring = mFrameRing;
+        if (ring == null) {
+            return new ArrayList<PreviewFrameRing.Subscription>();
+        }
+        return ring.getSubscriptions();
+    }
+
     public boolean isFrameFilterEnabled() {
         if (mFinalFilters.size() == 0) {
             return false;
@@ -346,12 +382,16 @@ public class FrameProcessor {
         }
     }
 
-    class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
-        byte[] yvuBytes = null;
-        int ySize;
-        int stride;
-        int height;
-        int width;
+    private static Boolean isPreviewParam(ImageFilter filter) {
+        return filter instanceof BeautificationFilter ? Boolean.FALSE : Boolean.TRUE;
+    }
+
+    class ProcessingTask implements ImageReader.OnImageAvailableListener,
+            PreviewFrameRing.Consumer {
+        // Geometry the in-place filters were last initialized with.
+        int mFilterWidth;
+        int mFilterHeight;
+        int mFilterStride;
 
         public ProcessingTask() {
         }
@@ -362,70 +402,76 @@ public class FrameProcessor {
                 if (mOutputAllocation == null) {
                     return;
                 }
-                try {
-                    Image image = reader.acquireLatestImage();
-                    if (image == null) {
-                        return;
-                    }
-                    if (!mIsActive) {
-                        image.close();
-                        return;
-                    }
-                    mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            if (filter instanceof BeautificationFilter) {
-                                filter.addImage(bY, bVU, 0, new Boolean(false));
-                            } else {
-                                filter.addImage(bY, bVU, 0, new Boolean(true));
-                            }
-                            needToFeedSurface = true;
+                mIsAllocationEverUsed = true;
+            }
+            Image image;
+            try {
+                image = reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            try {
+                if (!mIsActive) {
+                    return;
+                }
+                ByteBuffer bY = image.getPlanes()[0].getBuffer();
+                ByteBuffer bVU = image.getPlanes()[2].getBuffer();
+                int stride = image.getPlanes()[0].getRowStride();
+                int width = mSize.getWidth();
+                int height = mSize.getHeight();
+                //Start processing yvu buf
+                boolean reinit = width != mFilterWidth || height != mFilterHeight
+                        || stride != mFilterStride;
+                for (ImageFilter filter : mPreviewFilters) {
+                    if (!filter.isFrameListener()) {
+                        if (reinit) {
+                            filter.init(width, height, stride, stride);
                         }
+                        filter.addImage(bY, bVU, 0, isPreviewParam(filter));
                         bY.rewind();
                         bVU.rewind();
                     }
-                    if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
-                        mIsFirstIn = false;
-                        mModule.startMediaRecording();
-                    }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
-                    }
-                    image.close();
-                } catch (IllegalStateException e) {
                 }
+                mFilterWidth = width;
+                mFilterHeight = height;
+                mFilterStride = stride;
+                if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
+                    mIsFirstIn = false;
+                    mModule.startMediaRecording();
+                }
+                //End processing yvu buf
+                PreviewFrameRing ring = mFrameRing;
+                if (ring == null || !ring.hasSubscriptions()) {
+                    return;
+                }
+                PreviewFrameRing.Frame frame = ring.obtain(width, height, stride);
+                if (frame == null) {
+                    return;
+                }
+                byte[] data = frame.getData();
+                bY.get(data, 0, bY.remaining());
+                bVU.get(data, stride * height, bVU.remaining());
+                ring.publish(frame, image.getTimestamp());
+            } catch (IllegalStateException e) {
+            } finally {
+                image.close();
             }
         }
 
         @Override
-        public void run() {
+        public void onFrame(PreviewFrameRing.Frame frame) {
             synchronized (mAllocationLock) {
-                if (!mIsActive) {
+                if (!mIsActive || mOutputAllocation == null) {
                     return;
                 }
                 if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
+                    createAllocation(frame.getStride(), frame.getHeight(),
+                            frame.getStride() - frame.getWidth());
                 }
-                mInputAllocation.copyFrom(yvuBytes);
+                mInputAllocation.copyFrom(frame.getData());
                 mOutputAllocation.ioSend();
                 if (mVideoOutputAllocation != null) {
                     mVideoOutputAllocation.copyFrom(mOutputAllocation);
@@ -435,60 +481,29 @@ public class FrameProcessor {
         }
     }
 
-    class ListeningTask implements Runnable {
-
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
+    class ListeningConsumer implements PreviewFrameRing.Consumer {
+        private final ImageFilter mFilter;
+        private int mWidth;
+        private int mHeight;
+        private int mStride;
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
-            if (!mIsActive) {
-                return false;
-            }
-            if (!mMutureLock.tryAcquire()) {
-                return false;
-            }
+        ListeningConsumer(ImageFilter filter) {
             mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
-            }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
-            return true;
         }
 
         @Override
-        public void run() {
-            try {
-                if (!mIsActive) {
-                    return;
-                }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
+        public void onFrame(PreviewFrameRing.Frame frame) {
+            if (!mIsActive) {
+                return;
+            }
+            if (frame.getWidth() != mWidth || frame.getHeight() != mHeight
+                    || frame.getStride() != mStride) {
+                mWidth = frame.getWidth();
+                mHeight = frame.getHeight();
+                mStride = frame.getStride();
                 mFilter.init(mWidth, mHeight, mStride, mStride);
-                if (mFilter instanceof BeautificationFilter) {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(false));
-                } else {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
-                }
-                mMutureLock.release();
-            } catch (InterruptedException e) {
             }
+            mFilter.addImage(frame.getY(), frame.getVU(), 0, isPreviewParam(mFilter));
         }
     }
 }
-
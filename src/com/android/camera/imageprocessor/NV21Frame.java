@@ -0,0 +1,427 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NV21 image in a ByteBuffer, with separate strides for the Y and the
+ * interleaved VU plane, and pure Java versions of the image_util
+ * operations. The work is split in row bands on a {@link TileExecutor},
+ * so it uses every core and runs anywhere jni_imageutil is missing.
+ *
+ * Heap buffers are worked on in place. Direct buffers are copied to the
+ * heap first and, for in-place operations, copied back afterwards.
+ * Width and height have to be even.
+ */
+public class NV21Frame {
+    // Bands smaller than this cost more to schedule than they save.
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final ByteBuffer mBuffer;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStrideY;
+    private final int mStrideVU;
+    private final int mVUOffset;
+    private TileExecutor mExecutor = TileExecutor.getDefault();
+
+    public NV21Frame(ByteBuffer buffer, int width, int height, int strideY, int strideVU) {
+        this(buffer, width, height, strideY, strideVU, strideY * height);
+    }
+
+    /**
+     * @param vuOffset index of the VU plane in the buffer, the Y plane
+     *        starts at index 0.
+     */
+    public NV21Frame(ByteBuffer buffer, int width, int height, int strideY, int strideVU,
+            int vuOffset) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        if (strideY < width || strideVU < width
+                || vuOffset < strideY * (height - 1) + width
+                || buffer.capacity() < vuOffset + strideVU * (height / 2 - 1) + width) {
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height);
+        }
+        mBuffer = buffer;
+        mWidth = width;
+        mHeight = height;
+        mStrideY = strideY;
+        mStrideVU = strideVU;
+        mVUOffset = vuOffset;
+    }
+
+    /** Returns a frame on a new heap buffer without row padding. */
+    public static NV21Frame allocate(int width, int height) {
+        return new NV21Frame(ByteBuffer.allocate(width * height * 3 / 2), width, height,
+                width, width);
+    }
+
+    public static NV21Frame wrap(byte[] data, int width, int height, int stride) {
+        return new NV21Frame(ByteBuffer.wrap(data), width, height, stride, stride);
+    }
+
+    public NV21Frame setExecutor(TileExecutor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStrideY() {
+        return mStrideY;
+    }
+
+    public int getStrideVU() {
+        return mStrideVU;
+    }
+
+    public int getVUOffset() {
+        return mVUOffset;
+    }
+
+    private byte[] pixels() {
+        if (mBuffer.hasArray()) {
+            return mBuffer.array();
+        }
+        byte[] copy = new byte[mBuffer.capacity()];
+        ByteBuffer src = mBuffer.duplicate();
+        src.clear();
+        src.get(copy);
+        return copy;
+    }
+
+    private int base() {
+        return mBuffer.hasArray() ? mBuffer.arrayOffset() : 0;
+    }
+
+    private void commit(byte[] pixels) {
+        if (!mBuffer.hasArray()) {
+            ByteBuffer dst = mBuffer.duplicate();
+            dst.clear();
+            dst.put(pixels);
+        }
+    }
+
+    private NV21Frame newFrame(int width, int height) {
+        return allocate(width, height).setExecutor(mExecutor);
+    }
+
+    /**
+     * Mirrors the image in place, upside down when vertical, else left to
+     * right. Same result as nativeFlipNV21.
+     */
+    public void flip(final boolean vertical) {
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int vu0 = y0 + mVUOffset;
+        // Vertical flips swap row pairs, so only the top half is walked.
+        int rows = vertical ? mHeight / 2 : mHeight;
+        mExecutor.forEachBand(rows, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                if (vertical) {
+                    byte[] tmp = new byte[mWidth];
+                    for (int y = startRow; y < endRow; y++) {
+                        swapRows(a, y0 + y * mStrideY, y0 + (mHeight - 1 - y) * mStrideY,
+                                tmp);
+                        if ((y & 1) == 0) {
+                            int r = y / 2;
+                            swapRows(a, vu0 + r * mStrideVU,
+                                    vu0 + (mHeight / 2 - 1 - r) * mStrideVU, tmp);
+                        }
+                    }
+                    return;
+                }
+                for (int y = startRow; y < endRow; y++) {
+                    int p = y0 + y * mStrideY;
+                    for (int l = p, r = p + mWidth - 1; l < r; l++, r--) {
+                        byte t = a[l];
+                        a[l] = a[r];
+                        a[r] = t;
+                    }
+                    if ((y & 1) == 0) {
+                        p = vu0 + y / 2 * mStrideVU;
+                        for (int l = p, r = p + mWidth - 2; l < r; l += 2, r -= 2) {
+                            byte v = a[l];
+                            byte u = a[l + 1];
+                            a[l] = a[r];
+                            a[l + 1] = a[r + 1];
+                            a[r] = v;
+                            a[r + 1] = u;
+                        }
+                    }
+                }
+            }
+        });
+        commit(a);
+    }
+
+    private void swapRows(byte[] a, int top, int bottom, byte[] tmp) {
+        if (top == bottom) {
+            return;
+        }
+        System.arraycopy(a, top, tmp, 0, mWidth);
+        System.arraycopy(a, bottom, a, top, mWidth);
+        System.arraycopy(tmp, 0, a, bottom, mWidth);
+    }
+
+    /**
+     * Returns the image turned clockwise by 90, 180 or 270 degrees in a new
+     * frame without row padding, like nativeRotateNV21.
+     */
+    public NV21Frame rotate(final int degrees) {
+        if (degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported rotation " + degrees);
+        }
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int vu0 = y0 + mVUOffset;
+        final int w = mWidth;
+        final int h = mHeight;
+        final NV21Frame out = degrees == 180 ? newFrame(w, h) : newFrame(h, w);
+        final byte[] o = out.mBuffer.array();
+        final int outWidth = out.mWidth;
+        final int outVU = out.mVUOffset;
+        mExecutor.forEachBand(out.mHeight, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    int p = r * outWidth;
+                    for (int c = 0; c < outWidth; c++) {
+                        int src;
+                        if (degrees == 90) {
+                            src = (h - 1 - c) * mStrideY + r;
+                        } else if (degrees == 270) {
+                            src = c * mStrideY + (w - 1 - r);
+                        } else {
+                            src = (h - 1 - r) * mStrideY + (w - 1 - c);
+                        }
+                        o[p + c] = a[y0 + src];
+                    }
+                    if ((r & 1) != 0) {
+                        continue;
+                    }
+                    int r2 = r / 2;
+                    p = outVU + r2 * outWidth;
+                    for (int c2 = 0; c2 < outWidth / 2; c2++) {
+                        int src;
+                        if (degrees == 90) {
+                            src = (h / 2 - 1 - c2) * mStrideVU + r2 * 2;
+                        } else if (degrees == 270) {
+                            src = c2 * mStrideVU + (w / 2 - 1 - r2) * 2;
+                        } else {
+                            src = (h / 2 - 1 - r2) * mStrideVU + (w / 2 - 1 - c2) * 2;
+                        }
+                        o[p + c2 * 2] = a[vu0 + src];
+                        o[p + c2 * 2 + 1] = a[vu0 + src + 1];
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Returns a copy of the given region in a new frame. The origin is
+     * rounded down and the size up to even values to keep the chroma
+     * aligned.
+     */
+    public NV21Frame crop(int left, int top, int width, int height) {
+        final int x = left & ~1;
+        final int y = top & ~1;
+        final int cw = (width + (left - x) + 1) & ~1;
+        final int ch = (height + (top - y) + 1) & ~1;
+        if (x < 0 || y < 0 || cw <= 0 || ch <= 0 || x + cw > mWidth || y + ch > mHeight) {
+            throw new IllegalArgumentException("Crop outside of " + mWidth + "x" + mHeight);
+        }
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int vu0 = y0 + mVUOffset;
+        final NV21Frame out = newFrame(cw, ch);
+        final byte[] o = out.mBuffer.array();
+        final int outVU = out.mVUOffset;
+        mExecutor.forEachBand(ch, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    System.arraycopy(a, y0 + (y + r) * mStrideY + x, o, r * cw, cw);
+                    if ((r & 1) == 0) {
+                        System.arraycopy(a, vu0 + (y + r) / 2 * mStrideVU + x,
+                                o, outVU + r / 2 * cw, cw);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Box filters the image down into dst by an integer ratio, cropping the
+     * source centered to the aspect ratio of dst. Same result as
+     * nativeResizeImage.
+     *
+     * @return the ratio used.
+     */
+    public int downscaleInto(NV21Frame dst) {
+        final int newWidth = dst.mWidth;
+        final int newHeight = dst.mHeight;
+        int adjustedOldWidth = mWidth;
+        if ((float) mWidth / mHeight != (float) newWidth / newHeight) {
+            adjustedOldWidth = (int) (((float) newWidth / newHeight) * mHeight);
+        }
+        int wR = adjustedOldWidth / newWidth;
+        int hR = mHeight / newHeight;
+        if (wR < hR && adjustedOldWidth - newWidth * wR >= adjustedOldWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && mHeight - newHeight * hR >= mHeight / 4) {
+            hR++;
+        }
+        final int ratio = Math.max(1, Math.min(wR, hR));
+        if (newWidth * ratio > mWidth || newHeight * ratio > mHeight) {
+            throw new IllegalArgumentException("Cannot scale " + mWidth + "x" + mHeight
+                    + " down to " + newWidth + "x" + newHeight);
+        }
+        final int left = (mWidth - newWidth * ratio) / 2;
+        final int top = (mHeight - newHeight * ratio) / 2;
+        final int area = ratio * ratio;
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int vu0 = y0 + mVUOffset;
+        final byte[] o = dst.pixels();
+        final int d0 = dst.base();
+        final int dvu0 = d0 + dst.mVUOffset;
+        final int dStrideY = dst.mStrideY;
+        final int dStrideVU = dst.mStrideVU;
+        mExecutor.forEachBand(newHeight, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    int j = top + r * ratio;
+                    for (int c = 0; c < newWidth; c++) {
+                        int i = left + c * ratio;
+                        int sum = 0;
+                        for (int y = 0; y < ratio; y++) {
+                            int p = y0 + (j + y) * mStrideY + i;
+                            for (int x = 0; x < ratio; x++) {
+                                sum += a[p + x] & 0xFF;
+                            }
+                        }
+                        o[d0 + r * dStrideY + c] = (byte) (sum / area);
+                    }
+                    if ((r & 1) != 0) {
+                        continue;
+                    }
+                    int p = dvu0 + r / 2 * dStrideVU;
+                    for (int c = 0; c < newWidth; c += 2) {
+                        int i = left + c * ratio;
+                        int v = 0;
+                        int u = 0;
+                        for (int y = 0; y < ratio * 2; y += 2) {
+                            int row = vu0 + (j + y) / 2 * mStrideVU;
+                            for (int x = 0; x < ratio * 2; x += 2) {
+                                int q = row + (i + x) / 2 * 2;
+                                v += a[q] & 0xFF;
+                                u += a[q + 1] & 0xFF;
+                            }
+                        }
+                        o[p + c] = (byte) (v / area);
+                        o[p + c + 1] = (byte) (u / area);
+                    }
+                }
+            }
+        });
+        dst.commit(o);
+        return ratio;
+    }
+
+    /**
+     * Copies the planes into separate buffers with the given row stride,
+     * like nativeNV21Split.
+     */
+    public void splitPlanes(final ByteBuffer y, final ByteBuffer vu, final int dstStride) {
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int vu0 = y0 + mVUOffset;
+        mExecutor.forEachBand(mHeight, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                ByteBuffer yOut = y.duplicate();
+                ByteBuffer vuOut = vu.duplicate();
+                for (int r = startRow; r < endRow; r++) {
+                    yOut.position(r * dstStride);
+                    yOut.put(a, y0 + r * mStrideY, mWidth);
+                    if ((r & 1) == 0) {
+                        vuOut.position(r / 2 * dstStride);
+                        vuOut.put(a, vu0 + r / 2 * mStrideVU, mWidth);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Counts the luma values of the image into 256 bins. */
+    public int[] lumaHistogram() {
+        final byte[] a = pixels();
+        final int y0 = base();
+        final int bands = mExecutor.getBandCount(mHeight, MIN_BAND_ROWS);
+        final int[][] partial = new int[bands][256];
+        mExecutor.forEachBand(mHeight, MIN_BAND_ROWS, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                int[] bins = partial[band];
+                for (int r = startRow; r < endRow; r++) {
+                    int p = y0 + r * mStrideY;
+                    for (int end = p + mWidth; p < end; p++) {
+                        bins[a[p] & 0xFF]++;
+                    }
+                }
+            }
+        });
+        int[] histogram = partial[0];
+        for (int b = 1; b < bands; b++) {
+            for (int i = 0; i < 256; i++) {
+                histogram[i] += partial[b][i];
+            }
+        }
+        return histogram;
+    }
+}
@@ -80,6 +80,7 @@ import java.util.List;
 import android.util.Size;
 import java.util.TimeZone;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
@@ -114,6 +115,9 @@ public class PostProcessor{
     private int mHeight;
     private int mStride;
     private Object lock = new Object();
+    // Encoder scratch kept between the captures of a session.
+    private final AtomicReference<JpegOutputStream> mSpareJpegStream =
+            new AtomicReference<JpegOutputStream>();
     private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
     private Image[] mImages;
     private PhotoModule.NamedImages mNamedImages;
@@ -716,6 +720,7 @@ public class PostProcessor{
             mZSLQueue.onClose();
             mZSLQueue = null;
         }
+        mSpareJpegStream.set(null);
         if (mImageWriter != null) {
             mImageWriter.close();
             mImageWriter = null;
@@ -727,6 +732,14 @@ public class PostProcessor{
         mCameraDevice = null;
         mCaptureSession = null;
         mImageReader = null;
+        synchronized (lock) {
+            if (mDefaultResultImage != null) {
+                YuvBufferPool.getInstance().release(mDefaultResultImage.outBuffer);
+                mDefaultResultImage = null;
+            }
+        }
+        if (DEBUG_ZSL) Log.d(TAG, YuvBufferPool.getInstance().toString());
+        YuvBufferPool.getInstance().trim();
         mPendingContinuousRequestCount = 0;
     }
 
@@ -967,15 +980,18 @@ public class PostProcessor{
                         ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
 
                         if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                            YuvBufferPool.getInstance().release(
+                                    mDefaultResultImage == null ? null : mDefaultResultImage.outBuffer);
+                            mDefaultResultImage = new ImageFilter.ResultImage(
+                                    YuvBufferPool.getInstance().acquire(mStride * mHeight * 3 / 2),
+                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
                             yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                             vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                             image.close();
                         } else {
                             if (DEBUG_DUMP_FILTER_IMG) {
                                 ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
+                                        ImageFilter.ResultImage(YuvBufferPool.getInstance().acquire(
                                         mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
                                         mHeight), mWidth, mHeight, mStride);
                                 yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
@@ -985,6 +1001,7 @@ public class PostProcessor{
                                 vuBuf.rewind();
 
                                 byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                YuvBufferPool.getInstance().release(debugResultImage.outBuffer);
                                 mActivity.getMediaSaveService().addImage(
                                         bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                         debugResultImage.outRoi.width(),
@@ -1003,7 +1020,7 @@ public class PostProcessor{
             });
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
+    public static ExifInterface buildExif(int orientationInDegree, TotalCaptureResult result) {
         ExifInterface exif = new ExifInterface();
         exif.addMakeAndModelTag();
         exif.addOrientationTag(orientationInDegree);
@@ -1029,6 +1046,11 @@ public class PostProcessor{
                 exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
             }
         }
+        return exif;
+    }
+
+    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
+        ExifInterface exif = buildExif(orientationInDegree, result);
         ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
             exif.writeExif(jpeg, jpegOut);
@@ -1038,6 +1060,31 @@ public class PostProcessor{
         return jpegOut.toByteArray();
     }
 
+    /**
+     * Encodes the region of the image with its EXIF. The encoder writes into
+     * a scratch buffer that is kept for the next capture of this session, so
+     * each capture only allocates its exactly sized result. The buffer is
+     * dropped in {@link #onClose()}.
+     */
+    public byte[] compressToJpeg(YuvImage image, Rect roi, int quality,
+                                 int orientationInDegree, TotalCaptureResult result) {
+        JpegOutputStream out = mSpareJpegStream.getAndSet(null);
+        if (out == null) {
+            out = new JpegOutputStream(
+                    JpegOutputStream.estimateSize(roi.width() * roi.height(), quality));
+        } else {
+            out.reset();
+        }
+        try {
+            buildExif(orientationInDegree, result).writeExif(image, roi, quality, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        byte[] jpeg = out.toByteArray();
+        mSpareJpegStream.set(out);
+        return jpeg;
+    }
+
     private void clear() {
         mCurrentNumImage = 0;
     }
@@ -1082,9 +1129,15 @@ public class PostProcessor{
                             } else {
                                 isVertical = true;
                             }
-                            nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
-                                    resultImage.height, resultImage.stride - resultImage.width,
-                                    isVertical);
+                            if (sHasImageUtil) {
+                                nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
+                                        resultImage.height, resultImage.stride - resultImage.width,
+                                        isVertical);
+                            } else {
+                                new NV21Frame(resultImage.outBuffer, resultImage.width,
+                                        resultImage.height, resultImage.stride,
+                                        resultImage.stride).flip(isVertical);
+                            }
                         }
                     }
                     //End processing FrameProessor filter
@@ -1114,6 +1167,11 @@ public class PostProcessor{
                                     mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
                             mController.updateThumbnailJpegData(bytes);
                     }
+                    if (resultImage != null && resultImage == mDefaultResultImage) {
+                        // Only the no filter image is ours, filters own their output.
+                        YuvBufferPool.getInstance().release(mDefaultResultImage.outBuffer);
+                        mDefaultResultImage = null;
+                    }
                 }
             }
         });
@@ -1143,8 +1201,17 @@ public class PostProcessor{
                 new Rect(0, 0,
                         newSize.getWidth(), newSize.getHeight()),
                 newSize.getWidth(), newSize.getHeight(), newSize.getWidth());
-        int ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
-                oldImage.width, oldImage.height, oldImage.stride, newSize.getWidth(), newSize.getHeight());
+        int ratio;
+        if (sHasImageUtil) {
+            ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
+                    oldImage.width, oldImage.height, oldImage.stride,
+                    newSize.getWidth(), newSize.getHeight());
+        } else {
+            ratio = new NV21Frame(oldImage.outBuffer, oldImage.width, oldImage.height,
+                    oldImage.stride, oldImage.stride).downscaleInto(
+                    new NV21Frame(newImage.outBuffer, newImage.width, newImage.height,
+                            newImage.stride, newImage.stride));
+        }
         newImage.outRoi = new Rect(oldImage.outRoi.left/ratio, oldImage.outRoi.top/ratio,
                                        oldImage.outRoi.right/ratio, oldImage.outRoi.bottom/ratio);
         if(newImage.width < newImage.outRoi.width()) {
@@ -1203,17 +1270,13 @@ public class PostProcessor{
     };
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
                                     resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
             int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
             resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
-        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
-        return bytes;
+        return compressToJpeg(im, resultImage.outRoi, getJpegQualityValue(), orientation, result);
     }
 
     public int getJpegQualityValue() {
@@ -1225,20 +1288,38 @@ public class PostProcessor{
         return quality;
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
+    /** Scratch stream for the encoder, see {@link #compressToJpeg}. */
+    private static class JpegOutputStream extends ByteArrayOutputStream {
+        // Room for the exif header next to the scan.
+        private static final int EXIF_SIZE = 64 * 1024;
+
+        JpegOutputStream(int size) {
             super(size);
         }
 
-        public byte[] getArray() {
-            return buf;
+        /**
+         * A low jpeg size estimate, about a quarter byte per pixel at the
+         * default quality. The buffer grows on the first capture if needed
+         * and is kept for the session, so aiming low wastes nothing.
+         */
+        static int estimateSize(int pixels, int quality) {
+            return (int) ((long) pixels * (quality + 20) / 320) + EXIF_SIZE;
         }
     }
 
     private native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
     private native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
     private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
+    // Without the library the NV21Frame versions are used.
+    private static final boolean sHasImageUtil;
     static {
-        System.loadLibrary("jni_imageutil");
+        boolean loaded = false;
+        try {
+            System.loadLibrary("jni_imageutil");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "jni_imageutil is missing, using Java image ops");
+        }
+        sHasImageUtil = loaded;
     }
 }
@@ -0,0 +1,386 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed ring of NV21 preview frames shared by several consumers.
+ *
+ * The ring holds as many frames as the subscriptions can keep at once plus
+ * the one being filled, so it is fixed once the consumers subscribed.
+ * The producer fills one free frame per camera frame and publishes it.
+ * Every subscription takes a reference on the frames it keeps according
+ * to its own drop policy, and a frame goes back to the ring once the last
+ * consumer released it. Consumers read the same pixels, nothing is copied
+ * after the frame was filled.
+ */
+public class PreviewFrameRing {
+    /** Only the newest frame is kept, older pending frames are dropped. */
+    public static final int POLICY_LATEST = 0;
+    /** Every Nth published frame is taken, then handled as latest only. */
+    public static final int POLICY_EVERY_NTH = 1;
+    /** Up to N frames are queued, the oldest is dropped on overflow. */
+    public static final int POLICY_QUEUE = 2;
+
+    public interface Consumer {
+        /**
+         * Called on the subscription handler. The frame is only valid until
+         * the call returns, retain it to keep it longer.
+         */
+        void onFrame(Frame frame);
+    }
+
+    public final class Frame {
+        private final AtomicInteger mRefCount = new AtomicInteger();
+        private byte[] mData;
+        private ByteBuffer mY;
+        private ByteBuffer mVU;
+        private int mWidth;
+        private int mHeight;
+        private int mStride;
+        private long mSequence;
+        private long mTimestamp;
+
+        private void reset(int width, int height, int stride) {
+            int ySize = stride * height;
+            if (mData == null || mWidth != width || mHeight != height || mStride != stride) {
+                mData = new byte[ySize * 3 / 2];
+                mY = ByteBuffer.wrap(mData, 0, ySize).slice();
+                mVU = ByteBuffer.wrap(mData, ySize, ySize / 2).slice();
+                mWidth = width;
+                mHeight = height;
+                mStride = stride;
+            }
+            mY.clear();
+            mVU.clear();
+        }
+
+        /** The whole frame, the VU plane starts at {@code stride * height}. */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * Returns a view of the Y plane backed by {@link #getData()}, with its
+         * own position so consumers on other threads are not disturbed.
+         */
+        public ByteBuffer getY() {
+            return mY.duplicate();
+        }
+
+        public ByteBuffer getVU() {
+            return mVU.duplicate();
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getStride() {
+            return mStride;
+        }
+
+        /** Position of the frame in the published stream, starting at 1. */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public void retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Frame already released");
+            }
+        }
+
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count < 0) {
+                throw new IllegalStateException("Frame released too often");
+            }
+        }
+
+        int getRefCount() {
+            return mRefCount.get();
+        }
+    }
+
+    public final class Subscription {
+        private final String mName;
+        private final int mPolicy;
+        private final int mParam;
+        private final Consumer mConsumer;
+        private final Handler mHandler;
+        private final ArrayDeque<Frame> mPending;
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        private boolean mScheduled;
+        private boolean mClosed;
+        private long mOffered;
+        private long mDelivered;
+        private long mDropped;
+        private long mLag;
+        private long mMaxLag;
+
+        private Subscription(String name, int policy, int param, Consumer consumer,
+                Handler handler) {
+            mName = name;
+            mPolicy = policy;
+            mParam = param;
+            mConsumer = consumer;
+            mHandler = handler;
+            mPending = new ArrayDeque<Frame>(policy == POLICY_QUEUE ? param : 1);
+        }
+
+        /** Most frames this subscription can hold, including the one in use. */
+        private int getMaxHeld() {
+            return (mPolicy == POLICY_QUEUE ? mParam : 1) + 1;
+        }
+
+        private void offer(Frame frame) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mOffered++;
+                if (mPolicy == POLICY_EVERY_NTH && (mOffered - 1) % mParam != 0) {
+                    return;
+                }
+                int capacity = mPolicy == POLICY_QUEUE ? mParam : 1;
+                if (mPending.size() >= capacity) {
+                    mPending.pollFirst().release();
+                    mDropped++;
+                }
+                frame.retain();
+                mPending.addLast(frame);
+                if (mHandler == null || mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mHandler.post(mDrain);
+        }
+
+        /**
+         * Takes the oldest pending frame, or null. The caller owns the
+         * reference and has to release it. Used directly by subscriptions
+         * made without a handler.
+         */
+        public Frame poll() {
+            Frame frame;
+            synchronized (this) {
+                frame = mPending.pollFirst();
+                if (frame == null) {
+                    return null;
+                }
+                mDelivered++;
+                mLag = mLatestSequence - frame.mSequence;
+                if (mLag > mMaxLag) {
+                    mMaxLag = mLag;
+                }
+            }
+            return frame;
+        }
+
+        private void drain() {
+            synchronized (this) {
+                mScheduled = false;
+            }
+            Frame frame;
+            while ((frame = poll()) != null) {
+                try {
+                    mConsumer.onFrame(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public synchronized long getDeliveredCount() {
+            return mDelivered;
+        }
+
+        /** Frames this subscription wanted but lost to newer ones. */
+        public synchronized long getDroppedCount() {
+            return mDropped;
+        }
+
+        /** Frames published after the last delivered one, when it was taken. */
+        public synchronized long getLag() {
+            return mLag;
+        }
+
+        public synchronized long getMaxLag() {
+            return mMaxLag;
+        }
+
+        private void close() {
+            synchronized (this) {
+                mClosed = true;
+                Frame frame;
+                while ((frame = mPending.pollFirst()) != null) {
+                    frame.release();
+                }
+            }
+            if (mHandler != null) {
+                mHandler.removeCallbacks(mDrain);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + " delivered=" + mDelivered + " dropped=" + mDropped
+                    + " lag=" + mLag + " maxLag=" + mMaxLag;
+        }
+    }
+
+    private final List<Subscription> mSubscriptions = new ArrayList<Subscription>();
+    private volatile Frame[] mFrames = new Frame[] { new Frame() };
+    private volatile long mLatestSequence;
+    private long mProducerDropped;
+
+    private void grow(int count) {
+        synchronized (mSubscriptions) {
+            Frame[] frames = new Frame[mFrames.length + count];
+            System.arraycopy(mFrames, 0, frames, 0, mFrames.length);
+            for (int i = mFrames.length; i < frames.length; i++) {
+                frames[i] = new Frame();
+            }
+            mFrames = frames;
+        }
+    }
+
+    /**
+     * Adds a consumer. Frames are delivered to the consumer on the handler,
+     * or, without a handler, have to be taken with
+     * {@link Subscription#poll()}.
+     *
+     * @param param N for {@link #POLICY_EVERY_NTH} and {@link #POLICY_QUEUE}
+     */
+    public Subscription subscribe(String name, int policy, int param, Consumer consumer,
+            Handler handler) {
+        if (policy != POLICY_LATEST && param < 1) {
+            throw new IllegalArgumentException("Invalid policy parameter: " + param);
+        }
+        Subscription s = new Subscription(name, policy, param, consumer, handler);
+        synchronized (mSubscriptions) {
+            mSubscriptions.add(s);
+            grow(s.getMaxHeld());
+        }
+        return s;
+    }
+
+    public void unsubscribe(Subscription s) {
+        synchronized (mSubscriptions) {
+            mSubscriptions.remove(s);
+        }
+        s.close();
+    }
+
+    /**
+     * Whether anything would receive a published frame, so the producer can
+     * skip filling one.
+     */
+    public boolean hasSubscriptions() {
+        synchronized (mSubscriptions) {
+            return !mSubscriptions.isEmpty();
+        }
+    }
+
+    public List<Subscription> getSubscriptions() {
+        synchronized (mSubscriptions) {
+            return new ArrayList<Subscription>(mSubscriptions);
+        }
+    }
+
+    /**
+     * Returns a free frame sized for the preview for the producer to fill,
+     * or null when every frame is still referenced. The frame has to be
+     * handed to {@link #publish} or released.
+     */
+    public Frame obtain(int width, int height, int stride) {
+        for (Frame frame : mFrames) {
+            if (frame.mRefCount.compareAndSet(0, 1)) {
+                frame.reset(width, height, stride);
+                return frame;
+            }
+        }
+        synchronized (this) {
+            mProducerDropped++;
+        }
+        return null;
+    }
+
+    /**
+     * Hands a filled frame to all subscriptions and gives up the producer
+     * reference.
+     */
+    public void publish(Frame frame, long timestamp) {
+        frame.mTimestamp = timestamp;
+        frame.mSequence = ++mLatestSequence;
+        synchronized (mSubscriptions) {
+            for (int i = 0; i < mSubscriptions.size(); i++) {
+                mSubscriptions.get(i).offer(frame);
+            }
+        }
+        frame.release();
+    }
+
+    /** Camera frames lost because no ring frame was free. */
+    public synchronized long getProducerDroppedCount() {
+        return mProducerDropped;
+    }
+
+    public void close() {
+        for (Subscription s : getSubscriptions()) {
+            unsubscribe(s);
+        }
+    }
+}
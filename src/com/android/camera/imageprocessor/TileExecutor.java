@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs row oriented image work on a fork-join pool, split in horizontal
+ * bands. Every band gets its index so callers can keep per-band partial
+ * results (histograms, sums) without locking and merge them afterwards.
+ */
+public class TileExecutor {
+    // More bands than threads evens out bands that take longer.
+    private static final int BANDS_PER_THREAD = 4;
+
+    public interface Band {
+        void run(int band, int startRow, int endRow);
+    }
+
+    private static TileExecutor sDefault;
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+
+    public TileExecutor(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        mPool = mParallelism > 1 ? new ForkJoinPool(mParallelism) : null;
+    }
+
+    public static synchronized TileExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new TileExecutor(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /** Number of bands {@link #forEachBand} will use for these rows. */
+    public int getBandCount(int rows, int minRows) {
+        if (mPool == null) {
+            return 1;
+        }
+        return Math.max(1, Math.min(mParallelism * BANDS_PER_THREAD, rows / Math.max(1, minRows)));
+    }
+
+    /**
+     * Calls the band for consecutive row ranges covering [0, rows), each at
+     * least minRows high, and returns once all of them ran. Exceptions thrown
+     * by a band are rethrown here.
+     */
+    public void forEachBand(final int rows, int minRows, final Band band) {
+        final int count = getBandCount(rows, minRows);
+        if (count == 1) {
+            band.run(0, 0, rows);
+            return;
+        }
+        final RecursiveAction[] tasks = new RecursiveAction[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            tasks[i] = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    band.run(index, (int) ((long) rows * index / count),
+                            (int) ((long) rows * (index + 1) / count));
+                }
+            };
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            mPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+}
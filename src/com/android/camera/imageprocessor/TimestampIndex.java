@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from a sensor timestamp to a ring buffer slot.
+ * The table is sized once for the ring it indexes and never rehashes,
+ * so it can be kept in step with the ring without allocating.
+ */
+class TimestampIndex {
+    public static final int NO_SLOT = -1;
+
+    private final long[] mKeys;
+    private final int[] mSlots;
+    private final int mMask;
+    private int mSize;
+
+    public TimestampIndex(int maxEntries) {
+        // Keep the load factor at or below one half.
+        int capacity = Integer.highestOneBit(Math.max(4, maxEntries * 2 - 1)) << 1;
+        mKeys = new long[capacity];
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mSlots, NO_SLOT);
+    }
+
+    private int home(long timestamp) {
+        long h = timestamp * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    private int find(long timestamp) {
+        int i = home(timestamp);
+        while (mSlots[i] != NO_SLOT) {
+            if (mKeys[i] == timestamp) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    public int get(long timestamp) {
+        int i = find(timestamp);
+        return i < 0 ? NO_SLOT : mSlots[i];
+    }
+
+    public boolean contains(long timestamp) {
+        return find(timestamp) >= 0;
+    }
+
+    public void put(long timestamp, int slot) {
+        int i = home(timestamp);
+        while (mSlots[i] != NO_SLOT) {
+            if (mKeys[i] == timestamp) {
+                mSlots[i] = slot;
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        if (mSize + 1 > (mMask + 1) / 2) {
+            throw new IllegalStateException("TimestampIndex is full: " + mSize);
+        }
+        mKeys[i] = timestamp;
+        mSlots[i] = slot;
+        mSize++;
+    }
+
+    /**
+     * Removes the mapping for the timestamp, but only while it still
+     * points at the given slot. A newer entry that reused the timestamp
+     * is left alone.
+     */
+    public boolean remove(long timestamp, int slot) {
+        int i = find(timestamp);
+        if (i < 0 || mSlots[i] != slot) {
+            return false;
+        }
+        delete(i);
+        return true;
+    }
+
+    /**
+     * Removes the mapping for the timestamp and returns the slot it pointed
+     * at, or NO_SLOT if there was none.
+     */
+    public int take(long timestamp) {
+        int i = find(timestamp);
+        if (i < 0) {
+            return NO_SLOT;
+        }
+        int slot = mSlots[i];
+        delete(i);
+        return slot;
+    }
+
+    private void delete(int i) {
+        // Backward shift deletion, so lookups never need tombstones.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mMask;
+            if (mSlots[j] == NO_SLOT) {
+                break;
+            }
+            int h = home(mKeys[j]);
+            boolean stays = (i <= j) ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                mKeys[i] = mKeys[j];
+                mSlots[i] = mSlots[j];
+                i = j;
+            }
+        }
+        mSlots[i] = NO_SLOT;
+        mSize--;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mSlots, NO_SLOT);
+        mSize = 0;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Size classed pool of direct buffers for NV21 frames, shared by the post
+ * processor, the still filters and ClearSight. Every {@link #acquire} has to
+ * be paired with a {@link #release}, so direct memory stays flat across
+ * bursts instead of waiting for the GC to free each frame.
+ *
+ * Idle buffers are kept up to the persist.sys.camera.yuvpool.limit cap (in
+ * MB). Buffers that are handed out do not count against it, a capture never
+ * fails because the pool is full.
+ */
+public class YuvBufferPool {
+    private static final String TAG = "YuvBufferPool";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+    // Size classes are this fraction of the next lower power of two apart,
+    // so a buffer is never more than 1/8 bigger than what was asked for.
+    private static final int SIZE_CLASS_SHIFT = 3;
+    private static final int MIN_SIZE_CLASS = 4096;
+
+    private static YuvBufferPool sInstance;
+
+    private final long mCapacity;
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFree =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    // Handed out buffers, with where they were acquired when debugging.
+    private final IdentityHashMap<ByteBuffer, Acquisition> mOutstanding =
+            new IdentityHashMap<ByteBuffer, Acquisition>();
+    private long mIdleBytes;
+    private long mOutstandingBytes;
+    private long mHits;
+    private long mMisses;
+    private long mDrops;
+
+    private static class Acquisition {
+        final long time;
+        final Throwable site;
+
+        Acquisition(long time, Throwable site) {
+            this.time = time;
+            this.site = site;
+        }
+    }
+
+    public static synchronized YuvBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new YuvBufferPool(PersistUtil.getYuvBufferPoolLimitInMb() * 1024L * 1024L);
+        }
+        return sInstance;
+    }
+
+    public YuvBufferPool(long capacity) {
+        mCapacity = capacity;
+    }
+
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+        int step = Integer.highestOneBit(size) >> SIZE_CLASS_SHIFT;
+        return (size + step - 1) / step * step;
+    }
+
+    /** Returns a cleared buffer with at least {@code size} bytes and its limit set to size. */
+    public synchronized ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ArrayDeque<ByteBuffer> free = mFree.get(sizeClass);
+        ByteBuffer buffer = (free == null) ? null : free.poll();
+        if (buffer != null) {
+            mHits++;
+            mIdleBytes -= sizeClass;
+        } else {
+            mMisses++;
+            // Make room by dropping idle buffers of other sizes first.
+            trimIdle(mCapacity - sizeClass);
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        mOutstanding.put(buffer, new Acquisition(SystemClock.elapsedRealtime(),
+                DEBUG ? new Throwable("acquired here") : null));
+        mOutstandingBytes += sizeClass;
+        return buffer;
+    }
+
+    /** Gives a buffer from {@link #acquire} back. Null is ignored. */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (mOutstanding.remove(buffer) == null) {
+            Log.w(TAG, "Releasing a buffer that is not from the pool or already released");
+            return;
+        }
+        int sizeClass = buffer.capacity();
+        mOutstandingBytes -= sizeClass;
+        if (mIdleBytes + sizeClass > mCapacity) {
+            trimIdle(mCapacity - sizeClass);
+        }
+        if (mIdleBytes + sizeClass > mCapacity) {
+            mDrops++;
+            return;
+        }
+        ArrayDeque<ByteBuffer> free = mFree.get(sizeClass);
+        if (free == null) {
+            free = new ArrayDeque<ByteBuffer>();
+            mFree.put(sizeClass, free);
+        }
+        free.push(buffer);
+        mIdleBytes += sizeClass;
+    }
+
+    /** Drops every idle buffer, for when the camera goes away. */
+    public synchronized void trim() {
+        trimIdle(0);
+    }
+
+    private void trimIdle(long target) {
+        Iterator<Map.Entry<Integer, ArrayDeque<ByteBuffer>>> it = mFree.entrySet().iterator();
+        while (mIdleBytes > target && it.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = it.next();
+            ArrayDeque<ByteBuffer> free = entry.getValue();
+            while (mIdleBytes > target && !free.isEmpty()) {
+                free.pop();
+                mIdleBytes -= entry.getKey();
+                mDrops++;
+            }
+            if (free.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Logs every buffer that has been out for longer than the given time.
+     * Returns how many were found.
+     */
+    public synchronized int dumpLeaks(long olderThanMs) {
+        long now = SystemClock.elapsedRealtime();
+        int leaks = 0;
+        for (Map.Entry<ByteBuffer, Acquisition> entry : mOutstanding.entrySet()) {
+            long age = now - entry.getValue().time;
+            if (age < olderThanMs) {
+                continue;
+            }
+            leaks++;
+            Log.w(TAG, "Buffer of " + entry.getKey().capacity() + " bytes out for " + age + "ms",
+                    entry.getValue().site);
+        }
+        return leaks;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getDropCount() {
+        return mDrops;
+    }
+
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + " hits: " + mHits + " misses: " + mMisses + " drops: " + mDrops +
+                " idle: " + mIdleBytes + " outstanding: " + mOutstandingBytes +
+                " (" + mOutstanding.size() + " buffers) cap: " + mCapacity;
+    }
+}
@@ -35,238 +35,349 @@ import android.util.Log;
 
 import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
-import android.os.SystemProperties;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ZSLQueue {
     private int mCircularBufferSize;
+    // Paired image and metadata, guarded by mLock. Only the rare fall-off
+    // lookup searches it by timestamp, a scan of mBufferTimestamps is cheaper
+    // than keeping an index up to date on every frame.
     private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
+    private long[] mBufferTimestamps;
+    private int mHead;
+    // Scores the paired items when a pick needs them, keeps the best one.
+    private ZslFrameWindow mWindow;
+    // Reused in turn so that pairing does not allocate. The window reads
+    // the frames in the ring and the one pushed out last, so two more than
+    // the ring size are needed.
+    private ResultFrameInfo[] mFrameInfos;
+    private int mFrameInfoIndex;
+    // Images still waiting for their capture result.
+    private PendingRing<ImageItem> mPendingImages;
+    // Capture results still waiting for their image.
+    private PendingRing<TotalCaptureResult> mPendingMetas;
+    // Guards the buffer, the window and both pending rings. Pairing moves
+    // an entry from a pending ring to the buffer, one lock per add keeps
+    // that as cheap as it was when everything lived in the buffer.
     private Object mLock = new Object();
     private CaptureModule mModule;
     private static final boolean DEBUG_QUEUE  =
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
     private static final String TAG = "ZSLQueue";
+    private static final int MAX_RECORDED_DECISIONS = 256;
 
     public ZSLQueue(CaptureModule module) {
-        mCircularBufferSize = PersistUtil.getCircularBufferSize();
+        this(module, PersistUtil.getCircularBufferSize());
+    }
+
+    ZSLQueue(CaptureModule module, int circularBufferSize) {
+        mCircularBufferSize = circularBufferSize;
         synchronized (mLock) {
             mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
+            mBufferTimestamps = new long[mCircularBufferSize];
+            mFrameInfos = new ResultFrameInfo[mCircularBufferSize + 2];
+            for (int i = 0; i < mFrameInfos.length; i++) {
+                mFrameInfos[i] = new ResultFrameInfo();
+            }
+            mWindow = new ZslFrameWindow(
+                    ZslFrameSelectors.fromName(PersistUtil.getZslFrameSelector()),
+                    mCircularBufferSize, DEBUG_QUEUE ? MAX_RECORDED_DECISIONS : 0);
+            mPendingImages = new PendingRing<ImageItem>(mCircularBufferSize);
+            mPendingMetas = new PendingRing<TotalCaptureResult>(mCircularBufferSize);
+            mHead = 0;
             mModule = module;
         }
     }
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
-    }
-
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
-    }
-
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
         long timestamp = image.getTimestamp();
+        ImageItem item = new ImageItem();
+        item.setImage(image, rawImage);
+        ImageItem evicted = null;
+        boolean paired = false;
         synchronized (mLock) {
-            if(mBuffer == null)
+            if(mBuffer == null) {
+                item.closeImage();
                 return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
             }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
+            TotalCaptureResult metadata = mPendingMetas.remove(timestamp);
+            if(metadata != null) {
+                item.setMetadata(metadata);
+                insert(timestamp, item);
+                paired = true;
             } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
+                evicted = mPendingImages.put(timestamp, item);
             }
         }
+        if(evicted != null) {
+            evicted.closeImage();
+        }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + timestamp);
+        if(DEBUG_QUEUE) Log.d(TAG, "image: " + timestamp + " paired " + paired);
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
+        }
+        if(timestamp == -1) {
+            return;
+        }
+        boolean paired = false;
         synchronized (mLock) {
             if(mBuffer == null)
                 return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
+            ImageItem item = mPendingImages.remove(timestamp);
+            if(item != null) {
+                item.setMetadata(metadata);
+                insert(timestamp, item);
+                paired = true;
             } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
+                mPendingMetas.put(timestamp, metadata);
             }
         }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + timestamp + " paired " + paired);
+    }
+
+    /** Moves a paired item into the buffer, called with mLock held. */
+    private void insert(long timestamp, ImageItem item) {
+        ImageItem old = mBuffer[mHead];
+        if(old != null) {
+            old.closeImage();
+            old.closeMeta();
+        }
+        mBuffer[mHead] = item;
+        mBufferTimestamps[mHead] = timestamp;
+        mFrameInfoIndex = (mFrameInfoIndex + 1) % mFrameInfos.length;
+        ResultFrameInfo frame = mFrameInfos[mFrameInfoIndex];
+        frame.reset(timestamp, item.getMetadata());
+        mWindow.insert(mHead, frame);
+        mHead = (mHead + 1) % mBuffer.length;
+    }
+
+    private ImageItem take(int index) {
+        ImageItem item = mBuffer[index];
+        mBuffer[index] = null;
+        mWindow.remove(index);
+        return item;
     }
 
     public ImageItem tryToGetMatchingItem() {
         synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+            if(mBuffer == null)
+                return null;
+            int index = mWindow.pick();
+            if(DEBUG_QUEUE) Log.d(TAG, mWindow.getSelector().getName() + " picked " +
+                    (index == ZslFrameWindow.NO_SLOT ? "nothing" : mBufferTimestamps[index]));
+            if(index != ZslFrameWindow.NO_SLOT) {
+                return take(index);
+            }
         }
         return null;
     }
 
+    /** Recent selector decisions, empty unless queue debugging is on. */
+    public List<String> getSelectorDecisions() {
+        synchronized (mLock) {
+            return mWindow.getDecisions();
+        }
+    }
+
     public ImageItem tryToGetFallOffImage(TotalCaptureResult captureResult,double timestamp) {
         synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && (
-                        captureResult.getFrameNumber() == item.getMetadata().getFrameNumber() ||
-                      timestamp < item.getMetadata().get(CaptureResult.SENSOR_TIMESTAMP))) {
-                    mBuffer[index] = null;
-                    return item;
+            if(mBuffer == null)
+                return null;
+            Long resultTimestamp = captureResult.get(CaptureResult.SENSOR_TIMESTAMP);
+            if(resultTimestamp != null) {
+                long wanted = resultTimestamp.longValue();
+                for (int i = 0; i < mBuffer.length; i++) {
+                    if (mBuffer[i] != null && mBufferTimestamps[i] == wanted) {
+                        return take(i);
+                    }
                 }
+            }
+            // Otherwise hand out the newest item captured after the deadline.
+            int index = mHead;
+            for (int i = 0; i < mBuffer.length; i++) {
                 index--;
                 if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+                if (mBuffer[index] == null) {
+                    continue;
+                }
+                if (timestamp < mBufferTimestamps[index]) {
+                    return take(index);
+                }
+                break;
+            }
         }
         return null;
     }
 
     public void onClose() {
+        clear();
         synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
-            }
             mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
         }
     }
 
     public void clear() {
         synchronized (mLock) {
+            if (mBuffer == null)
+                return;
+            for (ImageItem item : mPendingImages.drain()) {
+                item.closeImage();
+            }
+            mPendingMetas.drain();
             for (int i = 0; i < mBuffer.length; i++) {
                 if (mBuffer[i] != null) {
                     mBuffer[i].closeImage();
                     mBuffer[i].closeMeta();
+                    mBuffer[i] = null;
                 }
             }
-            mImageHead = 0;
-            mMetaHead = 0;
+            mWindow.clear();
+            mHead = 0;
         }
     }
 
-    private boolean checkImageRequirement(TotalCaptureResult captureResult) {
-        if( (captureResult.get(CaptureResult.LENS_STATE) != null &&
-             captureResult.get(CaptureResult.LENS_STATE).intValue() == CaptureResult.LENS_STATE_MOVING)
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-                (captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_SEARCHING ||
-                 captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_PRECAPTURE))
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AF_STATE) != null) &&
-                (captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN ||
-                 captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN)) {
-            return false;
+    /**
+     * Reads the capture result fields the selector asks for on first use,
+     * so it only pays for the lookups it needs.
+     */
+    private static class ResultFrameInfo extends ZslFrameInfo {
+        private static final int FRAME_NUMBER = 1;
+        private static final int LENS_STATE = 1 << 1;
+        private static final int AE_STATE = 1 << 2;
+        private static final int AF_STATE = 1 << 3;
+        private static final int AWB_STATE = 1 << 4;
+        private static final int FLASH_MODE = 1 << 5;
+        private static final int EXPOSURE_TIME = 1 << 6;
+        private static final int SENSITIVITY = 1 << 7;
+        private static final int FOCUS_DISTANCE = 1 << 8;
+
+        private long mTimestamp;
+        private TotalCaptureResult mResult;
+        private int mLoaded;
+        private long mFrameNumber;
+        private int mLensState;
+        private int mAeState;
+        private int mAfState;
+        private int mAwbState;
+        private int mFlashMode;
+        private long mExposureTime;
+        private int mSensitivity;
+        private float mFocusDistance;
+
+        void reset(long timestamp, TotalCaptureResult result) {
+            mTimestamp = timestamp;
+            mResult = result;
+            mLoaded = 0;
         }
 
-        if( captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-            captureResult.get(CaptureResult.FLASH_MODE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED &&
-            captureResult.get(CaptureResult.FLASH_MODE).intValue() != CaptureResult.FLASH_MODE_OFF) {
+        private boolean load(int field) {
+            if ((mLoaded & field) != 0) {
+                return false;
+            }
+            mLoaded |= field;
             return true;
         }
 
-        if( captureResult.get(CaptureResult.CONTROL_AWB_STATE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AWB_STATE).intValue() == CaptureResult.CONTROL_AWB_STATE_SEARCHING ) {
-            return false;
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
         }
 
-        return true;
+        @Override
+        public long getFrameNumber() {
+            if (load(FRAME_NUMBER)) {
+                mFrameNumber = mResult.getFrameNumber();
+            }
+            return mFrameNumber;
+        }
+
+        @Override
+        public int getLensState() {
+            if (load(LENS_STATE)) {
+                mLensState = intOf(mResult.get(CaptureResult.LENS_STATE));
+            }
+            return mLensState;
+        }
+
+        @Override
+        public int getAeState() {
+            if (load(AE_STATE)) {
+                mAeState = intOf(mResult.get(CaptureResult.CONTROL_AE_STATE));
+            }
+            return mAeState;
+        }
+
+        @Override
+        public int getAfState() {
+            if (load(AF_STATE)) {
+                mAfState = intOf(mResult.get(CaptureResult.CONTROL_AF_STATE));
+            }
+            return mAfState;
+        }
+
+        @Override
+        public int getAwbState() {
+            if (load(AWB_STATE)) {
+                mAwbState = intOf(mResult.get(CaptureResult.CONTROL_AWB_STATE));
+            }
+            return mAwbState;
+        }
+
+        @Override
+        public int getFlashMode() {
+            if (load(FLASH_MODE)) {
+                mFlashMode = intOf(mResult.get(CaptureResult.FLASH_MODE));
+            }
+            return mFlashMode;
+        }
+
+        @Override
+        public long getExposureTime() {
+            if (load(EXPOSURE_TIME)) {
+                mExposureTime = longOf(mResult.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+            }
+            return mExposureTime;
+        }
+
+        @Override
+        public int getSensitivity() {
+            if (load(SENSITIVITY)) {
+                mSensitivity = intOf(mResult.get(CaptureResult.SENSOR_SENSITIVITY));
+            }
+            return mSensitivity;
+        }
+
+        @Override
+        public float getFocusDistance() {
+            if (load(FOCUS_DISTANCE)) {
+                mFocusDistance = floatOf(mResult.get(CaptureResult.LENS_FOCUS_DISTANCE));
+            }
+            return mFocusDistance;
+        }
+    }
+
+    private static int intOf(Integer value) {
+        return value == null ? ZslFrameInfo.UNKNOWN : value.intValue();
+    }
+
+    private static long longOf(Long value) {
+        return value == null ? ZslFrameInfo.UNKNOWN : value.longValue();
+    }
+
+    private static float floatOf(Float value) {
+        return value == null ? ZslFrameInfo.UNKNOWN : value.floatValue();
     }
 
     static class ImageItem {
@@ -320,4 +431,62 @@ public class ZSLQueue {
             return false;
         }
     }
+
+    /**
+     * Fixed size ring of entries waiting for their counterpart, indexed by
+     * sensor timestamp. Once full, the oldest entry is pushed out.
+     */
+    private static class PendingRing<T> {
+        private final Object[] mEntries;
+        private final long[] mTimestamps;
+        private final TimestampIndex mIndex;
+        private int mHead;
+
+        PendingRing(int size) {
+            mEntries = new Object[size];
+            mTimestamps = new long[size];
+            mIndex = new TimestampIndex(size);
+        }
+
+        /** Returns the entry that had to make room, if any. */
+        @SuppressWarnings("unchecked")
+        T put(long timestamp, T entry) {
+            T evicted = (T) mEntries[mHead];
+            if (evicted != null) {
+                mIndex.remove(mTimestamps[mHead], mHead);
+            }
+            // A repeated timestamp only moves the index, the stale entry
+            // stays in its slot until it gets pushed out.
+            mEntries[mHead] = entry;
+            mTimestamps[mHead] = timestamp;
+            mIndex.put(timestamp, mHead);
+            mHead = (mHead + 1) % mEntries.length;
+            return evicted;
+        }
+
+        @SuppressWarnings("unchecked")
+        T remove(long timestamp) {
+            int slot = mIndex.take(timestamp);
+            if (slot == TimestampIndex.NO_SLOT) {
+                return null;
+            }
+            T entry = (T) mEntries[slot];
+            mEntries[slot] = null;
+            return entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> drain() {
+            List<T> entries = new ArrayList<T>();
+            for (int i = 0; i < mEntries.length; i++) {
+                if (mEntries[i] != null) {
+                    entries.add((T) mEntries[i]);
+                    mEntries[i] = null;
+                }
+            }
+            mIndex.clear();
+            mHead = 0;
+            return entries;
+        }
+    }
 }
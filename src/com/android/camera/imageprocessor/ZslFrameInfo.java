@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+
+/**
+ * The part of a capture result the ZSL frame selectors look at. Kept free of
+ * framework objects so that recorded traces can be replayed off device.
+ *
+ * Subclasses may override the getters to read fields on demand, so a
+ * selector only pays for the fields it looks at.
+ */
+public class ZslFrameInfo {
+    public static final int UNKNOWN = -1;
+
+    private final long mTimestamp;
+    private final long mFrameNumber;
+    private final int mLensState;
+    private final int mAeState;
+    private final int mAfState;
+    private final int mAwbState;
+    private final int mFlashMode;
+    private final long mExposureTime;
+    private final int mSensitivity;
+    private final float mFocusDistance;
+
+    public ZslFrameInfo(long timestamp, long frameNumber, int lensState, int aeState,
+            int afState, int awbState, int flashMode, long exposureTime, int sensitivity,
+            float focusDistance) {
+        mTimestamp = timestamp;
+        mFrameNumber = frameNumber;
+        mLensState = lensState;
+        mAeState = aeState;
+        mAfState = afState;
+        mAwbState = awbState;
+        mFlashMode = flashMode;
+        mExposureTime = exposureTime;
+        mSensitivity = sensitivity;
+        mFocusDistance = focusDistance;
+    }
+
+    /** For subclasses that override every getter. */
+    protected ZslFrameInfo() {
+        this(UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN,
+                UNKNOWN, UNKNOWN);
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    public int getLensState() {
+        return mLensState;
+    }
+
+    public int getAeState() {
+        return mAeState;
+    }
+
+    public int getAfState() {
+        return mAfState;
+    }
+
+    public int getAwbState() {
+        return mAwbState;
+    }
+
+    public int getFlashMode() {
+        return mFlashMode;
+    }
+
+    public long getExposureTime() {
+        return mExposureTime;
+    }
+
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    public float getFocusDistance() {
+        return mFocusDistance;
+    }
+
+    public boolean isLensMoving() {
+        return getLensState() == CaptureResult.LENS_STATE_MOVING;
+    }
+
+    public boolean isAeSearching() {
+        int aeState = getAeState();
+        return aeState == CaptureResult.CONTROL_AE_STATE_SEARCHING ||
+                aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE;
+    }
+
+    public boolean isAfScanning() {
+        int afState = getAfState();
+        return afState == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN ||
+                afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+    }
+
+    public boolean isAwbSearching() {
+        return getAwbState() == CaptureResult.CONTROL_AWB_STATE_SEARCHING;
+    }
+
+    public boolean isFlashRequired() {
+        if (getAeState() != CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+            return false;
+        }
+        int flashMode = getFlashMode();
+        return flashMode != UNKNOWN && flashMode != CaptureResult.FLASH_MODE_OFF;
+    }
+
+    /** Not AF scanning, not AE searching and AWB converged. */
+    public boolean isConverged() {
+        if (isLensMoving() || isAeSearching() || isAfScanning()) {
+            return false;
+        }
+        if (isFlashRequired()) {
+            return true;
+        }
+        return !isAwbSearching();
+    }
+
+    /** Space separated fields, in constructor order. */
+    public String toTraceLine() {
+        return getTimestamp() + " " + getFrameNumber() + " " + getLensState() + " " +
+                getAeState() + " " + getAfState() + " " + getAwbState() + " " +
+                getFlashMode() + " " + getExposureTime() + " " + getSensitivity() + " " +
+                getFocusDistance();
+    }
+
+    public static ZslFrameInfo fromTraceLine(String line) {
+        String[] f = line.trim().split(" ");
+        if (f.length != 10) {
+            throw new IllegalArgumentException("Bad ZSL frame trace: " + line);
+        }
+        return new ZslFrameInfo(Long.parseLong(f[0]), Long.parseLong(f[1]),
+                Integer.parseInt(f[2]), Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                Integer.parseInt(f[5]), Integer.parseInt(f[6]), Long.parseLong(f[7]),
+                Integer.parseInt(f[8]), Float.parseFloat(f[9]));
+    }
+}
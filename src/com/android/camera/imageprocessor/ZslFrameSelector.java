@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/**
+ * Scores ZSL frames as they are paired with their capture result, so that
+ * picking the frame to reprocess does not need to look at the whole queue.
+ */
+public interface ZslFrameSelector {
+    /** Score of a frame that must never be picked. */
+    long NOT_ELIGIBLE = Long.MIN_VALUE;
+
+    /** Name used in the persist property and in recorded decisions. */
+    String getName();
+
+    /**
+     * Returns the score of the frame, higher is better. When two frames
+     * get the same score the newer one wins.
+     *
+     * @param frame the frame being inserted
+     * @param previous the frame inserted before it, or null
+     */
+    long score(ZslFrameInfo frame, ZslFrameInfo previous);
+
+    /**
+     * Returns true if an eligible frame never scores below an older one.
+     * The window then looks at the newest frames first and stops at the
+     * first eligible one, instead of scoring every frame in the ring.
+     */
+    boolean prefersNewest();
+}
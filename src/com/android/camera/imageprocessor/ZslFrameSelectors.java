@@ -0,0 +1,166 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/**
+ * Built-in {@link ZslFrameSelector} policies.
+ */
+public class ZslFrameSelectors {
+    public static final String NEWEST_CONVERGED = "newest-converged";
+    public static final String SHARPEST = "sharpest";
+    public static final String LOWEST_MOTION = "lowest-motion";
+    public static final String CLOSEST_TO_SHUTTER = "closest-to-shutter";
+
+    // Fixed point scale for the fractional motion penalty.
+    private static final long MOTION_SCALE = 1000;
+
+    private ZslFrameSelectors() {
+    }
+
+    /** Returns the policy with the given name, or newest-converged if unknown. */
+    public static ZslFrameSelector fromName(String name) {
+        if (SHARPEST.equals(name)) {
+            return new Sharpest();
+        } else if (LOWEST_MOTION.equals(name)) {
+            return new LowestMotion();
+        } else if (CLOSEST_TO_SHUTTER.equals(name)) {
+            return new ClosestToShutter();
+        }
+        return new NewestConverged();
+    }
+
+    /**
+     * The newest frame with 3A settled. This is what the queue always did
+     * before the selectors were pluggable.
+     */
+    public static class NewestConverged implements ZslFrameSelector {
+        @Override
+        public String getName() {
+            return NEWEST_CONVERGED;
+        }
+
+        @Override
+        public long score(ZslFrameInfo frame, ZslFrameInfo previous) {
+            return frame.isConverged() ? frame.getTimestamp() : NOT_ELIGIBLE;
+        }
+
+        @Override
+        public boolean prefersNewest() {
+            return true;
+        }
+    }
+
+    /**
+     * The frame with the shortest exposure among those taken with the lens
+     * standing still and focus not scanning.
+     */
+    public static class Sharpest implements ZslFrameSelector {
+        @Override
+        public String getName() {
+            return SHARPEST;
+        }
+
+        @Override
+        public long score(ZslFrameInfo frame, ZslFrameInfo previous) {
+            if (frame.isLensMoving() || frame.isAfScanning()) {
+                return NOT_ELIGIBLE;
+            }
+            long exposureTime = frame.getExposureTime();
+            if (exposureTime <= 0) {
+                // No exposure reported, rank it behind every frame that has one.
+                return NOT_ELIGIBLE + 1;
+            }
+            return -exposureTime;
+        }
+
+        @Override
+        public boolean prefersNewest() {
+            return false;
+        }
+    }
+
+    /**
+     * The converged frame whose focus distance, exposure and sensitivity moved
+     * the least since the frame before it. Capture results carry no gyro
+     * data, so this is the best motion hint we have.
+     */
+    public static class LowestMotion implements ZslFrameSelector {
+        @Override
+        public String getName() {
+            return LOWEST_MOTION;
+        }
+
+        @Override
+        public long score(ZslFrameInfo frame, ZslFrameInfo previous) {
+            if (!frame.isConverged()) {
+                return NOT_ELIGIBLE;
+            }
+            if (previous == null) {
+                return 0;
+            }
+            double penalty = Math.abs(frame.getFocusDistance() - previous.getFocusDistance())
+                    + relativeChange(frame.getExposureTime(), previous.getExposureTime())
+                    + relativeChange(frame.getSensitivity(), previous.getSensitivity());
+            return -Math.round(penalty * MOTION_SCALE);
+        }
+
+        @Override
+        public boolean prefersNewest() {
+            return false;
+        }
+
+        private static double relativeChange(long value, long previous) {
+            if (value <= 0 || previous <= 0) {
+                return 0;
+            }
+            return Math.abs(value - previous) / (double) Math.max(value, previous);
+        }
+    }
+
+    /**
+     * The frame closest to the shutter press, whatever its 3A state. All
+     * queued frames were taken before the press, so that is the newest one.
+     */
+    public static class ClosestToShutter implements ZslFrameSelector {
+        @Override
+        public String getName() {
+            return CLOSEST_TO_SHUTTER;
+        }
+
+        @Override
+        public long score(ZslFrameInfo frame, ZslFrameInfo previous) {
+            return frame.getTimestamp();
+        }
+
+        @Override
+        public boolean prefersNewest() {
+            return true;
+        }
+    }
+}
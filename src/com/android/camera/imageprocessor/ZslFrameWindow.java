@@ -0,0 +1,313 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the scores of the frames held in a ZSL ring and the best one ready
+ * to be picked. Slots must be filled round robin, the way ZSLQueue does.
+ *
+ * Frames are scored lazily: inserting only records the frame, and the
+ * frames that came in since the last pick are scored when the next pick
+ * needs them. Frames pushed out of the ring before any pick never cost a
+ * capture result lookup. The frame pushed out last is kept as well, since
+ * the oldest frame in the ring is scored against it.
+ *
+ * The best frame comes from a tournament tree over the slots: every inner
+ * node holds the better of its two children, so the root is the best
+ * frame. Scoring or removing a frame only replays the matches on the way
+ * from its leaf to the root, unless enough frames came in since the last
+ * pick that replaying the whole tree once is cheaper. Selectors that
+ * always prefer the newest eligible frame skip the tree, the window walks
+ * back from the newest frame and stops at the first eligible one.
+ *
+ * Not thread safe, callers hold the ring lock.
+ */
+public class ZslFrameWindow {
+    public static final int NO_SLOT = -1;
+
+    private static final String TRACE_FRAME = "F ";
+    private static final String TRACE_PICK = "P ";
+
+    private final ZslFrameSelector mSelector;
+    private final ZslFrameInfo[] mFrames;
+    private final long[] mScores;
+    private final long[] mTimestamps;
+    // Insertion order, breaks ties in favor of the newer frame.
+    private final long[] mSequences;
+    private final boolean[] mPresent;
+    // Only used when the selector prefers the newest frame.
+    private final boolean[] mScored;
+    private final boolean mNewestFirst;
+    // Leaves start at mLeaves, node i has children 2i and 2i + 1.
+    private final int[] mTree;
+    private final int mLeaves;
+    private final int mDepth;
+    private int mLastSlot;
+    private long mSequence;
+    // Every frame up to this sequence number has been scored.
+    private long mScoredSequence;
+    // Frames up to this sequence number came before the last clear().
+    private long mClearedSequence;
+    private ZslFrameInfo mEvicted;
+    private long mEvictedSequence;
+    private final int mMaxDecisions;
+    private final LinkedList<String> mDecisions = new LinkedList<String>();
+
+    /**
+     * @param maxDecisions how many scored frames and picks to remember for
+     *                     {@link #getDecisions()}, 0 to record nothing
+     */
+    public ZslFrameWindow(ZslFrameSelector selector, int size, int maxDecisions) {
+        mSelector = selector;
+        mFrames = new ZslFrameInfo[size];
+        mScores = new long[size];
+        mTimestamps = new long[size];
+        mSequences = new long[size];
+        mPresent = new boolean[size];
+        mScored = new boolean[size];
+        mNewestFirst = selector.prefersNewest();
+        int leaves = 1;
+        int depth = 0;
+        while (leaves < size) {
+            leaves <<= 1;
+            depth++;
+        }
+        mLeaves = leaves;
+        mDepth = Math.max(1, depth);
+        mTree = new int[2 * leaves];
+        Arrays.fill(mTree, NO_SLOT);
+        mMaxDecisions = maxDecisions;
+    }
+
+    public ZslFrameSelector getSelector() {
+        return mSelector;
+    }
+
+    /**
+     * Holds the frame in the slot until a pick scores it. The frame is read
+     * again until size + 1 more frames have been inserted after it, it must
+     * not change before that.
+     */
+    public void insert(int slot, ZslFrameInfo frame) {
+        if (mFrames[slot] != null) {
+            mEvicted = mFrames[slot];
+            mEvictedSequence = mSequences[slot];
+        }
+        mFrames[slot] = frame;
+        mPresent[slot] = true;
+        mScored[slot] = false;
+        mScores[slot] = ZslFrameSelector.NOT_ELIGIBLE;
+        mTimestamps[slot] = frame.getTimestamp();
+        mSequences[slot] = ++mSequence;
+        mLastSlot = slot;
+        if (isRecording()) {
+            record(TRACE_FRAME + frame.toTraceLine());
+        }
+        // The tree still holds the old frame's matches, the frame is
+        // pending now, so they are replayed before anything reads the root.
+    }
+
+    /** Marks the slot empty, the frame was handed out or dropped. */
+    public void remove(int slot) {
+        if (!mPresent[slot]) {
+            return;
+        }
+        mPresent[slot] = false;
+        if (!mNewestFirst) {
+            update(slot);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mFrames, null);
+        Arrays.fill(mPresent, false);
+        Arrays.fill(mTree, NO_SLOT);
+        mEvicted = null;
+        mClearedSequence = mSequence;
+        mScoredSequence = mSequence;
+    }
+
+    /** Returns the slot holding the best eligible frame, or NO_SLOT. */
+    public int best() {
+        if (mNewestFirst) {
+            return newestEligible();
+        }
+        scorePending();
+        return mTree[1];
+    }
+
+    /** Like {@link #best()}, but also takes the frame out of the window. */
+    public int pick() {
+        int slot = best();
+        if (isRecording()) {
+            record(TRACE_PICK + (slot == NO_SLOT ? NO_SLOT : mTimestamps[slot]));
+        }
+        if (slot != NO_SLOT) {
+            remove(slot);
+        }
+        return slot;
+    }
+
+    public long getTimestamp(int slot) {
+        return mTimestamps[slot];
+    }
+
+    /** Scored frames and picks, oldest first, in the format {@link #replay} reads. */
+    public List<String> getDecisions() {
+        return new ArrayList<String>(mDecisions);
+    }
+
+    /**
+     * Feeds a recorded trace through a fresh window and returns the
+     * timestamp picked at every pick line, NO_SLOT where nothing was picked.
+     */
+    public static List<Long> replay(ZslFrameSelector selector, int size, List<String> trace) {
+        ZslFrameWindow window = new ZslFrameWindow(selector, size, 0);
+        List<Long> picks = new ArrayList<Long>();
+        int slot = 0;
+        for (String line : trace) {
+            if (line.startsWith(TRACE_FRAME)) {
+                window.insert(slot, ZslFrameInfo.fromTraceLine(
+                        line.substring(TRACE_FRAME.length())));
+                slot = (slot + 1) % size;
+            } else if (line.startsWith(TRACE_PICK)) {
+                int picked = window.pick();
+                picks.add(picked == NO_SLOT ? NO_SLOT : window.getTimestamp(picked));
+            }
+        }
+        return picks;
+    }
+
+    /** Scores the frames newest first until one is eligible. */
+    private int newestEligible() {
+        long oldest = Math.max(mClearedSequence, mSequence - mFrames.length);
+        for (long sequence = mSequence; sequence > oldest; sequence--) {
+            int slot = slotOf(sequence);
+            if (!mPresent[slot]) {
+                continue;
+            }
+            if (!mScored[slot]) {
+                mScores[slot] = mSelector.score(mFrames[slot], frameOf(sequence - 1));
+                mScored[slot] = true;
+            }
+            if (mScores[slot] != ZslFrameSelector.NOT_ELIGIBLE) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /** Scores the frames still in the ring that came in since the last pick. */
+    private void scorePending() {
+        long first = Math.max(mScoredSequence,
+                Math.max(mClearedSequence, mSequence - mFrames.length)) + 1;
+        if (first > mSequence) {
+            return;
+        }
+        for (long sequence = first; sequence <= mSequence; sequence++) {
+            int slot = slotOf(sequence);
+            if (mPresent[slot]) {
+                mScores[slot] = mSelector.score(mFrames[slot], frameOf(sequence - 1));
+            }
+        }
+        long scored = mSequence - first + 1;
+        if (scored * mDepth < mLeaves) {
+            for (long sequence = first; sequence <= mSequence; sequence++) {
+                update(slotOf(sequence));
+            }
+        } else {
+            // Replaying every match once is cheaper than one path per frame.
+            for (int slot = 0; slot < mFrames.length; slot++) {
+                mTree[mLeaves + slot] = isLive(slot) ? slot : NO_SLOT;
+            }
+            for (int node = mLeaves - 1; node > 0; node--) {
+                mTree[node] = better(mTree[2 * node], mTree[2 * node + 1]);
+            }
+        }
+        mScoredSequence = mSequence;
+    }
+
+    private int slotOf(long sequence) {
+        int n = mFrames.length;
+        return (int) (((mLastSlot - (mSequence - sequence)) % n + n) % n);
+    }
+
+    /** Returns the frame inserted with the sequence number, if still known. */
+    private ZslFrameInfo frameOf(long sequence) {
+        if (sequence <= mClearedSequence) {
+            return null;
+        }
+        if (sequence > mSequence - mFrames.length) {
+            return mFrames[slotOf(sequence)];
+        }
+        return sequence == mEvictedSequence ? mEvicted : null;
+    }
+
+    private boolean isLive(int slot) {
+        return mPresent[slot] && mScores[slot] != ZslFrameSelector.NOT_ELIGIBLE;
+    }
+
+    private int better(int a, int b) {
+        if (a == NO_SLOT) {
+            return b;
+        }
+        if (b == NO_SLOT) {
+            return a;
+        }
+        if (mScores[a] != mScores[b]) {
+            return mScores[a] > mScores[b] ? a : b;
+        }
+        return mSequences[a] > mSequences[b] ? a : b;
+    }
+
+    /** Replays the matches from the slot's leaf up to the root. */
+    private void update(int slot) {
+        int node = mLeaves + slot;
+        mTree[node] = isLive(slot) ? slot : NO_SLOT;
+        for (node >>= 1; node > 0; node >>= 1) {
+            mTree[node] = better(mTree[2 * node], mTree[2 * node + 1]);
+        }
+    }
+
+    private boolean isRecording() {
+        return mMaxDecisions > 0;
+    }
+
+    private void record(String decision) {
+        if (mDecisions.size() >= mMaxDecisions) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.add(decision);
+    }
+}
@@ -50,9 +50,9 @@ import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
 import com.android.camera.imageprocessor.PostProcessor;
+import com.android.camera.imageprocessor.YuvBufferPool;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
@@ -84,7 +84,6 @@ public class BestpictureFilter implements ImageFilter {
     private boolean mIsOn = false;
     private PostProcessor mProcessor;
     private ProgressDialog mProgressDialog;
-    private ImageFilter.ResultImage mBestpictureResultImage;
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -207,17 +206,21 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            ImageFilter.ResultImage resultImage = new ImageFilter.ResultImage(
+                    YuvBufferPool.getInstance().acquire(mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
-            yBuf.rewind();
-            vuBuf.rewind();
+            try {
+                yBuf.get(resultImage.outBuffer.array(), 0, yBuf.remaining());
+                vuBuf.get(resultImage.outBuffer.array(), mStrideY * mHeight,
+                        vuBuf.remaining());
+                yBuf.rewind();
+                vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
-                    mProcessor.waitForMetaData(imageNum));
+                return nv21ToJpeg(resultImage, mOrientation,
+                        mProcessor.waitForMetaData(imageNum));
+            } finally {
+                YuvBufferPool.getInstance().release(resultImage.outBuffer);
+            }
         }
     }
 
@@ -279,24 +282,11 @@ public class BestpictureFilter implements ImageFilter {
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
                 resultImage.width, resultImage.height, new int[]{resultImage.stride,
                 resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, result);
-        return bytes;
-    }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
+        return mProcessor.compressToJpeg(im, resultImage.outRoi,
+                mProcessor.getJpegQualityValue(), orientation, result);
     }
 
     private void saveBestPicture(byte[] bytes, int imageNum) {
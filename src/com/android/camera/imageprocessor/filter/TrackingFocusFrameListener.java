@@ -124,8 +124,16 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
-        bY.get(yvuBytes, 0, bY.remaining());
-        bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+        byte[] nv21 = yvuBytes;
+        if (bY.hasArray() && bVU.hasArray() && bY.array() == bVU.array()
+                && bY.arrayOffset() == 0 && bVU.arrayOffset() == mStrideY * mHeight
+                && bY.array().length >= yvuBytes.length) {
+            // Shared preview frame, already laid out as NV21.
+            nv21 = bY.array();
+        } else {
+            bY.get(yvuBytes, 0, bY.remaining());
+            bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+        }
         int[] cords = mTrackingFocusRender.getInputCords(mWidth, mHeight);
         if(cords != null) {
             if(mTrackedId != PENDING_REGISTRATION) {
@@ -138,7 +146,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
         if(mInputCords != null) {
             if (mTrackedId == PENDING_REGISTRATION) {
                 try {
-                    mTrackedId = registerObject(yvuBytes, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
+                    mTrackedId = registerObject(nv21, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
                     mIsFirstTime = false;
                 }catch(IllegalArgumentException e) {
                     mTrackedId = PENDING_REGISTRATION;
@@ -146,7 +154,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
                 }
             }
             if(mTrackedId != PENDING_REGISTRATION) {
-                mTrackingFocusRender.putRegisteredCords(trackObjects(yvuBytes), mWidth, mHeight);
+                mTrackingFocusRender.putRegisteredCords(trackObjects(nv21), mWidth, mHeight);
             }
         }
     }
@@ -49,7 +49,6 @@ import com.android.camera.CaptureModule;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -242,23 +241,10 @@ public class UbifocusFilter implements ImageFilter {
             buf.put(bVU);
             bVU.rewind();
         }
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
                 mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, mPostProcessor.waitForMetaData(imageIndex));
-        return bytes;
-    }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
+        return mPostProcessor.compressToJpeg(im, roi, mPostProcessor.getJpegQualityValue(),
+                orientation, mPostProcessor.waitForMetaData(imageIndex));
     }
 
     private void saveToPrivateFile(final int index, final byte[] bytes) {
@@ -298,14 +284,11 @@ public class UbifocusFilter implements ImageFilter {
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
                 resultImage.width, resultImage.height, new int[]{resultImage.stride,
                 resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, result);
-        return bytes;
+        return mPostProcessor.compressToJpeg(im, resultImage.outRoi,
+                mPostProcessor.getJpegQualityValue(), orientation, result);
     }
 
     private native int nativeInit(int width, int height, int yStride, int vuStride, int numImages);
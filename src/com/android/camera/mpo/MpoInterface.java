@@ -19,9 +19,7 @@
 
 package com.android.camera.mpo;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -85,44 +83,39 @@ public class MpoInterface {
         if (mpo == null || out == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        MpoOutputStream s = getMpoWriterStream(out);
-        s.setMpoData(mpo);
-
         // check and write mpo file
         try {
-            s.writeMpoFile();
+            MpoWriter writer = new MpoWriter(mpo);
+            writer.writeTo(out);
+            return (int) writer.size();
         } catch (IOException e) {
-            CameraUtil.closeSilently(s);
             Log.w(TAG, "IO Exception when writing mpo image");
             return -1;
+        } finally {
+            // close stream
+            CameraUtil.closeSilently(out);
         }
-
-        // close stream
-        CameraUtil.closeSilently(s);
-        return s.size();
     }
 
     public static int writeMpo(MpoData mpo, String outFilename) {
         if (mpo == null || outFilename == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
-    }
-
-    /**
-     * Wraps an OutputStream object with an MpoOutputStream.
-     *
-     * @param outStream
-     *            an OutputStream to wrap.
-     * @return an MpoOutputStream that wraps the outStream parameter, and adds
-     *         mpo metadata. A jpeg image should be written to this stream.
-     */
-    private static MpoOutputStream getMpoWriterStream(OutputStream outStream) {
-        if (outStream == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        FileOutputStream out = getFileWriterStream(outFilename);
+        if (out == null) {
+            return -1;
+        }
+        // All images are in memory, gather them straight into the file.
+        try {
+            MpoWriter writer = new MpoWriter(mpo);
+            writer.writeTo(out.getChannel());
+            return (int) writer.size();
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image");
+            return -1;
+        } finally {
+            CameraUtil.closeSilently(out);
         }
-        MpoOutputStream mos = new MpoOutputStream(outStream);
-        return mos;
     }
 
     /**
@@ -133,11 +126,11 @@ public class MpoInterface {
      * @return an FileOutputStream that writes to the outFileName file.
      * @throws FileNotFoundException
      */
-    private static OutputStream getFileWriterStream(String outFileName) {
+    private static FileOutputStream getFileWriterStream(String outFileName) {
         if (outFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        OutputStream out = null;
+        FileOutputStream out = null;
         try {
             out = new FileOutputStream(outFileName);
         } catch (FileNotFoundException e) {
@@ -147,13 +140,11 @@ public class MpoInterface {
         return out;
     }
 
-    private static short getShort(byte[] b, int index) {
-        return (short) (((b[index] << 8) | b[index + 1] & 0xff));
-    }
-
-    private static byte[] openNewStream(ByteArrayOutputStream stream) {
-        byte[] bytes = stream.toByteArray();
-        stream.reset();
+    private static ArrayList<byte[]> copyImages(MpoReader reader) {
+        ArrayList<byte[]> bytes = new ArrayList<>(reader.getImageCount());
+        for (int i = 0; i < reader.getImageCount(); i++) {
+            bytes.add(reader.copyImage(i));
+        }
         return bytes;
     }
 
@@ -164,54 +155,12 @@ public class MpoInterface {
      * last is gdepthBytes
      */
     public static ArrayList<byte[]> generateXmpFromMpo(String mpoFilePath) {
-        File mpoFile = new File(mpoFilePath);
-        ArrayList<byte[]> bytes = new ArrayList<>();
-        int readedCount;
-        byte[] readBuffer = new byte[1024];
-        int eoiNumber = 0;
-        int i;
-        int index = 0;
-        boolean endByFF = false;
-        int startIndex;
-        FileInputStream sourceStream = null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try {
-            sourceStream = new FileInputStream(mpoFile);
-            while ((readedCount = sourceStream.read(readBuffer)) != -1) {
-                if (endByFF && readBuffer[0] == (byte)0xd9 && ++eoiNumber == 2) {
-                    eoiNumber = 0;
-                    outputStream.write((byte)0xd9);
-                    index = 1;
-                    if (readedCount == 1) {
-                        break;
-                    }
-                    bytes.add(openNewStream(outputStream));
-                }
-                endByFF = false;
-                for (i = 0; i < readedCount - 1; i++) {
-                    if (getShort(readBuffer, i) != (short) 0xFFD9) {
-                        continue;
-                    }
-                    if (++eoiNumber == 2) {
-                        startIndex = index;
-                        index = i + 2;
-                        outputStream.write(readBuffer, startIndex, index - startIndex);
-                        bytes.add(openNewStream(outputStream));
-                        eoiNumber = 0;
-                    }
-                }
-                endByFF = readBuffer[readedCount - 1] == (byte)0xff;
-                if (index < readedCount) {
-                    outputStream.write(readBuffer, index, readedCount - index);
-                }
-                index = 0;
-            }
-            sourceStream.close();
-            outputStream.close();
+            return copyImages(MpoReader.map(new File(mpoFilePath)));
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return bytes;
+        return new ArrayList<>();
     }
 
     /**
@@ -219,31 +168,9 @@ public class MpoInterface {
      * @param mpoSourceBytes byte array of source mpo file
      * @return byte[] list. first is mainImageBytes. second is bayerBytes.
      * last is gdepthBytes
+     * @see MpoReader for access to the images without copying them
      */
     public static ArrayList<byte[]> generateXmpFromMpo(byte[] mpoSourceBytes) {
-        ArrayList<byte[]> bytes = new ArrayList<>();
-        int i;
-        int index = 0;
-        int startIndex;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            for (i = 0; i < mpoSourceBytes.length - 1; i++) {
-                if (getShort(mpoSourceBytes, i) != (short) 0xFFD9) {
-                    continue;
-                }
-                if (i < mpoSourceBytes.length - 3 &&
-                        getShort(mpoSourceBytes,i+2) != (short) 0xFFD8){
-                    continue;
-                }
-                startIndex = index;
-                index = i + 2;
-                outputStream.write(mpoSourceBytes, startIndex, index - startIndex);
-                bytes.add(openNewStream(outputStream));
-            }
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return bytes;
+        return copyImages(MpoReader.wrap(mpoSourceBytes));
     }
 }
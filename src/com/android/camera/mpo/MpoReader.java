@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ * Not a contribution.
+ *
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.exif.JpegSegmentIndex;
+import com.android.camera.mpo.MpoTag.MpEntry;
+import com.android.camera.util.CameraUtil;
+
+/**
+ * Locates the individual images of an MPO container without copying them.
+ *
+ * The MP Index IFD in the APP2 segment of the first image is read to get
+ * the offset and size of every image. Files without a usable index fall
+ * back to scanning for an EOI marker followed by an SOI marker.
+ */
+public class MpoReader {
+    private static final String TAG = "MpoReader";
+
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final short TAG_NUM_IMAGES = (short) 0xB001;
+    private static final short TAG_MP_ENTRY = (short) 0xB002;
+    private static final int IFD_ENTRY_SIZE = 12;
+    // MpoImageData.MP_FORMAT_IDENTIFIER as the bytes that start the APP2 payload.
+    private static final byte[] MP_FORMAT_SIGNATURE = { 'M', 'P', 'F', 0 };
+
+    private final ByteBuffer mSource;
+    private int[] mOffsets = new int[4];
+    private int[] mLengths = new int[4];
+    private int mCount;
+    private boolean mIndexed;
+
+    private MpoReader(ByteBuffer source) {
+        mSource = source.slice().order(ByteOrder.BIG_ENDIAN);
+        mIndexed = readIndex();
+        if (!mIndexed) {
+            mCount = 0;
+            scanMarkers();
+        }
+    }
+
+    public static MpoReader wrap(byte[] data) {
+        return new MpoReader(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wraps the remaining bytes of the buffer, its position is left as is.
+     */
+    public static MpoReader wrap(ByteBuffer data) {
+        return new MpoReader(data);
+    }
+
+    /**
+     * Memory maps an MPO file, only the pages of the images that are read
+     * get loaded.
+     */
+    public static MpoReader map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new MpoReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            CameraUtil.closeSilently(in);
+        }
+    }
+
+    public int getImageCount() {
+        return mCount;
+    }
+
+    /**
+     * Whether the images were located through the MP Index IFD rather than
+     * the marker scan.
+     */
+    public boolean isIndexed() {
+        return mIndexed;
+    }
+
+    public int getImageOffset(int index) {
+        checkIndex(index);
+        return mOffsets[index];
+    }
+
+    public int getImageLength(int index) {
+        checkIndex(index);
+        return mLengths[index];
+    }
+
+    /**
+     * Returns a read only view of one image. The view shares the container
+     * memory, nothing is copied.
+     */
+    public ByteBuffer getImage(int index) {
+        checkIndex(index);
+        ByteBuffer view = mSource.duplicate();
+        view.limit(mOffsets[index] + mLengths[index]);
+        view.position(mOffsets[index]);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies one image out, for consumers that need a byte array.
+     */
+    public byte[] copyImage(int index) {
+        checkIndex(index);
+        byte[] out = new byte[mLengths[index]];
+        ByteBuffer view = mSource.duplicate();
+        view.position(mOffsets[index]);
+        view.get(out);
+        return out;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("image " + index + " of " + mCount);
+        }
+    }
+
+    private void add(int offset, int length) {
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+        }
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mCount++;
+    }
+
+    private boolean readIndex() {
+        // Only the marker segments of the first image are walked, up to
+        // its scan data.
+        JpegSegmentIndex segments = JpegSegmentIndex.wrap(mSource);
+        int app2 = segments.find(JpegHeader.APP2, MP_FORMAT_SIGNATURE);
+        if (app2 < 0) {
+            return false;
+        }
+        int tiff = segments.getPayloadOffset(app2) + MP_FORMAT_SIGNATURE.length;
+        try {
+            return readIndexIfd(tiff, segments.getEnd(app2));
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Truncated MP index");
+            mCount = 0;
+            return false;
+        }
+    }
+
+    private boolean readIndexIfd(int tiff, int segmentEnd) {
+        ByteBuffer buf = mSource.duplicate();
+        short byteOrder = buf.getShort(tiff);
+        if (byteOrder == TIFF_LITTLE_ENDIAN) {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != TIFF_BIG_ENDIAN) {
+            return false;
+        }
+        if (buf.getShort(tiff + 2) != TIFF_HEADER) {
+            return false;
+        }
+        int ifd = tiff + buf.getInt(tiff + 4);
+        int tagCount = buf.getShort(ifd) & 0xffff;
+        int numImages = 0;
+        int entryOffset = -1;
+        int entryBytes = 0;
+        for (int i = 0; i < tagCount; i++) {
+            int tag = ifd + 2 + i * IFD_ENTRY_SIZE;
+            short id = buf.getShort(tag);
+            if (id == TAG_NUM_IMAGES) {
+                numImages = buf.getInt(tag + 8);
+            } else if (id == TAG_MP_ENTRY) {
+                entryBytes = buf.getInt(tag + 4);
+                entryOffset = tiff + buf.getInt(tag + 8);
+            }
+        }
+        if (numImages <= 0 || entryOffset < 0 || entryBytes < numImages * MpEntry.SIZE
+                || entryOffset + numImages * MpEntry.SIZE > segmentEnd) {
+            return false;
+        }
+        int limit = mSource.limit();
+        for (int i = 0; i < numImages; i++) {
+            int entry = entryOffset + i * MpEntry.SIZE;
+            int size = buf.getInt(entry + 4);
+            // The first image always starts at the beginning of the file,
+            // the others are relative to the MP header.
+            int offset = i == 0 ? 0 : tiff + buf.getInt(entry + 8);
+            if (size <= 0 || offset < 0 || offset + size > limit
+                    || mSource.getShort(offset) != JpegHeader.SOI) {
+                Log.w(TAG, "Bad MP entry " + i + ", falling back to marker scan");
+                mCount = 0;
+                return false;
+            }
+            add(offset, size);
+        }
+        return true;
+    }
+
+    private void scanMarkers() {
+        int limit = mSource.limit();
+        int start = 0;
+        for (int i = 0; i < limit - 1; i++) {
+            if (mSource.get(i) != (byte) 0xFF || mSource.get(i + 1) != (byte) 0xD9) {
+                continue;
+            }
+            if (i < limit - 3 && mSource.getShort(i + 2) != JpegHeader.SOI) {
+                continue;
+            }
+            add(start, i + 2 - start);
+            start = i + 2;
+        }
+    }
+}
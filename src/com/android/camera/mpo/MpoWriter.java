@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ * Not a contribution/
+ *
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.exif.OrderedDataOutputStream;
+import com.android.camera.mpo.MpoTag.MpEntry;
+import com.android.camera.util.PersistUtil;
+
+/**
+ * Writes an {@link MpoData} container in one pass over in-memory JPEGs.
+ *
+ * The whole layout is worked out before anything is written: where the
+ * APP2 MP segment goes in each image, which dual camera crop segment gets
+ * blanked, and the final MP entry offsets. The file is then emitted as a
+ * list of buffers that wrap the source arrays, so the JPEG payloads are
+ * never copied and a FileChannel can gather them in a single write.
+ */
+class MpoWriter {
+    private static final String TAG = "MpoWriter";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int MAX_EXIF_SIZE = 65535;
+
+    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+    private static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
+
+    private final MpoData mMpoData;
+    private final List<ByteBuffer> mBuffers = new ArrayList<ByteBuffer>();
+    private long mSize;
+
+    MpoWriter(MpoData mpoData) throws IOException {
+        mMpoData = mpoData;
+        mMpoData.updateAllTags();
+        layout();
+    }
+
+    /**
+     * Total number of bytes the container takes.
+     */
+    long size() {
+        return mSize;
+    }
+
+    void writeTo(FileChannel channel) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[mBuffers.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = mBuffers.get(i).duplicate();
+        }
+        long remaining = mSize;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        for (ByteBuffer buffer : mBuffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        out.flush();
+    }
+
+    private void layout() throws IOException {
+        MpoImageData primary = mMpoData.getPrimaryMpoImage();
+        // The primary image carries the dual camera crop info of the bayer
+        // frame when a ClearSight image is the primary, blank it.
+        boolean skipCropData = mMpoData.getAuxiliaryImageCount() > 1;
+
+        int insertAt = findMpSegmentOffset(primary.getJpegData());
+        // MP entry offsets are relative to the TIFF header of the primary
+        // image's APP2 segment, the primary itself is always at 0.
+        int mpHeaderOffset = insertAt + 2 + MpoImageData.APP_HEADER_SIZE;
+        updateIndexIfdOffsets(primary, mpHeaderOffset);
+
+        addImage(primary, insertAt, skipCropData);
+        for (MpoImageData image : mMpoData.getAuxiliaryMpoImages()) {
+            addImage(image, findMpSegmentOffset(image.getJpegData()), false);
+        }
+    }
+
+    private void addImage(MpoImageData image, int insertAt, boolean skipCropData)
+            throws IOException {
+        byte[] jpeg = image.getJpegData();
+        add(ByteBuffer.wrap(jpeg, 0, insertAt));
+        add(ByteBuffer.wrap(buildMpSegment(image)));
+
+        int cropAt = skipCropData ? findCropInfo(jpeg, insertAt) : -1;
+        if (cropAt < 0) {
+            add(ByteBuffer.wrap(jpeg, insertAt, jpeg.length - insertAt));
+            return;
+        }
+        int payload = cropAt + 4;
+        int payloadLength = ((jpeg[cropAt + 2] & 0xff) << 8 | (jpeg[cropAt + 3] & 0xff)) - 2;
+        add(ByteBuffer.wrap(jpeg, insertAt, payload - insertAt));
+        add(ByteBuffer.allocate(payloadLength));
+        add(ByteBuffer.wrap(jpeg, payload + payloadLength,
+                jpeg.length - payload - payloadLength));
+    }
+
+    private void add(ByteBuffer buffer) {
+        if (buffer.remaining() > 0) {
+            mBuffers.add(buffer);
+            mSize += buffer.remaining();
+        }
+    }
+
+    private static int readShort(byte[] jpeg, int offset) {
+        return (jpeg[offset] & 0xff) << 8 | (jpeg[offset + 1] & 0xff);
+    }
+
+    /**
+     * Returns the offset right after SOI and any APP0 or APP1 segment, which
+     * is where the MP segment goes.
+     */
+    private static int findMpSegmentOffset(byte[] jpeg) throws IOException {
+        if (jpeg.length < 4 || (short) readShort(jpeg, 0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write mpo");
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            short marker = (short) readShort(jpeg, pos);
+            if (marker != JpegHeader.APP0 && marker != JpegHeader.APP1) {
+                break;
+            }
+            pos += 2 + readShort(jpeg, pos + 2);
+        }
+        return Math.min(pos, jpeg.length);
+    }
+
+    /**
+     * Returns the offset of the marker segment holding the dual camera crop
+     * info, or -1 when there is none before the frame header.
+     */
+    private static int findCropInfo(byte[] jpeg, int pos) {
+        while (pos + 4 <= jpeg.length) {
+            short marker = (short) readShort(jpeg, pos);
+            if ((marker & 0xff00) != 0xff00 || marker == JpegHeader.SOS
+                    || JpegHeader.isSofMarker(marker)) {
+                return -1;
+            }
+            int length = readShort(jpeg, pos + 2);
+            if (length - 2 >= DC_CROP_INFO_BYTE_SIZE
+                    && pos + 4 + DC_CROP_INFO_BYTE_SIZE <= jpeg.length
+                    && matchesCropInfo(jpeg, pos + 4)) {
+                return pos + 2 + length <= jpeg.length ? pos : -1;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private static boolean matchesCropInfo(byte[] jpeg, int offset) {
+        for (int i = 0; i < DC_CROP_INFO_BYTE_SIZE; i++) {
+            if (jpeg[offset + i] != (byte) DC_CROP_INFO.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateIndexIfdOffsets(MpoImageData primary, int mpoOffset) {
+        MpoTag mpEntryTag = primary.getTag((short) MpoInterface.TAG_MP_ENTRY,
+                MpoIfdData.TYPE_MP_INDEX_IFD);
+        List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
+        for (int i = 1; i < mpEntries.size(); i++) { // primary offset is always 0
+            MpEntry entry = mpEntries.get(i);
+            entry.setImageOffset(entry.getImageOffset() - mpoOffset);
+        }
+        mpEntryTag.setValue(mpEntries);
+    }
+
+    private byte[] buildMpSegment(MpoImageData image) throws IOException {
+        int exifSize = image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        if (exifSize > MAX_EXIF_SIZE) {
+            throw new IOException("Exif header is too large (>64Kb)");
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Writing mpo data, size " + exifSize);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(exifSize + 2);
+        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(bytes);
+        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
+        dataOutputStream.writeShort(JpegHeader.APP2);
+        dataOutputStream.writeShort((short) (exifSize));
+        dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
+        if (image.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+            dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
+        } else {
+            dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
+        }
+        dataOutputStream.setByteOrder(image.getByteOrder());
+        dataOutputStream.writeShort(TIFF_HEADER);
+        if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
+            dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
+            MpoIfdData indexIfd = image.getIndexIfdData();
+            if (indexIfd.getTagCount() > 0) {
+                writeIfd(indexIfd, dataOutputStream);
+            }
+            MpoIfdData attribIfd = image.getAttribIfdData();
+            if (attribIfd.getTagCount() > 0) {
+                writeIfd(attribIfd, dataOutputStream);
+            }
+        } else {
+            dataOutputStream.writeInt(0);
+        }
+        dataOutputStream.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+            throws IOException {
+        MpoTag[] tags = ifd.getAllTags();
+        dataOutputStream.writeShort((short) tags.length);
+        for (MpoTag tag : tags) {
+            dataOutputStream.writeShort(tag.getTagId());
+            dataOutputStream.writeShort(tag.getDataType());
+            dataOutputStream.writeInt(tag.getComponentCount());
+            if (DEBUG) {
+                Log.v(TAG, "\n" + tag.toString());
+            }
+            if (tag.getDataSize() > 4) {
+                dataOutputStream.writeInt(tag.getOffset());
+            } else {
+                writeTagValue(tag, dataOutputStream);
+                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
+                    dataOutputStream.write(0);
+                }
+            }
+        }
+        dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
+        for (MpoTag tag : tags) {
+            if (tag.getDataSize() > 4) {
+                writeTagValue(tag, dataOutputStream);
+            }
+        }
+    }
+    static void writeTagValue(MpoTag tag, OrderedDataOutputStream dataOutputStream)
+            throws IOException {
+        switch (tag.getDataType()) {
+        case MpoTag.TYPE_ASCII:
+            byte buf[] = tag.getStringByte();
+            if (buf.length == tag.getComponentCount()) {
+                buf[buf.length - 1] = 0;
+                dataOutputStream.write(buf);
+            } else {
+                dataOutputStream.write(buf);
+                dataOutputStream.write(0);
+            }
+            break;
+        case MpoTag.TYPE_LONG:
+        case MpoTag.TYPE_UNSIGNED_LONG:
+            for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
+                dataOutputStream.writeInt((int) tag.getValueAt(i));
+            }
+            break;
+        case MpoTag.TYPE_RATIONAL:
+        case MpoTag.TYPE_UNSIGNED_RATIONAL:
+            for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
+                dataOutputStream.writeRational(tag.getRational(i));
+            }
+            break;
+        case MpoTag.TYPE_UNDEFINED:
+        case MpoTag.TYPE_UNSIGNED_BYTE:
+            buf = new byte[tag.getComponentCount()];
+            tag.getBytes(buf);
+            dataOutputStream.write(buf);
+            break;
+        case MpoTag.TYPE_UNSIGNED_SHORT:
+            for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
+                dataOutputStream.writeShort((short) tag.getValueAt(i));
+            }
+            break;
+        }
+    }
+}
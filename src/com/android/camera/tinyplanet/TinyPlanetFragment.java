@@ -18,6 +18,7 @@ package com.android.camera.tinyplanet;
 
 import android.app.DialogFragment;
 import android.app.ProgressDialog;
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -42,20 +43,24 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.android.camera.CameraActivity;
-import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
-import com.android.camera.MediaSaveService.OnMediaSavedListener;
+import com.android.camera.Storage;
+import com.android.camera.data.LocalData;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.JpegStripWriter;
 import com.android.camera.tinyplanet.TinyPlanetPreview.PreviewSizeListener;
+import com.android.camera.util.CameraUtil;
 import com.android.camera.util.XmpUtil;
 import org.codeaurora.snapcam.R;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Date;
 import java.util.TimeZone;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -87,6 +92,11 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private static final String TAG = "TinyPlanetActivity";
     /** Delay between a value update and the renderer running. */
     private static final int RENDER_DELAY_MILLIS = 50;
+    /** The low res preview is this many times smaller in each dimension. */
+    private static final int LOW_RES_PREVIEW_DIVISOR = 2;
+    /** Rows of the saved tiny planet rendered and compressed at a time. */
+    private static final int SAVE_BAND_HEIGHT = 128;
+    private static final int SAVE_BUFFER_SIZE = 64 * 1024;
     /** Filename prefix to prepend to the original name for the new file. */
     private static final String FILENAME_PREFIX = "TINYPLANET_";
 
@@ -110,9 +120,13 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private Bitmap mSourceBitmap;
     /** The resulting preview bitmap. */
     private Bitmap mResultBitmap;
+    /** The quickly rendered preview shown while the values change. */
+    private Bitmap mLowResBitmap;
 
     /** Used to delay-post a tiny planet rendering task. */
     private Handler mHandler = new Handler();
+    /** Whether a rendering task is posted, only used on the UI thread. */
+    private boolean mUpdateScheduled = false;
     /** Whether rendering is in progress right now. */
     private Boolean mRendering = false;
     /**
@@ -122,17 +136,6 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
      */
     private Boolean mRenderOneMore = false;
 
-    /** Tiny planet data plus size. */
-    private static final class TinyPlanetImage {
-        public final byte[] mJpegData;
-        public final int mSize;
-
-        public TinyPlanetImage(byte[] jpegData, int size) {
-            mJpegData = jpegData;
-            mSize = size;
-        }
-    }
-
     /**
      * Creates and executes a task to create a tiny planet with the current
      * values.
@@ -140,6 +143,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private final Runnable mCreateTinyPlanetRunnable = new Runnable() {
         @Override
         public void run() {
+            mUpdateScheduled = false;
             synchronized (mRendering) {
                 if (mRendering) {
                     mRenderOneMore = true;
@@ -148,28 +152,33 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
                 mRendering = true;
             }
 
-            (new AsyncTask<Void, Void, Void>() {
+            (new AsyncTask<Void, Bitmap, Bitmap>() {
                 @Override
-                protected Void doInBackground(Void... params) {
-                    mResultLock.lock();
-                    try {
-                        if (mSourceBitmap == null || mResultBitmap == null) {
+                protected Bitmap doInBackground(Void... params) {
+                    // A low res pass first so the preview keeps up with the
+                    // sliders, the full res one only while they rest.
+                    if (!renderPreview(mLowResBitmap)) {
+                        return null;
+                    }
+                    publishProgress(mLowResBitmap);
+                    synchronized (mRendering) {
+                        if (mRenderOneMore) {
                             return null;
                         }
-
-                        int width = mSourceBitmap.getWidth();
-                        int height = mSourceBitmap.getHeight();
-                        TinyPlanetNative.process(mSourceBitmap, width, height, mResultBitmap,
-                                mPreviewSizePx,
-                                mCurrentZoom, mCurrentAngle);
-                    } finally {
-                        mResultLock.unlock();
                     }
-                    return null;
+                    return renderPreview(mResultBitmap) ? mResultBitmap : null;
                 }
 
-                protected void onPostExecute(Void result) {
-                    mPreview.setBitmap(mResultBitmap, mResultLock);
+                @Override
+                protected void onProgressUpdate(Bitmap... bitmaps) {
+                    mPreview.setBitmap(bitmaps[0], mResultLock);
+                }
+
+                @Override
+                protected void onPostExecute(Bitmap result) {
+                    if (result != null) {
+                        mPreview.setBitmap(result, mResultLock);
+                    }
                     synchronized (mRendering) {
                         mRendering = false;
                         if (mRenderOneMore) {
@@ -182,12 +191,40 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         }
     };
 
+    /**
+     * Renders the tiny planet with the current values into the bitmap. Don't
+     * call this on the UI thread.
+     *
+     * @return false if there is nothing to render or nothing to render into.
+     */
+    private boolean renderPreview(Bitmap result) {
+        mResultLock.lock();
+        try {
+            if (mSourceBitmap == null || result == null || result.isRecycled()) {
+                return false;
+            }
+            int width = mSourceBitmap.getWidth();
+            int height = mSourceBitmap.getHeight();
+            TinyPlanetNative.process(mSourceBitmap, width, height, result, result.getWidth(),
+                    mCurrentZoom, mCurrentAngle);
+            return true;
+        } finally {
+            mResultLock.unlock();
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setStyle(DialogFragment.STYLE_NORMAL, R.style.Theme_Camera);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        TinyPlanetNative.releaseTables();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
@@ -291,53 +328,44 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
 
         final String savingTinyPlanet = getActivity().getResources().getString(
                 R.string.saving_tiny_planet);
-        (new AsyncTask<Void, Void, TinyPlanetImage>() {
+        final ContentResolver resolver = getActivity().getContentResolver();
+        (new AsyncTask<Void, Void, Uri>() {
             @Override
             protected void onPreExecute() {
                 mDialog = ProgressDialog.show(getActivity(), null, savingTinyPlanet, true, false);
             }
 
             @Override
-            protected TinyPlanetImage doInBackground(Void... params) {
-                return createTinyPlanet();
+            protected Uri doInBackground(Void... params) {
+                return createTinyPlanet(resolver);
             }
 
             @Override
-            protected void onPostExecute(TinyPlanetImage image) {
-                // Once created, store the new file and add it to the filmstrip.
-                final CameraActivity activity = (CameraActivity) getActivity();
-                MediaSaveService mediaSaveService = activity.getMediaSaveService();
-                OnMediaSavedListener doneListener =
-                        new OnMediaSavedListener() {
-                            @Override
-                            public void onMediaSaved(Uri uri) {
-                                // Add the new photo to the filmstrip and exit
-                                // the fragment.
-                                activity.notifyNewMedia(uri);
-                                mDialog.dismiss();
-                                TinyPlanetFragment.this.dismiss();
-                            }
-                        };
-                String tinyPlanetTitle = FILENAME_PREFIX + mOriginalTitle;
-                mediaSaveService.addImage(image.mJpegData, tinyPlanetTitle, (new Date()).getTime(),
-                        null,
-                        image.mSize, image.mSize, 0, null, doneListener, getActivity()
-                                .getContentResolver(),PhotoModule.PIXEL_FORMAT_JPEG);
+            protected void onPostExecute(Uri uri) {
+                // Add the new photo to the filmstrip and exit the fragment.
+                CameraActivity activity = (CameraActivity) getActivity();
+                if (uri != null && activity != null) {
+                    activity.notifyNewMedia(uri);
+                }
+                mDialog.dismiss();
+                TinyPlanetFragment.this.dismiss();
             }
         }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     /**
      * Creates the high quality tiny planet file and adds it to the media
-     * service. Don't call this on the UI thread.
+     * store. Don't call this on the UI thread.
      */
-    private TinyPlanetImage createTinyPlanet() {
+    private Uri createTinyPlanet(ContentResolver resolver) {
         // Free some memory we don't need anymore as we're going to dimiss the
         // fragment after the tiny planet creation.
         mResultLock.lock();
         try {
             mResultBitmap.recycle();
             mResultBitmap = null;
+            mLowResBitmap.recycle();
+            mLowResBitmap = null;
             mSourceBitmap.recycle();
             mSourceBitmap = null;
         } finally {
@@ -348,22 +376,95 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         Bitmap sourceBitmap = createPaddedSourceImage(mSourceImageUri, false);
         int width = sourceBitmap.getWidth();
         int height = sourceBitmap.getHeight();
-
         int outputSize = width / 2;
-        Bitmap resultBitmap = Bitmap.createBitmap(outputSize, outputSize,
-                Bitmap.Config.ARGB_8888);
 
-        TinyPlanetNative.process(sourceBitmap, width, height, resultBitmap,
-                outputSize, mCurrentZoom, mCurrentAngle);
-
-        // Free the sourceImage memory as we don't need it and we need memory
-        // for the JPEG bytes.
-        sourceBitmap.recycle();
-        sourceBitmap = null;
+        String title = FILENAME_PREFIX + mOriginalTitle;
+        long date = System.currentTimeMillis();
+        String path = Storage.generateFilepath(title, PhotoModule.PIXEL_FORMAT_JPEG);
+        int length;
+        try {
+            length = writeTinyPlanet(sourceBitmap, outputSize, path);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the tiny planet in bands, creating it whole", e);
+            Bitmap resultBitmap = Bitmap.createBitmap(outputSize, outputSize,
+                    Bitmap.Config.ARGB_8888);
+            TinyPlanetNative.process(sourceBitmap, width, height, resultBitmap,
+                    outputSize, mCurrentZoom, mCurrentAngle);
+
+            // Free the sourceImage memory as we don't need it and we need memory
+            // for the JPEG bytes.
+            sourceBitmap.recycle();
+
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            resultBitmap.compress(CompressFormat.JPEG, 100, jpeg);
+            resultBitmap.recycle();
+            byte[] data = addExif(jpeg.toByteArray());
+            Storage.writeFile(path, data);
+            length = data.length;
+        } finally {
+            sourceBitmap.recycle();
+        }
+        return Storage.addImage(resolver, title, date, null, 0, length, path,
+                outputSize, outputSize, LocalData.MIME_TYPE_JPEG);
+    }
 
+    /**
+     * Renders the tiny planet a band of rows at a time and streams each
+     * compressed band to the file, so next to the source only one band is
+     * held in memory.
+     *
+     * @return the length of the file.
+     * @throws IOException if the file could not be written, it is removed.
+     */
+    private int writeTinyPlanet(Bitmap source, int outputSize, String path)
+            throws IOException {
+        int bandHeight = Math.min(SAVE_BAND_HEIGHT,
+                JpegStripWriter.getMaxStripHeight(outputSize));
+        if (bandHeight <= 0) {
+            throw new IOException("Tiny planet is too large to write in bands: " + outputSize);
+        }
+        Bitmap band = Bitmap.createBitmap(outputSize, bandHeight, Bitmap.Config.ARGB_8888);
         ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
-        resultBitmap.compress(CompressFormat.JPEG, 100, jpeg);
-        return new TinyPlanetImage(addExif(jpeg.toByteArray()), outputSize);
+        File file = new File(path);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+                SAVE_BUFFER_SIZE);
+        boolean written = false;
+        try {
+            JpegStripWriter writer = new JpegStripWriter(out, outputSize, outputSize,
+                    bandHeight);
+            writer.addSegment(createExif().createExifSegment());
+            for (int top = 0; top < outputSize; top += bandHeight) {
+                int rows = Math.min(bandHeight, outputSize - top);
+                if (rows != band.getHeight()) {
+                    band.recycle();
+                    band = Bitmap.createBitmap(outputSize, rows, Bitmap.Config.ARGB_8888);
+                }
+                TinyPlanetNative.processRows(source, source.getWidth(), source.getHeight(),
+                        band, outputSize, top, rows, mCurrentZoom, mCurrentAngle);
+                jpeg.reset();
+                band.compress(CompressFormat.JPEG, 100, jpeg);
+                writer.writeStrip(jpeg.toByteArray(), jpeg.size());
+            }
+            writer.finish();
+            written = true;
+        } finally {
+            band.recycle();
+            CameraUtil.closeSilently(out);
+            if (!written) {
+                file.delete();
+            }
+        }
+        return (int) file.length();
+    }
+
+    /**
+     * Basic EXIF data for the tiny planet image so it can be rewritten later.
+     */
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        return exif;
     }
 
     /**
@@ -374,12 +475,9 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
      * @return The JPEG data containing basic EXIF.
      */
     private byte[] addExif(byte[] jpeg) {
-        ExifInterface exif = new ExifInterface();
-        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
-                TimeZone.getDefault());
         ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
-            exif.writeExif(jpeg, jpegOut);
+            createExif().writeExif(jpeg, jpegOut);
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
@@ -405,6 +503,12 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
                 }
                 mResultBitmap = Bitmap.createBitmap(mPreviewSizePx, mPreviewSizePx,
                         Bitmap.Config.ARGB_8888);
+                if (mLowResBitmap != null) {
+                    mLowResBitmap.recycle();
+                }
+                int lowResSizePx = Math.max(1, mPreviewSizePx / LOW_RES_PREVIEW_DIVISOR);
+                mLowResBitmap = Bitmap.createBitmap(lowResSizePx, lowResSizePx,
+                        Bitmap.Config.ARGB_8888);
             }
         } finally {
             mResultLock.unlock();
@@ -427,11 +531,15 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     }
 
     /**
-     * Delay-post a new preview rendering run.
+     * Delay-post a new preview rendering run. Further updates until it runs
+     * are picked up by it, so a slider that keeps moving still gets a
+     * rendering run every RENDER_DELAY_MILLIS.
      */
     private void scheduleUpdate() {
-        mHandler.removeCallbacks(mCreateTinyPlanetRunnable);
-        mHandler.postDelayed(mCreateTinyPlanetRunnable, RENDER_DELAY_MILLIS);
+        if (!mUpdateScheduled) {
+            mUpdateScheduled = true;
+            mHandler.postDelayed(mCreateTinyPlanetRunnable, RENDER_DELAY_MILLIS);
+        }
     }
 
     private InputStream getInputStream(Uri uri) {
@@ -39,4 +39,29 @@ public class TinyPlanetNative {
      */
     public static native void process(Bitmap in, int width, int height, Bitmap out, int outputSize,
             float scale, float angleRadians);
+
+    /**
+     * Create a band of rows of a tiny planet, so a large one can be created
+     * without holding all of it.
+     *
+     * @param in the 360 degree stereographically mapped panoramic input image.
+     * @param width the width of the input image.
+     * @param height the height of the input image.
+     * @param out receives the rows, it has to be outputSize wide and at least
+     *            rows high.
+     * @param outputSize the width and height of the whole square tiny planet.
+     * @param top the first row of the tiny planet to create.
+     * @param rows the number of rows to create.
+     * @param scale the scale factor.
+     * @param angleRadians the angle of the tiny planet in radians.
+     */
+    public static native void processRows(Bitmap in, int width, int height, Bitmap out,
+            int outputSize, int top, int rows, float scale, float angleRadians);
+
+    /**
+     * Frees the tables cached to speed up previews. Call once no more
+     * previews are coming, a render still running keeps its table until it
+     * is done.
+     */
+    public static native void releaseTables();
 }
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -42,7 +43,8 @@ public class TinyPlanetPreview extends View {
         public void onSizeChanged(int sizePx);
     }
 
-    private Paint mPaint = new Paint();
+    private Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Rect mDestination = new Rect();
     private Bitmap mPreview;
     private Lock mLock;
     private PreviewSizeListener mPreviewSizeListener;
@@ -82,7 +84,9 @@ public class TinyPlanetPreview extends View {
         if (mLock != null && mLock.tryLock()) {
             try {
                 if (mPreview != null && !mPreview.isRecycled()) {
-                    canvas.drawBitmap(mPreview, 0, 0, mPaint);
+                    // Low res previews are stretched to fill the view.
+                    mDestination.set(0, 0, getWidth(), getHeight());
+                    canvas.drawBitmap(mPreview, null, mDestination, mPaint);
                 }
             } finally {
                 mLock.unlock();
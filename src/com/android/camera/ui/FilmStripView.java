@@ -68,6 +68,10 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
     // Only check for intercepting touch events within first 500ms
     private static final int SWIPE_TIME_OUT = 500;
     private static final int DECELERATION_FACTOR = 4;
+    // Items ahead of the center to prefetch, one past the buffer when
+    // dragging and more for a long fling.
+    private static final int PREFETCH_MIN_ITEMS = (BUFFER_SIZE - 1) / 2 + 1;
+    private static final int PREFETCH_MAX_ITEMS = 8;
 
     private CameraActivity mActivity;
     private FilmStripGestureRecognizer mGestureRecognizer;
@@ -109,6 +113,14 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
     private boolean mIsLoaded = false;
     private boolean initialClampX = false;
 
+    // The heading of the current scroll, 1 towards higher data IDs.
+    private int mScrollDirection;
+    private int mScrollLookAhead = PREFETCH_MIN_ITEMS;
+    // The last decode hint given to the data adapter.
+    private int mHintDataId = -1;
+    private int mHintDirection;
+    private int mHintLookAhead;
+
     /**
      * Common interface for all images in the filmstrip.
      */
@@ -321,6 +333,19 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
          *         otherwise.
          */
         public boolean canSwipeInFullScreen(int dataID);
+
+        /**
+         * Hints the adapter about where the film strip is heading, so it can
+         * decode ahead of the views it will be asked for.
+         *
+         * @param context The context used to load the data.
+         * @param dataID The ID of the data at the center.
+         * @param direction 1 when heading towards higher IDs, -1 towards
+         *            lower IDs, 0 once the film strip has settled on
+         *            {@code dataID}.
+         * @param lookAhead How many data ahead are worth prefetching.
+         */
+        public void onScrollHint(Context context, int dataID, int direction, int lookAhead);
     }
 
     /**
@@ -983,6 +1008,27 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
         if (mListener != null) {
             mListener.onDataFocusChanged(mViewItem[mCurrentItem].getId(), true);
         }
+        hintDecodes(mScrollDirection, mScrollLookAhead);
+    }
+
+    /**
+     * Tells the data adapter where the film strip is heading, if that changed
+     * since the last hint.
+     */
+    private void hintDecodes(int direction, int lookAhead) {
+        ViewItem curr = mViewItem[mCurrentItem];
+        if (curr == null || mDataAdapter == null) {
+            return;
+        }
+        int dataID = curr.getId();
+        if (dataID == mHintDataId && direction == mHintDirection
+                && lookAhead == mHintLookAhead) {
+            return;
+        }
+        mHintDataId = dataID;
+        mHintDirection = direction;
+        mHintLookAhead = lookAhead;
+        mDataAdapter.onScrollHint(mActivity, dataID, direction, lookAhead);
     }
 
     /**
@@ -1034,6 +1080,11 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
                 mListener.onCurrentDataOffCentered(dataID);
             }
         }
+        if (isDataAtCenter(dataID)) {
+            // Settled, the centered item can be decoded at full size.
+            mScrollDirection = 0;
+            hintDecodes(0, 0);
+        }
     }
 
     /**
@@ -2027,6 +2078,7 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
         mController.stopScrolling(true);
         mController.stopScale();
         mDataIdOnUserScrolling = 0;
+        mHintDataId = -1;
         // Reload has a side effect that after this call, it will show the
         // camera preview. So we want to know whether it starts from the camera
         // preview to decide whether we need to call onDataFocusChanged.
@@ -2262,6 +2314,11 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
                 return;
             }
             mCenterX += deltaX;
+            if (deltaX != 0) {
+                mScrollDirection = deltaX > 0 ? 1 : -1;
+                mScrollLookAhead = PREFETCH_MIN_ITEMS;
+                hintDecodes(mScrollDirection, mScrollLookAhead);
+            }
 
             boolean stopScroll = clampCenterX();
             checkCurrentDataCentered(getCurrentId());
@@ -2297,6 +2354,14 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
             // the possible maximum too.
             int maxX = estimateMaxX(item.getId(), item.getLeftPosition(), w);
             mScroller.fling(mCenterX, 0, (int) -velocityX, 0, minX, maxX, 0, 0);
+
+            // Prefetch as many items as the fling is going to pass.
+            int distance = mScroller.getFinalX() - mCenterX;
+            int itemWidth = Math.max(1, item.getView().getMeasuredWidth() + mViewGap);
+            mScrollDirection = Integer.signum(distance);
+            mScrollLookAhead = Math.min(PREFETCH_MAX_ITEMS,
+                    PREFETCH_MIN_ITEMS + Math.abs(distance) / itemWidth);
+            hintDecodes(mScrollDirection, mScrollLookAhead);
         }
 
         @Override
@@ -2347,6 +2412,7 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
 
                     current.updateTransform(transX, transY, mScale,
                             mScale, mDrawArea.width(), mDrawArea.height());
+                    loadZoomedImage();
                 }
             });
 
@@ -2678,6 +2744,10 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
             return (mScroller.isFinished() && !mXScrollAnimator.isRunning());
         }
 
+        public int getFinalX() {
+            return mScroller.getFinalX();
+        }
+
         public void forceFinished(boolean finished) {
             mScroller.forceFinished(finished);
             if (finished) {
@@ -2834,7 +2904,6 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
             if (!mDataAdapter.canSwipeInFullScreen(currItem.getId())) {
                 return false;
             }
-            hideZoomView();
             // When image is zoomed in to be bigger than the screen
             if (mController.isZoomStarted()) {
                 ViewItem curr = mViewItem[mCurrentItem];
@@ -2842,6 +2911,9 @@ public class FilmStripView extends ViewGroup implements BottomControlsListener {
                 float transY = curr.getTranslationY() - dy;
                 curr.updateTransform(transX, transY, mScale, mScale, mDrawArea.width(),
                         mDrawArea.height());
+                // The zoom view follows the pan, drawing the cached tiles and
+                // decoding the ones that scroll in.
+                mController.loadZoomedImage();
                 return true;
             }
             int deltaX = (int) (dx / mScale);
@@ -20,135 +20,169 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
-import android.widget.ImageView;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-
-public class ZoomView extends ImageView {
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the zoomed-in part of a photo at full resolution.
+ *
+ * The image is split into tiles of {@link #TILE_SIZE} decoded pixels on a
+ * pyramid of power of two sample sizes. Only the tiles that cover the
+ * viewport at the level matching the current zoom are decoded, with a
+ * {@link BitmapRegionDecoder} on a background thread, nearest to the center
+ * first. Tiles that are not decoded yet fall back to a coarser cached level,
+ * or to the film strip view underneath. Tiles that scroll offscreen are
+ * evicted, and the cache is sized for the viewport, so memory does not grow
+ * with the resolution of the source.
+ */
+public class ZoomView extends View {
 
     private static final String TAG = "ZoomView";
 
+    /** Size of a tile in decoded pixels, at every level. */
+    static final int TILE_SIZE = 256;
+    private static final int BYTES_PER_PIXEL = 2;
+
     private int mViewportWidth = 0;
     private int mViewportHeight = 0;
 
     private int mFullResImageWidth;
     private int mFullResImageHeight;
 
-    private BitmapRegionDecoder mRegionDecoder;
-    private DecodePartialBitmap mPartialDecodingTask;
-
     private Uri mUri;
     private int mOrientation;
 
-    private class DecodePartialBitmap extends AsyncTask<RectF, Void, Bitmap> {
-
-        @Override
-        protected Bitmap doInBackground(RectF... params) {
-            RectF endRect = params[0];
-
-            // Calculate the rotation matrix to apply orientation on the original image
-            // rect.
-            RectF fullResRect = new RectF(0, 0, mFullResImageWidth - 1, mFullResImageHeight - 1);
-            Matrix rotationMatrix = new Matrix();
-            rotationMatrix.setRotate(mOrientation, 0, 0);
-            rotationMatrix.mapRect(fullResRect);
-            // Set the translation of the matrix so that after rotation, the top left
-            // of the image rect is at (0, 0)
-            rotationMatrix.postTranslate(-fullResRect.left, -fullResRect.top);
-            rotationMatrix.mapRect(fullResRect, new RectF(0, 0, mFullResImageWidth - 1,
-                    mFullResImageHeight - 1));
-
-            // Find intersection with the screen
-            RectF visibleRect = new RectF(endRect);
-            visibleRect.intersect(0, 0, mViewportWidth - 1, mViewportHeight - 1);
-            // Calculate the mapping (i.e. transform) between current low res rect
-            // and full res image rect, and apply the mapping on current visible rect
-            // to find out the partial region in the full res image that we need
-            // to decode.
-            Matrix mapping = new Matrix();
-            mapping.setRectToRect(endRect, fullResRect, Matrix.ScaleToFit.CENTER);
-            RectF visibleAfterRotation = new RectF();
-            mapping.mapRect(visibleAfterRotation, visibleRect);
-
-            // Now the visible region we have is rotated, we need to reverse the
-            // rotation to find out the region in the original image
-            RectF visibleInImage = new RectF();
-            Matrix invertRotation = new Matrix();
-            rotationMatrix.invert(invertRotation);
-            invertRotation.mapRect(visibleInImage, visibleAfterRotation);
-
-            // Decode region
-            Rect region = new Rect();
-            visibleInImage.round(region);
+    /** Maps the full resolution image onto the view. */
+    private final Matrix mImageToView = new Matrix();
+    private final Matrix mViewToImage = new Matrix();
+    private int mLevel;
+    /** The range of tile indexes at {@link #mLevel} that cover the viewport. */
+    private final Rect mVisibleTiles = new Rect();
 
-            // Make sure region to decode is inside the image.
-            region.intersect(0, 0, mFullResImageWidth - 1, mFullResImageHeight - 1);
+    private LruCache<Long, Bitmap> mTiles;
+    private TileDecoder mDecoder;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
 
-            if (region.width() == 0 || region.height() == 0) {
-                Log.e(TAG, "Invalid size for partial region. Region: " + region.toString());
-                return null;
-            }
+    /**
+     * Decodes the requested tiles of one image, most wanted first. Requests
+     * are replaced as the viewport moves, so stale tiles are never decoded.
+     */
+    private class TileDecoder extends Thread {
+        private final Uri mSource;
+        private final LinkedList<Long> mQueue = new LinkedList<Long>();
+        private long mInFlight = -1;
+        private boolean mQuit;
+
+        TileDecoder(Uri source) {
+            super("ZoomViewTileDecoder");
+            mSource = source;
+        }
 
-            if (isCancelled()) {
-                return null;
+        synchronized void request(List<Long> keys) {
+            mQueue.clear();
+            for (Long key : keys) {
+                if (key != mInFlight) {
+                    mQueue.add(key);
+                }
             }
+            notifyAll();
+        }
 
-            BitmapFactory.Options options = new BitmapFactory.Options();
-
-            if ((mOrientation + 360) % 180 == 0) {
-                options.inSampleSize = getSampleFactor(region.width(), region.height());
-            } else {
-                // The decoded region will be rotated 90/270 degrees before showing
-                // on screen. In other words, the width and height will be swapped.
-                // Therefore, sample factor should be calculated using swapped width
-                // and height.
-                options.inSampleSize = getSampleFactor(region.height(), region.width());
-            }
+        synchronized void quit() {
+            mQuit = true;
+            mQueue.clear();
+            notifyAll();
+        }
 
-            if (mRegionDecoder == null) {
-                InputStream is = getInputStream();
+        @Override
+        public void run() {
+            BitmapRegionDecoder decoder = null;
+            InputStream is = getInputStream(mSource);
+            if (is != null) {
                 try {
-                    mRegionDecoder = BitmapRegionDecoder.newInstance(is, false);
-                    is.close();
+                    decoder = BitmapRegionDecoder.newInstance(is, false);
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to instantiate region decoder");
+                } finally {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close input stream");
+                    }
                 }
             }
-            if (mRegionDecoder == null) {
-                return null;
+            if (decoder == null) {
+                return;
             }
-            Bitmap b = mRegionDecoder.decodeRegion(region, options);
-            if (isCancelled()) {
-                return null;
+            try {
+                while (true) {
+                    final long key;
+                    synchronized (this) {
+                        mInFlight = -1;
+                        while (!mQuit && mQueue.isEmpty()) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (mQuit) {
+                            return;
+                        }
+                        key = mQueue.removeFirst();
+                        mInFlight = key;
+                    }
+                    final Bitmap tile = decodeTile(decoder, key);
+                    if (tile != null) {
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onTileDecoded(TileDecoder.this, key, tile);
+                            }
+                        });
+                    }
+                }
+            } finally {
+                decoder.recycle();
             }
-            Matrix rotation = new Matrix();
-            rotation.setRotate(mOrientation);
-            return Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), rotation, false);
         }
 
-        @Override
-        protected void onPostExecute(Bitmap b) {
-            if (b == null) {
-                return;
+        private Bitmap decodeTile(BitmapRegionDecoder decoder, long key) {
+            int level = levelOf(key);
+            Rect region = new Rect();
+            getTileRect(level, tileXOf(key), tileYOf(key), region);
+            region.intersect(0, 0, decoder.getWidth(), decoder.getHeight());
+            if (region.isEmpty()) {
+                return null;
             }
-            setImageBitmap(b);
-            showPartiallyDecodedImage(true);
-            mPartialDecodingTask = null;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1 << level;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return decoder.decodeRegion(region, options);
         }
     }
 
     public ZoomView(Context context) {
         super(context);
-        setScaleType(ScaleType.FIT_CENTER);
         addOnLayoutChangeListener(new OnLayoutChangeListener() {
             @Override
             public void onLayoutChange(View v, int left, int top, int right, int bottom,
@@ -158,11 +192,18 @@ public class ZoomView extends ImageView {
                 if (mViewportHeight != h || mViewportWidth != w) {
                     mViewportWidth = w;
                     mViewportHeight = h;
+                    mTiles = null;
                 }
             }
         });
     }
 
+    /**
+     * Shows the image at {@code uri} where the film strip currently draws it,
+     * and starts decoding the tiles that are missing.
+     *
+     * @param imageRect The rect of the whole image on screen, after rotation.
+     */
     public void loadBitmap(Uri uri, int orientation, RectF imageRect) {
         if (!uri.equals(mUri)) {
             mUri = uri;
@@ -170,26 +211,47 @@ public class ZoomView extends ImageView {
             mFullResImageHeight = 0;
             mFullResImageWidth = 0;
             decodeImageSize();
-            mRegionDecoder = null;
+            if (mDecoder != null) {
+                mDecoder.quit();
+            }
+            mDecoder = new TileDecoder(uri);
+            mDecoder.start();
+            if (mTiles != null) {
+                mTiles.evictAll();
+            }
         }
-        startPartialDecodingTask(imageRect);
+        if (mFullResImageWidth <= 0 || mFullResImageHeight <= 0
+                || mViewportWidth <= 0 || mViewportHeight <= 0) {
+            return;
+        }
+        if (mTiles == null) {
+            mTiles = createTileCache();
+        }
+        updateVisibleTiles(imageRect);
+        setVisibility(View.VISIBLE);
+        invalidate();
     }
 
-    private void showPartiallyDecodedImage(boolean show) {
-        if (show) {
-            setVisibility(View.VISIBLE);
-        } else {
-            setVisibility(View.GONE);
+    /**
+     * Drops the decodes that have not started yet and hides the view. The
+     * decoded tiles are kept for the next {@link #loadBitmap}.
+     */
+    public void cancelPartialDecodingTask() {
+        if (mDecoder != null) {
+            mDecoder.request(Collections.<Long>emptyList());
         }
-        mPartialDecodingTask = null;
+        setVisibility(GONE);
     }
 
-    public void cancelPartialDecodingTask() {
-        if (mPartialDecodingTask != null && !mPartialDecodingTask.isCancelled()) {
-            mPartialDecodingTask.cancel(true);
-            setVisibility(GONE);
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mDecoder != null) {
+            mDecoder.quit();
+            mDecoder = null;
         }
-        mPartialDecodingTask = null;
+        mUri = null;
+        mTiles = null;
     }
 
     /**
@@ -226,17 +288,64 @@ public class ZoomView extends ImageView {
         return newRect;
     }
 
-    private void startPartialDecodingTask(RectF endRect) {
-        // Cancel on-going partial decoding tasks
-        cancelPartialDecodingTask();
-        mPartialDecodingTask = new DecodePartialBitmap();
-        mPartialDecodingTask.execute(endRect);
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mTiles == null || mVisibleTiles.isEmpty()) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(mImageToView);
+        for (int ty = mVisibleTiles.top; ty <= mVisibleTiles.bottom; ty++) {
+            for (int tx = mVisibleTiles.left; tx <= mVisibleTiles.right; tx++) {
+                drawTile(canvas, tx, ty);
+            }
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Draws a tile of the current level, or the part of the nearest coarser
+     * tile that covers it.
+     */
+    private void drawTile(Canvas canvas, int tx, int ty) {
+        // mSrc holds the tile rect, then the coarse tile rect, before it is
+        // set to the part of the bitmap to draw.
+        getTileRect(mLevel, tx, ty, mSrc);
+        mSrc.intersect(0, 0, mFullResImageWidth, mFullResImageHeight);
+        int left = mSrc.left;
+        int top = mSrc.top;
+        int right = mSrc.right;
+        int bottom = mSrc.bottom;
+        int maxLevel = maxLevel(maxImageSide());
+        for (int level = mLevel; level <= maxLevel; level++) {
+            int shift = level - mLevel;
+            Bitmap tile = mTiles.get(key(level, tx >> shift, ty >> shift));
+            if (tile == null) {
+                continue;
+            }
+            getTileRect(level, tx >> shift, ty >> shift, mSrc);
+            int coarseLeft = mSrc.left;
+            int coarseTop = mSrc.top;
+            int sample = 1 << level;
+            mSrc.set((left - coarseLeft) / sample,
+                    (top - coarseTop) / sample,
+                    (right - coarseLeft + sample - 1) / sample,
+                    (bottom - coarseTop + sample - 1) / sample);
+            mSrc.intersect(0, 0, tile.getWidth(), tile.getHeight());
+            mDst.set(coarseLeft + mSrc.left * sample, coarseTop + mSrc.top * sample,
+                    coarseLeft + mSrc.right * sample, coarseTop + mSrc.bottom * sample);
+            canvas.drawBitmap(tile, mSrc, mDst, mPaint);
+            return;
+        }
     }
 
     private void decodeImageSize() {
         BitmapFactory.Options option = new BitmapFactory.Options();
         option.inJustDecodeBounds = true;
-        InputStream is = getInputStream();
+        InputStream is = getInputStream(mUri);
+        if (is == null) {
+            return;
+        }
         BitmapFactory.decodeStream(is, null, option);
         try {
             is.close();
@@ -247,42 +356,164 @@ public class ZoomView extends ImageView {
         mFullResImageHeight = option.outHeight;
     }
 
-    // TODO: Cache the inputstream
-    private InputStream getInputStream() {
+    private InputStream getInputStream(Uri uri) {
         InputStream is = null;
         try {
-            is = getContext().getContentResolver().openInputStream(mUri);
+            is = getContext().getContentResolver().openInputStream(uri);
         } catch (FileNotFoundException e) {
-            Log.e(TAG, "File not found at: " + mUri);
+            Log.e(TAG, "File not found at: " + uri);
         }
         return is;
     }
 
+    private LruCache<Long, Bitmap> createTileCache() {
+        // The smallest a tile is drawn is TILE_SIZE / sqrt(2) screen pixels,
+        // see levelForScale(). Room for the viewport covered at that size,
+        // twice, leaves space for the coarser levels and the tiles nearby.
+        int minTileOnScreen = (int) (TILE_SIZE / Math.sqrt(2));
+        int tiles = (mViewportWidth / minTileOnScreen + 2)
+                * (mViewportHeight / minTileOnScreen + 2);
+        int maxBytes = 2 * tiles * TILE_SIZE * TILE_SIZE * BYTES_PER_PIXEL;
+        return new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
     /**
-     * Find closest sample factor that is power of 2, based on the given width and height
-     *
-     * @param width width of the partial region to decode
-     * @param height height of the partial region to decode
-     * @return sample factor
+     * Recomputes the image to view mapping and the tiles on screen, evicts
+     * the ones that went offscreen and requests the missing ones.
+     */
+    private void updateVisibleTiles(RectF imageRect) {
+        // Rotate the image around its origin, move its top left back to
+        // (0, 0), then fit it in the rect the film strip draws it at.
+        RectF rotated = new RectF(0, 0, mFullResImageWidth, mFullResImageHeight);
+        mImageToView.setRotate(mOrientation);
+        mImageToView.mapRect(rotated);
+        mImageToView.postTranslate(-rotated.left, -rotated.top);
+        rotated.offsetTo(0, 0);
+        Matrix fit = new Matrix();
+        fit.setRectToRect(rotated, imageRect, Matrix.ScaleToFit.CENTER);
+        mImageToView.postConcat(fit);
+        mImageToView.invert(mViewToImage);
+
+        mLevel = levelForScale(imageRect.width() / rotated.width(), maxImageSide());
+
+        RectF visible = new RectF(0, 0, mViewportWidth, mViewportHeight);
+        mViewToImage.mapRect(visible);
+        if (!visible.intersect(0, 0, mFullResImageWidth, mFullResImageHeight)) {
+            mVisibleTiles.setEmpty();
+            evictTiles();
+            mDecoder.request(Collections.<Long>emptyList());
+            return;
+        }
+        int tileSide = TILE_SIZE << mLevel;
+        mVisibleTiles.set((int) (visible.left / tileSide), (int) (visible.top / tileSide),
+                (int) Math.ceil(visible.right / tileSide) - 1,
+                (int) Math.ceil(visible.bottom / tileSide) - 1);
+        evictTiles();
+
+        final float centerX = visible.centerX() / tileSide;
+        final float centerY = visible.centerY() / tileSide;
+        List<Long> missing = new ArrayList<Long>();
+        for (int ty = mVisibleTiles.top; ty <= mVisibleTiles.bottom; ty++) {
+            for (int tx = mVisibleTiles.left; tx <= mVisibleTiles.right; tx++) {
+                long key = key(mLevel, tx, ty);
+                if (mTiles.get(key) == null) {
+                    missing.add(key);
+                }
+            }
+        }
+        Collections.sort(missing, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Float.compare(distance(a), distance(b));
+            }
+
+            private float distance(long key) {
+                float dx = tileXOf(key) + 0.5f - centerX;
+                float dy = tileYOf(key) + 0.5f - centerY;
+                return dx * dx + dy * dy;
+            }
+        });
+        mDecoder.request(missing);
+    }
+
+    /**
+     * Evicts the tiles of the current level that are more than one tile
+     * offscreen, and the tiles of finer levels, which are not drawn.
      */
-    private int getSampleFactor(int width, int height) {
+    private void evictTiles() {
+        for (Map.Entry<Long, Bitmap> entry : mTiles.snapshot().entrySet()) {
+            long key = entry.getKey();
+            int level = levelOf(key);
+            if (level < mLevel || (level == mLevel
+                    && (tileXOf(key) < mVisibleTiles.left - 1
+                    || tileXOf(key) > mVisibleTiles.right + 1
+                    || tileYOf(key) < mVisibleTiles.top - 1
+                    || tileYOf(key) > mVisibleTiles.bottom + 1))) {
+                mTiles.remove(key);
+            }
+        }
+    }
 
-        float fitWidthScale = ((float) mViewportWidth) / ((float) width);
-        float fitHeightScale = ((float) mViewportHeight) / ((float) height);
+    private void onTileDecoded(TileDecoder decoder, long key, Bitmap tile) {
+        if (decoder != mDecoder || mTiles == null || levelOf(key) < mLevel) {
+            return;
+        }
+        mTiles.put(key, tile);
+        invalidate();
+    }
 
-        float scale = Math.min(fitHeightScale, fitWidthScale);
+    private int maxImageSide() {
+        return Math.max(mFullResImageWidth, mFullResImageHeight);
+    }
 
-        // Find the closest sample factor that is power of 2
-        int sampleFactor = (int) (1f / scale);
-        if (sampleFactor <=1) {
-            return 1;
+    /**
+     * Returns the pyramid level for a zoom scale, i.e. the power of two
+     * sample size that is nearest to one decoded pixel per screen pixel.
+     *
+     * @param scale Screen pixels per pixel of the full resolution image.
+     * @param maxSide The longer side of the full resolution image.
+     */
+    static int levelForScale(float scale, int maxSide) {
+        if (scale <= 0) {
+            return 0;
         }
-        for (int i = 0; i < 32; i++) {
-            if ((1 << (i + 1)) > sampleFactor) {
-                sampleFactor = (1 << i);
-                break;
-            }
+        int level = Math.round((float) (Math.log(1 / scale) / Math.log(2)));
+        return Math.max(0, Math.min(level, maxLevel(maxSide)));
+    }
+
+    /** Returns the first level where a single tile covers the whole image. */
+    static int maxLevel(int maxSide) {
+        int level = 0;
+        while ((TILE_SIZE << level) < maxSide) {
+            level++;
         }
-        return sampleFactor;
+        return level;
+    }
+
+    /** Gets the rect a tile covers in the full resolution image. */
+    static void getTileRect(int level, int tx, int ty, Rect out) {
+        int side = TILE_SIZE << level;
+        out.set(tx * side, ty * side, (tx + 1) * side, (ty + 1) * side);
+    }
+
+    static long key(int level, int tx, int ty) {
+        return ((long) level << 48) | ((long) tx << 24) | ty;
+    }
+
+    static int levelOf(long key) {
+        return (int) (key >>> 48);
+    }
+
+    static int tileXOf(long key) {
+        return (int) ((key >>> 24) & 0xFFFFFF);
+    }
+
+    static int tileYOf(long key) {
+        return (int) (key & 0xFFFFFF);
     }
 }
@@ -0,0 +1,283 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the duration, video size and rotation of an MP4 or 3GP file from
+ * its movie header, without decoding anything.
+ *
+ * Only box headers are read on the way to moov, so the media data is
+ * skipped with a single seek wherever moov sits. Inside moov only mvhd,
+ * tkhd and hdlr are read, the sample tables are skipped the same way.
+ */
+public class Mp4Reader {
+    private static final int TYPE_MOOV = fourCc("moov");
+    private static final int TYPE_MVHD = fourCc("mvhd");
+    private static final int TYPE_TRAK = fourCc("trak");
+    private static final int TYPE_TKHD = fourCc("tkhd");
+    private static final int TYPE_MDIA = fourCc("mdia");
+    private static final int TYPE_HDLR = fourCc("hdlr");
+    private static final int HANDLER_VIDEO = fourCc("vide");
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+    // Large enough for a version 1 tkhd, the biggest box that is read whole.
+    private static final int MAX_PAYLOAD = 96;
+    private static final int FIXED_ONE = 0x10000;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_PAYLOAD);
+
+    private long mDurationMs = -1;
+    private boolean mHasVideo;
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+
+    private Mp4Reader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Returns the metadata of the file, or null when it has no movie header,
+     * e.g. a recording that was cut off before it was finalized.
+     */
+    public static Mp4Reader read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return read(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Same as {@link #read(File)}. Reads are positional, the channel
+     * position is left as is.
+     */
+    public static Mp4Reader read(FileChannel channel) throws IOException {
+        Mp4Reader reader = new Mp4Reader(channel);
+        Box moov = reader.findBox(0, channel.size(), TYPE_MOOV);
+        if (moov == null) {
+            return null;
+        }
+        reader.readMovie(moov);
+        return reader.mDurationMs < 0 ? null : reader;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * Whether the file has a video track, the size and rotation are only
+     * valid when it does.
+     */
+    public boolean hasVideo() {
+        return mHasVideo;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Clockwise rotation of the first video track in degrees, one of 0, 90,
+     * 180 or 270.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    private void readMovie(Box moov) throws IOException {
+        Box mvhd = findBox(moov.payload, moov.end, TYPE_MVHD);
+        if (mvhd == null) {
+            return;
+        }
+        readMovieHeader(mvhd);
+        for (Box box = readBox(moov.payload, moov.end); box != null && !mHasVideo;
+                box = readBox(box.end, moov.end)) {
+            if (box.type == TYPE_TRAK) {
+                readTrack(box);
+            }
+        }
+    }
+
+    private void readMovieHeader(Box mvhd) throws IOException {
+        ByteBuffer b = readPayload(mvhd, 32);
+        long timescale;
+        long duration;
+        if (b.get(0) == 1) {
+            timescale = b.getInt(20) & 0xffffffffL;
+            duration = b.getLong(24);
+        } else {
+            timescale = b.getInt(12) & 0xffffffffL;
+            duration = b.getInt(16) & 0xffffffffL;
+            if (duration == 0xffffffffL) {
+                duration = -1;
+            }
+        }
+        if (timescale == 0 || duration < 0) {
+            mDurationMs = 0;
+        } else {
+            mDurationMs = duration * 1000 / timescale;
+        }
+    }
+
+    private void readTrack(Box trak) throws IOException {
+        Box mdia = findBox(trak.payload, trak.end, TYPE_MDIA);
+        if (mdia == null) {
+            return;
+        }
+        Box hdlr = findBox(mdia.payload, mdia.end, TYPE_HDLR);
+        if (hdlr == null || readPayload(hdlr, 12).getInt(8) != HANDLER_VIDEO) {
+            return;
+        }
+        Box tkhd = findBox(trak.payload, trak.end, TYPE_TKHD);
+        if (tkhd == null) {
+            return;
+        }
+        ByteBuffer b = readPayload(tkhd, 84);
+        int matrix = 40;
+        if (b.get(0) == 1) {
+            b = readPayload(tkhd, 96);
+            matrix = 52;
+        }
+        mHasVideo = true;
+        mRotation = rotationOf(b.getInt(matrix), b.getInt(matrix + 4),
+                b.getInt(matrix + 12), b.getInt(matrix + 16));
+        // 16.16 fixed point.
+        mWidth = b.getInt(matrix + 36) >>> 16;
+        mHeight = b.getInt(matrix + 40) >>> 16;
+    }
+
+    /**
+     * Maps the top left of the track matrix to degrees the way the platform
+     * extractor does, anything but an exact quarter turn counts as none.
+     */
+    private static int rotationOf(int a, int b, int c, int d) {
+        if (a == 0 && b == FIXED_ONE && c == -FIXED_ONE && d == 0) {
+            return 90;
+        } else if (a == -FIXED_ONE && b == 0 && c == 0 && d == -FIXED_ONE) {
+            return 180;
+        } else if (a == 0 && b == -FIXED_ONE && c == FIXED_ONE && d == 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the first box of the type among the siblings in [start, end).
+     */
+    private Box findBox(long start, long end, int type) throws IOException {
+        for (Box box = readBox(start, end); box != null; box = readBox(box.end, end)) {
+            if (box.type == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the header of the box at the offset. Returns null past the end
+     * of the parent, or when the header is malformed so the walk stops.
+     */
+    private Box readBox(long offset, long end) throws IOException {
+        if (offset + HEADER_SIZE > end) {
+            return null;
+        }
+        readFully(offset, (int) Math.min(end - offset, LARGE_HEADER_SIZE));
+        long size = mBuffer.getInt(0) & 0xffffffffL;
+        int headerSize = HEADER_SIZE;
+        if (size == 1) {
+            if (offset + LARGE_HEADER_SIZE > end) {
+                return null;
+            }
+            size = mBuffer.getLong(8);
+            headerSize = LARGE_HEADER_SIZE;
+        } else if (size == 0) {
+            // Extends to the end of the enclosing box.
+            size = end - offset;
+        }
+        if (size < headerSize || size > end - offset) {
+            return null;
+        }
+        return new Box(mBuffer.getInt(4), offset + headerSize, offset + size);
+    }
+
+    /**
+     * Reads the start of the payload of the box, the buffer holds it from
+     * index 0.
+     */
+    private ByteBuffer readPayload(Box box, int length) throws IOException {
+        if (box.end - box.payload < length) {
+            throw new IOException("Box too short at " + box.payload);
+        }
+        readFully(box.payload, length);
+        return mBuffer;
+    }
+
+    private void readFully(long offset, int length) throws IOException {
+        mBuffer.clear();
+        mBuffer.limit(length);
+        while (mBuffer.hasRemaining()) {
+            int n = mChannel.read(mBuffer, offset + mBuffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at " + offset);
+            }
+        }
+    }
+
+    private static class Box {
+        final int type;
+        final long payload;
+        final long end;
+
+        Box(int type, long payload, long end) {
+            this.type = type;
+            this.payload = payload;
+            this.end = end;
+        }
+    }
+
+    private static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16)
+                | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -77,8 +77,16 @@ public class PersistUtil {
                     CAMERA_SENSOR_HORIZONTAL_ALIGNED);
     private static final int CIRCULAR_BUFFER_SIZE_PERSIST =
             SystemProperties.getInt("persist.sys.camera.zsl.buffer.size", 3);
+    private static final String PERSIST_ZSL_FRAME_SELECTOR =
+            SystemProperties.get("persist.sys.camera.zsl.selector", "newest-converged");
+    private static final int PERSIST_YUV_BUFFER_POOL_LIMIT_IN_MB =
+            SystemProperties.getInt("persist.sys.camera.yuvpool.limit", 128);
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             SystemProperties.getInt("persist.sys.camera.perf.memlimit", 60);
+    private static final int PERSIST_EXIF_PADDING_SIZE =
+            SystemProperties.getInt("persist.sys.camera.exif.padding", 1024);
+    private static final int PERSIST_SAVE_TASK_WORKERS =
+            SystemProperties.getInt("persist.sys.camera.perf.save_workers", 2);
     private static final boolean PERSIST_CAMERA_UI_AUTO_TEST_ENABLED =
             SystemProperties.getBoolean("persist.sys.camera.ui.auto_test", false);
     private static final boolean PERSIST_CAMERA_SAVE_IN_SD_ENABLED =
@@ -208,6 +216,10 @@ public class PersistUtil {
         return CIRCULAR_BUFFER_SIZE_PERSIST;
     }
 
+    public static String getZslFrameSelector() {
+        return PERSIST_ZSL_FRAME_SELECTOR;
+    }
+
     public static int isBurstShotFpsNums() {
         return PERSIST_BURST_PREVIEW_REQUEST_NUMS;
     }
@@ -216,6 +228,18 @@ public class PersistUtil {
         return SAVE_TASK_MEMORY_LIMIT_IN_MB;
     }
 
+    public static int getYuvBufferPoolLimitInMb(){
+        return PERSIST_YUV_BUFFER_POOL_LIMIT_IN_MB;
+    }
+
+    public static int getExifPaddingSize(){
+        return Math.max(0, PERSIST_EXIF_PADDING_SIZE);
+    }
+
+    public static int getSaveTaskWorkers(){
+        return Math.max(1, PERSIST_SAVE_TASK_WORKERS);
+    }
+
     public static boolean isAutoTestEnabled(){
         return PERSIST_CAMERA_UI_AUTO_TEST_ENABLED;
     }
@@ -22,7 +22,10 @@ import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
+import com.android.camera.exif.JpegSegmentIndex;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -34,6 +37,7 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
 
@@ -103,12 +107,30 @@ public class XmpUtil {
       return null;
     }
 
+    JpegSegmentIndex segments;
     try {
-      return extractXMPMeta(new FileInputStream(filename));
-    } catch (FileNotFoundException e) {
+      segments = JpegSegmentIndex.map(new File(filename));
+    } catch (IOException e) {
       Log.e(TAG, "Could not read file: " + filename, e);
       return null;
     }
+    // Now we don't support extended xmp.
+    int xmp = segments.find((short) (0xff00 | M_APP1), XMP_HEADER.getBytes());
+    if (xmp < 0) {
+      return null;
+    }
+    // Only the xmp packet is copied out of the mapped file.
+    byte[] data = new byte[segments.getPayloadLength(xmp)];
+    segments.getPayload(xmp).get(data);
+    int end = getXMPContentEnd(data);
+    byte[] buffer = new byte[end - XMP_HEADER_SIZE];
+    System.arraycopy(data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
+    try {
+      return XMPMetaFactory.parseFromBuffer(buffer);
+    } catch (XMPException e) {
+      Log.d(TAG, "XMP parse error", e);
+      return null;
+    }
   }
 
   /**
@@ -196,6 +218,27 @@ public class XmpUtil {
     return true;
   }
 
+  /**
+   * Serializes the XMPMeta into a complete APP1 segment, marker included, for
+   * writers that lay out the jpeg themselves.
+   *
+   * @return the segment, or null if the meta could not be serialized.
+   */
+  public static byte[] createXMPSegment(XMPMeta meta) {
+    Section section = createStandardXMPSection(meta);
+    if (section == null) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(section.length + 2);
+    try {
+      writeSections(out, Collections.singletonList(section));
+    } catch (IOException e) {
+      // Not thrown by ByteArrayOutputStream.
+      return null;
+    }
+    return out.toByteArray();
+  }
+
   /**
    * Updates a jpeg file from inputStream with XMPMeta to outputStream.
    */
@@ -232,6 +275,11 @@ public class XmpUtil {
     // Writes the jpeg file header.
     os.write(0xff);
     os.write(M_SOI);
+    writeSections(os, sections);
+  }
+
+  private static void writeSections(OutputStream os, List<Section> sections)
+      throws IOException {
     for (Section section : sections) {
       os.write(0xff);
       os.write(section.marker);
@@ -596,6 +644,342 @@ public class XmpUtil {
     return true;
   }
 
+  /**
+   * A binary value of the extended XMP, such as GImage:Data or GDepth:Data.
+   * The payload is kept as raw bytes and only base64 encoded while it is
+   * being written out.
+   */
+  public static class Base64Property {
+    public final String namespace;
+    public final String name;
+    public final byte[] data;
+
+    public Base64Property(String namespace, String name, byte[] data) {
+      this.namespace = namespace;
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Updates a jpeg file from inputStream with XMPMeta to outputStream, with
+   * the binary properties written as extended XMP. Unlike
+   * {@link #writeXMPMeta(InputStream, OutputStream, XMPMeta, XMPMeta)} the
+   * base64 text of the payloads is never built in memory: it is encoded
+   * chunk by chunk straight into the extended APP1 segments, once to compute
+   * the GUID and once more to write the segments.
+   *
+   * The new segments are spliced into the jpeg by offset, the segments of
+   * the input and its scan data are copied straight from the array.
+   *
+   * @param jpeg Input image data
+   * @param outputStream Output image data stream
+   * @param standardMeta The main portion of the metadata tree, written as the
+   *                     standard XMP packet
+   * @param extendedProperties The binary properties of the extended portion
+   */
+  public static boolean writeXMPMeta(byte[] jpeg, OutputStream outputStream,
+      XMPMeta standardMeta, List<Base64Property> extendedProperties) {
+    ExtendedXMPSerialization serialization =
+        ExtendedXMPSerialization.create(extendedProperties);
+    if (serialization == null) {
+      return false;
+    }
+
+    String guid;
+    try {
+      DigestOutputStream digestStream = new DigestOutputStream(MessageDigest.getInstance("MD5"));
+      serialization.writeTo(digestStream);
+      guid = formatGUID(digestStream.digest());
+    } catch (NoSuchAlgorithmException exception) {
+      Log.d(TAG, "get md5 instance failure" + exception);
+      return false;
+    } catch (IOException e) {
+      Log.d(TAG, "Digest extended xmp failed", e);
+      return false;
+    }
+    try {
+      standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
+    } catch (XMPException exception) {
+      Log.d(TAG, "set XMPMeta Property", exception);
+      return false;
+    }
+
+    JpegSegmentIndex segments = JpegSegmentIndex.wrap(jpeg);
+    if (!segments.isValid() || segments.getScanOffset() < 0) {
+      Log.d(TAG, "Insert XMP failed");
+      return false;
+    }
+    Section standardXmpSection = createStandardXMPSection(standardMeta);
+    if (standardXmpSection == null) {
+      Log.e(TAG, "create standard meta section error");
+      return false;
+    }
+    // If the first section is Exif, insert XMP data before the second section,
+    // otherwise, make xmp data the first section.
+    int position = 2;
+    if (segments.getSegmentCount() > 0
+        && segments.getMarker(0) == (short) (0xff00 | M_APP1)) {
+      position = segments.getEnd(0);
+    }
+    try {
+      segments.writeTo(outputStream, 0, position);
+      writeSections(outputStream, Collections.singletonList(standardXmpSection));
+      ExtendedSectionOutputStream extendedStream = new ExtendedSectionOutputStream(
+          outputStream, guid, serialization.length());
+      serialization.writeTo(extendedStream);
+      extendedStream.finish();
+      segments.writeTo(outputStream, position, segments.size());
+    } catch (IOException e) {
+      Log.d(TAG, "Write to stream failed", e);
+      return false;
+    } finally {
+      if (outputStream != null) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The serialized extended XMP, kept as the packet text around the
+   * payloads plus the payloads themselves. The packet is serialized once
+   * with a short placeholder standing in for each value, and the base64
+   * text takes the placeholder's place when the packet is written.
+   */
+  private static class ExtendedXMPSerialization {
+    private static final String PLACEHOLDER = "@xmpBase64@";
+
+    private final byte[] mTemplate;
+    // Placeholder bounds and payloads, in the order they appear in mTemplate.
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final byte[][] mPayloads;
+
+    private ExtendedXMPSerialization(byte[] template, int[] starts, int[] ends,
+        byte[][] payloads) {
+      mTemplate = template;
+      mStarts = starts;
+      mEnds = ends;
+      mPayloads = payloads;
+    }
+
+    static ExtendedXMPSerialization create(List<Base64Property> properties) {
+      XMPMeta meta = createXMPMeta();
+      byte[] buffer;
+      try {
+        for (int i = 0; i < properties.size(); ++i) {
+          Base64Property property = properties.get(i);
+          meta.setProperty(property.namespace, property.name, PLACEHOLDER + i + "@");
+        }
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setOmitPacketWrapper(true);
+        buffer = XMPMetaFactory.serializeToBuffer(meta, options);
+      } catch (XMPException e) {
+        Log.d(TAG, "Serialize extended xmp failed", e);
+        return null;
+      }
+
+      int count = properties.size();
+      int[] starts = new int[count];
+      int[] ends = new int[count];
+      byte[][] payloads = new byte[count][];
+      for (int i = 0; i < count; ++i) {
+        byte[] placeholder = (PLACEHOLDER + i + "@").getBytes();
+        int start = indexOf(buffer, placeholder);
+        if (start < 0) {
+          Log.e(TAG, "extended xmp placeholder not found: " + properties.get(i).name);
+          return null;
+        }
+        // Keep the arrays sorted by position, the serializer may reorder
+        // the properties.
+        int j = i;
+        while (j > 0 && starts[j - 1] > start) {
+          starts[j] = starts[j - 1];
+          ends[j] = ends[j - 1];
+          payloads[j] = payloads[j - 1];
+          --j;
+        }
+        starts[j] = start;
+        ends[j] = start + placeholder.length;
+        payloads[j] = properties.get(i).data;
+      }
+      return new ExtendedXMPSerialization(buffer, starts, ends, payloads);
+    }
+
+    private static int indexOf(byte[] buffer, byte[] target) {
+      outer:
+      for (int i = 0; i <= buffer.length - target.length; ++i) {
+        for (int j = 0; j < target.length; ++j) {
+          if (buffer[i + j] != target[j]) {
+            continue outer;
+          }
+        }
+        return i;
+      }
+      return -1;
+    }
+
+    int length() {
+      long length = mTemplate.length;
+      for (int i = 0; i < mPayloads.length; ++i) {
+        length += Base64Stream.encodedLength(mPayloads[i].length) - (mEnds[i] - mStarts[i]);
+      }
+      return (int) length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      byte[] scratch = new byte[Base64Stream.CHUNK_OUTPUT_SIZE];
+      int position = 0;
+      for (int i = 0; i < mPayloads.length; ++i) {
+        out.write(mTemplate, position, mStarts[i] - position);
+        Base64Stream.encode(mPayloads[i], out, scratch);
+        position = mEnds[i];
+      }
+      out.write(mTemplate, position, mTemplate.length - position);
+    }
+  }
+
+  /**
+   * Base64 encoding without line breaks, so the text needs no escaping
+   * inside an XML attribute.
+   */
+  private static class Base64Stream {
+    private static final byte[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final int CHUNK_INPUT_SIZE = 3 * 4096;
+    static final int CHUNK_OUTPUT_SIZE = CHUNK_INPUT_SIZE / 3 * 4;
+
+    static long encodedLength(int length) {
+      return (length + 2L) / 3 * 4;
+    }
+
+    static void encode(byte[] data, OutputStream out, byte[] scratch) throws IOException {
+      for (int offset = 0; offset < data.length; offset += CHUNK_INPUT_SIZE) {
+        int end = Math.min(data.length, offset + CHUNK_INPUT_SIZE);
+        int n = 0;
+        int i = offset;
+        for (; i + 3 <= end; i += 3) {
+          int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+          scratch[n++] = ALPHABET[bits >>> 18];
+          scratch[n++] = ALPHABET[(bits >>> 12) & 0x3f];
+          scratch[n++] = ALPHABET[(bits >>> 6) & 0x3f];
+          scratch[n++] = ALPHABET[bits & 0x3f];
+        }
+        // Only the last chunk can have a partial group.
+        if (i < end) {
+          int bits = (data[i] & 0xff) << 16;
+          if (i + 1 < end) {
+            bits |= (data[i + 1] & 0xff) << 8;
+          }
+          scratch[n++] = ALPHABET[bits >>> 18];
+          scratch[n++] = ALPHABET[(bits >>> 12) & 0x3f];
+          scratch[n++] = i + 1 < end ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+          scratch[n++] = '=';
+        }
+        out.write(scratch, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Feeds everything written to it into a message digest.
+   */
+  private static class DigestOutputStream extends OutputStream {
+    private final MessageDigest mDigester;
+
+    DigestOutputStream(MessageDigest digester) {
+      mDigester = digester;
+    }
+
+    @Override
+    public void write(int b) {
+      mDigester.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      mDigester.update(b, off, len);
+    }
+
+    byte[] digest() {
+      return mDigester.digest();
+    }
+  }
+
+  /**
+   * Cuts the extended XMP written to it into APP1 marker segments of at most
+   * MAX_EXTENDED_XMP_BUFFER_SIZE bytes of XMP each, see splitExtendXMPMeta.
+   * The underlying stream is not closed.
+   */
+  private static class ExtendedSectionOutputStream extends OutputStream {
+    private final OutputStream mOut;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(EXTEND_XMP_HEADER_SIZE);
+    private final byte[] mBuffer = new byte[MAX_EXTENDED_XMP_BUFFER_SIZE];
+    private final int mFullLength;
+    private int mCount;
+    private int mOffset;
+
+    ExtendedSectionOutputStream(OutputStream out, String guid, int fullLength) {
+      mOut = out;
+      mFullLength = fullLength;
+      mHeader.put(EXTENDED_XMP_HEADER_SIGNATURE.getBytes());
+      mHeader.put(guid.getBytes());
+      mHeader.putInt(fullLength);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (mCount == mBuffer.length) {
+        writeSection();
+      }
+      mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (mCount == mBuffer.length) {
+          writeSection();
+        }
+        int n = Math.min(len, mBuffer.length - mCount);
+        System.arraycopy(b, off, mBuffer, mCount, n);
+        mCount += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    void finish() throws IOException {
+      writeSection();
+      if (mOffset != mFullLength) {
+        throw new IOException("extended xmp length " + mOffset + " != " + mFullLength);
+      }
+    }
+
+    private void writeSection() throws IOException {
+      if (mCount == 0) {
+        return;
+      }
+      mHeader.putInt(EXTEND_XMP_HEADER_SIZE - 4, mOffset);
+      // Adds the length place (2 bytes) to the section length.
+      int length = EXTEND_XMP_HEADER_SIZE + mCount + 2;
+      mOut.write(0xff);
+      mOut.write(M_APP1);
+      mOut.write(length >> 8);
+      mOut.write(length & 0xff);
+      mOut.write(mHeader.array());
+      mOut.write(mBuffer, 0, mCount);
+      mOffset += mCount;
+      mCount = 0;
+    }
+  }
+
   private static List<Section> insertXMPSection(
           List<Section> sections, List<Section> xmpSections) {
     if (sections == null || sections.size() <= 1) {
@@ -613,21 +997,22 @@ public class XmpUtil {
   }
 
   private static String getGUID(byte[] src) {
-    StringBuilder builder = new StringBuilder();
     try {
       MessageDigest digester = MessageDigest.getInstance("MD5");
       digester.update(src);
-      byte[] digest = digester.digest();
-
-      Formatter formatter = new Formatter(builder);
-      for (int i = 0; i < digest.length; ++i) {
-        formatter.format("%02x", ((256 + digest[i]) % 256));
-      }
+      return formatGUID(digester.digest());
     } catch (NoSuchAlgorithmException exception) {
       Log.d(TAG, "get md5 instance failure" + exception);
       return null;
     }
+  }
 
+  private static String formatGUID(byte[] digest) {
+    StringBuilder builder = new StringBuilder();
+    Formatter formatter = new Formatter(builder);
+    for (int i = 0; i < digest.length; ++i) {
+      formatter.format("%02x", ((256 + digest[i]) % 256));
+    }
     return builder.toString().toUpperCase();
   }
 
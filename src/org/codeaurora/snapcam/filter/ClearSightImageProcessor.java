@@ -39,6 +39,7 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.codeaurora.snapcam.filter.ClearSightNativeEngine.CamSystemCalibrationData;
 import org.codeaurora.snapcam.filter.ClearSightNativeEngine.ClearsightImage;
@@ -71,6 +72,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.util.SparseLongArray;
@@ -92,10 +94,15 @@ import com.android.camera.util.VendorTagUtil;
 
 public class ClearSightImageProcessor {
     private static final String TAG = "ClearSightImageProcessor";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
 
     private static final long DEFAULT_TIMESTAMP_THRESHOLD_MS = 10;
     private static final int DEFAULT_IMAGES_TO_BURST = 4;
     private static final int DEFAULT_CS_TIMEOUT_MS = 300;
+    // Shots waiting for the saver, the encode stage drops any beyond that.
+    private static final int MAX_PENDING_SAVES = 2;
 
     private static final long MIN_MONO_AREA = 1900000;  // ~1.9 MP
     private static final Size[] MONO_SIZES = {
@@ -147,6 +154,7 @@ public class ClearSightImageProcessor {
     private HandlerThread mClearsightProcessThread;
     private HandlerThread mImageEncodeThread;
     private HandlerThread mDepthProcessThread;
+    private SaveStage mSaveStage;
     private Callback mCallback;
 
     private CameraCaptureSession[] mCaptureSessions = new CameraCaptureSession[NUM_CAM];
@@ -235,7 +243,10 @@ public class ClearSightImageProcessor {
         mClearsightRegisterHandler = new ClearsightRegisterHandler(mClearsightRegisterThread.getLooper());
         mClearsightProcessHandler = new ClearsightProcessHandler(mClearsightProcessThread.getLooper());
         mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread.getLooper());
-        mDepthProcessHandler = new DepthProcessHandler(mImageEncodeThread.getLooper());
+        // Depth generation runs next to the JPEG encode, not behind it.
+        mDepthProcessHandler = new DepthProcessHandler(mDepthProcessThread.getLooper());
+        mSaveStage = new SaveStage();
+        mSaveStage.start();
 
         mFinalPictureSize = new Size(width, height);
         mFinalPictureRatio = (float)width / (float)height;
@@ -329,6 +340,11 @@ public class ClearSightImageProcessor {
             }
         }
 
+        if (mSaveStage != null) {
+            mSaveStage.quit();
+            mSaveStage = null;
+        }
+
         for(int i=0; i<mImageReader.length; i++) {
             if (null != mImageReader[i]) {
                 mImageReader[i].close();
@@ -352,6 +368,25 @@ public class ClearSightImageProcessor {
         Log.d(TAG, "close() done");
     }
 
+    /**
+     * Metrics of the pipeline stages, in order: pair match, register, fuse,
+     * depth, encode and save.
+     */
+    public List<StageMetrics> getStageMetrics() {
+        List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+        StageHandler[] stages = { mImageProcessHandler, mClearsightRegisterHandler,
+                mClearsightProcessHandler, mDepthProcessHandler, mImageEncodeHandler };
+        for (StageHandler stage : stages) {
+            if (stage != null) {
+                metrics.add(stage.getMetrics());
+            }
+        }
+        if (mSaveStage != null) {
+            metrics.add(mSaveStage.mMetrics);
+        }
+        return metrics;
+    }
+
     public void setCallback(Callback callback) {
         mCallback = callback;
     }
@@ -500,7 +535,7 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ImageProcessHandler extends Handler {
+    private class ImageProcessHandler extends StageHandler {
         private ArrayDeque<ReprocessableImage> mBayerFrames = new ArrayDeque<ReprocessableImage>(
                 mNumBurstCount);
         private ArrayDeque<ReprocessableImage> mMonoFrames = new ArrayDeque<ReprocessableImage>(
@@ -525,7 +560,7 @@ public class ClearSightImageProcessor {
         private boolean mHasFailures;
 
         ImageProcessHandler(Looper looper) {
-            super(looper);
+            super(looper, "PairMatch");
             mReprocessingFrames[CAM_TYPE_BAYER] = new SparseLongArray();
             mReprocessingFrames[CAM_TYPE_MONO] = new SparseLongArray();
         }
@@ -930,11 +965,11 @@ public class ClearSightImageProcessor {
         }
     };
 
-    private class ClearsightRegisterHandler extends Handler {
+    private class ClearsightRegisterHandler extends StageHandler {
         private NamedEntity mNamedEntity;
 
         ClearsightRegisterHandler(Looper looper) {
-            super(looper);
+            super(looper, "Register");
         }
 
         @Override
@@ -981,9 +1016,9 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ClearsightProcessHandler extends Handler {
+    private class ClearsightProcessHandler extends StageHandler {
         ClearsightProcessHandler(Looper looper) {
-            super(looper);
+            super(looper, "Fuse");
         }
 
         @Override
@@ -1134,7 +1169,7 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ImageEncodeHandler extends Handler {
+    private class ImageEncodeHandler extends StageHandler {
         static final short MASK_CS_ENCODE = 0x01;
         static final short MASK_BAYER_ENCODE = 0x02;
         static final short MASK_MONO_ENCODE = 0x04;
@@ -1148,14 +1183,13 @@ public class ClearSightImageProcessor {
         private NamedEntity mNamedEntity;
 
         private GDepth.DepthMap mDepthMap;
-        private GImage mGImage;
         private boolean mDepthMapReady;
         private boolean mClearSightReady;
 
         private long CLEAR_SIGHT_IMAGE_SAVE_DELAY = 1*500;
 
         public ImageEncodeHandler(Looper looper) {
-            super(looper);
+            super(looper, "Encode");
         }
 
         @Override
@@ -1199,7 +1233,6 @@ public class ClearSightImageProcessor {
                 } else if(mBayerImage == null){
                     mBayerImage = (Image)msg.obj;
                     mEncodeResults |= MASK_BAYER_ENCODE;
-                    mGImage = new GImage(getJpegData(mBayerImage), "image/jpeg");
                     if ( mDumpDepth ) {
                         saveToFile(getJpegData(mBayerImage), "bayer", "jpg");
                     }
@@ -1245,45 +1278,14 @@ public class ClearSightImageProcessor {
             }
 
             Log.d(TAG, "saveClearSightImage");
-            byte[] clearSightBytes = getJpegData(mClearSightImage);
-
-            String title = (mNamedEntity == null) ? null : mNamedEntity.title;
-            long date = (mNamedEntity == null) ? -1 : mNamedEntity.date;
-
-            int width = 0;
-            int height = 0;
-            if ( mBayerImage != null ) {
-                mBayerImage.getWidth();
-                mBayerImage.getHeight();
-            }
-            if ( mClearSightImage != null ) {
-                width = mClearSightImage.getWidth();
-                height = mClearSightImage.getHeight();
-            }
-
-            byte[] bayerBytes = getJpegData(mBayerImage);
-            if ( bayerBytes != null ) {
-                ExifInterface exif = Exif.getExif(bayerBytes);
-                int orientation = Exif.getOrientation(exif);
-
-                if(clearSightBytes != null) {
-                    if(mCallback != null) mCallback.onClearSightSuccess(clearSightBytes);
-                } else if (bayerBytes != null) {
-                    if(mCallback != null) mCallback.onClearSightFailure(bayerBytes);
-                } else {
-                    if(mCallback != null) mCallback.onClearSightFailure(null);
-                }
-
-                GDepth gDepth = GDepth.createGDepth(mDepthMap);
-
-                mMediaSaveService.addXmpImage(
-                        clearSightBytes != null ? clearSightBytes : bayerBytes,
-                        mGImage, gDepth,title, date, null,
-                        width, height, orientation, exif,
-                        mMediaSavedListener,
-                        mMediaSaveService.getContentResolver(), "jpeg");
-            }
+            SaveRequest request = new SaveRequest(mNamedEntity, mBayerImage, mMonoImage,
+                    mClearSightImage, mDepthMap);
+            // The save stage closes the images from now on.
+            mBayerImage = null;
+            mMonoImage = null;
+            mClearSightImage = null;
             resetParams();
+            mSaveStage.put(request);
         }
 
         private boolean isReadyToSave() {
@@ -1307,17 +1309,160 @@ public class ClearSightImageProcessor {
             mHasFailure = false;
             mEncodeRequest = 0;
             mEncodeResults = 0;
-            mGImage = null;
             mDepthMapReady = false;
             mClearSightReady = false;
         }
     }
 
-    private class DepthProcessHandler extends Handler{
+    private static class SaveRequest {
+        final NamedEntity namedEntity;
+        final Image bayerImage;
+        final Image monoImage;
+        final Image clearSightImage;
+        final GDepth.DepthMap depthMap;
+        final long queuedAt = SystemClock.uptimeMillis();
+
+        SaveRequest(NamedEntity namedEntity, Image bayerImage, Image monoImage,
+                Image clearSightImage, GDepth.DepthMap depthMap) {
+            this.namedEntity = namedEntity;
+            this.bayerImage = bayerImage;
+            this.monoImage = monoImage;
+            this.clearSightImage = clearSightImage;
+            this.depthMap = depthMap;
+        }
+
+        void close() {
+            if (bayerImage != null) {
+                bayerImage.close();
+            }
+            if (monoImage != null) {
+                monoImage.close();
+            }
+            if (clearSightImage != null) {
+                clearSightImage.close();
+            }
+        }
+    }
+
+    /**
+     * Last stage: builds the XMP payloads and hands the shot to the media
+     * save service, so the encode stage is free for the next shot.
+     */
+    private class SaveStage extends Thread {
+        private final ArrayBlockingQueue<SaveRequest> mQueue =
+                new ArrayBlockingQueue<SaveRequest>(MAX_PENDING_SAVES);
+        private final StageMetrics mMetrics = new StageMetrics("Save");
+        private volatile boolean mQuit;
+
+        SaveStage() {
+            super("ClearsightSave");
+        }
+
+        /**
+         * Never blocks the encode stage. With MAX_PENDING_SAVES shots already
+         * queued the shot is dropped and reported as failed, the images it
+         * holds would otherwise stall the readers for the next shots.
+         */
+        void put(SaveRequest request) {
+            if (isClosing() || mQuit) {
+                request.close();
+                return;
+            }
+            if (!mQueue.offer(request)) {
+                Log.w(TAG, "Dropping ClearSight shot, " + mQueue.size() + " saves pending");
+                request.close();
+                if(mCallback != null) mCallback.onClearSightFailure(null);
+                return;
+            }
+            mMetrics.onQueued();
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mQuit) {
+                SaveRequest request;
+                try {
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long start = SystemClock.uptimeMillis();
+                mMetrics.onStart(start - request.queuedAt);
+                try {
+                    if (!isClosing()) {
+                        save(request);
+                    }
+                } finally {
+                    request.close();
+                    mMetrics.onDone(SystemClock.uptimeMillis() - start);
+                }
+                if (DEBUG) {
+                    for (StageMetrics metrics : getStageMetrics()) {
+                        Log.d(TAG, "stage " + metrics);
+                    }
+                }
+            }
+            SaveRequest request;
+            while ((request = mQueue.poll()) != null) {
+                request.close();
+            }
+        }
+
+        private void save(SaveRequest request) {
+            byte[] clearSightBytes = getJpegData(request.clearSightImage);
+
+            String title = (request.namedEntity == null) ? null : request.namedEntity.title;
+            long date = (request.namedEntity == null) ? -1 : request.namedEntity.date;
+
+            int width = 0;
+            int height = 0;
+            if ( request.clearSightImage != null ) {
+                width = request.clearSightImage.getWidth();
+                height = request.clearSightImage.getHeight();
+            }
+
+            byte[] bayerBytes = getJpegData(request.bayerImage);
+            if ( bayerBytes != null ) {
+                ExifInterface exif = Exif.getExif(bayerBytes);
+                int orientation = Exif.getOrientation(exif);
+
+                if(clearSightBytes != null) {
+                    if(mCallback != null) mCallback.onClearSightSuccess(clearSightBytes);
+                } else {
+                    if(mCallback != null) mCallback.onClearSightFailure(bayerBytes);
+                }
+
+                GImage gImage = new GImage(bayerBytes, "image/jpeg");
+                GDepth gDepth = GDepth.createGDepth(request.depthMap);
+
+                MediaSaveService service = mMediaSaveService;
+                if (service != null) {
+                    service.addXmpImage(
+                            clearSightBytes != null ? clearSightBytes : bayerBytes,
+                            gImage, gDepth, title, date, null,
+                            width, height, orientation, exif,
+                            mMediaSavedListener,
+                            service.getContentResolver(), "jpeg");
+                }
+            }
+        }
+    }
+
+    private class DepthProcessHandler extends StageHandler {
         private TotalCaptureResult mReprocessCaptureResult;
         private DDMNativeEngine mDDMNativeEngine;
         public DepthProcessHandler(Looper looper) {
-            super(looper);
+            super(looper, "Depth");
             mDDMNativeEngine = new DDMNativeEngine();
         }
 
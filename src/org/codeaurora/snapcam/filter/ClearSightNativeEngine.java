@@ -41,6 +41,7 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.util.Log;
 
+import com.android.camera.imageprocessor.YuvBufferPool;
 import com.android.camera.util.PersistUtil;
 
 public class ClearSightNativeEngine {
@@ -116,6 +117,9 @@ public class ClearSightNativeEngine {
 
     public void close() {
         reset();
+        for (SourceImage image : mCache) {
+            image.release();
+        }
         mCache.clear();
         mImageWidth = 0;
         mImageHeight = 0;
@@ -359,10 +363,17 @@ public class ClearSightNativeEngine {
         float[] mMetadata;
 
         SourceImage(int ySize, int vuSize) {
-            mY = ByteBuffer.allocateDirect(ySize);
-            mVU = ByteBuffer.allocateDirect(vuSize);
+            mY = YuvBufferPool.getInstance().acquire(ySize);
+            mVU = YuvBufferPool.getInstance().acquire(vuSize);
             mMetadata = new float[METADATA_SIZE];
         }
+
+        void release() {
+            YuvBufferPool.getInstance().release(mY);
+            YuvBufferPool.getInstance().release(mVU);
+            mY = null;
+            mVU = null;
+        }
     }
 
     public static class ClearsightImage {
@@ -46,6 +46,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.BufferedOutputStream;
 
+import com.android.camera.imageprocessor.TileExecutor;
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
@@ -127,6 +128,9 @@ public class GDepth{
     }
 
     public String getData(){
+        if (mData == null && mGdepthJpeg != null) {
+            mData = serializeAsBase64Str(mGdepthJpeg);
+        }
         return mData;
     }
 
@@ -163,9 +167,7 @@ public class GDepth{
         byte[] jpegBytes = outputStream.toByteArray();
         mGdepthJpeg = jpegBytes;
         if (jpegBytes != null ) {
-            String base64String = serializeAsBase64Str(jpegBytes);
             result = true;
-            mData = base64String;
         }else{
             Log.e(TAG, "compressToJPEG failure");
         }
@@ -177,9 +179,7 @@ public class GDepth{
         Log.d(TAG, "encodeDepthmapJpeg");
         boolean result = false;
         if (mGdepthJpeg != null ) {
-            String base64String = serializeAsBase64Str(mGdepthJpeg);
             result = true;
-            mData = base64String;
         }else{
             Log.e(TAG, "compressToJPEG failure");
         }
@@ -194,11 +194,19 @@ public class GDepth{
     }
 
     public Bitmap getBitGdepthBitmap() {
-        int[] data = new int[mMap.length];
-        for (int i = 0; i < data.length; ++i) {
-            int p = mMap[i];
-            data[i] = (p & 0xff) << 24;
-        }
+        final int[] data = new int[mMap.length];
+        final int width = mDepthMap.width;
+        final int height = mDepthMap.height;
+        TileExecutor.getDefault().forEachBand(height, 32, new TileExecutor.Band() {
+            @Override
+            public void run(int band, int startRow, int endRow) {
+                int end = endRow == height ? data.length : endRow * width;
+                for (int i = startRow * width; i < end; ++i) {
+                    int p = mMap[i];
+                    data[i] = (p & 0xff) << 24;
+                }
+            }
+        });
         Bitmap bitmap = Bitmap.createBitmap(
                 data,mDepthMap.width, mDepthMap.height, Bitmap.Config.ALPHA_8);
         return bitmap;
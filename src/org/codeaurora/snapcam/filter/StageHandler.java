@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.snapcam.filter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+/**
+ * Handler running one stage of an image pipeline, keeping
+ * {@link StageMetrics} for the messages it handles. Delayed messages such
+ * as timeouts are not counted as queued work.
+ */
+public class StageHandler extends Handler {
+    private final StageMetrics mMetrics;
+
+    public StageHandler(Looper looper, String name) {
+        super(looper);
+        mMetrics = new StageMetrics(name);
+        // Messages removed before they ran are never seen here, so the
+        // depth is resynchronized whenever the queue drains.
+        looper.getQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mMetrics.onIdle();
+                return true;
+            }
+        });
+    }
+
+    public StageMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+        if (queued && uptimeMillis <= SystemClock.uptimeMillis()) {
+            mMetrics.onQueued();
+        }
+        return queued;
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        long start = SystemClock.uptimeMillis();
+        mMetrics.onStart(Math.max(0, start - msg.getWhen()));
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            mMetrics.onDone(SystemClock.uptimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.snapcam.filter;
+
+/**
+ * Latency and queue depth of one pipeline stage. Updated from the stage
+ * thread and read from anywhere.
+ */
+public class StageMetrics {
+    private final String mName;
+    private int mDepth;
+    private int mMaxDepth;
+    private long mCount;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+    private long mTotalRunMs;
+    private long mMaxRunMs;
+
+    public StageMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** An item was handed to the stage. */
+    public synchronized void onQueued() {
+        mDepth++;
+        if (mDepth > mMaxDepth) {
+            mMaxDepth = mDepth;
+        }
+    }
+
+    /** The stage took an item after it waited for waitMs. */
+    public synchronized void onStart(long waitMs) {
+        if (mDepth > 0) {
+            mDepth--;
+        }
+        mTotalWaitMs += waitMs;
+        if (waitMs > mMaxWaitMs) {
+            mMaxWaitMs = waitMs;
+        }
+    }
+
+    /** The stage spent runMs on the item. */
+    public synchronized void onDone(long runMs) {
+        mCount++;
+        mTotalRunMs += runMs;
+        if (runMs > mMaxRunMs) {
+            mMaxRunMs = runMs;
+        }
+    }
+
+    /** Nothing is waiting, whatever was counted so far. */
+    public synchronized void onIdle() {
+        mDepth = 0;
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getAverageWaitMs() {
+        return mCount == 0 ? 0 : mTotalWaitMs / mCount;
+    }
+
+    public synchronized long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+
+    public synchronized long getAverageRunMs() {
+        return mCount == 0 ? 0 : mTotalRunMs / mCount;
+    }
+
+    public synchronized long getMaxRunMs() {
+        return mMaxRunMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": count=" + mCount + " depth=" + mDepth + " maxDepth=" + mMaxDepth
+                + " wait=" + getAverageWaitMs() + "/" + mMaxWaitMs + "ms"
+                + " run=" + getAverageRunMs() + "/" + mMaxRunMs + "ms";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ThumbnailCacheTest extends TestCase {
+    private static final Uri URI = Uri.parse("content://media/external/images/media/42");
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"),
+                "thumbnails-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testBucketFor() {
+        assertEquals(64, ThumbnailCache.bucketFor(0, 0));
+        assertEquals(128, ThumbnailCache.bucketFor(100, 128));
+        assertEquals(512, ThumbnailCache.bucketFor(300, 512));
+        assertEquals(1024, ThumbnailCache.bucketFor(513, 200));
+    }
+
+    public void testKeyIncludesDateAndBucket() {
+        ThumbnailCache.Key key = new ThumbnailCache.Key(URI, 10, 256);
+        assertEquals(key, new ThumbnailCache.Key(Uri.parse(URI.toString()), 10, 256));
+        assertEquals(key.hashCode(), new ThumbnailCache.Key(URI, 10, 256).hashCode());
+        assertFalse(key.equals(new ThumbnailCache.Key(URI, 11, 256)));
+        assertFalse(key.equals(new ThumbnailCache.Key(URI, 10, 512)));
+    }
+
+    public void testMemoryHitAndEviction() {
+        Bitmap b = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        // Room for a single bitmap.
+        ThumbnailCache cache = new ThumbnailCache(mDir, b.getByteCount());
+        ThumbnailCache.Key big = new ThumbnailCache.Key(URI, 1, 2048);
+        ThumbnailCache.Key other = new ThumbnailCache.Key(URI, 2, 2048);
+
+        assertNull(cache.get(big));
+        cache.put(big, b);
+        assertSame(b, cache.getFromMemory(big));
+        cache.put(other, Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+        assertNull(cache.getFromMemory(big));
+
+        assertEquals(1, cache.getMemoryHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        // Large buckets never go to disk.
+        String[] files = mDir.list();
+        assertTrue(files == null || files.length == 0);
+    }
+
+    public void testMiniSurvivesRestart() {
+        ThumbnailCache.Key mini = new ThumbnailCache.Key(URI, 1, ThumbnailCache.MINI_SIZE);
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1024 * 1024);
+        cache.put(mini, Bitmap.createBitmap(32, 16, Bitmap.Config.ARGB_8888));
+
+        ThumbnailCache restarted = new ThumbnailCache(mDir, 1024 * 1024);
+        assertNull(restarted.getFromMemory(mini));
+        assertNotNull(restarted.get(mini));
+        assertEquals(1, restarted.getDiskHitCount());
+        assertNotNull(restarted.getFromMemory(mini));
+        assertEquals(1, restarted.getMemoryHitCount());
+    }
+}
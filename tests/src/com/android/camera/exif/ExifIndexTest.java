@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifIndexTest extends TestCase {
+    // SOI, a frame header and an empty scan.
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x03, 0x08,
+            (byte) 0xFF, (byte) 0xDA, 0x00, 0x02,
+            (byte) 0xFF, (byte) 0xD9 };
+
+    private static final int[] INT_TAGS = {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_IMAGE_WIDTH,
+            ExifInterface.TAG_IMAGE_LENGTH,
+            ExifInterface.TAG_ISO_SPEED_RATINGS,
+            ExifInterface.TAG_PIXEL_X_DIMENSION,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_FLASH,
+    };
+
+    private static byte[] buildJpeg() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(270)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, 4000L));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_LENGTH, 3000L));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 800));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "QCOM-AA"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(JPEG, out);
+        return out.toByteArray();
+    }
+
+    public void testLazyMatchesFullRead() throws IOException {
+        byte[] jpeg = buildJpeg();
+        ExifInterface full = new ExifInterface();
+        full.readExif(jpeg);
+        for (int tag : INT_TAGS) {
+            ExifInterface lazy = new ExifInterface();
+            lazy.readExifLazily(jpeg);
+            assertTrue(Integer.toHexString(tag), Arrays.equals(
+                    full.getTagIntValues(tag), lazy.getTagIntValues(tag)));
+            assertTrue(Integer.toHexString(tag), Arrays.equals(
+                    full.getTagLongValues(tag), lazy.getTagLongValues(tag)));
+        }
+        assertEquals(Integer.valueOf(8),
+                full.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+    }
+
+    public void testLazyDecodesOnOtherAccess() throws IOException {
+        byte[] jpeg = buildJpeg();
+        ExifInterface full = new ExifInterface();
+        full.readExif(jpeg);
+        ExifInterface lazy = new ExifInterface();
+        lazy.readExifLazily(jpeg);
+        assertEquals(full.getTagStringValue(ExifInterface.TAG_MAKE),
+                lazy.getTagStringValue(ExifInterface.TAG_MAKE));
+        assertEquals(full.getAllTags().size(), lazy.getAllTags().size());
+        assertEquals(Integer.valueOf(800),
+                lazy.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+    }
+
+    public void testLazyKeepsOwnCopy() throws IOException {
+        byte[] jpeg = buildJpeg();
+        ExifInterface full = new ExifInterface();
+        full.readExif(jpeg);
+        ExifInterface lazy = new ExifInterface();
+        lazy.readExifLazily(jpeg);
+        Arrays.fill(jpeg, (byte) 0);
+        assertEquals(full.getTagIntValue(ExifInterface.TAG_ORIENTATION),
+                lazy.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(full.getTagStringValue(ExifInterface.TAG_MAKE),
+                lazy.getTagStringValue(ExifInterface.TAG_MAKE));
+    }
+
+    public void testNoExif() throws IOException {
+        ExifInterface lazy = new ExifInterface();
+        lazy.readExifLazily(JPEG);
+        assertNull(lazy.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertNull(lazy.getAllTags());
+    }
+}
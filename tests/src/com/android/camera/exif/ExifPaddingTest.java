@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifPaddingTest extends TestCase {
+    // SOI, a frame header and an empty scan.
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x03, 0x08,
+            (byte) 0xFF, (byte) 0xDA, 0x00, 0x02,
+            (byte) 0xFF, (byte) 0xD9 };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("exif", ".jpg");
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(0)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "QCOM-AA"));
+        exif.writeExif(JPEG, mFile.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile f = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] b = new byte[(int) f.length()];
+            f.readFully(b);
+            return b;
+        } finally {
+            f.close();
+        }
+    }
+
+    private static byte[] tail(byte[] b, int n) {
+        return Arrays.copyOfRange(b, b.length - n, b.length);
+    }
+
+    public void testNewTagGrowsIntoPadding() throws IOException {
+        byte[] before = readFile();
+        ExifInterface exif = new ExifInterface();
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        tags.add(exif.buildTag(ExifInterface.TAG_ARTIST, "A much longer artist name"));
+        // The artist is new, so the values cannot be overwritten in place.
+        assertFalse(exif.rewriteExif(mFile.getAbsolutePath(), tags));
+        assertTrue(exif.rewriteExifInPadding(mFile.getAbsolutePath(), tags));
+
+        byte[] after = readFile();
+        assertEquals(before.length, after.length);
+        assertTrue(Arrays.equals(tail(before, JPEG.length - 2), tail(after, JPEG.length - 2)));
+
+        ExifInterface read = new ExifInterface();
+        read.readExif(mFile.getAbsolutePath());
+        assertEquals(Integer.valueOf(6), read.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertTrue(read.getTagStringValue(ExifInterface.TAG_ARTIST)
+                .startsWith("A much longer artist name"));
+        assertTrue(read.getTagStringValue(ExifInterface.TAG_MAKE).startsWith("QCOM-AA"));
+    }
+
+    public void testTooLargeLeavesFileAlone() throws IOException {
+        byte[] before = readFile();
+        ExifInterface exif = new ExifInterface();
+        char[] big = new char[4096];
+        Arrays.fill(big, 'x');
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(exif.buildTag(ExifInterface.TAG_ARTIST, new String(big)));
+        assertFalse(exif.rewriteExifInPadding(mFile.getAbsolutePath(), tags));
+        assertTrue(Arrays.equals(before, readFile()));
+    }
+
+    public void testForceRewriteKeepsLength() throws IOException {
+        byte[] before = readFile();
+        ExifInterface exif = new ExifInterface();
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(exif.buildTag(ExifInterface.TAG_SOFTWARE, "Snapdragon Camera"));
+        exif.forceRewriteExif(mFile.getAbsolutePath(), tags);
+        assertEquals(before.length, readFile().length);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class IfdDataTest extends TestCase {
+    private static ExifTag tag(int id) {
+        return new ExifTag((short) id, ExifTag.TYPE_UNSIGNED_SHORT, 1, IfdId.TYPE_IFD_0, true);
+    }
+
+    public void testTagsStayInUnsignedOrder() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        int[] ids = { 0x8769, 0x0112, 0xA005, 0x0100, 0x8825, 0x0101, 0x010F };
+        for (int id : ids) {
+            assertNull(ifd.setTag(tag(id)));
+        }
+        assertEquals(ids.length, ifd.getTagCount());
+        for (int i = 1; i < ifd.getTagCount(); i++) {
+            assertTrue((ifd.getTagAt(i - 1).getTagId() & 0xffff)
+                    < (ifd.getTagAt(i).getTagId() & 0xffff));
+        }
+        assertEquals((short) 0xA005, ifd.getTagAt(ids.length - 1).getTagId());
+    }
+
+    public void testReplaceAndRemove() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        ExifTag first = tag(0x0112);
+        ifd.setTag(first);
+        ifd.setTag(tag(0x0100));
+        assertSame(first, ifd.setTag(tag(0x0112)));
+        assertEquals(2, ifd.getTagCount());
+
+        ifd.removeTag((short) 0x0100);
+        assertFalse(ifd.checkCollision((short) 0x0100));
+        assertNotNull(ifd.getTag((short) 0x0112));
+        assertEquals(1, ifd.getAllTags().length);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class JpegSegmentIndexTest extends TestCase {
+    private static final byte[] EXIF = { 'E', 'x', 'i', 'f', 0, 0 };
+    private static final byte[] XMP = "http://ns.adobe.com/xap/1.0/\0".getBytes();
+    private static final byte[] SCAN = { 0x01, (byte) 0xFF, 0x00, 0x02, (byte) 0xFF,
+            (byte) 0xD9 };
+
+    private static void segment(ByteBuffer buf, int marker, byte[] payload) {
+        buf.putShort((short) marker).putShort((short) (payload.length + 2)).put(payload);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    // SOI, APP1 exif, APP1 xmp, fill bytes, RST0, DQT, SOS and scan data.
+    private static byte[] buildJpeg() {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        buf.putShort((short) 0xFFD8);
+        segment(buf, 0xFFE1, concat(EXIF, new byte[] { 1, 2, 3 }));
+        segment(buf, 0xFFE1, concat(XMP, "<x/>".getBytes()));
+        buf.put((byte) 0xFF).put((byte) 0xFF);
+        buf.putShort((short) 0xFFD0);
+        segment(buf, 0xFFDB, new byte[] { 9, 8 });
+        buf.putShort((short) 0xFFDA).put(SCAN);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    public void testIndexesSegmentsUpToScan() {
+        byte[] jpeg = buildJpeg();
+        JpegSegmentIndex index = JpegSegmentIndex.wrap(jpeg);
+        assertTrue(index.isValid());
+        assertEquals(4, index.getSegmentCount());
+        assertEquals(JpegHeader.APP1, index.getMarker(0));
+        assertEquals(2, index.getOffset(0));
+        assertEquals(6, index.getPayloadOffset(0));
+        assertEquals(EXIF.length + 3, index.getPayloadLength(0));
+        assertEquals(index.getEnd(0), index.getOffset(1));
+        // The fill bytes are skipped, the restart marker has no payload.
+        assertEquals((short) 0xFFD0, index.getMarker(2));
+        assertEquals(index.getEnd(1) + 2, index.getOffset(2));
+        assertEquals(0, index.getPayloadLength(2));
+        assertEquals((short) 0xFFDB, index.getMarker(3));
+        assertEquals(index.getEnd(3), index.getScanOffset());
+        assertEquals(jpeg.length - SCAN.length - 2, index.getScanOffset());
+    }
+
+    public void testFindBySignature() {
+        JpegSegmentIndex index = JpegSegmentIndex.wrap(buildJpeg());
+        assertEquals(0, index.find(JpegHeader.APP1, EXIF));
+        assertEquals(1, index.find(JpegHeader.APP1, XMP));
+        assertEquals(-1, index.find(JpegHeader.APP1, EXIF, 1));
+        assertEquals(-1, index.find(JpegHeader.APP2, new byte[0]));
+
+        ByteBuffer payload = index.getPayload(1);
+        assertTrue(payload.isReadOnly());
+        byte[] xmp = new byte[payload.remaining()];
+        payload.get(xmp);
+        assertEquals("<x/>", new String(xmp, XMP.length, xmp.length - XMP.length));
+    }
+
+    public void testOffsetsRelativeToBufferPosition() {
+        byte[] jpeg = buildJpeg();
+        ByteBuffer buf = ByteBuffer.allocateDirect(jpeg.length + 5);
+        buf.position(5);
+        buf.put(jpeg);
+        buf.position(5);
+        JpegSegmentIndex index = JpegSegmentIndex.wrap(buf);
+        assertEquals(5, buf.position());
+        assertEquals(jpeg.length, index.size());
+        assertEquals(2, index.getOffset(0));
+        assertEquals(JpegSegmentIndex.wrap(jpeg).getScanOffset(), index.getScanOffset());
+    }
+
+    public void testSpliceBySegmentOffset() throws Exception {
+        byte[] jpeg = buildJpeg();
+        byte[] inserted = { (byte) 0xFF, (byte) 0xE2, 0x00, 0x03, 0x7F };
+        for (ByteBuffer source : new ByteBuffer[] { ByteBuffer.wrap(jpeg),
+                (ByteBuffer) ByteBuffer.allocateDirect(jpeg.length).put(jpeg).rewind() }) {
+            JpegSegmentIndex index = JpegSegmentIndex.wrap(source);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            index.writeTo(out, 0, index.getEnd(0));
+            out.write(inserted);
+            index.writeTo(out, index.getEnd(0), index.size());
+
+            JpegSegmentIndex result = JpegSegmentIndex.wrap(out.toByteArray());
+            assertEquals(5, result.getSegmentCount());
+            assertEquals(JpegHeader.APP2, result.getMarker(1));
+            assertEquals(1, result.getPayloadLength(1));
+            byte[] tail = Arrays.copyOfRange(out.toByteArray(), out.size() - SCAN.length,
+                    out.size());
+            assertTrue(Arrays.equals(SCAN, tail));
+        }
+    }
+
+    public void testInvalidAndTruncated() {
+        assertFalse(JpegSegmentIndex.wrap(new byte[] { 0x12, 0x34 }).isValid());
+        assertEquals(0, JpegSegmentIndex.wrap(new byte[0]).getSegmentCount());
+
+        byte[] jpeg = buildJpeg();
+        // Cut inside the xmp payload: the segment is kept, its views clamped.
+        int cut = JpegSegmentIndex.wrap(jpeg).getPayloadOffset(1) + 3;
+        JpegSegmentIndex index = JpegSegmentIndex.wrap(Arrays.copyOf(jpeg, cut));
+        assertTrue(index.isValid());
+        assertEquals(2, index.getSegmentCount());
+        assertEquals(cut, index.getEnd(1));
+        assertEquals(3, index.getPayload(1).remaining());
+        assertEquals(-1, index.find(JpegHeader.APP1, XMP));
+        assertEquals(-1, index.getScanOffset());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class JpegStripWriterTest extends TestCase {
+    private static final int WIDTH = 40;
+    private static final byte[] DQT = { 0, 1, 2, 3 };
+    private static final byte[] DHT = { 0x10, 5, 6 };
+    private static final byte[] SOS = { 3, 1, 0, 2, 0x11, 3, 0x11, 0, 63, 0 };
+
+    private static void segment(ByteBuffer buf, int marker, byte[] payload) {
+        buf.putShort((short) marker).putShort((short) (payload.length + 2)).put(payload);
+    }
+
+    // SOI, APP0, DQT, 4:2:0 SOF0, DHT, SOS, scan data and EOI.
+    private static byte[] buildStrip(int width, int height, byte[] dqt, byte[] scan) {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        buf.putShort((short) 0xFFD8);
+        segment(buf, 0xFFE0, "JFIF\0".getBytes());
+        segment(buf, 0xFFDB, dqt);
+        segment(buf, 0xFFC0, new byte[] { 8, (byte) (height >> 8), (byte) height,
+                (byte) (width >> 8), (byte) width, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+        segment(buf, 0xFFC4, DHT);
+        segment(buf, 0xFFDA, SOS);
+        buf.put(scan);
+        buf.putShort((short) 0xFFD9);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static void write(JpegStripWriter writer, byte[] strip) throws IOException {
+        writer.writeStrip(strip, strip.length);
+    }
+
+    public void testJoinsStripsWithRestartMarkers() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegStripWriter writer = new JpegStripWriter(out, WIDTH, 40, 16);
+        byte[] app = { (byte) 0xFF, (byte) 0xE1, 0, 4, 'x', 'y' };
+        writer.addSegment(app);
+        write(writer, buildStrip(WIDTH, 16, DQT, new byte[] { 0x11 }));
+        write(writer, buildStrip(WIDTH, 16, DQT, new byte[] { 0x22, 0x23 }));
+        write(writer, buildStrip(WIDTH, 8, DQT, new byte[] { 0x33 }));
+        writer.finish();
+
+        byte[] jpeg = out.toByteArray();
+        JpegSegmentIndex index = JpegSegmentIndex.wrap(jpeg);
+        assertTrue(index.isValid());
+        // The added segment replaces the APP0 of the strips.
+        assertEquals(5, index.getSegmentCount());
+        assertEquals(JpegHeader.APP1, index.getMarker(0));
+        assertEquals((short) 0xFFDB, index.getMarker(1));
+        assertEquals(JpegHeader.SOF0, index.getMarker(2));
+        ByteBuffer sof = index.getPayload(2);
+        assertEquals(40, sof.getShort(1));
+        assertEquals(WIDTH, sof.getShort(3));
+        assertEquals((short) 0xFFDD, index.getMarker(4));
+        // Three MCUs across, one MCU row per strip.
+        assertEquals(3, index.getPayload(4).getShort(0));
+
+        int scan = index.getScanOffset() + 2 + SOS.length + 2;
+        byte[] data = Arrays.copyOfRange(jpeg, scan, jpeg.length);
+        assertTrue(Arrays.equals(new byte[] { 0x11, (byte) 0xFF, (byte) 0xD0, 0x22, 0x23,
+                (byte) 0xFF, (byte) 0xD1, 0x33, (byte) 0xFF, (byte) 0xD9 }, data));
+    }
+
+    public void testRejectsDifferentTables() throws IOException {
+        JpegStripWriter writer = new JpegStripWriter(new ByteArrayOutputStream(), WIDTH, 32, 16);
+        write(writer, buildStrip(WIDTH, 16, DQT, new byte[] { 1 }));
+        try {
+            write(writer, buildStrip(WIDTH, 16, new byte[] { 0, 1, 2, 4 }, new byte[] { 1 }));
+            fail("Strips with different tables must not be joined");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testRejectsWrongStripSize() throws IOException {
+        JpegStripWriter writer = new JpegStripWriter(new ByteArrayOutputStream(), WIDTH, 32, 16);
+        try {
+            write(writer, buildStrip(WIDTH, 8, DQT, new byte[] { 1 }));
+            fail("Only the last strip may be shorter");
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            write(writer, buildStrip(WIDTH + 2, 16, DQT, new byte[] { 1 }));
+            fail("Strips have to be as wide as the image");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testFinishNeedsAllRows() throws IOException {
+        JpegStripWriter writer = new JpegStripWriter(new ByteArrayOutputStream(), WIDTH, 32, 16);
+        write(writer, buildStrip(WIDTH, 16, DQT, new byte[] { 1 }));
+        try {
+            writer.finish();
+            fail("Half of the rows are missing");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testMaxStripHeight() {
+        assertEquals(65535 / 250 * 16, JpegStripWriter.getMaxStripHeight(4000));
+        assertEquals(0, JpegStripWriter.getMaxStripHeight(16 * 65536));
+    }
+}
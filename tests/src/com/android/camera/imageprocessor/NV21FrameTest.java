@@ -0,0 +1,320 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks NV21Frame against straight ports of the jni_imageutil loops.
+ */
+@SmallTest
+public class NV21FrameTest extends TestCase {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 96;
+    private static final int STRIDE = 72;
+    private static final TileExecutor EXECUTOR = new TileExecutor(4);
+
+    private static byte[] randomImage(int stride, int height, long seed) {
+        byte[] data = new byte[stride * height * 3 / 2];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static NV21Frame frame(byte[] data, int width, int height, int stride) {
+        return NV21Frame.wrap(data, width, height, stride).setExecutor(EXECUTOR);
+    }
+
+    private static byte[] array(NV21Frame frame) {
+        return frame.getBuffer().array();
+    }
+
+    /** nativeFlipNV21 */
+    private static void flipReference(byte[] buf, int stride, int height, int gap,
+            boolean isVertical) {
+        int ysize = stride * height;
+        byte temp1, temp2;
+        if (isVertical) {
+            for (int x = 0; x < stride; x++) {
+                for (int y = 0; y < height / 2; y++) {
+                    temp1 = buf[y * stride + x];
+                    buf[y * stride + x] = buf[(height - 1 - y) * stride + x];
+                    buf[(height - 1 - y) * stride + x] = temp1;
+                }
+            }
+            for (int x = 0; x < stride; x += 2) {
+                for (int y = 0; y < height / 4; y++) {
+                    int a = ysize + y * stride + x;
+                    int b = ysize + (height / 2 - 1 - y) * stride + x;
+                    temp1 = buf[a];
+                    temp2 = buf[a + 1];
+                    buf[a] = buf[b];
+                    buf[a + 1] = buf[b + 1];
+                    buf[b] = temp1;
+                    buf[b + 1] = temp2;
+                }
+            }
+        } else {
+            int width = stride - gap;
+            for (int x = 0; x < width / 2; x++) {
+                for (int y = 0; y < height; y++) {
+                    temp1 = buf[y * stride + x];
+                    buf[y * stride + x] = buf[y * stride + (width - 1 - x)];
+                    buf[y * stride + (width - 1 - x)] = temp1;
+                }
+            }
+            for (int x = 0; x < width / 2; x += 2) {
+                for (int y = 0; y < height / 2; y++) {
+                    int a = ysize + y * stride + x;
+                    int b = ysize + y * stride + (width - 1 - x - 1);
+                    temp1 = buf[a];
+                    temp2 = buf[a + 1];
+                    buf[a] = buf[b];
+                    buf[a + 1] = buf[b + 1];
+                    buf[b] = temp1;
+                    buf[b + 1] = temp2;
+                }
+            }
+        }
+    }
+
+    /** rotateBufAndMerge, on a buffer without row padding. */
+    private static byte[] rotateReference(byte[] in, int w, int h, int degree) {
+        byte[] out = new byte[w * h * 3 / 2];
+        int i = 0;
+        if (degree == 90) {
+            for (int x = 0; x < w; x++) {
+                for (int y = h - 1; y >= 0; y--) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int x = 0; x < w; x += 2) {
+                for (int y = h / 2 - 1; y >= 0; y--) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        } else if (degree == 270) {
+            for (int x = w - 1; x >= 0; x--) {
+                for (int y = 0; y < h; y++) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int x = w - 2; x >= 0; x -= 2) {
+                for (int y = 0; y < h / 2; y++) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        } else {
+            for (int y = h - 1; y >= 0; y--) {
+                for (int x = w - 1; x >= 0; x--) {
+                    out[i++] = in[y * w + x];
+                }
+            }
+            for (int y = h / 2 - 1; y >= 0; y--) {
+                for (int x = w - 2; x >= 0; x -= 2) {
+                    out[i++] = in[w * h + y * w + x];
+                    out[i++] = in[w * h + y * w + x + 1];
+                }
+            }
+        }
+        return out;
+    }
+
+    /** nativeResizeImage */
+    private static int resizeReference(byte[] oldBuf, byte[] newBuf, int oldWidth,
+            int oldHeight, int oldStride, int newWidth, int newHeight) {
+        int adjustedOldWidth = oldWidth;
+        if ((float) oldWidth / oldHeight != (float) newWidth / newHeight) {
+            adjustedOldWidth = (int) (((float) newWidth / newHeight) * oldHeight);
+        }
+        int wR = adjustedOldWidth / newWidth;
+        int hR = oldHeight / newHeight;
+        if (wR < hR && adjustedOldWidth - newWidth * wR >= adjustedOldWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && oldHeight - newHeight * hR >= oldHeight / 4) {
+            hR++;
+        }
+        int R = wR < hR ? wR : hR;
+        int wC = oldWidth - (newWidth * R);
+        int hC = oldHeight - (newHeight * R);
+        int index = 0;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R) {
+                int cv1 = 0;
+                for (int y = 0; y < R; y++) {
+                    for (int x = 0; x < R; x++) {
+                        cv1 += oldBuf[(j + y) * oldStride + i + x] & 0xFF;
+                    }
+                }
+                newBuf[index++] = (byte) (cv1 / (R * R));
+            }
+        }
+        int ySize = oldStride * oldHeight;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R * 2) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R * 2) {
+                int cv1 = 0;
+                int cv2 = 0;
+                for (int y = 0; y < R * 2; y += 2) {
+                    for (int x = 0; x < R * 2; x += 2) {
+                        cv1 += oldBuf[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2] & 0xFF;
+                        cv2 += oldBuf[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2 + 1]
+                                & 0xFF;
+                    }
+                }
+                newBuf[index++] = (byte) (cv1 / (R * R));
+                newBuf[index++] = (byte) (cv2 / (R * R));
+            }
+        }
+        return R;
+    }
+
+    public void testFlipMatchesNative() {
+        for (boolean vertical : new boolean[] { true, false }) {
+            byte[] expected = randomImage(STRIDE, HEIGHT, 1);
+            byte[] actual = expected.clone();
+            flipReference(expected, STRIDE, HEIGHT, STRIDE - WIDTH, vertical);
+            frame(actual, WIDTH, HEIGHT, STRIDE).flip(vertical);
+            if (!vertical) {
+                // The native loop also leaves the padding alone.
+                assertTrue(Arrays.equals(expected, actual));
+            } else {
+                for (int y = 0; y < HEIGHT * 3 / 2; y++) {
+                    assertTrue("row " + y, Arrays.equals(
+                            Arrays.copyOfRange(expected, y * STRIDE, y * STRIDE + WIDTH),
+                            Arrays.copyOfRange(actual, y * STRIDE, y * STRIDE + WIDTH)));
+                }
+            }
+        }
+    }
+
+    public void testFlipDirectBuffer() {
+        byte[] expected = randomImage(STRIDE, HEIGHT, 2);
+        ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+        direct.put(expected);
+        direct.rewind();
+        flipReference(expected, STRIDE, HEIGHT, STRIDE - WIDTH, false);
+        new NV21Frame(direct, WIDTH, HEIGHT, STRIDE, STRIDE).setExecutor(EXECUTOR).flip(false);
+        byte[] actual = new byte[expected.length];
+        direct.get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testRotateMatchesNative() {
+        byte[] in = randomImage(WIDTH, HEIGHT, 3);
+        for (int degree : new int[] { 90, 180, 270 }) {
+            NV21Frame out = frame(in, WIDTH, HEIGHT, WIDTH).rotate(degree);
+            assertTrue("degree " + degree,
+                    Arrays.equals(rotateReference(in, WIDTH, HEIGHT, degree), array(out)));
+        }
+        // The padding of the source does not change the result.
+        byte[] padded = new byte[STRIDE * HEIGHT * 3 / 2];
+        for (int y = 0; y < HEIGHT * 3 / 2; y++) {
+            System.arraycopy(in, y * WIDTH, padded, y * STRIDE, WIDTH);
+        }
+        assertTrue(Arrays.equals(rotateReference(in, WIDTH, HEIGHT, 90),
+                array(frame(padded, WIDTH, HEIGHT, STRIDE).rotate(90))));
+    }
+
+    public void testCrop() {
+        byte[] in = randomImage(STRIDE, HEIGHT, 4);
+        NV21Frame out = frame(in, WIDTH, HEIGHT, STRIDE).crop(9, 5, 20, 30);
+        // Origin rounded down to (8, 4), size rounded up to 22x32.
+        assertEquals(22, out.getWidth());
+        assertEquals(32, out.getHeight());
+        byte[] o = array(out);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 22; x++) {
+                assertEquals(in[(y + 4) * STRIDE + x + 8], o[y * 22 + x]);
+            }
+        }
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 22; x++) {
+                assertEquals(in[STRIDE * HEIGHT + (y + 2) * STRIDE + x + 8],
+                        o[22 * 32 + y * 22 + x]);
+            }
+        }
+    }
+
+    public void testDownscaleMatchesNative() {
+        int[][] sizes = { { 32, 48 }, { 20, 30 }, { 16, 24 }, { 10, 14 } };
+        byte[] in = randomImage(STRIDE, HEIGHT, 5);
+        for (int[] size : sizes) {
+            byte[] expected = new byte[size[0] * size[1] * 3 / 2];
+            int ratio = resizeReference(in, expected, WIDTH, HEIGHT, STRIDE, size[0], size[1]);
+            NV21Frame out = NV21Frame.allocate(size[0], size[1]);
+            assertEquals(ratio, frame(in, WIDTH, HEIGHT, STRIDE).downscaleInto(out));
+            assertTrue(size[0] + "x" + size[1], Arrays.equals(expected, array(out)));
+        }
+        // The native code would read outside of the image for these.
+        for (int[] size : new int[][] { { 16, 16 }, { 30, 20 } }) {
+            try {
+                frame(in, WIDTH, HEIGHT, STRIDE).downscaleInto(
+                        NV21Frame.allocate(size[0], size[1]));
+                fail("Downscaled past the image to " + size[0] + "x" + size[1]);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+    public void testSplitPlanes() {
+        byte[] in = randomImage(STRIDE, HEIGHT, 6);
+        ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        ByteBuffer vu = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 2);
+        frame(in, WIDTH, HEIGHT, STRIDE).splitPlanes(y, vu, WIDTH);
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = 0; c < WIDTH; c++) {
+                assertEquals(in[r * STRIDE + c], y.get(r * WIDTH + c));
+                if (r < HEIGHT / 2) {
+                    assertEquals(in[STRIDE * HEIGHT + r * STRIDE + c], vu.get(r * WIDTH + c));
+                }
+            }
+        }
+    }
+
+    public void testLumaHistogram() {
+        byte[] in = randomImage(STRIDE, HEIGHT, 7);
+        int[] expected = new int[256];
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = 0; c < WIDTH; c++) {
+                expected[in[r * STRIDE + c] & 0xFF]++;
+            }
+        }
+        assertTrue(Arrays.equals(expected, frame(in, WIDTH, HEIGHT, STRIDE).lumaHistogram()));
+        assertTrue(Arrays.equals(expected, frame(in, WIDTH, HEIGHT, STRIDE)
+                .setExecutor(new TileExecutor(1)).lumaHistogram()));
+    }
+}
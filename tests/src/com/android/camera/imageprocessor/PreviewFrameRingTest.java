@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class PreviewFrameRingTest extends TestCase {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int STRIDE = 16;
+
+    private static long publish(PreviewFrameRing ring, int value) {
+        PreviewFrameRing.Frame frame = ring.obtain(WIDTH, HEIGHT, STRIDE);
+        assertNotNull(frame);
+        frame.getData()[0] = (byte) value;
+        ring.publish(frame, value);
+        return frame.getSequence();
+    }
+
+    public void testLatestOnlyDropsOlderFrames() {
+        PreviewFrameRing ring = new PreviewFrameRing();
+        PreviewFrameRing.Subscription s = ring.subscribe("latest",
+                PreviewFrameRing.POLICY_LATEST, 1, null, null);
+        for (int i = 1; i <= 5; i++) {
+            publish(ring, i);
+        }
+        PreviewFrameRing.Frame frame = s.poll();
+        assertEquals(5, frame.getData()[0]);
+        assertEquals(STRIDE * HEIGHT * 3 / 2, frame.getData().length);
+        assertEquals(STRIDE * HEIGHT, frame.getVU().arrayOffset());
+        frame.release();
+        assertNull(s.poll());
+        assertEquals(1, s.getDeliveredCount());
+        assertEquals(4, s.getDroppedCount());
+        assertEquals(0, s.getLag());
+    }
+
+    public void testQueueAndEveryNth() {
+        PreviewFrameRing ring = new PreviewFrameRing();
+        PreviewFrameRing.Subscription queue = ring.subscribe("queue",
+                PreviewFrameRing.POLICY_QUEUE, 3, null, null);
+        PreviewFrameRing.Subscription nth = ring.subscribe("nth",
+                PreviewFrameRing.POLICY_EVERY_NTH, 2, null, null);
+        for (int i = 1; i <= 4; i++) {
+            publish(ring, i);
+        }
+        // The queue kept the last three, the other took frames 1 and 3.
+        PreviewFrameRing.Frame frame = queue.poll();
+        assertEquals(2, frame.getData()[0]);
+        assertEquals(2, queue.getLag());
+        frame.release();
+        assertEquals(1, queue.getDroppedCount());
+
+        frame = nth.poll();
+        assertEquals(3, frame.getData()[0]);
+        assertEquals(1, nth.getLag());
+        frame.release();
+        assertEquals(1, nth.getDroppedCount());
+    }
+
+    public void testFramesAreSharedUntilReleased() {
+        PreviewFrameRing ring = new PreviewFrameRing();
+        PreviewFrameRing.Subscription a = ring.subscribe("a",
+                PreviewFrameRing.POLICY_LATEST, 1, null, null);
+        PreviewFrameRing.Subscription b = ring.subscribe("b",
+                PreviewFrameRing.POLICY_LATEST, 1, null, null);
+        publish(ring, 1);
+        PreviewFrameRing.Frame fromA = a.poll();
+        PreviewFrameRing.Frame fromB = b.poll();
+        assertSame(fromA, fromB);
+        assertSame(fromA.getData(), fromB.getY().array());
+
+        // Both consumers hold it, so the producer never gets it back.
+        for (int i = 2; i <= 10; i++) {
+            publish(ring, i);
+            PreviewFrameRing.Frame frame = a.poll();
+            assertNotSame(fromA, frame);
+            frame.release();
+        }
+        fromA.release();
+        fromB.release();
+        assertEquals(0, ring.getProducerDroppedCount());
+    }
+
+    public void testUnsubscribeReleasesFrames() {
+        PreviewFrameRing ring = new PreviewFrameRing();
+        PreviewFrameRing.Subscription s = ring.subscribe("queue",
+                PreviewFrameRing.POLICY_QUEUE, 2, null, null);
+        assertTrue(ring.hasSubscriptions());
+        publish(ring, 1);
+        publish(ring, 2);
+        ring.unsubscribe(s);
+        assertFalse(ring.hasSubscriptions());
+        assertNull(s.poll());
+        // Nothing holds a frame anymore, the whole ring is free again.
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ring.obtain(WIDTH, HEIGHT, STRIDE));
+        }
+        assertNull(ring.obtain(WIDTH, HEIGHT, STRIDE));
+        assertEquals(1, ring.getProducerDroppedCount());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import static com.google.testing.littlemock.LittleMock.doReturn;
+import static com.google.testing.littlemock.LittleMock.mock;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.ZSLQueue.ImageItem;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the same preview stream through LegacyZSLQueue and ZSLQueue, logs
+ * how long each takes to pair images with their capture results and hand
+ * out frames for capture, and fails if the indexed queue falls behind.
+ */
+@LargeTest
+public class ZSLQueueBenchmark extends TestCase {
+    private static final String TAG = "ZSLQueueBenchmark";
+    private static final int[] BUFFER_SIZES = {8, 16, 32, 64};
+    private static final int FRAMES = 3000;
+    private static final int WARM_UP_RUNS = 10;
+    // Each size is timed this often, the fastest run counts.
+    private static final int TIMED_RUNS = 50;
+    // The indexed queue matches the legacy one at the smallest size and is
+    // well ahead from 16 frames up, this leaves room for timing noise.
+    private static final double MAX_SLOWDOWN = 1.5;
+    // Capture results usually land a few frames after their image.
+    private static final int META_LAG = 3;
+    // One capture a second at 30 fps.
+    private static final int CAPTURE_INTERVAL = 30;
+    private static final long FRAME_DURATION_NS = 33333333L;
+
+    private TotalCaptureResult[] mResults;
+
+    private static class FakeImage extends Image {
+        private final long mTimestamp;
+
+        FakeImage(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public Plane[] getPlanes() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static long timestampOf(int frame) {
+        return (frame + 1) * FRAME_DURATION_NS;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResults = new TotalCaptureResult[FRAMES];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            TotalCaptureResult result = mock(TotalCaptureResult.class);
+            doReturn(Long.valueOf(timestampOf(frame))).when(result)
+                    .get(CaptureResult.SENSOR_TIMESTAMP);
+            mResults[frame] = result;
+        }
+    }
+
+    public void testPairingCost() {
+        for (int size : BUFFER_SIZES) {
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                runLegacy(size);
+                runIndexed(size);
+            }
+            long legacy = Long.MAX_VALUE;
+            long indexed = Long.MAX_VALUE;
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                long start = System.nanoTime();
+                int legacyCaptures = runLegacy(size);
+                legacy = Math.min(legacy, System.nanoTime() - start);
+                start = System.nanoTime();
+                int indexedCaptures = runIndexed(size);
+                indexed = Math.min(indexed, System.nanoTime() - start);
+                assertEquals("captures differ for size " + size,
+                        legacyCaptures, indexedCaptures);
+            }
+            Log.d(TAG, "size " + size
+                    + ": legacy " + (legacy / FRAMES) + " ns/frame"
+                    + ", indexed " + (indexed / FRAMES) + " ns/frame");
+            assertTrue("indexed queue " + (indexed / FRAMES) + " ns/frame, legacy "
+                    + (legacy / FRAMES) + " ns/frame for size " + size,
+                    indexed <= legacy * MAX_SLOWDOWN);
+        }
+    }
+
+    /** Returns 1 if the queue handed out a correctly paired item. */
+    private static int capture(ImageItem item) {
+        if (item == null) {
+            return 0;
+        }
+        assertEquals(item.getImage().getTimestamp(),
+                item.getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue());
+        item.closeImage();
+        return 1;
+    }
+
+    private int runLegacy(int size) {
+        LegacyZSLQueue queue = new LegacyZSLQueue(size);
+        int captures = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            queue.add(new FakeImage(timestampOf(frame)), null);
+            if (frame >= META_LAG) {
+                queue.add(mResults[frame - META_LAG]);
+            }
+            if (frame % CAPTURE_INTERVAL == CAPTURE_INTERVAL - 1) {
+                captures += capture(queue.tryToGetMatchingItem());
+            }
+        }
+        queue.onClose();
+        return captures;
+    }
+
+    private int runIndexed(int size) {
+        ZSLQueue queue = new ZSLQueue(null, size);
+        int captures = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            queue.add(new FakeImage(timestampOf(frame)), null);
+            if (frame >= META_LAG) {
+                queue.add(mResults[frame - META_LAG]);
+            }
+            if (frame % CAPTURE_INTERVAL == CAPTURE_INTERVAL - 1) {
+                captures += capture(queue.tryToGetMatchingItem());
+            }
+        }
+        queue.onClose();
+        return captures;
+    }
+}
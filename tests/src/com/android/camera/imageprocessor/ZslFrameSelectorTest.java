@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ZslFrameSelectorTest extends TestCase {
+    private static final int WINDOW_SIZE = 4;
+
+    // timestamp frame lens ae af awb flash exposure iso focus, as recorded
+    // by ZslFrameWindow with persist.sys.camera2.debug set to dump logs.
+    private static final List<String> TRACE = Arrays.asList(
+            "F 1000 1 0 2 2 2 0 30000000 100 1.0",
+            "F 2000 2 0 2 2 2 0 10000000 100 1.0",
+            "F 3000 3 1 2 1 2 0 8000000 400 0.5",
+            "F 4000 4 0 1 2 2 0 20000000 200 0.5",
+            "P -1",
+            "F 5000 5 0 2 2 1 0 20000000 200 0.5",
+            "F 6000 6 0 2 2 2 0 20000000 200 0.5",
+            "P -1",
+            "P -1");
+
+    private static List<Long> picks(ZslFrameSelector selector) {
+        return ZslFrameWindow.replay(selector, WINDOW_SIZE, TRACE);
+    }
+
+    public void testNewestConverged() {
+        assertEquals(Arrays.asList(2000L, 6000L, -1L),
+                picks(new ZslFrameSelectors.NewestConverged()));
+    }
+
+    public void testSharpest() {
+        assertEquals(Arrays.asList(2000L, 6000L, 5000L),
+                picks(new ZslFrameSelectors.Sharpest()));
+    }
+
+    public void testLowestMotion() {
+        assertEquals(Arrays.asList(1000L, 6000L, -1L),
+                picks(new ZslFrameSelectors.LowestMotion()));
+    }
+
+    public void testClosestToShutter() {
+        assertEquals(Arrays.asList(4000L, 6000L, 5000L),
+                picks(new ZslFrameSelectors.ClosestToShutter()));
+    }
+
+    public void testRecordedDecisionsReplay() {
+        ZslFrameSelector selector = new ZslFrameSelectors.Sharpest();
+        ZslFrameWindow window = new ZslFrameWindow(selector, WINDOW_SIZE, 64);
+        for (int i = 0; i < 10; i++) {
+            window.insert(i % WINDOW_SIZE, new ZslFrameInfo(i * 1000L, i, 0, 2, 2, 2, 0,
+                    (10 - (i % 3)) * 1000000L, 100, 1.0f));
+            if (i % 4 == 3) {
+                window.pick();
+            }
+        }
+        List<String> decisions = window.getDecisions();
+        List<Long> replayed = ZslFrameWindow.replay(selector, WINDOW_SIZE, decisions);
+        int p = 0;
+        for (String line : decisions) {
+            if (line.startsWith("P ")) {
+                assertEquals(Long.parseLong(line.substring(2)), replayed.get(p++).longValue());
+            }
+        }
+        assertEquals(2, p);
+    }
+
+    public void testEmptyWindow() {
+        ZslFrameWindow window = new ZslFrameWindow(
+                new ZslFrameSelectors.NewestConverged(), WINDOW_SIZE, 0);
+        assertEquals(ZslFrameWindow.NO_SLOT, window.pick());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.mpo;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MpoReaderTest extends TestCase {
+    // Scan data of the second image holds an EOI, SOI pair on purpose,
+    // which the marker scan mistakes for an image boundary.
+    private static final byte[] PRIMARY_BODY = { 0x11, 0x22, 0x33 };
+    private static final byte[] BAYER_BODY = { 0x44, (byte) 0xFF, (byte) 0xD9,
+            (byte) 0xFF, (byte) 0xD8, 0x55 };
+    private static final byte[] DEPTH_BODY = { 0x66, 0x77 };
+
+    private static byte[] jpeg(byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(body.length + 4);
+        buf.putShort((short) 0xFFD8).put(body).putShort((short) 0xFFD9);
+        return buf.array();
+    }
+
+    /**
+     * Builds a container the way MpoWriter lays it out: an APP2 MP
+     * index in the first image, offsets relative to the MP header.
+     */
+    private static byte[] buildMpo(boolean withIndex) {
+        byte[][] aux = { jpeg(BAYER_BODY), jpeg(DEPTH_BODY) };
+        int count = aux.length + 1;
+        // IFD: count, two tags, next IFD offset, then the MP entries.
+        int ifdSize = 2 + 2 * 12 + 4;
+        int entriesSize = count * 16;
+        int tiffSize = 8 + ifdSize + entriesSize;
+        int app2Size = 2 + 2 + 4 + tiffSize;
+        int primarySize = 2 + app2Size + PRIMARY_BODY.length + 2;
+        int tiffStart = 2 + 2 + 2 + 4;
+
+        ByteBuffer buf = ByteBuffer.allocate(primarySize);
+        buf.putShort((short) 0xFFD8);
+        buf.putShort((short) 0xFFE2).putShort((short) (app2Size - 2));
+        buf.putInt(withIndex ? 0x4D504600 : 0x58585800);
+        buf.putShort((short) 0x4d4d).putShort((short) 0x002A).putInt(8);
+        buf.putShort((short) 2);
+        buf.putShort((short) 0xB001).putShort((short) 4).putInt(1).putInt(count);
+        buf.putShort((short) 0xB002).putShort((short) 7).putInt(entriesSize)
+                .putInt(8 + ifdSize);
+        buf.putInt(0);
+        int offset = primarySize;
+        buf.putInt(0).putInt(primarySize).putInt(0).putInt(0);
+        for (byte[] image : aux) {
+            buf.putInt(0).putInt(image.length).putInt(offset - tiffStart).putInt(0);
+            offset += image.length;
+        }
+        buf.put(PRIMARY_BODY).putShort((short) 0xFFD9);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(buf.array(), 0, primarySize);
+        for (byte[] image : aux) {
+            out.write(image, 0, image.length);
+        }
+        return out.toByteArray();
+    }
+
+    public void testIndexedSlices() {
+        byte[] mpo = buildMpo(true);
+        MpoReader reader = MpoReader.wrap(mpo);
+        assertTrue(reader.isIndexed());
+        assertEquals(3, reader.getImageCount());
+        assertTrue(Arrays.equals(jpeg(BAYER_BODY), reader.copyImage(1)));
+        assertTrue(Arrays.equals(jpeg(DEPTH_BODY), reader.copyImage(2)));
+
+        ByteBuffer depth = reader.getImage(2);
+        assertEquals(jpeg(DEPTH_BODY).length, depth.remaining());
+        assertTrue(depth.isReadOnly());
+        assertEquals((byte) 0x66, depth.get(2));
+    }
+
+    public void testMarkerScanFallback() {
+        MpoReader reader = MpoReader.wrap(buildMpo(false));
+        assertFalse(reader.isIndexed());
+        // Without the index the EOI, SOI pair inside the bayer image splits it.
+        assertEquals(4, reader.getImageCount());
+        assertTrue(Arrays.equals(jpeg(DEPTH_BODY), reader.copyImage(3)));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.mpo;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MpoWriterTest extends TestCase {
+    private static final String CROP_INFO = "Qualcomm Dual Camera Attributes";
+
+    // Written by MpoOutputStream, which MpoWriter replaced, from the
+    // containers built below.
+    private static final String BAYER_MONO_MPO =
+            "ffd8ffe1000945786966000011ffe200764d5046004d4d002a000000080003b0"
+            + "0200070000002000000032b00100040000000100000002b00000070000000430"
+            + "3130300000005220000000000000a70000000000000000000200020000005d00"
+            + "000092000000000002b101000400000001ffffffffb000000700000004303130"
+            + "3000000000ffdb0005001111ffc0000b080002000201011100ffda0008010100"
+            + "003f001112ffd9ffd8ffe1000945786966000022ffe2002c4d5046004d4d002a"
+            + "000000080002b10100040000000100000001b000000700000004303130300000"
+            + "0000ffdb0005002222ffc0000b080002000201011100ffda0008010100003f00"
+            + "2223ffd9";
+    private static final String CLEARSIGHT_MPO =
+            "ffd8ffe1000945786966000033ffe200864d5046004d4d002a000000080003b0"
+            + "0200070000003000000032b00100040000000100000003b00000070000000430"
+            + "3130300000006220000000000000de0000000000000000000200020000008400"
+            + "0000c900000000000200020000005d0000014d000000000002b1010004000000"
+            + "01ffffffffb0000007000000043031303000000000ffe3002500000000000000"
+            + "00000000000000000000000000000000000000000000000000000000ffdb0005"
+            + "003333ffc0000b080002000201011100ffda0008010100003f003334ffd9ffd8"
+            + "ffe1000945786966000011ffe2002c4d5046004d4d002a000000080002b10100"
+            + "040000000100000001b0000007000000043031303000000000ffe30025517561"
+            + "6c636f6d6d204475616c2043616d657261204174747269627574657341424344"
+            + "ffdb0005001111ffc0000b080002000201011100ffda0008010100003f001112"
+            + "ffd9ffd8ffe1000945786966000022ffe2002c4d5046004d4d002a0000000800"
+            + "02b10100040000000100000002b0000007000000043031303000000000ffdb00"
+            + "05002222ffc0000b080002000201011100ffda0008010100003f002223ffd9";
+
+    private static void segment(ByteBuffer buf, int marker, byte[] payload) {
+        buf.putShort((short) marker).putShort((short) (payload.length + 2)).put(payload);
+    }
+
+    // SOI, APP1, the optional crop info, DQT, SOF0, SOS, scan data and EOI.
+    private static byte[] jpeg(byte fill, boolean withCropInfo) {
+        ByteBuffer buf = ByteBuffer.allocate(128);
+        buf.putShort((short) 0xFFD8);
+        segment(buf, 0xFFE1, new byte[] { 'E', 'x', 'i', 'f', 0, 0, fill });
+        if (withCropInfo) {
+            segment(buf, 0xFFE3, (CROP_INFO + "ABCD").getBytes());
+        }
+        segment(buf, 0xFFDB, new byte[] { 0, fill, fill });
+        segment(buf, 0xFFC0, new byte[] { 8, 0, 2, 0, 2, 1, 1, 0x11, 0 });
+        segment(buf, 0xFFDA, new byte[] { 1, 1, 0, 0, 0x3f, 0 });
+        buf.put(fill).put((byte) (fill + 1));
+        buf.putShort((short) 0xFFD9);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static byte[][] sources(boolean clearSight) {
+        if (clearSight) {
+            return new byte[][] { jpeg((byte) 0x33, true), jpeg((byte) 0x11, true),
+                    jpeg((byte) 0x22, false) };
+        }
+        return new byte[][] { jpeg((byte) 0x11, false), jpeg((byte) 0x22, false) };
+    }
+
+    // Lays out the images the way MediaSaveService does, primary first.
+    private static MpoData buildMpo(byte[][] images) {
+        MpoData mpo = new MpoData();
+        for (int i = 1; i < images.length; i++) {
+            mpo.addAuxiliaryMpoImage(new MpoImageData(images[i], ByteOrder.BIG_ENDIAN));
+        }
+        mpo.setPrimaryMpoImage(new MpoImageData(images[0], ByteOrder.BIG_ENDIAN));
+        return mpo;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] writeToStream(byte[][] images) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int size = MpoInterface.writeMpo(buildMpo(images), out);
+        assertEquals(out.size(), size);
+        return out.toByteArray();
+    }
+
+    private static byte[] writeToFile(byte[][] images) throws IOException {
+        File file = File.createTempFile("mpo", ".jpg");
+        try {
+            int size = MpoInterface.writeMpo(buildMpo(images), file.getPath());
+            assertEquals(file.length(), size);
+            byte[] bytes = new byte[size];
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            return bytes;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Removes the APP2 MP segment the writer inserts after APP1.
+     */
+    private static byte[] stripMpSegment(byte[] image) {
+        int app2 = 4 + ((image[4] & 0xff) << 8 | (image[5] & 0xff));
+        assertEquals((byte) 0xE2, image[app2 + 1]);
+        int length = 2 + ((image[app2 + 2] & 0xff) << 8 | (image[app2 + 3] & 0xff));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(image, 0, app2);
+        out.write(image, app2 + length, image.length - app2 - length);
+        return out.toByteArray();
+    }
+
+    public void testMatchesPreviousWriter() throws IOException {
+        byte[] bayerMono = hex(BAYER_MONO_MPO);
+        assertTrue(Arrays.equals(bayerMono, writeToStream(sources(false))));
+        assertTrue(Arrays.equals(bayerMono, writeToFile(sources(false))));
+
+        byte[] clearSight = hex(CLEARSIGHT_MPO);
+        assertTrue(Arrays.equals(clearSight, writeToStream(sources(true))));
+        assertTrue(Arrays.equals(clearSight, writeToFile(sources(true))));
+    }
+
+    public void testReadsBackBayerMono() {
+        byte[][] images = sources(false);
+        MpoReader reader = MpoReader.wrap(writeToStream(images));
+        assertTrue(reader.isIndexed());
+        assertEquals(images.length, reader.getImageCount());
+        assertEquals(0, reader.getImageOffset(0));
+        for (int i = 0; i < images.length; i++) {
+            assertTrue(Arrays.equals(images[i], stripMpSegment(reader.copyImage(i))));
+        }
+    }
+
+    public void testReadsBackClearSight() {
+        byte[][] images = sources(true);
+        byte[] mpo = writeToStream(images);
+        MpoReader reader = MpoReader.wrap(mpo);
+        assertTrue(reader.isIndexed());
+        assertEquals(images.length, reader.getImageCount());
+        assertEquals(mpo.length, reader.getImageOffset(2) + reader.getImageLength(2));
+        for (int i = 1; i < images.length; i++) {
+            assertTrue(Arrays.equals(images[i], stripMpSegment(reader.copyImage(i))));
+        }
+
+        // Only the crop info of the primary is blanked, its length is kept.
+        byte[] primary = stripMpSegment(reader.copyImage(0));
+        assertEquals(images[0].length, primary.length);
+        int cropInfo = 4 + ((primary[4] & 0xff) << 8 | (primary[5] & 0xff)) + 4;
+        for (int i = 0; i < CROP_INFO.length() + 4; i++) {
+            assertEquals(0, primary[cropInfo + i]);
+        }
+        assertTrue(Arrays.equals(Arrays.copyOfRange(images[0], cropInfo + CROP_INFO.length() + 4,
+                images[0].length), Arrays.copyOfRange(primary,
+                cropInfo + CROP_INFO.length() + 4, primary.length)));
+    }
+}
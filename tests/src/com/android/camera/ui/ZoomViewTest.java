@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.ui;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ZoomViewTest extends TestCase {
+    public void testLevelForScale() {
+        // 8000px wide, 32 tiles of 256 at level 0.
+        assertEquals(5, ZoomView.maxLevel(8000));
+        assertEquals(0, ZoomView.levelForScale(1f, 8000));
+        assertEquals(0, ZoomView.levelForScale(2f, 8000));
+        assertEquals(1, ZoomView.levelForScale(0.5f, 8000));
+        assertEquals(2, ZoomView.levelForScale(0.25f, 8000));
+        // Nearest power of two: 1 / 0.3 is about 3.3, so sample size 4.
+        assertEquals(2, ZoomView.levelForScale(0.3f, 8000));
+        // Never coarser than a single tile.
+        assertEquals(5, ZoomView.levelForScale(0.001f, 8000));
+        assertEquals(0, ZoomView.levelForScale(0.001f, 200));
+    }
+
+    public void testKeyRoundTrip() {
+        long key = ZoomView.key(3, 1234, 5678);
+        assertEquals(3, ZoomView.levelOf(key));
+        assertEquals(1234, ZoomView.tileXOf(key));
+        assertEquals(5678, ZoomView.tileYOf(key));
+        assertTrue(key != ZoomView.key(3, 5678, 1234));
+        assertTrue(key != ZoomView.key(2, 1234, 5678));
+    }
+
+    public void testTileRect() {
+        Rect r = new Rect();
+        ZoomView.getTileRect(0, 2, 1, r);
+        assertEquals(new Rect(512, 256, 768, 512), r);
+        ZoomView.getTileRect(2, 1, 0, r);
+        assertEquals(new Rect(1024, 0, 2048, 1024), r);
+    }
+}
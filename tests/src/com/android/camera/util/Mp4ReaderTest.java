@@ -0,0 +1,170 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class Mp4ReaderTest extends TestCase {
+    private static final int ONE = 0x10000;
+    private static final int[] IDENTITY = { ONE, 0, 0, 0, ONE, 0, 0, 0, 0x40000000 };
+    private static final int[] ROTATE_90 = { 0, ONE, 0, -ONE, 0, 0, 0, 0, 0x40000000 };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("mp4reader", ".mp4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.write(child, 0, child.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.size());
+        buf.putInt(buf.capacity()).put(type.getBytes()).put(payload.toByteArray());
+        return buf.array();
+    }
+
+    private static byte[] mvhd(int version, long timescale, long duration) {
+        ByteBuffer buf = ByteBuffer.allocate(version == 1 ? 112 : 100);
+        buf.putInt(version << 24);
+        if (version == 1) {
+            buf.putLong(0).putLong(0).putInt((int) timescale).putLong(duration);
+        } else {
+            buf.putInt(0).putInt(0).putInt((int) timescale).putInt((int) duration);
+        }
+        return box("mvhd", buf.array());
+    }
+
+    private static byte[] tkhd(int[] matrix, int width, int height) {
+        ByteBuffer buf = ByteBuffer.allocate(84);
+        buf.putInt(0).putInt(0).putInt(0).putInt(1).putInt(0).putInt(0);
+        buf.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0);
+        for (int m : matrix) {
+            buf.putInt(m);
+        }
+        buf.putInt(width << 16).putInt(height << 16);
+        return box("tkhd", buf.array());
+    }
+
+    private static byte[] trak(String handler, int[] matrix, int width, int height) {
+        ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(0).putInt(0).put(handler.getBytes());
+        byte[] stbl = box("stbl", new byte[4096]);
+        return box("trak", tkhd(matrix, width, height),
+                box("mdia", box("hdlr", hdlr.array()), box("minf", stbl)));
+    }
+
+    private static byte[] moov(byte[] mvhd, byte[]... traks) {
+        byte[][] children = new byte[traks.length + 1][];
+        children[0] = mvhd;
+        System.arraycopy(traks, 0, children, 1, traks.length);
+        return box("moov", children);
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", "isom".getBytes(), new byte[4], "isom3gp4".getBytes());
+    }
+
+    private Mp4Reader write(byte[]... boxes) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            for (byte[] b : boxes) {
+                out.write(b);
+            }
+        } finally {
+            out.close();
+        }
+        return Mp4Reader.read(mFile);
+    }
+
+    public void testMoovAtEnd() throws IOException {
+        Mp4Reader reader = write(ftyp(), box("mdat", new byte[1 << 16]),
+                moov(mvhd(0, 1000, 12345),
+                        trak("soun", IDENTITY, 0, 0),
+                        trak("vide", ROTATE_90, 1920, 1080)));
+        assertNotNull(reader);
+        assertEquals(12345, reader.getDurationMs());
+        assertTrue(reader.hasVideo());
+        assertEquals(1920, reader.getWidth());
+        assertEquals(1080, reader.getHeight());
+        assertEquals(90, reader.getRotation());
+    }
+
+    public void testMoovAtStartWithVersion1Header() throws IOException {
+        Mp4Reader reader = write(ftyp(),
+                moov(mvhd(1, 90000, 90000L * 3600 * 30),
+                        trak("vide", IDENTITY, 640, 480)),
+                box("mdat", new byte[1024]));
+        assertNotNull(reader);
+        assertEquals(3600L * 30 * 1000, reader.getDurationMs());
+        assertEquals(640, reader.getWidth());
+        assertEquals(0, reader.getRotation());
+    }
+
+    public void testAudioOnly() throws IOException {
+        Mp4Reader reader = write(ftyp(), moov(mvhd(0, 44100, 44100),
+                trak("soun", IDENTITY, 0, 0)));
+        assertNotNull(reader);
+        assertEquals(1000, reader.getDurationMs());
+        assertFalse(reader.hasVideo());
+    }
+
+    public void testUnfinalizedRecording() throws IOException {
+        // A recording cut off before moov was written, mdat runs to the end.
+        ByteBuffer mdat = ByteBuffer.allocate(512);
+        mdat.putInt(0).put("mdat".getBytes());
+        assertNull(write(ftyp(), mdat.array()));
+    }
+
+    public void testTruncatedBox() throws IOException {
+        byte[] moov = moov(mvhd(0, 1000, 1000), trak("vide", IDENTITY, 320, 240));
+        byte[] cut = new byte[moov.length - 40];
+        System.arraycopy(moov, 0, cut, 0, cut.length);
+        assertNull(write(ftyp(), cut));
+    }
+}
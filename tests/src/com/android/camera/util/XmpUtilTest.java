@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.adobe.xmp.XMPMeta;
+import com.adobe.xmp.XMPMetaFactory;
+import com.adobe.xmp.options.SerializeOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class XmpUtilTest extends TestCase {
+    private static final String NAMESPACE = "http://ns.google.com/photos/1.0/image/";
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String EXTENDED_HEADER = "http://ns.adobe.com/xmp/extension/\0";
+    private static final int GUID_SIZE = 32;
+    private static final byte[] EXIF_BODY = "Exif\0\0fake".getBytes();
+    private static final byte[] SCAN_DATA = { 0x12, 0x34, (byte) 0xFF, 0x00, 0x56,
+            (byte) 0xFF, (byte) 0xD9 };
+
+    static {
+        try {
+            XMPMetaFactory.getSchemaRegistry().registerNamespace(NAMESPACE, "GImage");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** The pieces of a jpeg written by XmpUtil, in file order. */
+    private static class Parsed {
+        List<Integer> markers = new ArrayList<Integer>();
+        byte[] standardXmp;
+        String guid;
+        int fullLength = -1;
+        ByteArrayOutputStream extended = new ByteArrayOutputStream();
+        int extendedSections;
+        byte[] scan;
+    }
+
+    private static byte[] buildJpeg() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.putShort((short) 0xFFD8);
+        buf.putShort((short) 0xFFE1).putShort((short) (EXIF_BODY.length + 2)).put(EXIF_BODY);
+        buf.putShort((short) 0xFFDB).putShort((short) 4).put((byte) 1).put((byte) 2);
+        buf.putShort((short) 0xFFDA).put(SCAN_DATA);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static Parsed parse(byte[] jpeg) throws Exception {
+        Parsed parsed = new Parsed();
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        assertEquals((short) 0xFFD8, buf.getShort());
+        while (buf.hasRemaining()) {
+            int marker = buf.getShort() & 0xffff;
+            parsed.markers.add(marker);
+            if (marker == 0xFFDA) {
+                parsed.scan = Arrays.copyOfRange(jpeg, buf.position(), jpeg.length);
+                break;
+            }
+            byte[] body = new byte[(buf.getShort() & 0xffff) - 2];
+            buf.get(body);
+            String head = new String(body, 0, Math.min(body.length, EXTENDED_HEADER.length()),
+                    "ISO-8859-1");
+            if (marker == 0xFFE1 && head.startsWith(XMP_HEADER)) {
+                parsed.standardXmp = Arrays.copyOfRange(body, XMP_HEADER.length(), body.length);
+            } else if (marker == 0xFFE1 && head.equals(EXTENDED_HEADER)) {
+                ByteBuffer section = ByteBuffer.wrap(body);
+                section.position(EXTENDED_HEADER.length());
+                byte[] guid = new byte[GUID_SIZE];
+                section.get(guid);
+                int fullLength = section.getInt();
+                int offset = section.getInt();
+                assertTrue(section.remaining() <= 65000);
+                assertEquals(parsed.extended.size(), offset);
+                if (parsed.guid == null) {
+                    parsed.guid = new String(guid, "ISO-8859-1");
+                    parsed.fullLength = fullLength;
+                }
+                assertEquals(parsed.guid, new String(guid, "ISO-8859-1"));
+                assertEquals(parsed.fullLength, fullLength);
+                parsed.extended.write(body, section.position(), section.remaining());
+                parsed.extendedSections++;
+            }
+        }
+        return parsed;
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02X", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] writeStreaming(byte[] payload) throws Exception {
+        XMPMeta standard = XmpUtil.createXMPMeta();
+        standard.setProperty(NAMESPACE, "Mime", "image/jpeg");
+        List<XmpUtil.Base64Property> properties = new ArrayList<XmpUtil.Base64Property>();
+        properties.add(new XmpUtil.Base64Property(NAMESPACE, "Data", payload));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(buildJpeg(), out,
+                standard, properties));
+        return out.toByteArray();
+    }
+
+    private static void checkPayload(byte[] payload) throws Exception {
+        Parsed parsed = parse(writeStreaming(payload));
+
+        assertEquals(Arrays.asList(0xFFE1, 0xFFE1), parsed.markers.subList(0, 2));
+        assertEquals(Integer.valueOf(0xFFDA), parsed.markers.get(parsed.markers.size() - 1));
+        assertTrue(Arrays.equals(SCAN_DATA, parsed.scan));
+
+        byte[] extended = parsed.extended.toByteArray();
+        assertEquals(extended.length, parsed.fullLength);
+        assertEquals((extended.length + 64999) / 65000, parsed.extendedSections);
+        assertEquals(md5(extended), parsed.guid);
+
+        XMPMeta standard = XMPMetaFactory.parseFromBuffer(parsed.standardXmp);
+        assertEquals(parsed.guid, standard.getPropertyString(
+                "http://ns.adobe.com/xmp/note/", "HasExtendedXMP"));
+        assertEquals("image/jpeg", standard.getPropertyString(NAMESPACE, "Mime"));
+
+        XMPMeta meta = XMPMetaFactory.parseFromBuffer(extended);
+        byte[] decoded = Base64.decode(meta.getPropertyString(NAMESPACE, "Data"),
+                Base64.DEFAULT);
+        assertTrue(Arrays.equals(payload, decoded));
+    }
+
+    public void testSmallPayloadsOfEveryPadding() throws Exception {
+        checkPayload(new byte[0]);
+        checkPayload(randomBytes(1, 1));
+        checkPayload(randomBytes(2, 2));
+        checkPayload(randomBytes(3, 3));
+    }
+
+    public void testPayloadAcrossManySections() throws Exception {
+        // Spans several base64 chunks and several 65000 byte sections.
+        checkPayload(randomBytes(3 * 65000 + 17, 4));
+    }
+
+    public void testMatchesSerializedExtendedXmp() throws Exception {
+        byte[] bayer = randomBytes(100000, 5);
+        byte[] depth = randomBytes(5000, 6);
+        String depthNamespace = "http://ns.google.com/photos/1.0/depthmap/";
+        XMPMetaFactory.getSchemaRegistry().registerNamespace(depthNamespace, "GDepth");
+
+        XMPMeta standard = XmpUtil.createXMPMeta();
+        standard.setProperty(NAMESPACE, "Mime", "image/jpeg");
+        List<XmpUtil.Base64Property> properties = new ArrayList<XmpUtil.Base64Property>();
+        // Out of serialization order on purpose.
+        properties.add(new XmpUtil.Base64Property(NAMESPACE, "Data", bayer));
+        properties.add(new XmpUtil.Base64Property(depthNamespace, "Data", depth));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(buildJpeg(), out,
+                standard, properties));
+
+        // The same packet as the string based writer serializes, apart from
+        // the base64 line breaks.
+        XMPMeta expected = XmpUtil.createXMPMeta();
+        expected.setProperty(NAMESPACE, "Data", Base64.encodeToString(bayer, Base64.NO_WRAP));
+        expected.setProperty(depthNamespace, "Data",
+                Base64.encodeToString(depth, Base64.NO_WRAP));
+        SerializeOptions options = new SerializeOptions();
+        options.setUseCompactFormat(true);
+        options.setOmitPacketWrapper(true);
+        byte[] serialized = XMPMetaFactory.serializeToBuffer(expected, options);
+
+        Parsed parsed = parse(out.toByteArray());
+        assertTrue(Arrays.equals(serialized, parsed.extended.toByteArray()));
+    }
+
+    public void testExtractFromFile() throws Exception {
+        File file = File.createTempFile("xmp", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(writeStreaming(randomBytes(70000, 7)));
+            out.close();
+            XMPMeta meta = XmpUtil.extractXMPMeta(file.getAbsolutePath());
+            assertNotNull(meta);
+            assertEquals("image/jpeg", meta.getPropertyString(NAMESPACE, "Mime"));
+        } finally {
+            file.delete();
+        }
+    }
+}